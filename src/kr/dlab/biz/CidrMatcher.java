@@ -0,0 +1,299 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  CidrMatcher.java : precompiled IPv4/IPv6 CIDR ranges for internal request detection.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of CIDR ranges compiled once into primitive network/mask pairs.
+ * <p>
+ * {@link #matches(String, int, int)} parses the address literal itself, so it
+ * never resolves names and does not allocate (IPv6 parsing reuses a per-thread
+ * scratch array). Host names are not addresses and
+ * simply don't match. IPv4-mapped IPv6 addresses (<code>::ffff:a.b.c.d</code>)
+ * are checked against the IPv4 ranges.
+ */
+public final class CidrMatcher {
+
+	private final int[] net4;
+	private final int[] mask4;
+
+	private final long[] net6Hi;
+	private final long[] net6Lo;
+	private final long[] mask6Hi;
+	private final long[] mask6Lo;
+
+	private final String spec;
+
+	private CidrMatcher(int[] net4, int[] mask4, long[] net6Hi, long[] net6Lo,
+			long[] mask6Hi, long[] mask6Lo, String spec) {
+		this.net4 = net4;
+		this.mask4 = mask4;
+		this.net6Hi = net6Hi;
+		this.net6Lo = net6Lo;
+		this.mask6Hi = mask6Hi;
+		this.mask6Lo = mask6Lo;
+		this.spec = spec;
+	}
+
+	/**
+	 * @param ranges comma or whitespace separated list such as
+	 *        <code>10.0.0.0/8, 192.168.1.0/24, fd00::/8</code>; an address
+	 *        without a prefix length matches only itself
+	 * @throws IllegalArgumentException if a range is not a valid address literal
+	 */
+	public static CidrMatcher compile(String ranges) {
+
+		List<int[]> v4 = new ArrayList<int[]>();
+		List<long[]> v6 = new ArrayList<long[]>();
+
+		if ( ranges != null ) {
+			for ( String range : ranges.split("[,\\s]+") ) {
+				if ( range.length() == 0 ) continue;
+
+				int slash = range.indexOf('/');
+				String addr = slash < 0 ? range : range.substring(0, slash);
+				int prefix = -1;
+				if ( slash >= 0 ) {
+					try {
+						prefix = Integer.parseInt(range.substring(slash + 1));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Bad prefix length in " + range);
+					}
+				}
+
+				if ( addr.indexOf(':') < 0 ) {
+					long ip = parseIPv4(addr, 0, addr.length());
+					if ( ip < 0 ) throw new IllegalArgumentException("Not an IP address literal: " + range);
+					if ( prefix < 0 ) prefix = 32;
+					if ( prefix > 32 ) throw new IllegalArgumentException("Bad prefix length in " + range);
+					int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+					v4.add(new int[] { (int)ip & mask, mask });
+				} else {
+					long[] a = new long[2];
+					if ( !parseIPv6(addr, 0, addr.length(), a) ) {
+						throw new IllegalArgumentException("Not an IP address literal: " + range);
+					}
+					if ( prefix < 0 ) prefix = 128;
+					if ( prefix > 128 ) throw new IllegalArgumentException("Bad prefix length in " + range);
+					long mHi = prefix >= 64 ? -1L : ( prefix == 0 ? 0L : -1L << (64 - prefix) );
+					long mLo = prefix <= 64 ? 0L : ( prefix == 128 ? -1L : -1L << (128 - prefix) );
+					v6.add(new long[] { a[0] & mHi, a[1] & mLo, mHi, mLo });
+				}
+			}
+		}
+
+		int[] net4 = new int[v4.size()];
+		int[] mask4 = new int[v4.size()];
+		for ( int i = 0; i < net4.length; i++ ) {
+			net4[i] = v4.get(i)[0];
+			mask4[i] = v4.get(i)[1];
+		}
+		long[] net6Hi = new long[v6.size()];
+		long[] net6Lo = new long[v6.size()];
+		long[] mask6Hi = new long[v6.size()];
+		long[] mask6Lo = new long[v6.size()];
+		for ( int i = 0; i < net6Hi.length; i++ ) {
+			long[] r = v6.get(i);
+			net6Hi[i] = r[0];
+			net6Lo[i] = r[1];
+			mask6Hi[i] = r[2];
+			mask6Lo[i] = r[3];
+		}
+		return new CidrMatcher(net4, mask4, net6Hi, net6Lo, mask6Hi, mask6Lo, ranges);
+	}
+
+	public boolean isEmpty() {
+		return net4.length == 0 && net6Hi.length == 0;
+	}
+
+	public boolean matches(String addr) {
+		return addr != null && matches(addr, 0, addr.length());
+	}
+
+	/**
+	 * @return true if the address literal in <code>addr[start,end)</code> lies
+	 *         in one of the ranges; false for anything that is not a literal
+	 */
+	public boolean matches(String addr, int start, int end) {
+
+		// trim blanks and an optional [..] around IPv6 literals
+		while ( start < end && addr.charAt(start) <= ' ' ) start++;
+		while ( end > start && addr.charAt(end - 1) <= ' ' ) end--;
+		if ( end - start >= 2 && addr.charAt(start) == '[' && addr.charAt(end - 1) == ']' ) {
+			start++;
+			end--;
+		}
+		if ( start >= end ) return false;
+
+		int colon = addr.indexOf(':', start);
+		if ( colon < 0 || colon >= end ) {
+			long ip = parseIPv4(addr, start, end);
+			return ip >= 0 && matches4((int)ip);
+		}
+
+		if ( net6Hi.length == 0 && net4.length == 0 ) return false;
+
+		long[] a = SCRATCH6.get();
+		if ( !parseIPv6(addr, start, end, a) ) return false;
+
+		// ::ffff:a.b.c.d
+		if ( a[0] == 0 && (a[1] >>> 32) == 0xFFFFL ) {
+			return matches4((int)a[1]);
+		}
+
+		for ( int k = 0; k < net6Hi.length; k++ ) {
+			if ( (a[0] & mask6Hi[k]) == net6Hi[k] && (a[1] & mask6Lo[k]) == net6Lo[k] ) return true;
+		}
+		return false;
+	}
+
+	private boolean matches4(int ip) {
+		for ( int i = 0; i < net4.length; i++ ) {
+			if ( (ip & mask4[i]) == net4[i] ) return true;
+		}
+		return false;
+	}
+
+	/** per-thread 128 bit result holder, so parsing an IPv6 address does not allocate */
+	private static final ThreadLocal<long[]> SCRATCH6 = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	/**
+	 * @return the address as an unsigned int, or -1 if it is not a dotted quad
+	 */
+	static long parseIPv4(String s, int start, int end) {
+		long ip = 0;
+		int parts = 0;
+		int i = start;
+		while ( i < end ) {
+			int v = 0;
+			int digits = 0;
+			while ( i < end && s.charAt(i) != '.' ) {
+				char c = s.charAt(i);
+				if ( c < '0' || c > '9' ) return -1;
+				v = v * 10 + (c - '0');
+				if ( ++digits > 3 ) return -1;
+				i++;
+			}
+			if ( digits == 0 || v > 255 ) return -1;
+			ip = (ip << 8) | v;
+			parts++;
+			if ( i < end ) {
+				i++; // '.'
+				if ( i == end ) return -1;
+			}
+		}
+		return parts == 4 ? ip : -1;
+	}
+
+	/**
+	 * Parse an IPv6 literal (with optional <code>::</code> and trailing dotted
+	 * quad) into <code>out[0]</code> (high 64 bits) and <code>out[1]</code>.
+	 */
+	static boolean parseIPv6(String s, int start, int end, long[] out) {
+		long hi = 0, lo = 0, tailHi = 0, tailLo = 0;
+		int head = 0, tail = 0;
+		boolean compressed = false;
+
+		int i = start;
+		if ( end - start >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':' ) {
+			compressed = true;
+			i += 2;
+		} else if ( s.charAt(i) == ':' ) {
+			return false;
+		}
+
+		while ( i < end ) {
+			int groupStart = i;
+			int g = 0;
+			while ( i < end && s.charAt(i) != ':' ) {
+				int d = Character.digit(s.charAt(i), 16);
+				if ( d < 0 ) {
+					if ( s.charAt(i) == '.' ) break;
+					return false;
+				}
+				g = (g << 4) | d;
+				i++;
+			}
+
+			int groups = 1;
+			if ( i < end && s.charAt(i) == '.' ) {
+				// embedded IPv4 takes the last two groups
+				long ip = parseIPv4(s, groupStart, end);
+				if ( ip < 0 ) return false;
+				g = (int)ip;
+				groups = 2;
+				i = end;
+			} else if ( i - groupStart == 0 || i - groupStart > 4 ) {
+				return false;
+			}
+
+			int bits = 16 * groups;
+			if ( compressed ) {
+				tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+				tailLo = (tailLo << bits) | (g & 0xFFFFFFFFL);
+				tail += groups;
+			} else {
+				hi = (hi << bits) | (lo >>> (64 - bits));
+				lo = (lo << bits) | (g & 0xFFFFFFFFL);
+				head += groups;
+			}
+
+			if ( i < end ) { // at ':'
+				i++;
+				if ( i < end && s.charAt(i) == ':' ) {
+					if ( compressed ) return false;
+					compressed = true;
+					i++;
+				} else if ( i == end ) {
+					return false;
+				}
+			}
+		}
+
+		if ( compressed ) {
+			if ( head + tail > 7 ) return false;
+			// move the head groups to the top, the zero run and tail fill the rest
+			for ( int k = head; k < 8; k++ ) {
+				hi = (hi << 16) | (lo >>> 48);
+				lo = lo << 16;
+			}
+			hi |= tailHi;
+			lo |= tailLo;
+		} else if ( head != 8 ) {
+			return false;
+		}
+
+		out[0] = hi;
+		out[1] = lo;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "CidrMatcher[" + spec + "]";
+	}
+}
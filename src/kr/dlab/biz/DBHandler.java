@@ -7,8 +7,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
 
 import javax.servlet.http.HttpServletRequest;
@@ -95,85 +97,92 @@ public class DBHandler {
 	public boolean insertLogSearch(HttpServletRequest req, SolrQueryRequest solrReq, 
 			SolrQueryResponse solrRsp, String contextUri, String userIp) {
 		
-		boolean retVal = false;
+		List<SearchLogRecord> records = new ArrayList<SearchLogRecord>(1);
+		records.add(SearchLogRecord.capture(solrReq, solrRsp, userIp));
 		
-		int solrRows = 0; 
-		int solrHits = 0;
-		int actualDocs = 0;
-		
-		String solrFullQuery = "";
-		String solrUser = "";
-		String solrQ = "";
-		String solrFQ = "";
-		String solrFacetYn = "";
-		
-		solrRows = solrReq.getParams().getInt("rows");
-		solrHits  = (Integer)solrRsp.getToLog().get("hits");
-		
-		solrFullQuery = solrReq.getParamString();
-		solrUser = solrReq.getParams().get("user");
-		solrQ = solrReq.getParams().get("q");
-		solrFQ = solrReq.getParams().get("fq");
-		solrFacetYn = solrReq.getParams().get("facet");
-		
-		if (  solrHits > solrRows ) {
-			actualDocs = solrRows;
-		} else if ( solrHits < solrRows ) {
-			actualDocs = solrHits;
-		} else {
-			actualDocs = solrRows;
+		try {
+			return insertLogSearchBatch(records) == 1;
+		}catch(SQLException e){
+			myLogger.error("Error "+e.getErrorCode()+", "+e.getMessage()+","+e.getSQLState());
 		}
+		return false;
+	}
+	
+	/**
+	 * Insert several search log rows with a single prepared statement and one
+	 * <code>executeBatch</code> round trip.
+	 * 
+	 * @return number of rows written
+	 * @throws SQLException if no connection could be obtained or the batch failed,
+	 *         so the caller can decide what to do with the records
+	 */
+	public int insertLogSearchBatch(List<SearchLogRecord> records) throws SQLException {
 		
-		if ( solrFQ == null ) solrFQ = "";
-		solrFacetYn = ( solrFacetYn == null) ? "N" : "Y";
-		
-		PreparedStatement pstmt;
-		
-		StringBuffer columnNm = new StringBuffer();
-		StringBuffer questionNm = new StringBuffer();
-		
-		int[] idxs = {0, 1};
-		String[] qq = {"uuid(),", "now(),"};
-		
-		makeCustomSql(columnNm, questionNm, idxs, qq);
-		
-		String query = "INSERT INTO " + selectTableName + 
-							columnNm.toString() + " values " + questionNm.toString() ; 
-		
-		myLogger.info("SQL = " + query);
+		if ( records == null || records.isEmpty() ) return 0;
 		
 		Connection con = DBSingleTon.getInstance().getConnection();
+		if ( con == null ) {
+			throw new SQLException("no connection for " + selectTableName);
+		}
+		
+		PreparedStatement pstmt = null;
 		
 		try{
-			pstmt = con.prepareStatement(query);
+			pstmt = con.prepareStatement(getInsertLogSearchSql());
 			
-			pstmt.setString(1, userIp );
-			pstmt.setString(2, solrUser );
-			pstmt.setString(3, solrFullQuery );
-			pstmt.setString(4, solrQ );
-			pstmt.setString(5, solrFQ );
-			pstmt.setInt(6, actualDocs);
-			pstmt.setString(7, solrFacetYn);
-			pstmt.setString(8, "");
-			pstmt.setInt(9, 0);
-			pstmt.setString(10, "");
-			pstmt.setInt(11, 0);
-			pstmt.setString(12, "");
-			pstmt.setInt(13, 0);
+			for ( SearchLogRecord r : records ) {
+				pstmt.setTimestamp(1, new Timestamp(r.getAddedTime()) );
+				pstmt.setString(2, r.getUserIp() );
+				pstmt.setString(3, r.getUser() );
+				pstmt.setString(4, r.getFullQuery() );
+				pstmt.setString(5, r.getQ() );
+				pstmt.setString(6, r.getFq() );
+				pstmt.setInt(7, r.getResultCnt());
+				pstmt.setString(8, r.getFacetYn());
+				pstmt.setString(9, "");
+				pstmt.setInt(10, 0);
+				pstmt.setString(11, "");
+				pstmt.setInt(12, 0);
+				pstmt.setString(13, "");
+				pstmt.setInt(14, 0);
+				pstmt.addBatch();
+			}
 			
-			pstmt.execute();
+			pstmt.executeBatch();
+			
+			return records.size();
 			
-		}catch(SQLException e){
-			//e.printStackTrace();
-			myLogger.error("Error "+e.getErrorCode()+", "+e.getMessage()+","+e.getSQLState()+","+e.getStackTrace().toString());
-		}catch(Exception e1){
-			//e1.printStackTrace();
-			myLogger.error("Error "+", "+e1.getMessage()+","+e1.getStackTrace().toString());
 		}finally{
+			if ( pstmt != null ) {
+				try { pstmt.close(); } catch (SQLException ignore) {}
+			}
 			DBSingleTon.getInstance().conClose(con);
 		}
+	}
+	
+	private static volatile String insertLogSearchSql;
+	
+	private String getInsertLogSearchSql() {
 		
-		return retVal;
+		String query = insertLogSearchSql;
+		
+		if ( query == null ) {
+			StringBuffer columnNm = new StringBuffer();
+			StringBuffer questionNm = new StringBuffer();
+			
+			// added_date is bound from the record, so spooled rows keep their request time
+			int[] idxs = {0};
+			String[] qq = {"uuid(),"};
+			
+			makeCustomSql(columnNm, questionNm, idxs, qq);
+			
+			query = "INSERT INTO " + selectTableName + 
+								columnNm.toString() + " values " + questionNm.toString() ; 
+			
+			myLogger.info("SQL = " + query);
+			insertLogSearchSql = query;
+		}
+		return query;
 	}
 
 	/**
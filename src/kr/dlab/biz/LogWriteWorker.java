@@ -15,10 +15,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Captures the search log of one request on the request thread and hands it
+ * to {@link SearchLogPipeline}; the DB insert happens on the pipeline's writers.
+ * 
  * @author admin
  *
  */
-public class LogWriteWorker extends Thread {
+public class LogWriteWorker {
 	
 	private boolean isIndexed;
 	private String contextPath;
@@ -26,14 +29,58 @@ public class LogWriteWorker extends Thread {
 	private SolrQueryRequest solrReq;
 	private SolrQueryResponse solrRsp;
 	private HttpServletRequest req;
-	private boolean hasIpRange;
-	private long lowIp;
-	private long highIp;
-	private String myIpaddress;
-	private String mySubnet;
 	
 	private Logger myLogger;
 	
+	/**
+	 * Headers that may carry the real client address, in order of preference.
+	 * Header names are case insensitive, so each is listed once.
+	 */
+	private static final String[] CLIENT_IP_HEADERS = {
+		"X-Forwarded-For",
+		"Proxy-Client-IP",
+		"WL-Proxy-Client-IP",
+		"HTTP_CLIENT_IP",
+		"HTTP_X_FORWARDED_FOR",
+		"HTTP_X_FORWARDED",
+		"HTTP_X_CLUSTER_CLIENT_IP",
+		"HTTP_FORWARDED_FOR",
+		"HTTP_FORWARDED",
+		"X-CLIENT-IP",
+		"X-Real-IP"
+	};
+	
+	/**
+	 * Cluster-internal ranges, compiled once. Set with the system property
+	 * <code>dlab.searchlog.internalRanges</code> (comma separated CIDRs),
+	 * defaults to the /24 of this host's address.
+	 */
+	private static final class InternalRanges {
+		static final CidrMatcher MATCHER = compile();
+		
+		private static CidrMatcher compile() {
+			Logger log = LoggerFactory.getLogger(LogWriteWorker.class);
+			String ranges = System.getProperty(SearchLogPipeline.PROP_PREFIX + "internalRanges");
+			if ( ranges == null ) {
+				try {
+					InetAddress local = InetAddress.getLocalHost();
+					ranges = local.getHostAddress() + ( local instanceof Inet4Address ? "/24" : "/64" );
+				} catch (UnknownHostException e) {
+					log.warn("Could not determine local address, no request is treated as cluster-internal", e);
+					ranges = "";
+				}
+			}
+			try {
+				CidrMatcher m = CidrMatcher.compile(ranges);
+				log.info("cluster-internal ranges : " + ranges);
+				return m;
+			} catch (IllegalArgumentException e) {
+				log.error("Bad " + SearchLogPipeline.PROP_PREFIX + "internalRanges, no request is treated as cluster-internal", e);
+				return CidrMatcher.compile(null);
+			}
+		}
+	}
+	
 	
 	/**
 	 * @return the contextPath
@@ -106,28 +153,23 @@ public class LogWriteWorker extends Thread {
 	}
 
 	public LogWriteWorker() {
-		super();
 		myLogger = LoggerFactory.getLogger(DBHandler.class);
-		initMyNetwork();
 	}
 	
-	@Override
-	public void run() {
+	/**
+	 * Must be called before the SolrQueryRequest is closed.
+	 */
+	public void write() {
 		
-		if ( isIndexed() ) {
-			writeIndexLog();
-		} else {
-			writeSearchLog();
-		}
-	}
-	
-	private void initMyNetwork() {
 		try {
-			myIpaddress = getMyIpaddress();
-			mySubnet = myIpaddress + "/24";
-		} catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			if ( isIndexed() ) {
+				writeIndexLog();
+			} else {
+				writeSearchLog();
+			}
+		} catch (RuntimeException e) {
+			// logging must never fail the request
+			myLogger.error("search log capture failed", e);
 		}
 	}
 	
@@ -138,13 +180,14 @@ public class LogWriteWorker extends Thread {
 		
 		String userip = getClientIpAddr(req);
 		
-		myLogger.info("my ip : " + myIpaddress + " subnet : " + mySubnet + " client userIp : " + userip);
+		if ( myLogger.isDebugEnabled() ) {
+			myLogger.debug("internal : " + InternalRanges.MATCHER + " client userIp : " + userip);
+		}
 		
-		if ( netMatch(mySubnet, userip)  ) { // called from solr cloud
+		if ( isInternal(userip) ) { // called from solr cloud
 			return; //do nothing
 		}else { //this is correct call maybe.
-			DBHandler dbh = new DBHandler();
-			dbh.insertLogSearch(req, solrReq, solrRsp, contextPath, userip);
+			SearchLogPipeline.getInstance().offer(SearchLogRecord.capture(solrReq, solrRsp, userip));
 		}
 	}
 	
@@ -153,105 +196,38 @@ public class LogWriteWorker extends Thread {
 		dbh.selectTest();
 	}
 	
-	private String getMyIpaddress() throws UnknownHostException {
-		return InetAddress.getLocalHost().getHostAddress().toString();
-	}
+	/**
+	 * Loopback clients are never internal, even when the internal ranges
+	 * include the loopback address, so that requests made from this host are
+	 * logged. (for test)
+	 */
+	private static final CidrMatcher LOOPBACK = CidrMatcher.compile("127.0.0.0/8, ::1");
 	
-	//addr is subnet address and addr1 is ip address. 
-	//Function will return true, if addr1 is within addr(subnet)
-	private boolean netMatch(String addr, String addr1){ 
-
-		if ( addr == null || addr1 == null ) {
-			return false;
-		}
-		
-		//called from localhost. (for test)
-		if ( addr1.equals("127.0.0.1") || addr1.equals("localhost")) {
+	/**
+	 * @return true if the client address (the first one of a forwarded list)
+	 *         lies in one of the cluster-internal ranges
+	 */
+	static boolean isInternal(String ip) {
+		if ( ip == null ) return false;
+		int comma = ip.indexOf(',');
+		int end = comma < 0 ? ip.length() : comma;
+		if ( LOOPBACK.matches(ip, 0, end) || ( end == 9 && ip.regionMatches(true, 0, "localhost", 0, 9) ) ) {
 			return false;
 		}
-		
-        String[] parts = addr.split("/");
-        String ip = parts[0];
-        int prefix;
-
-        if (parts.length < 2) {
-            prefix = 0;
-        } else {
-            prefix = Integer.parseInt(parts[1]);
-        }
-
-        Inet4Address a =null;
-        Inet4Address a1 =null;
-        try {
-            a = (Inet4Address) InetAddress.getByName(ip);
-            a1 = (Inet4Address) InetAddress.getByName(addr1);
-        } catch (UnknownHostException e){}
-
-        byte[] b = a.getAddress();
-        int ipInt = ((b[0] & 0xFF) << 24) |
-                         ((b[1] & 0xFF) << 16) |
-                         ((b[2] & 0xFF) << 8)  |
-                         ((b[3] & 0xFF) << 0);
-
-        byte[] b1 = a1.getAddress();
-        int ipInt1 = ((b1[0] & 0xFF) << 24) |
-                         ((b1[1] & 0xFF) << 16) |
-                         ((b1[2] & 0xFF) << 8)  |
-                         ((b1[3] & 0xFF) << 0);
-
-        int mask = ~((1 << (32 - prefix)) - 1);
-
-        if ((ipInt & mask) == (ipInt1 & mask)) {
-            return true;
-        }
-        else {
-            return false;
-        }
+		return InternalRanges.MATCHER.matches(ip, 0, end);
 	}
 	
 	private String getClientIpAddr(HttpServletRequest request) {
 		
 		if ( request == null ) return "";
 		
-        String ip = request.getHeader("X-Forwarded-For");  
-        
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("Proxy-Client-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("WL-Proxy-Client-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_CLIENT_IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_X_FORWARDED_FOR");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_X_FORWARDED");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_X_CLUSTER_CLIENT_IP");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_FORWARDED_FOR");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("HTTP_FORWARDED");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("X-CLIENT-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("X-Real-IP");  
-        }
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getHeader("X-REAL-IP");  
-        }  
-        if (ip == null || ip.length() == 0 || "unknown".equalsIgnoreCase(ip)) {  
-            ip = request.getRemoteAddr();  
-        }  
-        return ip;  
-    }  
+		for ( int i = 0; i < CLIENT_IP_HEADERS.length; i++ ) {
+			String ip = request.getHeader(CLIENT_IP_HEADERS[i]);
+			if ( ip != null && ip.length() != 0 && !"unknown".equalsIgnoreCase(ip) ) {
+				return ip;
+			}
+		}
+		return request.getRemoteAddr();
+	}
 
 }
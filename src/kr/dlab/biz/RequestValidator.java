@@ -19,70 +19,125 @@
  */
 package kr.dlab.biz;
 
-import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.lucene.index.IndexDeletionPolicy;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrConfig;
-import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
-import org.w3c.dom.NodeList;
 
 
 public class RequestValidator {
 
-	private static RequestValidator myInstance;
+	private static final RequestValidator myInstance = new RequestValidator();
+	
+	/**
+	 * Compiled ACL per core instance. A reloaded core is a new instance with
+	 * its own entry, and each entry is removed when its core is closed.
+	 */
+	private final ConcurrentMap<SolrCore, HandlerAcl> acls = new ConcurrentHashMap<SolrCore, HandlerAcl>();
 	
 	private RequestValidator() {
 		super();
 	}
 	
 	public static RequestValidator getInstance() {
-		
-		if ( myInstance == null ) {
-			myInstance = new RequestValidator(); 
-		}
 		return myInstance;
 	}
 	
 	public boolean isValidforRequest( SolrQueryRequest solrReq, SolrConfig config, String path) {
 		
-		boolean retVal = false;
-		
 		String reqUser = solrReq.getParams().get("user");
 		
 		//if user is not defined. return false
-		if ( reqUser == null ) return retVal;
+		if ( reqUser == null ) return false;
+		
+		return getAcl(solrReq.getCore(), config).isAllowed(path, reqUser);
+	}
+	
+	/**
+	 * @return the ACL compiled from <code>config</code>, compiling it on the
+	 *         first request after the core was (re)loaded
+	 */
+	HandlerAcl getAcl(SolrCore core, SolrConfig config) {
+		HandlerAcl acl = acls.get(core);
+		if ( acl == null ) {
+			HandlerAcl compiled = HandlerAcl.compile(config);
+			acl = acls.putIfAbsent(core, compiled);
+			if ( acl == null ) {
+				// only the request that published the table registers the hook, once per core
+				core.addCloseHook(new CloseHook() {
+					@Override
+					public void preClose(SolrCore c) {
+					}
+					@Override
+					public void postClose(SolrCore c) {
+						acls.remove(c);
+					}
+				});
+				acl = compiled;
+			}
+		}
+		return acl;
+	}
+	
+	/**
+	 * Immutable handler name -&gt; allowed users table built from the
+	 * <code>&lt;lst name="users"&gt;&lt;str name="user"&gt;..</code> init args
+	 * of each request handler.
+	 */
+	static final class HandlerAcl {
 		
-		for (PluginInfo info : config.getPluginInfos( "org.apache.solr.request.SolrRequestHandler") ) {
+		private final Map<String, Set<String>> users;
+		
+		private HandlerAcl(Map<String, Set<String>> users) {
+			this.users = users;
+		}
+		
+		static HandlerAcl compile(SolrConfig config) {
 			
-			if ( path.equals(info.name)) {
-
+			Map<String, Set<String>> users = new HashMap<String, Set<String>>();
+			
+			for (PluginInfo info : config.getPluginInfos( "org.apache.solr.request.SolrRequestHandler") ) {
+				
+				if ( info.name == null ) continue;
+				
 				List userArray = info.initArgs.getAll("users");
 				
 				if ( userArray == null || userArray.size() < 1 ) {
-					return false;
+					continue;
 				}
-				NamedList users = (NamedList)userArray.get(0);
+				NamedList userList = (NamedList)userArray.get(0);
 				
-				List actualUser = users.getAll("user");
-				
-				for ( int i = 0; i < actualUser.size(); i++ ) {
-					String userName = (String)actualUser.get(i);
-					
-					if ( reqUser.equals(userName)) {
-						retVal = true;
-						break;
-					}
+				Set<String> allowed = users.get(info.name);
+				if ( allowed == null ) {
+					allowed = new HashSet<String>();
+					users.put(info.name, allowed);
+				}
+				for ( Object userName : userList.getAll("user") ) {
+					allowed.add((String)userName);
 				}
 			}
+			
+			for ( Map.Entry<String, Set<String>> e : users.entrySet() ) {
+				e.setValue(Collections.unmodifiableSet(e.getValue()));
+			}
+			return new HandlerAcl(Collections.unmodifiableMap(users));
 		}
 		
-		return retVal;
+		boolean isAllowed(String path, String user) {
+			Set<String> allowed = users.get(path);
+			return allowed != null && allowed.contains(user);
+		}
 	}
 	
 }
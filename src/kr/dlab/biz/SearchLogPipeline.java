@@ -0,0 +1,614 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SearchLogPipeline.java : asynchronous, batched writer for t_logs_solr_search.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrResourceLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request threads {@link #offer(SearchLogRecord)} small immutable records into a
+ * {@link SearchLogRingBuffer}; a fixed number of writer threads drain it and
+ * write rows with {@link DBHandler#insertLogSearchBatch(List)}.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ *  <li><code>dlab.searchlog.capacity</code> - ring buffer size (default 8192)</li>
+ *  <li><code>dlab.searchlog.writers</code> - writer threads (default 2)</li>
+ *  <li><code>dlab.searchlog.batchSize</code> - max rows per executeBatch (default 200)</li>
+ *  <li><code>dlab.searchlog.flushIntervalMs</code> - max time a partial batch waits (default 1000)</li>
+ *  <li><code>dlab.searchlog.policy</code> - <code>dropOldest</code> (default), <code>block</code> or <code>spool</code></li>
+ *  <li><code>dlab.searchlog.spool</code> - keep rows the DB could not take in a {@link SearchLogSpool} (default true)</li>
+ *  <li><code>dlab.searchlog.spoolDir</code> - spool directory (default <code>&lt;solr home&gt;/searchlog-spool</code>)</li>
+ *  <li><code>dlab.searchlog.spoolSegmentMB</code> - spool segment file size (default 16)</li>
+ *  <li><code>dlab.searchlog.retryIntervalMs</code> - how long the DB is left alone after a failure
+ *      and how often the spool is replayed (default 5000)</li>
+ * </ul>
+ * While the DB is down, writers append straight to the spool without trying
+ * to connect; a replayer thread loads the spooled segments back once an insert
+ * succeeds again. Rows the DB itself refuses (a {@link BatchUpdateException} that
+ * is not a connection failure) would be refused again on every replay, so they are
+ * never retried: they go to a second spool in <code>&lt;spoolDir&gt;/rejected</code>
+ * that is only kept for inspection, or are dropped without a spool, and are counted
+ * as <code>rejected</code>.
+ */
+public class SearchLogPipeline {
+
+	public static final String PROP_PREFIX = "dlab.searchlog.";
+
+	/** What a request thread does when the buffer is full. */
+	public enum Backpressure {
+		/** discard the oldest queued record and enqueue the new one */
+		DROP_OLDEST,
+		/** wait until a writer makes room */
+		BLOCK,
+		/** append the new record to the spool on the calling thread (falls back to dropOldest without a spool) */
+		SPOOL;
+
+		public static Backpressure get(String name) {
+			if ( name == null ) return DROP_OLDEST;
+			String n = name.trim().toLowerCase(Locale.ROOT);
+			if ( "block".equals(n) ) return BLOCK;
+			if ( "spool".equals(n) ) return SPOOL;
+			if ( "dropoldest".equals(n) || "drop_oldest".equals(n) ) return DROP_OLDEST;
+			throw new IllegalArgumentException("Unknown backpressure policy: " + name);
+		}
+	}
+
+	private static volatile SearchLogPipeline myInstance;
+
+	private final Logger myLogger = LoggerFactory.getLogger(SearchLogPipeline.class);
+
+	private final SearchLogRingBuffer<SearchLogRecord> buffer;
+	private final Backpressure policy;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final Thread[] writers;
+	private final SearchLogSpool spool;
+	private final SearchLogSpool rejects;
+	private final long retryIntervalNanos;
+	private final Thread replayer;
+	/** System.nanoTime() before which the DB is assumed to be down */
+	private volatile long dbDownUntil;
+	private volatile boolean dbDown;
+
+	private volatile boolean running = true;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchNanos = new AtomicLong();
+	private final AtomicLong maxBatchNanos = new AtomicLong();
+
+	public SearchLogPipeline(int capacity, int writerCount, int batchSize,
+			long flushIntervalMs, Backpressure policy) {
+		this(capacity, writerCount, batchSize, flushIntervalMs, policy, null, 5000L);
+	}
+
+	public SearchLogPipeline(int capacity, int writerCount, int batchSize,
+			long flushIntervalMs, Backpressure policy, SearchLogSpool spool, long retryIntervalMs) {
+		this(capacity, writerCount, batchSize, flushIntervalMs, policy, spool, null, retryIntervalMs);
+	}
+
+	/**
+	 * @param spool where rows go while the DB is unavailable, may be null
+	 * @param rejects where rows the DB refused go, never replayed, may be null to drop them
+	 * @param retryIntervalMs back-off after a DB failure and spool replay period
+	 */
+	public SearchLogPipeline(int capacity, int writerCount, int batchSize,
+			long flushIntervalMs, Backpressure policy, SearchLogSpool spool, SearchLogSpool rejects,
+			long retryIntervalMs) {
+		if ( writerCount < 1 ) throw new IllegalArgumentException("writers must be >= 1 : " + writerCount);
+		if ( batchSize < 1 ) throw new IllegalArgumentException("batchSize must be >= 1 : " + batchSize);
+
+		this.buffer = new SearchLogRingBuffer<SearchLogRecord>(capacity);
+		this.policy = policy;
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+		this.spool = spool;
+		this.rejects = rejects;
+		this.retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, retryIntervalMs));
+
+		writers = new Thread[writerCount];
+		for ( int i = 0; i < writerCount; i++ ) {
+			writers[i] = new Thread(new Writer(), "searchLogWriter-" + i);
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
+		if ( spool != null ) {
+			replayer = new Thread(new Replayer(), "searchLogReplayer");
+			replayer.setDaemon(true);
+			replayer.start();
+		} else {
+			replayer = null;
+		}
+		myLogger.info("SearchLogPipeline started: capacity=" + buffer.capacity() + " writers=" + writerCount
+				+ " batchSize=" + batchSize + " flushIntervalMs=" + flushIntervalMs + " policy=" + policy
+				+ " spool=" + (spool == null ? "none" : spool.getDirectory().getAbsolutePath()));
+	}
+
+	public static SearchLogPipeline getInstance() {
+		SearchLogPipeline p = myInstance;
+		if ( p == null ) {
+			synchronized (SearchLogPipeline.class) {
+				p = myInstance;
+				if ( p == null ) {
+					SearchLogSpool spool = openSpool();
+					p = new SearchLogPipeline(
+							Integer.getInteger(PROP_PREFIX + "capacity", 8192),
+							Integer.getInteger(PROP_PREFIX + "writers", 2),
+							Integer.getInteger(PROP_PREFIX + "batchSize", 200),
+							Long.getLong(PROP_PREFIX + "flushIntervalMs", 1000L),
+							Backpressure.get(System.getProperty(PROP_PREFIX + "policy")),
+							spool,
+							spool == null ? null : openRejects(spool),
+							Long.getLong(PROP_PREFIX + "retryIntervalMs", 5000L));
+					myInstance = p;
+				}
+			}
+		}
+		return p;
+	}
+
+	private static SearchLogSpool openSpool() {
+		if ( !Boolean.parseBoolean(System.getProperty(PROP_PREFIX + "spool", "true")) ) {
+			return null;
+		}
+		String dir = System.getProperty(PROP_PREFIX + "spoolDir");
+		if ( dir == null ) {
+			dir = new File(SolrResourceLoader.locateSolrHome(), "searchlog-spool").getPath();
+		}
+		try {
+			return new SearchLogSpool(new File(dir),
+					Integer.getInteger(PROP_PREFIX + "spoolSegmentMB", 16) << 20);
+		} catch (IOException e) {
+			LoggerFactory.getLogger(SearchLogPipeline.class).error("Could not open search log spool in " + dir
+					+ ", rows the DB rejects will be lost", e);
+			return null;
+		}
+	}
+
+	private static SearchLogSpool openRejects(SearchLogSpool spool) {
+		File dir = new File(spool.getDirectory(), "rejected");
+		try {
+			return new SearchLogSpool(dir, Integer.getInteger(PROP_PREFIX + "spoolSegmentMB", 16) << 20);
+		} catch (IOException e) {
+			LoggerFactory.getLogger(SearchLogPipeline.class).error("Could not open search log spool in " + dir
+					+ ", rows the DB refuses will be dropped", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stop the shared pipeline (if it was ever started), flushing what is queued.
+	 */
+	public static void shutdownInstance() {
+		SearchLogPipeline p;
+		synchronized (SearchLogPipeline.class) {
+			p = myInstance;
+			myInstance = null;
+		}
+		if ( p != null ) {
+			p.shutdown();
+		}
+	}
+
+	/**
+	 * Enqueue a record. Never touches the database on the calling thread.
+	 * @return false if the record could not be queued
+	 */
+	public boolean offer(SearchLogRecord record) {
+
+		if ( !running ) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		if ( buffer.offer(record) ) {
+			enqueued.incrementAndGet();
+			return true;
+		}
+
+		if ( policy == Backpressure.BLOCK ) {
+			while ( running ) {
+				LockSupport.parkNanos(100000L);
+				if ( buffer.offer(record) ) {
+					enqueued.incrementAndGet();
+					return true;
+				}
+			}
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		if ( policy == Backpressure.SPOOL && spool != null ) {
+			try {
+				spool.append(record);
+				enqueued.incrementAndGet();
+				spooled.incrementAndGet();
+				return true;
+			} catch (IOException e) {
+				myLogger.error("search log spool append failed", e);
+			}
+		}
+
+		// DROP_OLDEST
+		while ( true ) {
+			if ( buffer.poll() != null ) {
+				dropped.incrementAndGet();
+			}
+			if ( buffer.offer(record) ) {
+				enqueued.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting records, let the writers drain the buffer and wait for them.
+	 */
+	public void shutdown() {
+		running = false;
+		for ( Thread t : writers ) {
+			LockSupport.unpark(t);
+		}
+		for ( Thread t : writers ) {
+			try {
+				t.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 10000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if ( replayer != null ) {
+			replayer.interrupt();
+			try {
+				replayer.join(10000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if ( spool != null ) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				myLogger.error("search log spool close failed", e);
+			}
+		}
+		if ( rejects != null ) {
+			try {
+				rejects.close();
+			} catch (IOException e) {
+				myLogger.error("search log rejects spool close failed", e);
+			}
+		}
+		myLogger.info("SearchLogPipeline stopped: " + getStatistics());
+	}
+
+	/**
+	 * Write one batch. Subclasses may override where the rows go.
+	 */
+	protected void write(List<SearchLogRecord> batch) throws SQLException {
+		new DBHandler().insertLogSearchBatch(batch);
+	}
+
+	private void flush(List<SearchLogRecord> batch) {
+		long start = System.nanoTime();
+		try {
+			if ( dbDown && spool != null && start - dbDownUntil < 0 ) {
+				// don't pay for another connect attempt, the replayer will retry
+				toSpool(batch);
+				return;
+			}
+			write(batch);
+			flushed.addAndGet(batch.size());
+			dbDown = false;
+		} catch (BatchUpdateException e) {
+			if ( isConnectionFailure(e) ) {
+				// the driver may have written part of the batch, only spool the rows it did not
+				List<SearchLogRecord> rest = failedRecords(batch, e.getUpdateCounts());
+				int written = batch.size() - rest.size();
+				flushed.addAndGet(written);
+				if ( written == 0 ) markDbDown();
+				myLogger.error("search log batch of " + batch.size() + " failed for " + rest.size() + " rows : "
+						+ e.getErrorCode() + ", " + e.getMessage() + "," + e.getSQLState());
+				toSpool(rest);
+			} else {
+				flushed.addAndGet(batch.size() - failedRecords(batch, e.getUpdateCounts()).size());
+				dbDown = false;
+				rejected(batch, e);
+			}
+		} catch (SQLException e) {
+			markDbDown();
+			myLogger.error("search log batch of " + batch.size() + " failed : "
+					+ e.getErrorCode() + ", " + e.getMessage() + "," + e.getSQLState());
+			toSpool(batch);
+		} catch (RuntimeException e) {
+			failed.addAndGet(batch.size());
+			myLogger.error("search log batch of " + batch.size() + " failed", e);
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			batches.incrementAndGet();
+			batchNanos.addAndGet(elapsed);
+			long max;
+			while ( elapsed > (max = maxBatchNanos.get()) && !maxBatchNanos.compareAndSet(max, elapsed) ) {
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * The records of <code>batch</code> the DB did not take: those whose update count
+	 * is {@link Statement#EXECUTE_FAILED}, or missing because the driver stopped at
+	 * the first failure.
+	 */
+	static List<SearchLogRecord> failedRecords(List<SearchLogRecord> batch, int[] updateCounts) {
+		if ( updateCounts == null ) return batch;
+		List<SearchLogRecord> rest = new ArrayList<SearchLogRecord>();
+		for ( int i = 0; i < batch.size(); i++ ) {
+			if ( i >= updateCounts.length || updateCounts[i] == Statement.EXECUTE_FAILED ) {
+				rest.add(batch.get(i));
+			}
+		}
+		return rest;
+	}
+
+	/**
+	 * The records of <code>batch</code> the DB refused: those whose update count is
+	 * {@link Statement#EXECUTE_FAILED}, or the one the driver stopped at if it stops
+	 * at the first failure. All of them if the driver gave no update counts.
+	 */
+	static List<SearchLogRecord> rejectedRecords(List<SearchLogRecord> batch, int[] updateCounts) {
+		if ( updateCounts == null ) return batch;
+		List<SearchLogRecord> rest = new ArrayList<SearchLogRecord>();
+		for ( int i = 0; i < batch.size() && i < updateCounts.length; i++ ) {
+			if ( updateCounts[i] == Statement.EXECUTE_FAILED ) {
+				rest.add(batch.get(i));
+			}
+		}
+		if ( updateCounts.length < batch.size() ) {
+			rest.add(batch.get(updateCounts.length));
+		}
+		return rest;
+	}
+
+	/**
+	 * The records of <code>batch</code> after the one a driver that stops at the first
+	 * failure stopped at. The DB never saw them, so they may be written again.
+	 */
+	static List<SearchLogRecord> untriedRecords(List<SearchLogRecord> batch, int[] updateCounts) {
+		if ( updateCounts == null || updateCounts.length + 1 >= batch.size() ) {
+			return new ArrayList<SearchLogRecord>(0);
+		}
+		return new ArrayList<SearchLogRecord>(batch.subList(updateCounts.length + 1, batch.size()));
+	}
+
+	/**
+	 * Whether <code>e</code> says the DB could not be reached, rather than that it
+	 * refused some rows: a connection exception SQLState (class 08), or one of the
+	 * JDBC exception types for a lost connection, anywhere in the chain.
+	 */
+	static boolean isConnectionFailure(SQLException e) {
+		for ( Throwable t = e; t != null; t = t.getCause() ) {
+			if ( t instanceof SQLRecoverableException || t instanceof SQLTransientConnectionException
+					|| t instanceof SQLNonTransientConnectionException ) {
+				return true;
+			}
+			if ( t instanceof SQLException ) {
+				String state = ((SQLException)t).getSQLState();
+				if ( state != null && state.startsWith("08") ) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Keep the rows of <code>batch</code> the DB refused out of the replays, and spool
+	 * again those it did not get to.
+	 */
+	private void rejected(List<SearchLogRecord> batch, BatchUpdateException e) {
+		List<SearchLogRecord> refused = rejectedRecords(batch, e.getUpdateCounts());
+		myLogger.error("search log batch of " + batch.size() + " refused " + refused.size() + " rows : "
+				+ e.getErrorCode() + ", " + e.getMessage() + "," + e.getSQLState());
+		rejected.addAndGet(refused.size());
+		if ( rejects != null ) {
+			try {
+				rejects.append(refused);
+			} catch (IOException ioe) {
+				myLogger.error("search log rejects spool append of " + refused.size() + " failed", ioe);
+			}
+		}
+		toSpool(untriedRecords(batch, e.getUpdateCounts()));
+	}
+
+	private void markDbDown() {
+		dbDownUntil = System.nanoTime() + retryIntervalNanos;
+		dbDown = true;
+	}
+
+	private void toSpool(List<SearchLogRecord> batch) {
+		if ( spool == null ) {
+			failed.addAndGet(batch.size());
+			return;
+		}
+		try {
+			spool.append(batch);
+			spooled.addAndGet(batch.size());
+		} catch (IOException e) {
+			failed.addAndGet(batch.size());
+			myLogger.error("search log spool append of " + batch.size() + " failed", e);
+		}
+	}
+
+	/**
+	 * Loads spooled segments back into the DB once it accepts inserts again.
+	 */
+	private class Replayer implements Runnable {
+		@Override
+		public void run() {
+			SearchLogSpool.Sink sink = new SearchLogSpool.Sink() {
+				@Override
+				public void write(List<SearchLogRecord> b) throws SQLException {
+					try {
+						SearchLogPipeline.this.write(b);
+					} catch (BatchUpdateException e) {
+						if ( !isConnectionFailure(e) ) {
+							// replaying refused rows again would stall the spool on them forever
+							rejected(b, e);
+							return;
+						}
+						List<SearchLogRecord> rest = failedRecords(b, e.getUpdateCounts());
+						if ( rest.size() == b.size() ) throw e;
+						// the other rows are in the DB now, replaying the batch again would duplicate them
+						toSpool(rest);
+					}
+				}
+			};
+			while ( running ) {
+				try {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(retryIntervalNanos));
+				} catch (InterruptedException e) {
+					return;
+				}
+				if ( dbDown && System.nanoTime() - dbDownUntil < 0 ) continue;
+				if ( !spool.hasPending() ) continue;
+				try {
+					long n = spool.replay(sink, batchSize);
+					replayed.addAndGet(n);
+					if ( n > 0 ) myLogger.info("replayed " + n + " spooled search log rows");
+					dbDown = false;
+				} catch (SQLException e) {
+					markDbDown();
+					myLogger.warn("search log spool replay deferred : " + e.getMessage());
+				} catch (IOException e) {
+					myLogger.error("search log spool replay failed", e);
+				}
+			}
+		}
+	}
+
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			List<SearchLogRecord> batch = new ArrayList<SearchLogRecord>(batchSize);
+			long batchStart = 0;
+			// poll a few times per flush interval, but never busy spin
+			long idleNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), flushIntervalNanos / 4);
+
+			while ( true ) {
+				boolean wasEmpty = batch.isEmpty();
+				int n = buffer.drainTo(batch, batchSize - batch.size());
+				if ( wasEmpty && n > 0 ) {
+					batchStart = System.nanoTime();
+				}
+
+				if ( batch.size() >= batchSize ) {
+					flush(batch);
+					continue;
+				}
+
+				if ( !running ) {
+					if ( !batch.isEmpty() ) flush(batch);
+					if ( buffer.isEmpty() ) return;
+					continue;
+				}
+
+				if ( !batch.isEmpty() && System.nanoTime() - batchStart >= flushIntervalNanos ) {
+					flush(batch);
+					continue;
+				}
+
+				if ( n == 0 ) {
+					LockSupport.parkNanos(idleNanos);
+				}
+			}
+		}
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getFlushedCount() {
+		return flushed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public long getSpooledCount() {
+		return spooled.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public int getQueueSize() {
+		return buffer.size();
+	}
+
+	public NamedList<Object> getStatistics() {
+		NamedList<Object> lst = new SimpleOrderedMap<Object>();
+		long b = batches.get();
+		lst.add("enqueued", enqueued.get());
+		lst.add("dropped", dropped.get());
+		lst.add("flushed", flushed.get());
+		lst.add("failed", failed.get());
+		lst.add("spooled", spooled.get());
+		lst.add("rejected", rejected.get());
+		lst.add("replayed", replayed.get());
+		lst.add("dbDown", dbDown);
+		lst.add("queueSize", buffer.size());
+		lst.add("capacity", buffer.capacity());
+		lst.add("policy", policy.toString());
+		lst.add("batches", b);
+		lst.add("avgBatchMs", b == 0 ? 0.0d : (batchNanos.get() / (double)b) / 1000000.0d);
+		lst.add("maxBatchMs", maxBatchNanos.get() / 1000000.0d);
+		return lst;
+	}
+}
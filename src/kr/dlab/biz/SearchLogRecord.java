@@ -0,0 +1,118 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SearchLogRecord.java : one row of t_logs_solr_search, captured on the request thread.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Immutable snapshot of a search request. It holds only strings and numbers,
+ * so nothing of the {@link SolrQueryRequest} / {@link SolrQueryResponse} is
+ * referenced after the request has been closed.
+ */
+public final class SearchLogRecord {
+
+	private final long addedTime;
+	private final String userIp;
+	private final String user;
+	private final String fullQuery;
+	private final String q;
+	private final String fq;
+	private final int resultCnt;
+	private final String facetYn;
+
+	public SearchLogRecord(long addedTime, String userIp, String user, String fullQuery,
+			String q, String fq, int resultCnt, String facetYn) {
+		this.addedTime = addedTime;
+		this.userIp = userIp;
+		this.user = user;
+		this.fullQuery = fullQuery;
+		this.q = q;
+		this.fq = fq;
+		this.resultCnt = resultCnt;
+		this.facetYn = facetYn;
+	}
+
+	/**
+	 * Copy everything the search log needs out of the request and response.
+	 * Must be called before <code>solrReq.close()</code>.
+	 */
+	public static SearchLogRecord capture(SolrQueryRequest solrReq,
+			SolrQueryResponse solrRsp, String userIp) {
+
+		SolrParams params = solrReq.getParams();
+
+		int solrRows = params.getInt(CommonParams.ROWS, 10);
+		Object hits = solrRsp.getToLog().get("hits");
+		int solrHits = ( hits instanceof Number ) ? ((Number)hits).intValue() : 0;
+
+		int actualDocs = ( solrHits < solrRows ) ? solrHits : solrRows;
+
+		String solrFQ = params.get(CommonParams.FQ);
+		if ( solrFQ == null ) solrFQ = "";
+		String solrFacetYn = ( params.get("facet") == null ) ? "N" : "Y";
+
+		return new SearchLogRecord(System.currentTimeMillis(), userIp, params.get("user"), solrReq.getParamString(),
+				params.get(CommonParams.Q), solrFQ, actualDocs, solrFacetYn);
+	}
+
+	/**
+	 * @return when the request was served, in epoch millis; written to added_date
+	 */
+	public long getAddedTime() {
+		return addedTime;
+	}
+
+	public String getUserIp() {
+		return userIp;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getFullQuery() {
+		return fullQuery;
+	}
+
+	public String getQ() {
+		return q;
+	}
+
+	public String getFq() {
+		return fq;
+	}
+
+	public int getResultCnt() {
+		return resultCnt;
+	}
+
+	public String getFacetYn() {
+		return facetYn;
+	}
+
+	@Override
+	public String toString() {
+		return "SearchLogRecord{ip=" + userIp + ",user=" + user + ",q=" + q
+				+ ",fq=" + fq + ",cnt=" + resultCnt + ",facet=" + facetYn + "}";
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SearchLogRingBuffer.java : bounded lock-free queue between request threads and log writers.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer / multi-consumer ring buffer.
+ * <p>
+ * Every slot carries a sequence number; a producer may fill a slot when its
+ * sequence equals the claimed tail position, a consumer may empty it when the
+ * sequence equals head+1. Claims are a single CAS on head or tail, so neither
+ * side ever takes a lock. The capacity is rounded up to a power of two.
+ */
+public final class SearchLogRingBuffer<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> items;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	public SearchLogRingBuffer(int capacity) {
+		if ( capacity < 2 ) {
+			throw new IllegalArgumentException("capacity must be >= 2 : " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		mask = size - 1;
+		items = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for ( int i = 0; i < size; i++ ) {
+			sequences.set(i, i);
+		}
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E e) {
+		if ( e == null ) throw new NullPointerException();
+
+		while ( true ) {
+			long pos = tail.get();
+			int idx = (int)(pos & mask);
+			long diff = sequences.get(idx) - pos;
+
+			if ( diff == 0 ) {
+				if ( tail.compareAndSet(pos, pos + 1) ) {
+					items.lazySet(idx, e);
+					sequences.set(idx, pos + 1);
+					return true;
+				}
+			} else if ( diff < 0 ) {
+				return false; // full
+			}
+			// else another producer claimed this slot, reload tail
+		}
+	}
+
+	/**
+	 * @return the oldest element, or null if the buffer is empty
+	 */
+	public E poll() {
+		while ( true ) {
+			long pos = head.get();
+			int idx = (int)(pos & mask);
+			long diff = sequences.get(idx) - (pos + 1);
+
+			if ( diff == 0 ) {
+				if ( head.compareAndSet(pos, pos + 1) ) {
+					E e = items.get(idx);
+					items.lazySet(idx, null);
+					sequences.set(idx, pos + mask + 1);
+					return e;
+				}
+			} else if ( diff < 0 ) {
+				return null; // empty
+			}
+		}
+	}
+
+	/**
+	 * Move up to <code>max</code> elements into <code>sink</code>.
+	 * @return the number of elements moved
+	 */
+	public int drainTo(List<? super E> sink, int max) {
+		int n = 0;
+		while ( n < max ) {
+			E e = poll();
+			if ( e == null ) break;
+			sink.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Approximate number of queued elements.
+	 */
+	public int size() {
+		long s = tail.get() - head.get();
+		if ( s < 0 ) return 0;
+		return (int)Math.min(s, capacity());
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+}
@@ -0,0 +1,480 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SearchLogSpool.java : local memory-mapped spool for search logs the DB could not take.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only spool of {@link SearchLogRecord}s split into fixed size,
+ * memory-mapped segment files (<code>searchlog-NNNNNNNNNNNN.spl</code>).
+ * <p>
+ * Segment layout:
+ * <pre>
+ *   header : int magic, int version, int replayPos, int reserved
+ *   record : int length, int crc32(payload), payload
+ *   payload: vlong addedTime, str userIp, str user, str fullQuery, str q, str fq, vint resultCnt, byte facetYn
+ *   str    : vint (utf8 length + 1, 0 = null), utf8 bytes
+ * </pre>
+ * A zero length (or a record whose checksum does not match, e.g. a torn write
+ * before a crash) marks the end of a segment. <code>replayPos</code> is
+ * advanced after each batch is loaded into the DB, so a replay interrupted by
+ * a restart resumes where it stopped.
+ * <p>
+ * Only the writing side is synchronized; request threads never block on it
+ * unless the pipeline runs with the <code>spool</code> backpressure policy.
+ */
+public class SearchLogSpool {
+
+	/** Loads spooled records somewhere, normally the DB. */
+	public interface Sink {
+		void write(List<SearchLogRecord> batch) throws SQLException;
+	}
+
+	static final int MAGIC = 0x534C4731; // "SLG1"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int REPLAY_POS_OFFSET = 8;
+
+	private static final String PREFIX = "searchlog-";
+	private static final String SUFFIX = ".spl";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Logger myLogger = LoggerFactory.getLogger(SearchLogSpool.class);
+
+	private final File dir;
+	private final int segmentSize;
+
+	private long nextSegmentId;
+	private Segment active;
+
+	private byte[] scratch = new byte[1024];
+	private final CRC32 crc = new CRC32();
+
+	private volatile long spooledCount;
+	private volatile long replayedCount;
+
+	/**
+	 * @param dir directory holding the segment files, created if missing
+	 * @param segmentSize bytes per segment file
+	 */
+	public SearchLogSpool(File dir, int segmentSize) throws IOException {
+		if ( segmentSize < 4096 ) {
+			throw new IllegalArgumentException("segmentSize must be >= 4096 : " + segmentSize);
+		}
+		if ( !dir.isDirectory() && !dir.mkdirs() ) {
+			throw new IOException("Cannot create spool directory " + dir.getAbsolutePath());
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+
+		long[] ids = listSegmentIds();
+		nextSegmentId = ids.length == 0 ? 0 : ids[ids.length - 1] + 1;
+		if ( ids.length > 0 ) {
+			myLogger.info("Found " + ids.length + " search log spool segments to replay in " + dir.getAbsolutePath());
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Append records, rolling to a new segment when the current one is full.
+	 */
+	public synchronized void append(List<SearchLogRecord> records) throws IOException {
+		for ( SearchLogRecord r : records ) {
+			int len = encode(r);
+			if ( HEADER_SIZE + 8 + len > segmentSize ) {
+				myLogger.warn("search log record of " + len + " bytes exceeds spool segment size, dropped");
+				continue;
+			}
+			if ( active == null || active.remaining() < 8 + len ) {
+				roll();
+			}
+			crc.reset();
+			crc.update(scratch, 0, len);
+			active.put(scratch, len, (int)crc.getValue());
+			spooledCount++;
+		}
+	}
+
+	public void append(SearchLogRecord record) throws IOException {
+		List<SearchLogRecord> one = new ArrayList<SearchLogRecord>(1);
+		one.add(record);
+		append(one);
+	}
+
+	/**
+	 * Seal the active segment so its content becomes visible to {@link #replay}.
+	 */
+	public synchronized void roll() throws IOException {
+		if ( active != null ) {
+			active.close();
+			active = null;
+		}
+		File f = segmentFile(nextSegmentId++);
+		active = Segment.create(f, segmentSize);
+	}
+
+	/**
+	 * @return true if some sealed or active segment still holds records
+	 */
+	public synchronized boolean hasPending() {
+		if ( active != null && active.writePos > HEADER_SIZE ) return true;
+		long[] ids = listSegmentIds();
+		return ids.length > (active == null ? 0 : 1);
+	}
+
+	/**
+	 * Push every spooled record into <code>sink</code>, oldest segment first,
+	 * <code>batchSize</code> at a time. Stops at the first failing batch and
+	 * leaves the rest for the next call.
+	 *
+	 * @return number of records replayed
+	 */
+	public long replay(Sink sink, int batchSize) throws IOException, SQLException {
+
+		// seal what has been written so far, then only touch sealed segments
+		long activeId;
+		synchronized (this) {
+			if ( active != null && active.writePos > HEADER_SIZE ) {
+				roll();
+			}
+			activeId = ( active == null ) ? Long.MAX_VALUE : nextSegmentId - 1;
+		}
+
+		long total = 0;
+		for ( long id : listSegmentIds() ) {
+			if ( id >= activeId ) break;
+			total += replaySegment(segmentFile(id), sink, batchSize);
+		}
+		return total;
+	}
+
+	private long replaySegment(File f, Sink sink, int batchSize) throws IOException, SQLException {
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		MappedByteBuffer buf = null;
+		boolean bad = false;
+		long total = 0;
+		try {
+			if ( raf.length() >= HEADER_SIZE ) {
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+				if ( buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION ) {
+					bad = true;
+				} else {
+					total = replayRecords(buf, f, sink, batchSize);
+				}
+			}
+		} finally {
+			if ( buf != null ) unmap(buf);
+			raf.close();
+		}
+
+		if ( bad ) {
+			// keep it for inspection, but out of the way of the next replays
+			File moved = new File(f.getPath() + ".bad");
+			if ( f.renameTo(moved) ) {
+				myLogger.error("Not a search log spool segment, moved to " + moved.getAbsolutePath());
+			} else {
+				myLogger.error("Not a search log spool segment, could not move it aside : " + f.getAbsolutePath());
+			}
+			return 0;
+		}
+		delete(f);
+		return total;
+	}
+
+	private long replayRecords(MappedByteBuffer buf, File f, Sink sink, int batchSize) throws SQLException {
+
+		long total = 0;
+		int pos = buf.getInt(REPLAY_POS_OFFSET);
+		List<SearchLogRecord> batch = new ArrayList<SearchLogRecord>(batchSize);
+		CRC32 check = new CRC32();
+		byte[] data = new byte[1024];
+
+		while ( true ) {
+			int next = pos;
+			batch.clear();
+			while ( batch.size() < batchSize && next + 8 <= buf.limit() ) {
+				int len = buf.getInt(next);
+				if ( len <= 0 || next + 8 + len > buf.limit() ) break;
+				int sum = buf.getInt(next + 4);
+				if ( data.length < len ) data = new byte[len];
+				buf.position(next + 8);
+				buf.get(data, 0, len);
+				check.reset();
+				check.update(data, 0, len);
+				if ( (int)check.getValue() != sum ) {
+					myLogger.warn("Corrupt search log spool record at " + next + " in " + f.getName() + ", rest of segment skipped");
+					break;
+				}
+				batch.add(decode(data, len));
+				next += 8 + len;
+			}
+			if ( batch.isEmpty() ) break;
+
+			sink.write(batch);
+
+			pos = next;
+			buf.putInt(REPLAY_POS_OFFSET, pos);
+			buf.force();
+			total += batch.size();
+			replayedCount += batch.size();
+		}
+		return total;
+	}
+
+	private void delete(File f) {
+		if ( !f.delete() ) {
+			// replayPos keeps it from being loaded twice
+			myLogger.warn("Could not delete replayed spool segment " + f.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Release the mapping of <code>buf</code> right away instead of when it is
+	 * garbage collected, so that its file can be deleted or renamed, on Windows
+	 * too. <code>buf</code> must not be used afterwards. Does nothing if the JVM
+	 * does not allow it.
+	 */
+	static void unmap(MappedByteBuffer buf) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buf);
+			return;
+		} catch (Exception e) {
+			// older JVM, try its own cleaner below
+		}
+		try {
+			Method cleanerMethod = buf.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buf);
+			if ( cleaner != null ) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if ( active != null ) {
+			active.close();
+			active = null;
+		}
+	}
+
+	public long getSpooledCount() {
+		return spooledCount;
+	}
+
+	public long getReplayedCount() {
+		return replayedCount;
+	}
+
+	private File segmentFile(long id) {
+		return new File(dir, PREFIX + String.format(Locale.ROOT, "%012d", id) + SUFFIX);
+	}
+
+	private long[] listSegmentIds() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if ( names == null ) return new long[0];
+
+		long[] ids = new long[names.length];
+		int n = 0;
+		for ( String name : names ) {
+			try {
+				ids[n++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				n--;
+			}
+		}
+		ids = Arrays.copyOf(ids, n);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/*-------------------------------- encoding --------------------------------*/
+
+	private int pos;
+
+	/** encode into {@link #scratch}, returns the payload length */
+	private int encode(SearchLogRecord r) {
+		pos = 0;
+		writeVLong(r.getAddedTime());
+		writeString(r.getUserIp());
+		writeString(r.getUser());
+		writeString(r.getFullQuery());
+		writeString(r.getQ());
+		writeString(r.getFq());
+		writeVInt(r.getResultCnt());
+		ensure(1);
+		scratch[pos++] = (byte)("Y".equals(r.getFacetYn()) ? 'Y' : 'N');
+		return pos;
+	}
+
+	private void writeString(String s) {
+		if ( s == null ) {
+			writeVInt(0);
+			return;
+		}
+		byte[] b = s.getBytes(UTF8);
+		writeVInt(b.length + 1);
+		ensure(b.length);
+		System.arraycopy(b, 0, scratch, pos, b.length);
+		pos += b.length;
+	}
+
+	private void writeVInt(int i) {
+		writeVLong(i & 0xFFFFFFFFL);
+	}
+
+	private void writeVLong(long i) {
+		ensure(10);
+		while ( (i & ~0x7FL) != 0 ) {
+			scratch[pos++] = (byte)((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		scratch[pos++] = (byte)i;
+	}
+
+	private void ensure(int n) {
+		if ( pos + n > scratch.length ) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length << 1, pos + n));
+		}
+	}
+
+	static SearchLogRecord decode(byte[] b, int len) {
+		int[] p = new int[1];
+		long addedTime = readVLong(b, p);
+		String userIp = readString(b, p);
+		String user = readString(b, p);
+		String fullQuery = readString(b, p);
+		String q = readString(b, p);
+		String fq = readString(b, p);
+		int cnt = readVInt(b, p);
+		String facet = ( b[p[0]] == 'Y' ) ? "Y" : "N";
+		return new SearchLogRecord(addedTime, userIp, user, fullQuery, q, fq, cnt, facet);
+	}
+
+	private static String readString(byte[] b, int[] p) {
+		int n = readVInt(b, p);
+		if ( n == 0 ) return null;
+		n--;
+		String s = new String(b, p[0], n, UTF8);
+		p[0] += n;
+		return s;
+	}
+
+	private static int readVInt(byte[] b, int[] p) {
+		return (int)readVLong(b, p);
+	}
+
+	private static long readVLong(byte[] b, int[] p) {
+		long i = 0;
+		int shift = 0;
+		byte v;
+		do {
+			v = b[p[0]++];
+			i |= (v & 0x7FL) << shift;
+			shift += 7;
+		} while ( (v & 0x80) != 0 );
+		return i;
+	}
+
+	/*-------------------------------- segment --------------------------------*/
+
+	private static final class Segment {
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buf;
+		private int writePos;
+
+		private Segment(RandomAccessFile raf, MappedByteBuffer buf) {
+			this.raf = raf;
+			this.buf = buf;
+			this.writePos = HEADER_SIZE;
+		}
+
+		static Segment create(File f, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(size);
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buf.putInt(0, MAGIC);
+				buf.putInt(4, VERSION);
+				buf.putInt(REPLAY_POS_OFFSET, HEADER_SIZE);
+				buf.putInt(12, 0);
+				return new Segment(raf, buf);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		int remaining() {
+			return buf.capacity() - writePos;
+		}
+
+		void put(byte[] payload, int len, int checksum) {
+			// payload and checksum first, length last: a crash in between leaves a zero length = end of segment
+			buf.putInt(writePos + 4, checksum);
+			buf.position(writePos + 8);
+			buf.put(payload, 0, len);
+			buf.putInt(writePos, len);
+			writePos += 8 + len;
+		}
+
+		void close() throws IOException {
+			try {
+				buf.force();
+			} finally {
+				unmap(buf);
+				raf.close();
+			}
+		}
+	}
+}
@@ -18,6 +18,7 @@ public class DBSingleTon {
 	
 	private static DBSingleTon myInstance;
 	private static InitialContext ic;
+	private static volatile DataSource ds;
 	
 	private DBSingleTon() {
 	}
@@ -44,10 +45,14 @@ public class DBSingleTon {
 		try{
 //jetty		 DataSource ds = (DataSource)ic.lookup("MyJNDI");
 //tomcat	 DataSource ds = (DataSource)ic.lookup("java:comp/env/jdbc/MyJNDI"); 
-			DataSource ds = (DataSource)ic.lookup("java:comp/env/jdbc/MyJNDI");
-			con = ds.getConnection();
+			// the JNDI lookup is done once; only the pool is asked for each connection
+			DataSource source = ds;
+			if ( source == null ) {
+				source = (DataSource)ic.lookup("java:comp/env/jdbc/MyJNDI");
+				ds = source;
+			}
+			con = source.getConnection();
 		}catch(Exception ex){
-			ex.printStackTrace();
 			System.out.println("DB 연결실패 : "+ex);
 			con = null;
 		}
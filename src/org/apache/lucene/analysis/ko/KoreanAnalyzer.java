@@ -27,6 +27,7 @@ import java.util.Set;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
 import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.ko.morph.AnalysisCache;
 import org.apache.lucene.analysis.standard.StandardFilter;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.util.CharArraySet;
@@ -66,6 +67,12 @@ public class KoreanAnalyzer extends StopwordAnalyzerBase {
   
   private boolean doDecompound = true;
   
+  private AnalysisCache analysisCache;
+  
+  private boolean lightweightQuery = false;
+  
+  private QueryTokenCache queryTokenCache;
+  
   public static final String DIC_ENCODING = "UTF-8";
 
   /** An unmodifiable set containing some common English words that are usually not
@@ -126,7 +133,11 @@ public class KoreanAnalyzer extends StopwordAnalyzerBase {
   protected TokenStreamComponents createComponents(final String fieldName, final Reader reader) {
     final KoreanTokenizer src = new KoreanTokenizer(matchVersion, reader);
     src.setMaxTokenLength(maxTokenLength);
-    TokenStream tok = new KoreanFilter(src, bigrammable, hasOrigin, exactMatch, originCNoun, isPositionInc, queryMode, doDecompound);
+    KoreanFilter filter = new KoreanFilter(src, bigrammable && !lightweightQuery, hasOrigin && !lightweightQuery, 
+        exactMatch, originCNoun, isPositionInc, queryMode, doDecompound);
+    filter.setAnalysisCache(analysisCache);
+    if(lightweightQuery) filter.setQueryTokenCache(queryTokenCache);
+    TokenStream tok = filter;
     tok = new LowerCaseFilter(matchVersion, tok);
     tok = new StopFilter(matchVersion, tok, stopwords);
     return new TokenStreamComponents(src, tok) {
@@ -191,4 +202,23 @@ public class KoreanAnalyzer extends StopwordAnalyzerBase {
     doDecompound = decompound;
   }
   
+  /**
+   * share the morphological analysis results of the token streams of this analyzer.
+   * null, the default, analyzes every word.
+   */
+  public void setAnalysisCache(AnalysisCache cache) {
+    analysisCache = cache;
+  }
+  
+  /**
+   * analyze for queries only: no bigrams and no original terms, which are only
+   * useful in the index, and the tokens of each distinct query are kept in the
+   * given cache, so repeated queries need no morphological analysis.
+   * @param cache  the query cache, or null to analyze every query
+   */
+  public void setLightweightQuery(QueryTokenCache cache) {
+    lightweightQuery = true;
+    queryTokenCache = cache;
+  }
+  
 }
@@ -20,15 +20,15 @@ package org.apache.lucene.analysis.ko;
 import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ko.morph.AnalysisCache;
 import org.apache.lucene.analysis.ko.morph.AnalysisOutput;
 import org.apache.lucene.analysis.ko.morph.CompoundEntry;
 import org.apache.lucene.analysis.ko.morph.CompoundNounAnalyzer;
@@ -40,7 +40,6 @@ import org.apache.lucene.analysis.ko.morph.WordSpaceAnalyzer;
 import org.apache.lucene.analysis.ko.utils.DictionaryUtil;
 import org.apache.lucene.analysis.ko.utils.HanjaUtils;
 import org.apache.lucene.analysis.ko.utils.Utilities;
-import org.apache.lucene.analysis.ko.IndexWord;
 import org.apache.lucene.analysis.ko.KoreanTokenizer;
 import org.apache.lucene.analysis.standard.ClassicTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -48,13 +47,40 @@ import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
 
 public class KoreanFilter extends TokenFilter {
 
-  private LinkedList<IndexWord> morphQueue;
+  private final TermQueue morphQueue = new TermQueue();
   
   private MorphAnalyzer morph;
   
+  private AnalysisCache analysisCache;
+  
+  private QueryTokenCache queryCache;
+  
+  /** input tokens of the current query, read ahead to look it up in the query cache */
+  private final List<State> queryInput = new ArrayList<State>();
+  
+  private int queryInputPos;
+  
+  private boolean queryRead = false;
+  
+  private boolean inputExhausted = false;
+  
+  /** cached tokens of the current query being replayed, or null */
+  private State[] replay;
+  
+  private int replayPos;
+  
+  /** tokens of the current query to be cached on exhaustion, or null */
+  private List<State> recorded;
+  
+  private String queryKey;
+  
+  private long queryGeneration;
+  
   private WordSpaceAnalyzer wsAnal;
   
   private boolean bigrammable = true;
@@ -71,22 +97,14 @@ public class KoreanFilter extends TokenFilter {
   
   private boolean doDecompound = true;
   
-  private char[] curTermBuffer;
-    
-  private int curTermLength;
-    
-  private String curType;
-    
-  private String curSource;
-    
-  private int tokStart;
-    
-  private int hanStart = 0; // 한글의 시작 위치, 복합명사일경우
-    
-  private int chStart = 0;
-    
   private CompoundNounAnalyzer cnAnalyzer = new CompoundNounAnalyzer();
   
+  /** normalizeWord 의 결과를 담는 재사용 객체 */
+  private final IndexWord normalized = new IndexWord();
+  
+  /** analysisChinese 에서 이미 추출한 한글 */
+  private final Set<String> cnounSet = new HashSet<String>();
+  
   private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
   private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
   private final PositionLengthAttribute posLenAtt = addAttribute(PositionLengthAttribute.class);
@@ -98,9 +116,7 @@ public class KoreanFilter extends TokenFilter {
     
   public KoreanFilter(TokenStream input) {
     super(input);
-    morphQueue =  new LinkedList<IndexWord>();
     morph = new MorphAnalyzer();
-    wsAnal = new WordSpaceAnalyzer();
     cnAnalyzer.setExactMach(false);
   }
 
@@ -165,32 +181,44 @@ public class KoreanFilter extends TokenFilter {
   
   public final boolean incrementToken() throws IOException {
 
-    if(curTermBuffer!=null&&morphQueue.size()>0) {
+    if(queryCache!=null && !queryRead) readQuery();
+    
+    if(replay!=null) {
+      if(replayPos==replay.length) return false;
+      restoreState(replay[replayPos++]);
+      return true;
+    }
+    
+    if(!morphQueue.isEmpty()) {
       setTermBufferByQueue(false);
       return true;
     }
 
-    if(!input.incrementToken()) return false;
+    if(!nextInput()) {
+      if(recorded!=null) {
+        queryCache.put(queryKey, recorded.toArray(new State[recorded.size()]), queryGeneration);
+        recorded = null;
+      }
+      return false;
+    }
     
-    curTermBuffer = termAtt.buffer().clone();
-    curTermLength = termAtt.length();
-    tokStart = offsetAtt.startOffset();    
-    curType = typeAtt.type();
+    morphQueue.clear();
+    String curType = typeAtt.type();
 
     try {      
       if(KoreanTokenizer.TOKEN_TYPES[KoreanTokenizer.KOREAN].equals(curType)) {            
-        analysisKorean(new String(curTermBuffer,0,termAtt.length()));
+        analysisKorean(new String(termAtt.buffer(),0,termAtt.length()));
       } else if(KoreanTokenizer.TOKEN_TYPES[KoreanTokenizer.CHINESE].equals(curType)) {
-        analysisChinese(new String(curTermBuffer,0,termAtt.length()));
+        analysisChinese(new String(termAtt.buffer(),0,termAtt.length()));
       } else {
-        analysisETC(new String(curTermBuffer,0,termAtt.length()));
+        analysisETC();
       }        
     }catch(MorphException e) {
     	e.printStackTrace();
       throw new IOException("Korean Filter MorphException\n"+e.getMessage());
     }
 
-    if(morphQueue!=null&&morphQueue.size()>0) {
+    if(!morphQueue.isEmpty()) {
       setTermBufferByQueue(true);  
     } else {
       return incrementToken();
@@ -207,15 +235,56 @@ public class KoreanFilter extends TokenFilter {
     
     clearAttributes();
         
-    IndexWord iw = morphQueue.removeFirst();
+    Term t = morphQueue.poll();
 
-    termAtt.copyBuffer(iw.getWord().toCharArray(), 0, iw.getWord().length());
-    offsetAtt.setOffset(iw.getOffset(), iw.getOffset() + iw.getWord().length());
+    termAtt.copyBuffer(t.chars, 0, t.length);
+    offsetAtt.setOffset(t.offset, t.offset + t.length);
     
-    int inc = isPositionInc ?  iw.getIncrement() : 0;
+    int inc = isPositionInc ?  t.increment : 0;
     
     posIncrAtt.setPositionIncrement(inc);      
     
+    if(recorded!=null) recorded.add(captureState());
+  }
+  
+  /**
+   * Reads the input tokens of the query ahead and looks up their analysis in
+   * the query cache. A query longer than the cache allows is analyzed as usual.
+   */
+  private void readQuery() throws IOException {
+    
+    queryRead = true;
+    StringBuilder key = new StringBuilder();
+    while(true) {
+      if(!input.incrementToken()) {
+        inputExhausted = true;
+        break;
+      }
+      queryInput.add(captureState());
+      if(queryInput.size()>queryCache.getMaxTokens()) return;
+      
+      key.append(termAtt.buffer(), 0, termAtt.length()).append('\u0000')
+         .append(typeAtt.type()).append('\u0000')
+         .append(offsetAtt.startOffset()).append(',').append(offsetAtt.endOffset()).append(',')
+         .append(posIncrAtt.getPositionIncrement()).append('\u0000');
+    }
+    
+    queryKey = key.toString();
+    queryGeneration = queryCache.getGeneration();
+    replay = queryCache.get(queryKey);
+    if(replay==null) recorded = new ArrayList<State>();
+  }
+  
+  /**
+   * advances to the next input token, which may have been read ahead by {@link #readQuery()}
+   */
+  private boolean nextInput() throws IOException {
+    if(queryInputPos<queryInput.size()) {
+      restoreState(queryInput.get(queryInputPos++));
+      return true;
+    }
+    if(inputExhausted) return false;
+    return input.incrementToken();
   }
   
   /**
@@ -224,16 +293,16 @@ public class KoreanFilter extends TokenFilter {
    */
   private void analysisKorean(String input) throws MorphException {
 
-    List<AnalysisOutput> outputs = morph.analyze(input);
+    List<AnalysisOutput> outputs = analysisCache==null ? morph.analyze(input) : analysisCache.analyze(input, morph);
     if(outputs.size()==0) return;
     
-    Map<String,IndexWord> map = new LinkedHashMap<String,IndexWord>();
-    if(hasOrigin) map.put("0:"+input, new IndexWord(input,offsetAtt.startOffset()));
+    TermQueue map = morphQueue;
+    if(hasOrigin) map.put(0, input, offsetAtt.startOffset(), 1);
 
     boolean ignoreAutoSpace = outputs.get(0).getScore()>=AnalysisOutput.SCORE_COMPOUNDS;
     if(queryMode) ignoreAutoSpace = outputs.get(0).getScore()>=AnalysisOutput.SCORE_CORRECT;
     
-    ignoreAutoSpace = true;
+    if(wsAnal==null) ignoreAutoSpace = true;
     if(ignoreAutoSpace) 
     {
       extractKeyword(outputs,offsetAtt.startOffset(), map, 0, false);      
@@ -251,16 +320,12 @@ public class KoreanFilter extends TokenFilter {
             AnalysisOutput o = list.get(ii);
             
             int inc = ii==0&&map.size()>0 ? 0 : 1;
-            if(hasOrigin) map.put((offsetAtt.startOffset()+offset)+":"+o.getSource(), new IndexWord(o.getSource(),offsetAtt.startOffset()+offset,inc));
-            List<AnalysisOutput> results = new ArrayList<AnalysisOutput>();
-            results.add(o);
-            extractKeyword(results,offsetAtt.startOffset()+offset, map, ii, (ii!=0));
+            if(hasOrigin) map.put(offsetAtt.startOffset()+offset, o.getSource(), offsetAtt.startOffset()+offset, inc);
+            extractKeyword(Collections.singletonList(o),offsetAtt.startOffset()+offset, map, ii, (ii!=0));
             offset += o.getSource().length();
           }       
         } else {
-          List<AnalysisOutput> results = new ArrayList<AnalysisOutput>();	
-          results.addAll(outputs);
-          extractKeyword(results, offsetAtt.startOffset(), map, 0, false);
+          extractKeyword(outputs, offsetAtt.startOffset(), map, 0, false);
         }
         
       }catch(Exception e) {
@@ -268,18 +333,11 @@ public class KoreanFilter extends TokenFilter {
       }
       
     }
-        
-    Iterator<String> iter = map.keySet().iterator();
-    
-    while(iter.hasNext()) {      
-      String text = iter.next();      
-      morphQueue.add(map.get(text));
-    }
   
   }
   
   private void extractKeyword(List<AnalysisOutput> outputs, int startoffset, 
-		  Map<String,IndexWord> map, int position, boolean SpaceAdded) 
+		  TermQueue map, int position, boolean SpaceAdded) 
       throws MorphException 
   {
 
@@ -298,9 +356,7 @@ public class KoreanFilter extends TokenFilter {
       if(!originCNoun&&output.getCNounList().size()>0) continue; // except compound nound
       int inc = !SpaceAdded&&map.size()>0 ? 0 : 1;
 
-      String key = startoffset+":"+output.getStem();
-      if(!map.containsKey(key)) 
-    	  map.put(key, new IndexWord(output.getStem(),startoffset,inc));
+      map.putIfAbsent(startoffset, output.getStem(), startoffset, inc);
       
       // query time이고 띄어쓰기된 경우가 아니라면 첫번째 후보로만 검색어를 추출한다.
       if(queryMode && !SpaceAdded) break;
@@ -334,14 +390,13 @@ public class KoreanFilter extends TokenFilter {
           IndexWord indexWord = normalizeWord(output.getCNounList(), i, cStartoffset, inc);
           if(cEntry.getWord().length()==1 && indexWord.getIncrement()==0) cPosition -= 1;
           
-          String key = indexWord.getOffset()+":"+indexWord.getWord();
           if(i>0&&output.getCNounList().get(i-1).getWord().length()==1) {
         	  String word = output.getCNounList().get(i-1).getWord()+output.getCNounList().get(i).getWord();
         	  WordEntry wEntry = DictionaryUtil.getCompoundNoun(word);
         	  if(wEntry!=null) indexWord.setIncrement(0);// 공사가계약--> "계약"은 "가계약"과 같은 위치
           }
           
-          if(!map.containsKey(key)) map.put(key, indexWord);
+          map.putIfAbsent(indexWord.getOffset(), indexWord.getWord(), indexWord.getOffset(), indexWord.getIncrement());
                    
           if(bigrammable&&!cEntry.isExist()) 
             cPosition = addBiagramToMap(cEntry.getWord(), cStartoffset, map, cPosition);
@@ -407,14 +462,15 @@ public class KoreanFilter extends TokenFilter {
 	  return false;
   }
   
+  private IndexWord normalized(String word, int cStartoffset, int inc) {
+    normalized.setWord(word);
+    normalized.setOffset(cStartoffset);
+    normalized.setIncrement(inc);
+    return normalized;
+  }
+  
   /**
-   * 1글자 분해된 경우 색인어를 추출하는 로직
-   * @param decompounds
-   * @param index
-   * @param cStartoffset
-   * @param inc
-   * @return
-   * @throws MorphException
+   * 1글자 분해된 경우 색인어를 추출하는 로직. 반환되는 객체는 다음 호출때 재사용된다.
    */
   private IndexWord normalizeWord(List<CompoundEntry> decompounds, int index,
 		  int cStartoffset, int inc) throws MorphException {
@@ -425,12 +481,12 @@ public class KoreanFilter extends TokenFilter {
 	  //queryMode 와  관계는?
 	  if(decompounds.get(index).getWord().length()!=1) {
 		  word = decompounds.get(index).getWord();
-		  return new IndexWord(word,cStartoffset,inc);
+		  return normalized(word,cStartoffset,inc);
 	  }
 	    
 	  if(index==0 && decompounds.get(index).getWord().length()==1) {
 		  word = decompounds.get(index).getWord()+decompounds.get(index+1).getWord();
-		  return new IndexWord(word,cStartoffset,inc);
+		  return normalized(word,cStartoffset,inc);
 	  }
 	  
 	  // 마지막이 한글자라면 무조건 앞의 글자와 결합한다.
@@ -440,13 +496,13 @@ public class KoreanFilter extends TokenFilter {
 		  word = decompounds.get(index-1).getWord()+decompounds.get(index).getWord();
 		  if(hasOrigin || originCNoun) inc=0;
 		  cStartoffset -= decompounds.get(index-1).getWord().length();
-		  return new IndexWord(word,cStartoffset,inc);
+		  return normalized(word,cStartoffset,inc);
 	  }
 
 	  if(index<decompounds.size()-1 && decompounds.get(index).getWord().length()==1) {
 		  word = decompounds.get(index).getWord()+decompounds.get(index+1).getWord();
 		  if(DictionaryUtil.getCompoundNoun(word)!=null) {
-			  return new IndexWord(word,cStartoffset,inc);
+			  return normalized(word,cStartoffset,inc);
 		  }		  
 	  }
 
@@ -455,11 +511,11 @@ public class KoreanFilter extends TokenFilter {
 	  word = decompounds.get(index-1).getWord()+decompounds.get(index).getWord();
 	  if(!queryMode) inc=0; // position은 무조건 증가하지 않는다.
 	  cStartoffset -= decompounds.get(index-1).getWord().length();
-	  return new IndexWord(word,cStartoffset,inc);
+	  return normalized(word,cStartoffset,inc);
 	  
   }
   
-  private int addBiagramToMap(String input, int startoffset, Map map, int position) {
+  private int addBiagramToMap(String input, int startoffset, TermQueue map, int position) {
     int offset = 0;
     int strlen = input.length();
     if(strlen<2) return position;
@@ -469,17 +525,12 @@ public class KoreanFilter extends TokenFilter {
       int inc = offset==0 ? 0 : 1;
       
       if(isAlphaNumChar(input.charAt(offset))) {
-        String text = findAlphaNumeric(input.substring(offset));
-        String key = startoffset+":"+text;
-        if(!map.containsKey(key))
-        	map.put(key,  new IndexWord(text,startoffset+offset,inc));
-        offset += text.length();
+        int end = findAlphaNumeric(input, offset);
+        map.putIfAbsent(startoffset, input, offset, end, startoffset+offset, inc);
+        offset = end;
       } else {
-        String text = input.substring(offset,
-            offset+2>strlen?strlen:offset+2);
-        String key = startoffset+":"+text;
-        if(!map.containsKey(key))
-        	map.put(key,  new IndexWord(text,startoffset+offset,inc));
+        map.putIfAbsent(startoffset, input, offset,
+            offset+2>strlen?strlen:offset+2, startoffset+offset, inc);
         offset++;
       }
       
@@ -503,15 +554,15 @@ public class KoreanFilter extends TokenFilter {
     return sOffset;
   }
   
-  private String findAlphaNumeric(String text) {
-    int pos = 0;
-    for(int i=0;i<text.length();i++) {
-      if(!isAlphaNumChar(text.charAt(i))) break;
-      pos++;
-    }    
+  /**
+   * @return the end of the alphanumeric run starting at <code>start</code>, including the character that ends it
+   */
+  private int findAlphaNumeric(String text, int start) {
+    int pos = start;
+    while(pos<text.length() && isAlphaNumChar(text.charAt(pos))) pos++;
     if(pos<text.length()) pos += 1;
     
-    return text.substring(0,pos);
+    return pos;
   }
   
   /**
@@ -522,18 +573,18 @@ public class KoreanFilter extends TokenFilter {
    */
   private void analysisChinese(String term) throws MorphException {  
     
-    morphQueue.add(new IndexWord(term,offsetAtt.startOffset()));
+    morphQueue.add(term, 0, term.length(), offsetAtt.startOffset(), 1);
     if(term.length()<2) return; // 1글자 한자는 색인어로 한글을 추출하지 않는다.
     
-    List<StringBuffer> candiList = new ArrayList<StringBuffer>();
-    candiList.add(new StringBuffer());
+    List<StringBuilder> candiList = new ArrayList<StringBuilder>();
+    candiList.add(new StringBuilder());
     
     for(int i=0;i<term.length();i++) {
 
       char[] chs = HanjaUtils.convertToHangul(term.charAt(i));        
       if(chs==null) continue;
       
-      List<StringBuffer> removeList = new ArrayList<StringBuffer>(); // 제거될 후보를 저장  
+      List<StringBuilder> removeList = new ArrayList<StringBuilder>(); // 제거될 후보를 저장  
       
       int caniSize = candiList.size();
       
@@ -544,8 +595,8 @@ public class KoreanFilter extends TokenFilter {
           
           if(k==4) break; // 4개 이상의 음을 가지고 있는 경우 첫번째 음으로만 처리를 한다.
           
-          StringBuffer sb = candiList.get(j);
-          if(k>0) sb = new StringBuffer(origin);
+          StringBuilder sb = candiList.get(j);
+          if(k>0) sb = new StringBuilder(origin);
           
           sb.append(chs[k]);          
           if(k>0)  candiList.add(sb);
@@ -560,7 +611,7 @@ public class KoreanFilter extends TokenFilter {
         candiList = candiList.subList(0, 1); // 첫번째만 생성하고 나머지는 버림
       } 
       
-      for(StringBuffer rsb : removeList) {
+      for(StringBuilder rsb : removeList) {
         if(candiList.size()>1) candiList.remove(rsb);
       }
     }
@@ -569,10 +620,11 @@ public class KoreanFilter extends TokenFilter {
     if(candiList.size()<maxCandidate) maxCandidate=candiList.size();
     
     for(int i=0;i<maxCandidate;i++) {
-      morphQueue.add(new IndexWord(candiList.get(i).toString(),offsetAtt.startOffset(),0));
+      morphQueue.add(candiList.get(i), 0, candiList.get(i).length(), offsetAtt.startOffset(), 0);
     }
     
-    Map<String, String> cnounMap = new HashMap<String, String>();
+    Set<String> cnounMap = cnounSet;
+    cnounMap.clear();
     
     // 추출된 명사가 복합명사인 경우 분리한다.
     for(int i=0;i<maxCandidate;i++) {
@@ -588,24 +640,24 @@ public class KoreanFilter extends TokenFilter {
         pos += entry.getWord().length();
         if(pos>term.length()) pos = term.length();
         
-        if(cnounMap.get(entry.getWord())!=null) continue;
+        if(cnounMap.contains(entry.getWord())) continue;
          
         int posInc = ii==0? 0 : 1;
         
         try{
         // 한글과 매치되는 한자를 짤라서 큐에 저장한다.           
-        morphQueue.add(new IndexWord(term.substring(offset,pos),offsetAtt.startOffset()+offset,posInc));
+        morphQueue.add(term, offset, pos, offsetAtt.startOffset()+offset, posInc);
         }catch(Exception e) {
           System.out.println("term:"+term+" made exception");
           e.printStackTrace();
           throw new MorphException("term:"+term+" made exception");
         }
-        cnounMap.put(entry.getWord(), entry.getWord());
+        cnounMap.add(entry.getWord());
          
 //        if(entry.getWord().length()<2) continue; //  한글은 2글자 이상만 저장한다.
          
         // 분리된 한글을 큐에 저장한다.  
-        morphQueue.add(new IndexWord(entry.getWord(),offsetAtt.startOffset()+offset,0));
+        morphQueue.add(entry.getWord(), 0, entry.getWord().length(), offsetAtt.startOffset()+offset, 0);
          
         offset = pos;
       }       
@@ -622,7 +674,7 @@ public class KoreanFilter extends TokenFilter {
     return cnAnalyzer.analyze(input);
   }
   
-  private void analysisETC(String term) throws MorphException {
+  private void analysisETC() throws MorphException {
 
     final char[] buffer = termAtt.buffer();
     final int bufferLength = termAtt.length();
@@ -633,7 +685,7 @@ public class KoreanFilter extends TokenFilter {
         buffer[bufferLength-2] == '\'' &&
         (buffer[bufferLength-1] == 's' || buffer[bufferLength-1] == 'S')) {
       // Strip last 2 characters off
-      morphQueue.add(new IndexWord(term.substring(0,bufferLength - 2),offsetAtt.startOffset()));
+      morphQueue.add(buffer, 0, bufferLength - 2, offsetAtt.startOffset(), 1);
     } else if (type == ACRONYM_TYPE) {      // remove dots
       int upto = 0;
       for(int i=0;i<bufferLength;i++) {
@@ -641,9 +693,9 @@ public class KoreanFilter extends TokenFilter {
         if (c != '.')
           buffer[upto++] = c;
       }
-      morphQueue.add(new IndexWord(term.substring(0,upto),offsetAtt.startOffset()));
+      morphQueue.add(buffer, 0, upto, offsetAtt.startOffset(), 1);
     } else {
-      morphQueue.add(new IndexWord(term,offsetAtt.startOffset()));
+      morphQueue.add(buffer, 0, bufferLength, offsetAtt.startOffset(), 1);
     }
   }
   
@@ -659,4 +711,152 @@ public class KoreanFilter extends TokenFilter {
   public void setExactMatch(boolean match) {
     this.exactMatch = match;
   }
+  
+  /**
+   * @param cache  shared cache of morphological analysis results, or null to analyze every token
+   */
+  public void setAnalysisCache(AnalysisCache cache) {
+    this.analysisCache = cache;
+  }
+  
+  /**
+   * Eojeol that the morphological analysis can not resolve are split into
+   * words by a {@link WordSpaceAnalyzer} with the given look-ahead.
+   * @param maxLookAhead  see {@link WordSpaceAnalyzer#WordSpaceAnalyzer(int)}; 0, the default, disables word spacing
+   */
+  public void setMaxLookAhead(int maxLookAhead) {
+    this.wsAnal = maxLookAhead>0 ? new WordSpaceAnalyzer(maxLookAhead) : null;
+  }
+  
+  /**
+   * @param cache  cache of the tokens of whole queries, or null, the default;
+   *   only for query analysis, see {@link QueryTokenCache}
+   */
+  public void setQueryTokenCache(QueryTokenCache cache) {
+    this.queryCache = cache;
+  }
+  
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    morphQueue.clear();
+    queryInput.clear();
+    queryInputPos = 0;
+    queryRead = false;
+    inputExhausted = false;
+    replay = null;
+    replayPos = 0;
+    recorded = null;
+    queryKey = null;
+  }
+  
+  /**
+   * A term waiting to be returned. Instances are pooled by {@link TermQueue}
+   * and keep their buffer, so steady state analysis does not allocate them.
+   */
+  private static final class Term {
+    char[] chars = new char[16];
+    int length;
+    /** offset part of the de-duplication key; not always the term's own offset */
+    int keyOffset;
+    int offset;
+    int increment;
+    
+    void set(CharSequence src, int start, int end, int keyOffset, int offset, int increment) {
+      length = end - start;
+      if(chars.length < length) chars = new char[ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_CHAR)];
+      for(int i=0;i<length;i++) chars[i] = src.charAt(start+i);
+      this.keyOffset = keyOffset;
+      this.offset = offset;
+      this.increment = increment;
+    }
+    
+    void set(char[] src, int start, int end, int offset, int increment) {
+      length = end - start;
+      if(chars.length < length) chars = new char[ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_CHAR)];
+      System.arraycopy(src, start, chars, 0, length);
+      this.keyOffset = offset;
+      this.offset = offset;
+      this.increment = increment;
+    }
+    
+    boolean matches(int keyOffset, CharSequence src, int start, int end) {
+      if(this.keyOffset!=keyOffset || length!=end-start) return false;
+      for(int i=0;i<length;i++) {
+        if(chars[i]!=src.charAt(start+i)) return false;
+      }
+      return true;
+    }
+  }
+  
+  /**
+   * Insertion ordered terms of the current token, de-duplicated on
+   * (key offset, text) like the <code>"offset:word"</code> keyed
+   * LinkedHashMap it replaces. A token yields a handful of terms, so a linear
+   * scan is cheaper than hashing.
+   */
+  private static final class TermQueue {
+    private Term[] terms = new Term[8];
+    private int size;
+    private int head;
+    
+    void clear() {
+      size = 0;
+      head = 0;
+    }
+    
+    /** number of terms added since {@link #clear()} */
+    int size() {
+      return size;
+    }
+    
+    boolean isEmpty() {
+      return head>=size;
+    }
+    
+    Term poll() {
+      return terms[head++];
+    }
+    
+    private Term next() {
+      if(size==terms.length) {
+        Term[] grown = new Term[ArrayUtil.oversize(size+1, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+        System.arraycopy(terms, 0, grown, 0, size);
+        terms = grown;
+      }
+      if(terms[size]==null) terms[size] = new Term();
+      return terms[size++];
+    }
+    
+    private int indexOf(int keyOffset, CharSequence src, int start, int end) {
+      for(int i=0;i<size;i++) {
+        if(terms[i].matches(keyOffset, src, start, end)) return i;
+      }
+      return -1;
+    }
+    
+    /** appends without de-duplication */
+    void add(CharSequence src, int start, int end, int offset, int inc) {
+      next().set(src, start, end, offset, offset, inc);
+    }
+    
+    void add(char[] src, int start, int end, int offset, int inc) {
+      next().set(src, start, end, offset, inc);
+    }
+    
+    /** like Map.put: replaces the term with the same key, keeping its place */
+    void put(int keyOffset, String word, int offset, int inc) {
+      int i = indexOf(keyOffset, word, 0, word.length());
+      Term t = i<0 ? next() : terms[i];
+      t.set(word, 0, word.length(), keyOffset, offset, inc);
+    }
+    
+    void putIfAbsent(int keyOffset, String word, int offset, int inc) {
+      putIfAbsent(keyOffset, word, 0, word.length(), offset, inc);
+    }
+    
+    void putIfAbsent(int keyOffset, CharSequence src, int start, int end, int offset, int inc) {
+      if(indexOf(keyOffset, src, start, end)<0) next().set(src, start, end, keyOffset, offset, inc);
+    }
+  }
 }
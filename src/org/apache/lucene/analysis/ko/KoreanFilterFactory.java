@@ -20,6 +20,7 @@ package org.apache.lucene.analysis.ko;
 import java.util.Map;
 
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ko.morph.AnalysisCache;
 import org.apache.lucene.analysis.util.TokenFilterFactory;
 
 /**
@@ -33,10 +34,29 @@ import org.apache.lucene.analysis.util.TokenFilterFactory;
  *       hasOrigin="true"
  *       hasCNoun="true"
  *       exactMatch="false"
+ *       cacheSize="10000"
+ *       wordSpace="false"
+ *       maxLookAhead="16"
+ *       lightweightQuery="false"
+ *       queryCacheSize="1000"
  *     /&gt;
  *   &lt;/filter&gt;
  * &lt;/fieldType&gt;
  * </pre>
+ * <p>
+ * <code>cacheSize</code> bounds the number of eojeol whose analysis is
+ * cached and shared by all filters this factory creates; 0 disables the
+ * cache. {@link #getAnalysisCache()} reports its hit ratio.
+ * <p>
+ * <code>wordSpace</code> splits unspaced eojeol that the morphological
+ * analysis can not resolve. The segmenter searches a word boundary at most
+ * <code>maxLookAhead</code> syllables ahead, which bounds its work per
+ * syllable on long unspaced text.
+ * <p>
+ * <code>lightweightQuery</code> is meant for the query analyzer of a field:
+ * bigrams and original terms are not generated, and the tokens of up to
+ * <code>queryCacheSize</code> distinct queries are cached, so that repeated
+ * queries skip the morphological analysis; see {@link QueryTokenCache}.
  */
 
 public class KoreanFilterFactory extends TokenFilterFactory {
@@ -56,6 +76,22 @@ public class KoreanFilterFactory extends TokenFilterFactory {
 
   private static final String IS_DO_DECOMPOUND = "doDecompound";
   
+  private static final String CACHE_SIZE = "cacheSize";
+  
+  private static final int DEFAULT_CACHE_SIZE = 10000;
+  
+  private static final String IS_WORD_SPACE = "wordSpace";
+  
+  private static final String MAX_LOOK_AHEAD = "maxLookAhead";
+  
+  private static final int DEFAULT_MAX_LOOK_AHEAD = 16;
+  
+  private static final String IS_LIGHTWEIGHT_QUERY = "lightweightQuery";
+  
+  private static final String QUERY_CACHE_SIZE = "queryCacheSize";
+  
+  private static final int DEFAULT_QUERY_CACHE_SIZE = 1000;
+  
   private boolean bigrammable;
 
   private boolean hasOrigin;
@@ -69,6 +105,12 @@ public class KoreanFilterFactory extends TokenFilterFactory {
   private boolean queryMode;
   
   private boolean doDecompound;
+  
+  private AnalysisCache analysisCache;
+  
+  private int maxLookAhead;
+  
+  private QueryTokenCache queryTokenCache;
 
   /**
    * Initialize this factory via a set of key-value pairs.
@@ -86,12 +128,44 @@ public class KoreanFilterFactory extends TokenFilterFactory {
     isPositionInc = getBoolean(args, IS_POSITION_INC, true);
     queryMode = getBoolean(args, IS_QUERY_MODE, false);
     doDecompound = getBoolean(args, IS_DO_DECOMPOUND, true);
+    int cacheSize = getInt(args, CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    analysisCache = cacheSize>0 ? new AnalysisCache(cacheSize) : null;
+    boolean wordSpace = getBoolean(args, IS_WORD_SPACE, false);
+    int lookAhead = getInt(args, MAX_LOOK_AHEAD, DEFAULT_MAX_LOOK_AHEAD);
+    if (lookAhead < 1) {
+      throw new IllegalArgumentException(MAX_LOOK_AHEAD + " must be positive: " + lookAhead);
+    }
+    maxLookAhead = wordSpace ? lookAhead : 0;
+    if (getBoolean(args, IS_LIGHTWEIGHT_QUERY, false)) {
+      bigrammable = false;
+      hasOrigin = false;
+      int queryCacheSize = getInt(args, QUERY_CACHE_SIZE, DEFAULT_QUERY_CACHE_SIZE);
+      queryTokenCache = queryCacheSize>0 ? new QueryTokenCache(queryCacheSize) : null;
+    }
   }
 
   public TokenStream create(TokenStream tokenstream) {
-    return new KoreanFilter(tokenstream, bigrammable, 
+    KoreanFilter filter = new KoreanFilter(tokenstream, bigrammable, 
         hasOrigin, exactMatch, hasCNoun, isPositionInc, 
         queryMode, doDecompound);
+    filter.setAnalysisCache(analysisCache);
+    filter.setMaxLookAhead(maxLookAhead);
+    filter.setQueryTokenCache(queryTokenCache);
+    return filter;
+  }
+  
+  /**
+   * @return the analysis cache shared by the filters of this factory, or null if disabled
+   */
+  public AnalysisCache getAnalysisCache() {
+    return analysisCache;
+  }
+  
+  /**
+   * @return the query cache shared by the filters of this factory, or null unless lightweightQuery is set
+   */
+  public QueryTokenCache getQueryTokenCache() {
+    return queryTokenCache;
   }
   
 }
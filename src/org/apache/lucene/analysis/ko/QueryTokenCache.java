@@ -0,0 +1,162 @@
+package org.apache.lucene.analysis.ko;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.util.AttributeSource.State;
+import org.apache.lucene.analysis.ko.utils.DictionaryUtil;
+
+/**
+ * Bounded cache from a query to the tokens {@link KoreanFilter} produced
+ * for it.
+ * <p>
+ * The key is the whole token sequence the filter receives for one query
+ * (terms, types, offsets and position increments), so a query that was seen
+ * before is answered by replaying the captured tokens, without any
+ * morphological analysis. Queries of more than {@link #getMaxTokens()}
+ * input tokens are not cached; the filter reads that many tokens ahead,
+ * which is why the cache is meant for query analysis only.
+ * <p>
+ * A cache must only be shared by filters of identical analysis chains, as
+ * the cached states are restored into their attributes. It empties itself
+ * when {@link DictionaryUtil#reloadDictionary()} swaps the dictionaries.
+ */
+public class QueryTokenCache {
+
+  public static final int DEFAULT_MAX_TOKENS = 32;
+
+  private final Map<String, State[]> map;
+
+  private final int maxSize;
+
+  private final int maxTokens;
+
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  public QueryTokenCache(int maxSize) {
+    this(maxSize, DEFAULT_MAX_TOKENS);
+  }
+
+  public QueryTokenCache(final int maxSize, int maxTokens) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    if (maxTokens < 1) throw new IllegalArgumentException("maxTokens must be positive: " + maxTokens);
+    this.maxSize = maxSize;
+    this.maxTokens = maxTokens;
+    this.generation = DictionaryUtil.getGeneration();
+    this.map = new LinkedHashMap<String, State[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, State[]> eldest) {
+        if (size() > maxSize) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the dictionary generation the tokens of a miss must be computed
+   *   with to be stored by {@link #put}
+   */
+  long getGeneration() {
+    return DictionaryUtil.getGeneration();
+  }
+
+  /**
+   * Returns the cached tokens of the query, or null.
+   * The returned states must not be modified.
+   */
+  synchronized State[] get(String key) {
+    checkGeneration();
+    State[] tokens = map.get(key);
+    if (tokens == null) misses++;
+    else hits++;
+    return tokens;
+  }
+
+  /** stores the tokens of a query unless the dictionaries were swapped since <code>gen</code> */
+  synchronized void put(String key, State[] tokens, long gen) {
+    checkGeneration();
+    if (gen == generation) map.put(key, tokens);
+  }
+
+  private void checkGeneration() {
+    long current = DictionaryUtil.getGeneration();
+    if (current != generation) {
+      map.clear();
+      invalidations++;
+      generation = current;
+    }
+  }
+
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /** the longest query, in input tokens, that is cached */
+  public int getMaxTokens() {
+    return maxTokens;
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** number of times the cache was emptied because the dictionaries were reloaded */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /** hits / lookups, or 0 before the first lookup */
+  public synchronized double getHitRatio() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "QueryTokenCache{maxSize=" + maxSize + ",size=" + map.size() + ",hits=" + hits
+        + ",misses=" + misses + ",hitratio=" + String.format(Locale.ROOT, "%.2f", getHitRatio())
+        + ",evictions=" + evictions + ",invalidations=" + invalidations + "}";
+  }
+}
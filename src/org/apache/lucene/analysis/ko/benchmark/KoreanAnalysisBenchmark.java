@@ -0,0 +1,316 @@
+package org.apache.lucene.analysis.ko.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ko.KoreanFilter;
+import org.apache.lucene.analysis.ko.KoreanTokenizer;
+import org.apache.lucene.analysis.ko.morph.AnalysisCache;
+import org.apache.lucene.analysis.ko.morph.CompoundNounAnalyzer;
+import org.apache.lucene.analysis.ko.morph.MorphAnalyzer;
+import org.apache.lucene.analysis.ko.morph.WordSpaceAnalyzer;
+import org.apache.lucene.analysis.ko.utils.HanjaUtils;
+import org.apache.lucene.analysis.ko.utils.MorphUtil;
+import org.apache.lucene.analysis.ko.utils.SyllableUtil;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.Version;
+
+/**
+ * Throughput and allocation benchmarks for the Korean analysis chain.
+ * <p>
+ * Three corpora ship with this class: news text, unspaced text and Hanja
+ * heavy text. For each corpus the full {@link KoreanTokenizer} +
+ * {@link KoreanFilter} chain is measured for every combination of the
+ * options {@link org.apache.lucene.analysis.ko.KoreanFilterFactory} exposes
+ * (bigrammable, hasOrigin, exactMatch, hasCNoun), with and without an
+ * {@link AnalysisCache}. The single stages {@link MorphAnalyzer},
+ * {@link CompoundNounAnalyzer}, {@link WordSpaceAnalyzer} and
+ * {@link HanjaUtils} conversion are measured on their own.
+ * <p>
+ * Each benchmark runs warmup iterations and then measured iterations of a
+ * fixed duration on the calling thread. The report gives units (tokens,
+ * words or characters) per second as mean &plusmn; standard deviation and, on
+ * JVMs that support it, bytes allocated per unit.
+ * <pre>
+ * java org.apache.lucene.analysis.ko.benchmark.KoreanAnalysisBenchmark
+ *     [-wi warmups] [-i iterations] [-t millis] [-cache size] [regex]
+ * </pre>
+ * Only benchmarks whose name matches <code>regex</code> (for example
+ * <code>chain/news</code> or <code>stage/</code>) are run.
+ */
+public class KoreanAnalysisBenchmark {
+
+  static final String[] CORPORA = {"news", "unspaced", "hanja"};
+
+  private int warmups = 3;
+  private int iterations = 5;
+  private long millis = 1000;
+  private int cacheSize = 10000;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /** one pass over a corpus */
+  interface Workload {
+    /** @return the number of units processed */
+    long run() throws Exception;
+  }
+
+  public static void main(String[] args) throws Exception {
+    KoreanAnalysisBenchmark bench = new KoreanAnalysisBenchmark();
+    Pattern include = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("-wi".equals(args[i])) bench.warmups = Integer.parseInt(args[++i]);
+      else if ("-i".equals(args[i])) bench.iterations = Integer.parseInt(args[++i]);
+      else if ("-t".equals(args[i])) bench.millis = Long.parseLong(args[++i]);
+      else if ("-cache".equals(args[i])) bench.cacheSize = Integer.parseInt(args[++i]);
+      else include = Pattern.compile(args[i]);
+    }
+
+    Map<String, Workload> workloads = bench.workloads();
+    System.out.println(String.format(Locale.ROOT, "%-70s %14s %10s %10s", "benchmark", "units/s", "error", "B/unit"));
+    for (Map.Entry<String, Workload> e : workloads.entrySet()) {
+      if (include != null && !include.matcher(e.getKey()).find()) continue;
+      bench.measure(e.getKey(), e.getValue());
+    }
+  }
+
+  Map<String, Workload> workloads() throws IOException {
+    Map<String, Workload> workloads = new LinkedHashMap<String, Workload>();
+    boolean[] tf = {false, true};
+
+    for (String corpus : CORPORA) {
+      final List<String> lines = readCorpus(corpus);
+
+      for (boolean bigram : tf) for (boolean hasOrigin : tf) for (boolean exactMatch : tf) for (boolean cnoun : tf) {
+        String name = "chain/" + corpus + "/bigram=" + bigram + ",hasOrigin=" + hasOrigin
+            + ",exactMatch=" + exactMatch + ",cnoun=" + cnoun;
+        workloads.put(name, chain(lines, bigram, hasOrigin, exactMatch, cnoun, null));
+      }
+      if (cacheSize > 0) {
+        workloads.put("chain-cached/" + corpus + "/factory defaults",
+            chain(lines, true, true, false, true, new AnalysisCache(cacheSize)));
+      }
+
+      final List<String> korean = tokens(lines, KoreanTokenizer.TOKEN_TYPES[KoreanTokenizer.KOREAN]);
+      if (!korean.isEmpty()) {
+        workloads.put("stage/morph/" + corpus, new Workload() {
+          final MorphAnalyzer morph = new MorphAnalyzer();
+          public long run() throws Exception {
+            for (String word : korean) morph.analyze(word);
+            return korean.size();
+          }
+        });
+        workloads.put("stage/cnoun/" + corpus, new Workload() {
+          final CompoundNounAnalyzer cnoun = new CompoundNounAnalyzer();
+          public long run() throws Exception {
+            for (String word : korean) cnoun.analyze(word);
+            return korean.size();
+          }
+        });
+        // the same rule checks through the feature arrays and through the feature bits
+        workloads.put("stage/syllable-chars/" + corpus, new Workload() {
+          int matches;
+          public long run() throws Exception {
+            long chars = 0;
+            for (String word : korean) {
+              for (int i = 0; i < word.length(); i++) {
+                char[] f = SyllableUtil.getFeature(word.charAt(i));
+                if (f[SyllableUtil.IDX_JOSA1] == '1' || f[SyllableUtil.IDX_EOGAN] == '1') matches++;
+                if (f[SyllableUtil.IDX_YNPNA] == '1' && MorphUtil.decompose(word.charAt(i)).length == 3) matches++;
+              }
+              chars += word.length();
+            }
+            return chars;
+          }
+        });
+        workloads.put("stage/syllable-bits/" + corpus, new Workload() {
+          int matches;
+          public long run() throws Exception {
+            long chars = 0;
+            for (String word : korean) {
+              for (int i = 0; i < word.length(); i++) {
+                long f = SyllableUtil.getFeatureBits(word.charAt(i));
+                if (SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1) || SyllableUtil.hasFeature(f, SyllableUtil.IDX_EOGAN)) matches++;
+                if (SyllableUtil.hasFeature(f, SyllableUtil.IDX_YNPNA) && MorphUtil.decompose(word.charAt(i)).length == 3) matches++;
+              }
+              chars += word.length();
+            }
+            return chars;
+          }
+        });
+      }
+
+      final List<String> chinese = tokens(lines, KoreanTokenizer.TOKEN_TYPES[KoreanTokenizer.CHINESE]);
+      if (!chinese.isEmpty()) {
+        workloads.put("stage/hanja/" + corpus, new Workload() {
+          public long run() throws Exception {
+            long chars = 0;
+            for (String word : chinese) {
+              for (int i = 0; i < word.length(); i++) HanjaUtils.convertToHangul(word.charAt(i));
+              chars += word.length();
+            }
+            return chars;
+          }
+        });
+      }
+    }
+
+    final List<String> unspaced = readCorpus("unspaced");
+    workloads.put("stage/wordspace/unspaced", new Workload() {
+      final WordSpaceAnalyzer wsAnal = new WordSpaceAnalyzer();
+      public long run() throws Exception {
+        for (String line : unspaced) wsAnal.analyze(line);
+        return unspaced.size();
+      }
+    });
+    workloads.put("stage/wordspace-bounded/unspaced", new Workload() {
+      final WordSpaceAnalyzer wsAnal = new WordSpaceAnalyzer(16);
+      public long run() throws Exception {
+        for (String line : unspaced) wsAnal.analyze(line);
+        return unspaced.size();
+      }
+    });
+
+    return workloads;
+  }
+
+  private Workload chain(final List<String> lines, final boolean bigram, final boolean hasOrigin,
+      final boolean exactMatch, final boolean cnoun, final AnalysisCache cache) {
+    // one chain, reused for every line as an analyzer does
+    final KoreanTokenizer tokenizer = new KoreanTokenizer(Version.LUCENE_42, new StringReader(""));
+    final KoreanFilter filter = new KoreanFilter(tokenizer, bigram, hasOrigin, exactMatch, cnoun);
+    filter.setAnalysisCache(cache);
+    return new Workload() {
+      public long run() throws Exception {
+        long tokens = 0;
+        for (String line : lines) {
+          tokenizer.setReader(new StringReader(line));
+          tokens += consume(filter);
+        }
+        return tokens;
+      }
+    };
+  }
+
+  private static long consume(TokenStream ts) throws IOException {
+    long tokens = 0;
+    try {
+      ts.reset();
+      while (ts.incrementToken()) tokens++;
+      ts.end();
+    } finally {
+      ts.close();
+    }
+    return tokens;
+  }
+
+  /** tokens of the given tokenizer type, as the filter would see them */
+  private static List<String> tokens(List<String> lines, String type) throws IOException {
+    List<String> words = new ArrayList<String>();
+    for (String line : lines) {
+      TokenStream ts = new KoreanTokenizer(Version.LUCENE_42, new StringReader(line));
+      CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+      TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+      try {
+        ts.reset();
+        while (ts.incrementToken()) {
+          if (type.equals(typeAtt.type())) words.add(term.toString());
+        }
+        ts.end();
+      } finally {
+        ts.close();
+      }
+    }
+    return words;
+  }
+
+  static List<String> readCorpus(String name) throws IOException {
+    InputStream in = KoreanAnalysisBenchmark.class.getResourceAsStream(name + ".txt");
+    if (in == null) throw new IOException("corpus not found: " + name);
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() > 0) lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  void measure(String name, Workload workload) throws Exception {
+    for (int i = 0; i < warmups; i++) iteration(workload);
+
+    double[] rates = new double[iterations];
+    double bytesPerUnit = 0;
+    for (int i = 0; i < iterations; i++) {
+      long allocated = allocatedBytes();
+      double[] r = iteration(workload);
+      rates[i] = r[0];
+      if (allocated >= 0) bytesPerUnit += (allocatedBytes() - allocated) / r[1];
+    }
+
+    double mean = 0;
+    for (double r : rates) mean += r;
+    mean /= rates.length;
+    double var = 0;
+    for (double r : rates) var += (r - mean) * (r - mean);
+    double stddev = rates.length > 1 ? Math.sqrt(var / (rates.length - 1)) : 0;
+
+    String alloc = allocatedBytes() < 0 ? "n/a" : String.format(Locale.ROOT, "%.0f", bytesPerUnit / iterations);
+    System.out.println(String.format(Locale.ROOT, "%-70s %14.0f %10.0f %10s", name, mean, stddev, alloc));
+  }
+
+  /** @return units per second and the number of units */
+  private double[] iteration(Workload workload) throws Exception {
+    long units = 0;
+    long start = System.nanoTime();
+    long end = start + millis * 1000000L;
+    long now;
+    do {
+      units += workload.run();
+      now = System.nanoTime();
+    } while (now < end);
+    return new double[] { units * 1e9 / (now - start), Math.max(units, 1) };
+  }
+
+  /** bytes allocated by this thread so far, or -1 if the JVM can't tell */
+  private long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
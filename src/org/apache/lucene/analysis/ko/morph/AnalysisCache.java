@@ -0,0 +1,200 @@
+package org.apache.lucene.analysis.ko.morph;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.analysis.ko.utils.DictionaryUtil;
+
+/**
+ * Bounded cache from an eojeol (the surface form of a space delimited word)
+ * to the result of {@link MorphAnalyzer#analyze(String)}.
+ * <p>
+ * Korean text repeats the same eojeol constantly, and analyzing one means
+ * generating, sorting and decompounding all candidates. The cache is split
+ * into independently locked LRU segments so that many analysis threads can
+ * share one instance. Cached results are unmodifiable lists and must be
+ * treated as read-only, including the {@link AnalysisOutput}s in them.
+ * <p>
+ * The cache empties itself when {@link DictionaryUtil#reloadDictionary()}
+ * swaps the dictionaries, so results are never older than the dictionary.
+ */
+public class AnalysisCache {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final int maxSize;
+
+  private volatile long generation;
+
+  private long invalidations;
+
+  public AnalysisCache(int maxSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    this.maxSize = maxSize;
+    int perSegment = (maxSize + SEGMENTS - 1) / SEGMENTS;
+    for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(perSegment);
+    this.generation = DictionaryUtil.getGeneration();
+  }
+
+  /**
+   * Returns the cached analysis of <code>input</code>, analyzing it with
+   * <code>morph</code> on a miss.
+   */
+  public List<AnalysisOutput> analyze(String input, MorphAnalyzer morph) throws MorphException {
+    long gen = checkGeneration();
+
+    Segment segment = segmentFor(input);
+    List<AnalysisOutput> outputs = segment.get(input);
+    if (outputs != null) return outputs;
+
+    // analyze outside the lock; two threads may both miss on the same word
+    outputs = Collections.unmodifiableList(morph.analyze(input));
+    // don't keep a result of the old dictionary if it was swapped meanwhile
+    if (DictionaryUtil.getGeneration() == gen) segment.put(input, outputs);
+    return outputs;
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  private long checkGeneration() {
+    long current = DictionaryUtil.getGeneration();
+    if (current != generation) {
+      synchronized (this) {
+        if (current != generation) {
+          for (Segment s : segments) s.clear();
+          invalidations++;
+          generation = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  public void clear() {
+    for (Segment s : segments) s.clear();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment s : segments) size += s.size();
+    return size;
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (Segment s : segments) hits += s.hits();
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (Segment s : segments) misses += s.misses();
+    return misses;
+  }
+
+  public long getEvictions() {
+    long evictions = 0;
+    for (Segment s : segments) evictions += s.evictions();
+    return evictions;
+  }
+
+  /** number of times the cache was emptied because the dictionaries were reloaded */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /** hits / lookups, or 0 before the first lookup */
+  public double getHitRatio() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return "AnalysisCache{maxSize=" + maxSize + ",size=" + size() + ",hits=" + getHits()
+        + ",misses=" + getMisses() + ",hitratio=" + String.format(Locale.ROOT, "%.2f", getHitRatio())
+        + ",evictions=" + getEvictions() + ",invalidations=" + getInvalidations() + "}";
+  }
+
+  private static final class Segment {
+    private final Map<String, List<AnalysisOutput>> map;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    Segment(final int capacity) {
+      map = new LinkedHashMap<String, List<AnalysisOutput>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<AnalysisOutput>> eldest) {
+          if (size() > capacity) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    synchronized List<AnalysisOutput> get(String key) {
+      List<AnalysisOutput> value = map.get(key);
+      if (value == null) misses++;
+      else hits++;
+      return value;
+    }
+
+    synchronized void put(String key, List<AnalysisOutput> value) {
+      map.put(key, value);
+    }
+
+    synchronized void clear() {
+      map.clear();
+    }
+
+    synchronized int size() {
+      return map.size();
+    }
+
+    synchronized long hits() {
+      return hits;
+    }
+
+    synchronized long misses() {
+      return misses;
+    }
+
+    synchronized long evictions() {
+      return evictions;
+    }
+  }
+}
@@ -213,7 +213,8 @@ public class AnalysisOutput implements Cloneable {
   }
   
   public void setCNoun(List<CompoundEntry> cnoun) {
-    compound = cnoun;
+    // a copy: the list may be the read-only one of a dictionary entry, and outputs edit theirs
+    compound = new ArrayList<CompoundEntry>(cnoun);
   }
   
   public void addCNoun(List<CompoundEntry> cnoun) {
@@ -75,25 +75,33 @@ public class CompoundNounAnalyzer {
   }
     
   public boolean analyze(String input, List outputs, boolean isFirst) throws MorphException {
+    return analyze(input, 0, input.length(), null, outputs, isFirst);
+  }
+  
+  /**
+   * input[from,to) 를 분해한다.
+   * @param lengths {@link #nounLattice(String)} of the whole input, or null if not built yet
+   */
+  private boolean analyze(String input, int from, int to, long[] lengths, List outputs, boolean isFirst) throws MorphException {
     
-    int len = input.length();
+    int len = to-from;
     boolean success = false;
     
     switch(len) {
       case  3 :
-        success = analyze3Word(input,outputs,isFirst);
+        success = analyze3Word(input.substring(from,to),outputs,isFirst);
         break;
       case  4 :
-        success = analyze4Word(input,outputs,isFirst);
+        success = analyze4Word(input.substring(from,to),outputs,isFirst);
         break;  
       case  5 :
-        success = analyze5Word(input,outputs,isFirst);
+        success = analyze5Word(input.substring(from,to),outputs,isFirst);
         break;
 //      case  6 :
 //        analyze6Word(input,outputs,isFirst);
 //        break;  
       default :
-        success = analyzeLongText(input,outputs,isFirst);       
+        success = analyzeLongText(input,from,to,lengths,outputs,isFirst);       
     }
     
     return success;
@@ -239,46 +247,46 @@ public class CompoundNounAnalyzer {
 	  return false;
   }
   
-  private boolean analyzeLongText(String input,List outputs, boolean isFirst) throws MorphException {
+  private boolean analyzeLongText(String input, int from, int to, long[] lengths, List outputs, boolean isFirst) throws MorphException {
     
-    int len = input.length();
+    int len = to-from;
     
     // ignore less than 3 letters or more than 20 letters.
     if(len>20) return false; 
 
-    boolean hasSuffix = isFirst && DictionaryUtil.existSuffix(input.substring(len-1));        
-    int pos = caculatePos(input, hasSuffix);
+    if(lengths==null) lengths = nounLattice(input);
+    
+    boolean hasSuffix = isFirst && DictionaryUtil.existSuffix(input.substring(to-1,to));        
+    int pos = caculatePos(input, from, to, lengths, hasSuffix);
     if(pos<1) return false; // fail to search a valid word segment
     
-    if(pos==input.length()) {     
+    if(pos==len) {     
       if(hasSuffix) {
         outputs.add(
-            new CompoundEntry(input.substring(0,len-1), 0, true,PatternConstants.POS_NOUN));
+            new CompoundEntry(input.substring(from,to-1), 0, true,PatternConstants.POS_NOUN));
         outputs.add(
-            new CompoundEntry(input.substring(len-1), 0, true,PatternConstants.POS_NOUN));
+            new CompoundEntry(input.substring(to-1,to), 0, true,PatternConstants.POS_NOUN));
       } else {
         outputs.add(
-            new CompoundEntry(input, 0, true,PatternConstants.POS_NOUN));
+            new CompoundEntry(input.substring(from,to), 0, true,PatternConstants.POS_NOUN));
 
       } 
       
       return true;
     }
     
-    int score = 0;
     List results = new ArrayList();
         
-    String prev = input.substring(0,pos);
-    String rear = input.substring(pos);
+    String prev = input.substring(from,from+pos);
+    String rear = input.substring(from+pos,to);
     
     boolean pSucess = false;
     boolean rSuccess = false;
-    CompoundEntry pEntry = null;
-    CompoundEntry rEntry = null;
     
-    WordEntry prvEntry = DictionaryUtil.getAllNoun(prev);
+    // the lattice already knows whether prev and rear are nouns
+    WordEntry prvEntry = isNoun(lengths, from, from+pos) ? DictionaryUtil.getAllNoun(prev) : null;
     if(prvEntry==null) {
-      pSucess = analyze(prev, results, false);
+      pSucess = analyze(input, from, from+pos, lengths, results, false);
       if(!pSucess) results.add(new CompoundEntry(prev, 0, false,PatternConstants.POS_NOUN));
     } else {
       pSucess = true;
@@ -288,9 +296,9 @@ public class CompoundNounAnalyzer {
         results.add(new CompoundEntry(prev, 0, true,PatternConstants.POS_NOUN));
     }
     
-    WordEntry rearEntry = DictionaryUtil.getAllNoun(rear);
+    WordEntry rearEntry = isNoun(lengths, from+pos, to) ? DictionaryUtil.getAllNoun(rear) : null;
     if(rearEntry==null) {
-      rSuccess = analyze(rear, results, false);
+      rSuccess = analyze(input, from+pos, to, lengths, results, false);
       if(!rSuccess) results.add(new CompoundEntry(rear, 0, false,PatternConstants.POS_NOUN));
     } else {
       rSuccess = true;
@@ -309,24 +317,43 @@ public class CompoundNounAnalyzer {
     return true;
   }
   
+  /**
+   * Builds the word lattice of the input: bit k of <code>lengths[s]</code> is
+   * set if <code>input[s,s+k)</code> is a noun or a compound noun. One prefix
+   * search of the dictionary per start position replaces a lookup per
+   * substring, and the lattice is shared by all the recursive splits of the input.
+   */
+  private static long[] nounLattice(String input) throws MorphException {
+    long[] lengths = new long[input.length()];
+    for(int s=0;s<lengths.length;s++) {
+      lengths[s] = DictionaryUtil.allNounLengths(input, s, input.length());
+    }
+    return lengths;
+  }
+  
+  /** <code>DictionaryUtil.existAllNoun(input, start, end)</code>, from the lattice */
+  private static boolean isNoun(long[] lengths, int start, int end) {
+    int len = end-start;
+    return len<64 && (lengths[start] & (1L<<len))!=0;
+  }
+  
   /**
    * calculate the position at which the long input should be divided into two segments.
-   * @param input the input string
-   * @return  the position
+   * @param input the input string, of which input[from,to) is analyzed
+   * @param lengths the word lattice of the input
+   * @return  the position, relative to from
    * @throws MorphException throw 
    */
-  private int caculatePos(String input, boolean hasSuffix) throws MorphException {
+  private int caculatePos(String input, int from, int to, long[] lengths, boolean hasSuffix) throws MorphException {
   
     int pos = -1;
-    int len = input.length();
+    int len = to-from;
     
     int maxlen = 0;
     for(int i=len-2;i>=0;i--) {
       
-      String text = input.substring(i); 
-      String prvText = input.substring(0,i+1);
-      
-      int curmax = maxWord(text, hasSuffix, prvText);
+      // text = input[from+i,to), prvText = input[from,from+i+1)
+      int curmax = maxWord(input, from, to, i, lengths, hasSuffix);
       
       if(curmax>maxlen) {
         maxlen = curmax;
@@ -340,30 +367,34 @@ public class CompoundNounAnalyzer {
   
   /**
    * find the max length of a word contained in a input text
-   * @param text  input text
+   * @param input  input text, of which input[from,to) is analyzed
+   * @param start  where the text to search starts, relative to from; the text before it, including the character at start, is the previous text
+   * @param lengths the word lattice of the input
    * @param hasSuffix   whether the input text is including a suffix character at the end
    * @return  the max length
    * @throws MorphException  throw exception
    */
-  private int maxWord(String text, boolean hasSuffix, String prvText) throws MorphException {
+  private int maxWord(String input, int from, int to, int start, long[] lengths, boolean hasSuffix) throws MorphException {
     
     int maxlen = 0;
     boolean existPrv = false;
+    int prvEnd = from+start+1;
+    int prvLen = start+1;
+    int textLen = to-from-start;
     
     // if previous text exist in the dictionary.
-    if(prvText.length()>=2) 
-      existPrv = (DictionaryUtil.getNoun(prvText.substring(prvText.length()-2))!=null);
-    if(!existPrv&&prvText.length()>=3)
-      existPrv = (DictionaryUtil.getNoun(prvText.substring(prvText.length()-3))!=null);
+    if(prvLen>=2) 
+      existPrv = DictionaryUtil.existNoun(input, prvEnd-2, prvEnd);
+    if(!existPrv&&prvLen>=3)
+      existPrv = DictionaryUtil.existNoun(input, prvEnd-3, prvEnd);
     
-    for(int i=text.length();i>1;i--) {
+    long words = lengths[from+start];
+    for(int i=textLen;i>1;i--) {
       
-      String seg = text.substring(0,i);
-      WordEntry entry = DictionaryUtil.getAllNoun(seg);
-      if(entry==null) continue;
+      if((words & (1L<<i))==0) continue;
       
       int len = 0;
-      if(i==text.length()-1 && hasSuffix && !existPrv)
+      if(i==textLen-1 && hasSuffix && !existPrv)
         len = i+1;
       else
         len = i;
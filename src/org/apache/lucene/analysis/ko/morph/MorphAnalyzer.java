@@ -50,6 +50,16 @@ public class MorphAnalyzer {
   
   private CompoundNounAnalyzer cnAnalyzer = new CompoundNounAnalyzer();  
   
+  private static final AnalysisOutputComparator<AnalysisOutput> COMPARATOR = new AnalysisOutputComparator<AnalysisOutput>();
+  
+  /** 
+   * scratch collections reused by {@link #analyze(String, int)}; an instance
+   * is used by one thread at a time, like the token stream that owns it.
+   */
+  private final List<AnalysisOutput> candidates = new ArrayList<AnalysisOutput>();
+  
+  private final HashMap<String, AnalysisOutput> stems = new HashMap<String, AnalysisOutput>();
+  
   public MorphAnalyzer() {
     cnAnalyzer.setExactMach(false);
   }
@@ -75,14 +85,25 @@ public class MorphAnalyzer {
    */
   public List<AnalysisOutput> analyze(String input, int pos) throws MorphException {    
 
-    List<AnalysisOutput> candidates = new ArrayList<AnalysisOutput>();        
+    List<AnalysisOutput> candidates = this.candidates;
+    candidates.clear();
+    try {
+      return analyze(input, pos, candidates);
+    } finally {
+      candidates.clear();
+      stems.clear();
+    }
+  }
+  
+  private List<AnalysisOutput> analyze(String input, int pos, List<AnalysisOutput> candidates) throws MorphException {    
+
     boolean isVerbOnly = MorphUtil.hasVerbOnly(input);
 
     analysisByRule(input, candidates);    
  
     if(!isVerbOnly||candidates.size()==0) addSingleWord(input,candidates);
   
-    Collections.sort(candidates,new AnalysisOutputComparator<AnalysisOutput>());
+    Collections.sort(candidates,COMPARATOR);
     
     // 복합명사 분해여부 결정하여 분해
     boolean changed = false;
@@ -103,7 +124,7 @@ public class MorphAnalyzer {
       filterInCorrect(candidates);
     
     if(changed) {
-      Collections.sort(candidates,new AnalysisOutputComparator<AnalysisOutput>());  
+      Collections.sort(candidates,COMPARATOR);  
     }
 
     List<AnalysisOutput> results = new ArrayList<AnalysisOutput>();  
@@ -112,7 +133,8 @@ public class MorphAnalyzer {
     boolean hasCorrectNoun = false;
     boolean correctCnoun = false;
     
-    HashMap<String, AnalysisOutput> stems = new HashMap<String, AnalysisOutput>();
+    HashMap<String, AnalysisOutput> stems = this.stems;
+    stems.clear();
     AnalysisOutput noun = null;
     
     double ratio = 0;
@@ -198,16 +220,14 @@ public class MorphAnalyzer {
    * @param candidates  analysis candidates
    */
   private void filterInCorrect(List<AnalysisOutput> candidates) {
-    List<AnalysisOutput> removeds = new ArrayList();
-    
-    for(AnalysisOutput o : candidates) {
-      if(o.getScore()!=AnalysisOutput.SCORE_CORRECT)
-        removeds.add(o);
+    int upto = 0;
+    for(int i=0;i<candidates.size();i++) {
+      AnalysisOutput o = candidates.get(i);
+      if(o.getScore()==AnalysisOutput.SCORE_CORRECT)
+        candidates.set(upto++, o);
     }
     
-    for(AnalysisOutput o : removeds) {
-      candidates.remove(o);
-    }
+    candidates.subList(upto, candidates.size()).clear();
     
   }
   
@@ -227,8 +247,8 @@ public class MorphAnalyzer {
       String stem = input.substring(0,i);
       String eomi = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(eomi.charAt(0));    
-      if(!isVerbOnly&&josaFlag&&feature[SyllableUtil.IDX_JOSA1]=='1') {        
+      long feature = SyllableUtil.getFeatureBits(eomi.charAt(0));    
+      if(!isVerbOnly&&josaFlag&&SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA1)) {        
         analysisWithJosa(stem,eomi,candidates);
       }
       
@@ -236,8 +256,8 @@ public class MorphAnalyzer {
         analysisWithEomi(stem,eomi,candidates);
       }      
       
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;
-      if(eomiFlag&&feature[SyllableUtil.IDX_EOMI2]=='0') eomiFlag = false;
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;
+      if(eomiFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_EOMI2)) eomiFlag = false;
       
       if(!josaFlag&&!eomiFlag) break;
     }
@@ -366,8 +386,8 @@ public class MorphAnalyzer {
         output.setScore(AnalysisOutput.SCORE_CORRECT);
         MorphUtil.buildPtnVM(output, candidates);
         
-        char[] features = SyllableUtil.getFeature(stem.charAt(stem.length()-1)); // ㄹ불규칙일 경우
-        if((features[SyllableUtil.IDX_YNPLN]=='0'||morphs[1].charAt(0)!='ㄴ')
+        long features = SyllableUtil.getFeatureBits(stem.charAt(stem.length()-1)); // ㄹ불규칙일 경우
+        if((!SyllableUtil.hasFeature(features, SyllableUtil.IDX_YNPLN)||morphs[1].charAt(0)!='ㄴ')
             &&!"는".equals(end))   // "갈(V),는" 분석될 수 있도록
           return;
       }
@@ -208,8 +208,8 @@ public class WordSpaceAnalyze {
       String stem = input.substring(0,i);
       String eomi = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(eomi.charAt(0));    
-      if(!validJosa&&!isVerbOnly&&josaFlag&&feature[SyllableUtil.IDX_JOSA1]=='1') {        
+      long feature = SyllableUtil.getFeatureBits(eomi.charAt(0));    
+      if(!validJosa&&!isVerbOnly&&josaFlag&&SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA1)) {        
     	  validJosa = validWithJosa(stem,eomi);
       }
       
@@ -217,8 +217,8 @@ public class WordSpaceAnalyze {
     	  validEomi = validWithEomi(stem,eomi);
       }      
       
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;
-      if(eomiFlag&&feature[SyllableUtil.IDX_EOMI2]=='0') eomiFlag = false;
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;
+      if(eomiFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_EOMI2)) eomiFlag = false;
       
       if(!josaFlag&&!eomiFlag) break;
     }
@@ -250,8 +250,8 @@ public class WordSpaceAnalyze {
       String stem = input.substring(0,i);
       String eomi = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(eomi.charAt(0));    
-      if(!isVerbOnly&&josaFlag&&feature[SyllableUtil.IDX_JOSA1]=='1') {        
+      long feature = SyllableUtil.getFeatureBits(eomi.charAt(0));    
+      if(!isVerbOnly&&josaFlag&&SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA1)) {        
     	  morphAnalyzer.analysisWithJosa(stem,eomi,candidates);
       }
       
@@ -259,8 +259,8 @@ public class WordSpaceAnalyze {
     	  morphAnalyzer.analysisWithEomi(stem,eomi,candidates);
       }      
       
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;
-      if(eomiFlag&&feature[SyllableUtil.IDX_EOMI2]=='0') eomiFlag = false;
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;
+      if(eomiFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_EOMI2)) eomiFlag = false;
       
       if(!josaFlag&&!eomiFlag) break;
     }
@@ -580,13 +580,13 @@ public class WordSpaceAnalyze {
       
       String josa = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(josa.charAt(0));  
+      long feature = SyllableUtil.getFeatureBits(josa.charAt(0));  
       
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA1]=='1') {
+      if(josaFlag&&SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA1)) {
     	  morphAnalyzer.analysisWithJosa(stem,josa,candidates);       
       }
         
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;
       
       if(!josaFlag) break;
       
@@ -624,8 +624,8 @@ public class WordSpaceAnalyze {
     
     // 조사의 2음절로 사용될 수 마지막 음절을 찾는다.
     for(int i=jstart+1;i<snippet.length();i++) {
-      char[] f = SyllableUtil.getFeature(snippet.charAt(i));
-      if(f[SyllableUtil.IDX_JOSA2]=='0') break;
+      long f = SyllableUtil.getFeatureBits(snippet.charAt(i));
+      if(!SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA2)) break;
       jend = i;       
     }
         
@@ -660,8 +660,8 @@ public class WordSpaceAnalyze {
     if(str.length()<es) return false;
         
     for(int i=es;i<str.length();i++) {
-      char[] f = SyllableUtil.getFeature(str.charAt(i));  
-      if(i==str.length() || (f[SyllableUtil.IDX_JOSA1]=='1')) {       
+      long f = SyllableUtil.getFeatureBits(str.charAt(i));  
+      if(i==str.length() || (SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1))) {       
         return (DictionaryUtil.getWord(str.substring(ws,i))!=null);
       }
     }
@@ -775,8 +775,8 @@ public class WordSpaceAnalyze {
     // 조사의 2음절로 사용될 수 마지막 음절을 찾는다.
     int start = 0;
     for(int i=1;i<tail.length();i++) {
-      char[] f = SyllableUtil.getFeature(tail.charAt(i)); 
-      if(f[SyllableUtil.IDX_EOGAN]=='0') break;
+      long f = SyllableUtil.getFeatureBits(tail.charAt(i)); 
+      if(!SyllableUtil.hasFeature(f, SyllableUtil.IDX_EOGAN)) break;
       start = i;        
     }
           
@@ -802,10 +802,10 @@ public class WordSpaceAnalyze {
     int strlen = input.length();
     
     char ch = input.charAt(strlen-1);
-    char[] feature =  SyllableUtil.getFeature(ch);
+    long feature = SyllableUtil.getFeatureBits(ch);
     
-    if(feature[SyllableUtil.IDX_YNPNA]=='1'||feature[SyllableUtil.IDX_YNPLA]=='1'||
-        feature[SyllableUtil.IDX_YNPMA]=='1')
+    if(SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPNA)||SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPLA)||
+        SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPMA))
     	morphAnalyzer.analysisWithEomi(input,"",candidates);
     
     for(int i=strlen-1;i>0;i--) {
@@ -813,13 +813,13 @@ public class WordSpaceAnalyze {
       String stem = input.substring(0,i);
       String eomi = input.substring(i);
 
-      feature =  SyllableUtil.getFeature(eomi.charAt(0));   
+      feature = SyllableUtil.getFeatureBits(eomi.charAt(0));   
       
       if(eomiFlag) {      
     	  morphAnalyzer.analysisWithEomi(stem,eomi,candidates);
       }     
       
-      if(eomiFlag&&feature[SyllableUtil.IDX_EOMI2]=='0') eomiFlag = false;
+      if(eomiFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_EOMI2)) eomiFlag = false;
       
       if(!eomiFlag) break;
     }
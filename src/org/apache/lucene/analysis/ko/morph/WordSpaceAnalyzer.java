@@ -38,15 +38,46 @@ import org.apache.lucene.analysis.ko.morph.WSOuputComparator;
 import org.apache.lucene.analysis.ko.morph.WSOutput;
 import org.apache.lucene.analysis.ko.morph.WordEntry;
 
+/**
+ * 띄어쓰기가 되지 않은 문자열을 어절로 나누어 분석한다.
+ * <p>
+ * The input is scanned left to right. With a bounded look-ahead (see
+ * {@link #WordSpaceAnalyzer(int)}), the josa and eomi analyses at a syllable
+ * only see the current eojeol plus <code>maxLookAhead</code> following
+ * syllables, and an eojeol that grows past <code>maxLookAhead</code>
+ * syllables without a valid boundary is committed as it is. The work per
+ * syllable is then bounded by the window instead of the remaining input,
+ * so long unspaced runs are analyzed in linear time. Phrases before the
+ * current eojeol are never revisited once it has moved on.
+ */
 public class WordSpaceAnalyzer {
 
+  /** look-ahead of {@link #WordSpaceAnalyzer()}: the rest of the input */
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+  
   private MorphAnalyzer morphAnal;
   
+  private final int maxLookAhead;
+  
   public WordSpaceAnalyzer() {
+    this(UNBOUNDED);
+  }
+  
+  /**
+   * @param maxLookAhead  the number of syllables past the current one, and the
+   *   length of an eojeol, up to which a word boundary is searched for
+   */
+  public WordSpaceAnalyzer(int maxLookAhead) {
+    if(maxLookAhead<1) throw new IllegalArgumentException("maxLookAhead must be positive: "+maxLookAhead);
+    this.maxLookAhead = maxLookAhead;
     morphAnal = new MorphAnalyzer();
     morphAnal.setExactCompound(false);
   }
   
+  public int getMaxLookAhead() {
+    return maxLookAhead;
+  }
+  
   public List<AnalysisOutput> analyze(String input)  throws MorphException {
 
     List stack = new ArrayList();
@@ -61,7 +92,13 @@ public class WordSpaceAnalyzer {
     
     for(int i=0;i<input.length();i++) {           
       
-      char[] f = SyllableUtil.getFeature(input.charAt(i));
+      // 창 안에서 어절 경계를 찾지 못했다면 지금까지를 하나의 어절로 확정한다.
+      if(i-wStart>=maxLookAhead) {
+        output.addPhrase(unanalyzed(input.substring(wStart,i)));
+        wStart = i;
+      }
+      
+      long f = SyllableUtil.getFeatureBits(input.charAt(i));
       
       String prefix = i==input.length()-1 ? "X" : input.substring(wStart,i+2);          
       Iterator iter = DictionaryUtil.findWithPrefix(prefix);
@@ -84,12 +121,13 @@ public class WordSpaceAnalyzer {
         candidates.add(buildSingleOutput(entry));
         
       // 현 음절이 조사나 어미가 시작되는 음절일 가능성이 있다면... 
-      } else if(f[SyllableUtil.IDX_EOGAN]=='1'||f[SyllableUtil.IDX_JOSA1]=='1'){        
-        if(f[SyllableUtil.IDX_JOSA1]=='1') 
-          candidates.addAll(anlysisWithJosa(input.substring(wStart), i-wStart));
+      } else if(SyllableUtil.hasFeature(f, SyllableUtil.IDX_EOGAN)||SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1)){        
+        String snippet = input.substring(wStart,windowEnd(input,i));
+        if(SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1)) 
+          candidates.addAll(anlysisWithJosa(snippet, i-wStart));
 
-        if(f[SyllableUtil.IDX_EOGAN]=='1') 
-          candidates.addAll(anlysisWithEomi(input.substring(wStart), i-wStart));
+        if(SyllableUtil.hasFeature(f, SyllableUtil.IDX_EOGAN)) 
+          candidates.addAll(anlysisWithEomi(snippet, i-wStart));
       }
   
       // 후보가 될 가능성이 높은 순으로 정렬한다.
@@ -121,21 +159,34 @@ public class WordSpaceAnalyzer {
     
     // 분석에 실패하였다면 원래 문자열을 되돌려 준다.
     if(output.getLastEnd()<input.length()) {
-      
-      String source = input.substring(output.getLastEnd());
-      int score = DictionaryUtil.getWord(source)==null ? AnalysisOutput.SCORE_ANALYSIS : AnalysisOutput.SCORE_CORRECT;
-      AnalysisOutput o =new AnalysisOutput(source,null,null,PatternConstants.POS_NOUN,
-          PatternConstants.PTN_N,score);
-      
-      o.setSource(source);
-      output.getPhrases().add(o);
-      morphAnal.confirmCNoun(o, false);
-      
+      output.getPhrases().add(unanalyzed(input.substring(output.getLastEnd())));
     }
         
     return output.getPhrases();
   }
   
+  /**
+   * 어절 경계를 찾지 못한 문자열을 명사로 본다.
+   */
+  private AnalysisOutput unanalyzed(String source) throws MorphException {
+    
+    int score = DictionaryUtil.getWord(source)==null ? AnalysisOutput.SCORE_ANALYSIS : AnalysisOutput.SCORE_CORRECT;
+    AnalysisOutput o =new AnalysisOutput(source,null,null,PatternConstants.POS_NOUN,
+        PatternConstants.PTN_N,score);
+    
+    o.setSource(source);
+    morphAnal.confirmCNoun(o, false);
+    
+    return o;
+  }
+  
+  /**
+   * @return the end of the text the analyses at position i may look at
+   */
+  private int windowEnd(String input, int i) {
+    return input.length()-i-1<=maxLookAhead ? input.length() : i+1+maxLookAhead;
+  }
+  
   /**
    * calculate the score which is the worst score of the derived word scores
    * @param list  input
@@ -177,13 +228,13 @@ public class WordSpaceAnalyzer {
       
       String josa = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(josa.charAt(0));  
+      long feature = SyllableUtil.getFeatureBits(josa.charAt(0));  
       
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA1]=='1') {
+      if(josaFlag&&SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA1)) {
         morphAnal.analysisWithJosa(stem,josa,candidates);       
       }
         
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;
       
       if(!josaFlag) break;
       
@@ -223,8 +274,8 @@ public class WordSpaceAnalyzer {
     
     // 조사의 2음절로 사용될 수 마지막 음절을 찾는다.
     for(int i=jstart+1;i<snippet.length();i++) {
-      char[] f = SyllableUtil.getFeature(snippet.charAt(i));
-      if(f[SyllableUtil.IDX_JOSA2]=='0') break;
+      long f = SyllableUtil.getFeatureBits(snippet.charAt(i));
+      if(!SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA2)) break;
       jend = i;       
     }
         
@@ -385,10 +436,10 @@ public class WordSpaceAnalyzer {
     int strlen = input.length();
     
     char ch = input.charAt(strlen-1);
-    char[] feature =  SyllableUtil.getFeature(ch);
+    long feature = SyllableUtil.getFeatureBits(ch);
     
-    if(feature[SyllableUtil.IDX_YNPNA]=='1'||feature[SyllableUtil.IDX_YNPLA]=='1'||
-        feature[SyllableUtil.IDX_YNPMA]=='1')
+    if(SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPNA)||SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPLA)||
+        SyllableUtil.hasFeature(feature, SyllableUtil.IDX_YNPMA))
       morphAnal.analysisWithEomi(input,"",candidates);
     
     for(int i=strlen-1;i>0;i--) {
@@ -396,13 +447,13 @@ public class WordSpaceAnalyzer {
       String stem = input.substring(0,i);
       String eomi = input.substring(i);
 
-      feature =  SyllableUtil.getFeature(eomi.charAt(0));   
+      feature = SyllableUtil.getFeatureBits(eomi.charAt(0));   
       
       if(eomiFlag) {      
         morphAnal.analysisWithEomi(stem,eomi,candidates);
       }     
       
-      if(eomiFlag&&feature[SyllableUtil.IDX_EOMI2]=='0') eomiFlag = false;
+      if(eomiFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_EOMI2)) eomiFlag = false;
       
       if(!eomiFlag) break;
     }
@@ -435,8 +486,8 @@ public class WordSpaceAnalyzer {
     // 조사의 2음절로 사용될 수 마지막 음절을 찾는다.
     int start = 0;
     for(int i=1;i<tail.length();i++) {
-      char[] f = SyllableUtil.getFeature(tail.charAt(i)); 
-      if(f[SyllableUtil.IDX_EOGAN]=='0') break;
+      long f = SyllableUtil.getFeatureBits(tail.charAt(i)); 
+      if(!SyllableUtil.hasFeature(f, SyllableUtil.IDX_EOGAN)) break;
       start = i;        
     }
           
@@ -484,7 +535,7 @@ public class WordSpaceAnalyzer {
     
     int nEnd = output.getLastEnd()+o.getSource().length();
     
-    char[] f = nEnd<input.length() ? SyllableUtil.getFeature(input.charAt(nEnd)) : null;      
+    long f = nEnd<input.length() ? SyllableUtil.getFeatureBits(input.charAt(nEnd)) : 0;      
     
     // 밥먹고 같은 경우가 가능하나.. 먹고는 명사가 아니다.
     if(po!=null&&po.getPatn()==PatternConstants.PTN_N&&candidates.size()>0&&  
@@ -500,7 +551,7 @@ public class WordSpaceAnalyzer {
     if(o.getPos()==PatternConstants.POS_NOUN && MorphUtil.hasVerbOnly(o.getStem())) {   
       output.removeLast();    
       return -1;
-    }else if(nEnd<input.length() && f[SyllableUtil.IDX_JOSA1]=='1' 
+    }else if(nEnd<input.length() && SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1) 
       && DictionaryUtil.getNoun(o.getSource())!=null) {
       return -1;
     }else if(nEnd<input.length() && o.getScore()==AnalysisOutput.SCORE_ANALYSIS 
@@ -576,8 +627,8 @@ public class WordSpaceAnalyzer {
     if(str.length()<es) return false;
         
     for(int i=es;i<str.length();i++) {
-      char[] f = SyllableUtil.getFeature(str.charAt(i));  
-      if(i==str.length() || (f[SyllableUtil.IDX_JOSA1]=='1')) {       
+      long f = SyllableUtil.getFeatureBits(str.charAt(i));  
+      if(i==str.length() || (SyllableUtil.hasFeature(f, SyllableUtil.IDX_JOSA1))) {       
         return (DictionaryUtil.getWord(str.substring(ws,i))!=null);
       }
     }
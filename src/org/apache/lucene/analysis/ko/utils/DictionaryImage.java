@@ -0,0 +1,459 @@
+package org.apache.lucene.analysis.ko.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.analysis.ko.morph.MorphException;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+
+/**
+ * Precompiled, memory-mapped form of the text dictionaries.
+ * <p>
+ * Parsing <code>total.dic</code>, <code>extension.dic</code>,
+ * <code>compounds.dic</code>, <code>syllable.dic</code> and
+ * <code>mapHanja.dic</code> line by line dominates analyzer startup. The
+ * {@link #main offline compiler} runs the very same parsing code once and
+ * writes the result as an image:
+ * <pre>
+ *   int   MAGIC, VERSION, section count
+ *   per section: int id, long offset, long length, long crc32
+ *   sections ...
+ * </pre>
+ * The <code>SOURCES</code> section lists every text dictionary with its
+ * configured path and crc32. At runtime the image named by
+ * {@link KoreanEnv#FILE_IMAGE} is mapped read-only and each section is
+ * checksummed and decoded the first time it is asked for. The image is not
+ * used (and callers fall back to the text files) when it is missing, has
+ * another version, or when a source it was built from has been changed or
+ * reconfigured since, so editing <code>extension.dic</code> never silently
+ * keeps serving stale data.
+ * <p>
+ * The image is opened once per class loader and shared by all analyzers.
+ */
+public final class DictionaryImage {
+
+  public static final int MAGIC = 0x4B444943; // "KDIC"
+
+  public static final int VERSION = 1;
+
+  static final int SECTION_SOURCES = 0;
+  static final int SECTION_WORDS = 1;
+  static final int SECTION_ABBREVIATIONS = 2;
+  static final int SECTION_SYLLABLES = 3;
+  static final int SECTION_HANJA = 4;
+
+  private static final int SECTION_COUNT = 5;
+
+  /** the text dictionaries an image is compiled from */
+  private static final String[] SOURCES = {
+    KoreanEnv.FILE_DICTIONARY, KoreanEnv.FILE_EXTENSION, KoreanEnv.FILE_COMPOUNDS,
+    KoreanEnv.FILE_ABBREV, KoreanEnv.FILE_SYLLABLE_FEATURE, KoreanEnv.FILE_HANJA
+  };
+
+  private static DictionaryImage instance;
+
+  private static boolean opened = false;
+
+  private final ByteBuffer buffer;
+
+  private final long[] offsets = new long[SECTION_COUNT];
+  private final long[] lengths = new long[SECTION_COUNT];
+  private final long[] checksums = new long[SECTION_COUNT];
+
+  private WordDictionary words;
+  private HashMap<String, String> abbreviations;
+  private List<char[]> syllables;
+  private Map<String, char[]> hanja;
+
+  private DictionaryImage(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+
+    DataInput in = input(0, buffer.limit());
+    if (in.readInt() != MAGIC) throw new IOException("not a dictionary image");
+    int version = in.readInt();
+    if (version != VERSION) throw new IOException("dictionary image version " + version + ", expected " + VERSION);
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int id = in.readInt();
+      long offset = in.readLong();
+      long length = in.readLong();
+      long crc = in.readLong();
+      if (id < 0 || id >= SECTION_COUNT) continue;
+      if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+        throw new IOException("dictionary image is truncated");
+      }
+      offsets[id] = offset;
+      lengths[id] = length;
+      checksums[id] = crc;
+    }
+  }
+
+  /**
+   * Returns the shared image, or null if no usable image is configured.
+   */
+  public synchronized static DictionaryImage getInstance() throws MorphException {
+    if (!opened) {
+      instance = open(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_IMAGE));
+      opened = true;
+    }
+    return instance;
+  }
+
+  /**
+   * Forgets the shared image, so the next {@link #getInstance()} opens and
+   * checks it again. Values already handed out stay valid.
+   */
+  synchronized static void reset() {
+    instance = null;
+    opened = false;
+  }
+
+  /**
+   * Maps the image at <code>path</code>, a file name or a class path
+   * resource, and checks it against the configured text dictionaries.
+   *
+   * @return the image, or null if there is none or it is stale
+   */
+  static DictionaryImage open(String path) throws MorphException {
+    if (path == null || path.trim().length() == 0) return null;
+    path = path.trim();
+
+    try {
+      ByteBuffer buffer = null;
+      File file = new File(path);
+      if (!file.isFile()) {
+        try {
+          file = FileUtil.getClassLoaderFile(path);
+        } catch (MorphException e) {
+          return null; // not on the class path either
+        }
+      }
+      if (file != null) {
+        buffer = map(file);
+      } else {
+        // inside a jar: nothing to map, read it once
+        InputStream in = FileUtil.class.getClassLoader().getResourceAsStream(path);
+        if (in == null) return null;
+        try {
+          buffer = ByteBuffer.wrap(toByteArray(in));
+        } finally {
+          FileUtil.closeQuietly(in);
+        }
+      }
+
+      DictionaryImage image = new DictionaryImage(buffer);
+      return image.isCurrent() ? image : null;
+    } catch (IOException e) {
+      throw new MorphException("Failure while opening dictionary image " + path, e);
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * True if every source the image was compiled from is still configured at
+   * the same path and, where it is a plain file, still has the same crc32.
+   * Sources packed in a jar can't change without the image, so only their
+   * path is compared.
+   */
+  private boolean isCurrent() throws IOException, MorphException {
+    DataInput in = section(SECTION_SOURCES);
+    int count = in.readVInt();
+    for (int i = 0; i < count; i++) {
+      String name = in.readString();
+      String path = in.readString();
+      long crc = in.readLong();
+
+      if (!path.equals(KoreanEnv.getInstance().getValue(name))) return false;
+
+      File file;
+      try {
+        file = FileUtil.getClassLoaderFile(path);
+      } catch (MorphException e) {
+        return false;
+      }
+      if (file != null && crc != checksum(file)) return false;
+    }
+    return count == SOURCES.length;
+  }
+
+  public synchronized WordDictionary getWords() throws MorphException {
+    if (words == null) {
+      try {
+        words = WordDictionary.load(section(SECTION_WORDS));
+      } catch (IOException e) {
+        throw new MorphException(e.getMessage(), e);
+      }
+    }
+    return words;
+  }
+
+  public synchronized HashMap<String, String> getAbbreviations() throws MorphException {
+    if (abbreviations == null) {
+      try {
+        DataInput in = section(SECTION_ABBREVIATIONS);
+        int count = in.readVInt();
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+          map.put(in.readString(), in.readString());
+        }
+        abbreviations = map;
+      } catch (IOException e) {
+        throw new MorphException(e.getMessage(), e);
+      }
+    }
+    return abbreviations;
+  }
+
+  public synchronized List<char[]> getSyllables() throws MorphException {
+    if (syllables == null) {
+      try {
+        DataInput in = section(SECTION_SYLLABLES);
+        int count = in.readVInt();
+        List<char[]> list = new ArrayList<char[]>(count);
+        for (int i = 0; i < count; i++) {
+          list.add(in.readString().toCharArray());
+        }
+        syllables = list;
+      } catch (IOException e) {
+        throw new MorphException(e.getMessage(), e);
+      }
+    }
+    return syllables;
+  }
+
+  public synchronized Map<String, char[]> getHanja() throws MorphException {
+    if (hanja == null) {
+      try {
+        DataInput in = section(SECTION_HANJA);
+        int count = in.readVInt();
+        Map<String, char[]> map = new HashMap<String, char[]>();
+        for (int i = 0; i < count; i++) {
+          map.put(in.readString(), in.readString().toCharArray());
+        }
+        hanja = map;
+      } catch (IOException e) {
+        throw new MorphException(e.getMessage(), e);
+      }
+    }
+    return hanja;
+  }
+
+  /**
+   * Input positioned at the start of a section, after its checksum has been
+   * verified.
+   */
+  private DataInput section(int id) throws IOException {
+    if (lengths[id] == 0) throw new IOException("dictionary image has no section " + id);
+    int offset = (int) offsets[id];
+    int length = (int) lengths[id];
+
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(offset + length).position(offset);
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[8192];
+    while (bytes.hasRemaining()) {
+      int n = Math.min(chunk.length, bytes.remaining());
+      bytes.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+    }
+    if (crc.getValue() != checksums[id]) {
+      throw new IOException("dictionary image section " + id + " is corrupt");
+    }
+    return input(offset, length);
+  }
+
+  private DataInput input(int offset, int length) {
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(offset + length).position(offset);
+    return new ByteBufferDataInput(bytes.slice());
+  }
+
+  private static final class ByteBufferDataInput extends DataInput {
+    private final ByteBuffer bytes;
+
+    ByteBufferDataInput(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      if (!bytes.hasRemaining()) throw new IOException("read past end of dictionary image section");
+      return bytes.get();
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException {
+      if (bytes.remaining() < len) throw new IOException("read past end of dictionary image section");
+      bytes.get(b, offset, len);
+    }
+  }
+
+  /**
+   * Compiles the configured text dictionaries into an image at
+   * <code>target</code>.
+   */
+  public static void compile(File target) throws IOException, MorphException {
+    KoreanEnv env = KoreanEnv.getInstance();
+
+    byte[][] sections = new byte[SECTION_COUNT][];
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutput out = new OutputStreamDataOutput(bytes);
+    out.writeVInt(SOURCES.length);
+    for (String name : SOURCES) {
+      String path = env.getValue(name);
+      out.writeString(name);
+      out.writeString(path);
+      File file = FileUtil.getClassLoaderFile(path);
+      out.writeLong(file == null ? 0 : checksum(file));
+    }
+    sections[SECTION_SOURCES] = bytes.toByteArray();
+
+    List<String> strList = FileUtil.readLines(env.getValue(KoreanEnv.FILE_DICTIONARY), "UTF-8");
+    strList.addAll(FileUtil.readLines(env.getValue(KoreanEnv.FILE_EXTENSION), "UTF-8"));
+    List<String> compounds = FileUtil.readLines(env.getValue(KoreanEnv.FILE_COMPOUNDS), "UTF-8");
+    bytes = new ByteArrayOutputStream();
+    DictionaryUtil.buildDictionary(strList, compounds).save(new OutputStreamDataOutput(bytes));
+    sections[SECTION_WORDS] = bytes.toByteArray();
+
+    Map<String, String> abbrevs = DictionaryUtil.buildAbbreviations(
+        FileUtil.readLines(env.getValue(KoreanEnv.FILE_ABBREV), "UTF-8"));
+    bytes = new ByteArrayOutputStream();
+    out = new OutputStreamDataOutput(bytes);
+    out.writeVInt(abbrevs.size());
+    for (Map.Entry<String, String> e : abbrevs.entrySet()) {
+      out.writeString(e.getKey());
+      out.writeString(e.getValue());
+    }
+    sections[SECTION_ABBREVIATIONS] = bytes.toByteArray();
+
+    List<char[]> syls = SyllableUtil.buildSyllableFeature(
+        FileUtil.readLines(env.getValue(KoreanEnv.FILE_SYLLABLE_FEATURE), "UTF-8"));
+    bytes = new ByteArrayOutputStream();
+    out = new OutputStreamDataOutput(bytes);
+    out.writeVInt(syls.size());
+    for (char[] f : syls) out.writeString(new String(f));
+    sections[SECTION_SYLLABLES] = bytes.toByteArray();
+
+    Map<String, char[]> hanjas = HanjaUtils.buildHanjaMap(
+        FileUtil.readLines(env.getValue(KoreanEnv.FILE_HANJA), "UTF-8"));
+    bytes = new ByteArrayOutputStream();
+    out = new OutputStreamDataOutput(bytes);
+    out.writeVInt(hanjas.size());
+    for (Map.Entry<String, char[]> e : hanjas.entrySet()) {
+      out.writeString(e.getKey());
+      out.writeString(new String(e.getValue()));
+    }
+    sections[SECTION_HANJA] = bytes.toByteArray();
+
+    File tmp = new File(target.getPath() + ".tmp");
+    OutputStream os = new FileOutputStream(tmp);
+    try {
+      out = new OutputStreamDataOutput(os);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(SECTION_COUNT);
+      long offset = 12 + SECTION_COUNT * 28L;
+      for (int id = 0; id < SECTION_COUNT; id++) {
+        CRC32 crc = new CRC32();
+        crc.update(sections[id]);
+        out.writeInt(id);
+        out.writeLong(offset);
+        out.writeLong(sections[id].length);
+        out.writeLong(crc.getValue());
+        offset += sections[id].length;
+      }
+      for (byte[] section : sections) os.write(section);
+    } finally {
+      os.close();
+    }
+    if (target.exists() && !target.delete()) throw new IOException("Unable to replace " + target);
+    if (!tmp.renameTo(target)) throw new IOException("Unable to rename " + tmp + " to " + target);
+  }
+
+  private static long checksum(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) != -1) crc.update(buf, 0, n);
+    } finally {
+      FileUtil.closeQuietly(in);
+    }
+    return crc.getValue();
+  }
+
+  private static byte[] toByteArray(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+    return out.toByteArray();
+  }
+
+  /**
+   * Offline compiler. Usage:
+   * <code>java org.apache.lucene.analysis.ko.utils.DictionaryImage [target]</code>
+   * where <code>target</code> defaults to the configured
+   * {@link KoreanEnv#FILE_IMAGE} location next to the text dictionaries.
+   */
+  public static void main(String[] args) throws Exception {
+    File target;
+    if (args.length > 0) {
+      target = new File(args[0]);
+    } else {
+      // same directory as the word dictionary
+      File dic = FileUtil.getClassLoaderFile(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_DICTIONARY));
+      if (dic == null) throw new IllegalArgumentException("dictionaries are not plain files, give a target");
+      String image = KoreanEnv.getInstance().getValue(KoreanEnv.FILE_IMAGE);
+      target = new File(dic.getParentFile(), new File(image).getName());
+    }
+    long start = System.currentTimeMillis();
+    compile(target);
+    System.out.println("Wrote " + target + " (" + target.length() + " bytes) in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+}
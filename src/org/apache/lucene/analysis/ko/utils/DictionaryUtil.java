@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.analysis.ko.morph.CompoundEntry;
 import org.apache.lucene.analysis.ko.morph.MorphException;
@@ -29,42 +30,178 @@ import org.apache.lucene.analysis.ko.morph.WordEntry;
 
 public class DictionaryUtil {
   
-  private static Trie<String,WordEntry> dictionary;
+  /**
+   * 현재 사용중인 사전 묶음.
+   * 각 사전은 처음 사용될 때 읽으며, {@link #reloadDictionary()} 는 새 묶음을 다 읽은 뒤 한번에 교체한다.
+   * 분석 쓰레드는 교체 중에도 기다리지 않고 이전 묶음을 계속 사용한다.
+   */
+  private static volatile Dictionaries current = new Dictionaries(0);
   
-  private static HashMap<String, String> josas;
+  private static final class Dictionaries {
+    
+    final long generation;
+    
+    final LazyDictionary<WordDictionary> dictionary = new LazyDictionary<WordDictionary>() {
+      @Override
+      protected WordDictionary load() throws MorphException {
+        DictionaryImage image = DictionaryImage.getInstance();
+        if(image!=null) return image.getWords();
+        
+        try {
+          List<String> strList = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_DICTIONARY),"UTF-8");
+          strList.addAll(FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_EXTENSION),"UTF-8"));
+          List<String> compounds = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_COMPOUNDS),"UTF-8"); 
+          return buildDictionary(strList, compounds);
+        } catch (IOException e) {      
+          throw new MorphException(e.getMessage(),e);
+        }
+      }
+    };
+    
+    final LazyDictionary<HashMap<String, String>> abbreviations = new LazyDictionary<HashMap<String, String>>() {
+      @Override
+      protected HashMap<String, String> load() throws MorphException {
+        DictionaryImage image = DictionaryImage.getInstance();
+        if(image!=null) return image.getAbbreviations();
+        
+        try {
+          return buildAbbreviations(FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_ABBREV),"UTF-8"));
+        } catch (IOException e) {      
+          throw new MorphException(e.getMessage(),e);
+        }
+      }
+    };
+    
+    final LazyDictionary<HashMap<String, String>> josas = new WordList(KoreanEnv.FILE_JOSA);
+    
+    final LazyDictionary<HashMap<String, String>> eomis = new WordList(KoreanEnv.FILE_EOMI);
+    
+    final LazyDictionary<HashMap<String, String>> prefixs = new WordList(KoreanEnv.FILE_PREFIX);
+    
+    final LazyDictionary<HashMap<String, String>> suffixs = new WordList(KoreanEnv.FILE_SUFFIX);
+    
+    final LazyDictionary<HashMap<String,WordEntry>> uncompounds = new LazyDictionary<HashMap<String,WordEntry>>() {
+      @Override
+      protected HashMap<String,WordEntry> load() throws MorphException {
+        try {
+          HashMap<String,WordEntry> map = new HashMap<String,WordEntry>();
+          List<String> lines = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_UNCOMPOUNDS),"UTF-8");  
+          for(String compound: lines) {    
+            String[] infos = compound.split("[:]+");
+            if(infos.length!=2) continue;
+            WordEntry entry = new WordEntry(infos[0].trim(),"90000X".toCharArray());
+            entry.setCompounds(compoundArrayToList(infos[1], infos[1].split("[,]+")));
+            map.put(entry.getWord(), entry);
+          }
+          return map;
+        }catch(Exception e) {
+          throw new MorphException(e);
+        }
+      }
+    };
+    
+    final LazyDictionary<HashMap<String, String>> cjwords = new LazyDictionary<HashMap<String, String>>() {
+      @Override
+      protected HashMap<String, String> load() throws MorphException {
+        try {
+          HashMap<String, String> map = new HashMap<String, String>();
+          List<String> lines = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_CJ),"UTF-8");  
+          for(String cj: lines) {    
+            String[] infos = cj.split("[:]+");
+            if(infos.length!=2) continue;
+            map.put(infos[0], infos[1]);
+          }
+          return map;
+        }catch(Exception e) {
+          throw new MorphException(e);
+        }
+      }
+    };
+    
+    final LazyDictionary<SyllableUtil.Table> syllables = SyllableUtil.newDictionary();
+    
+    final LazyDictionary<Map<String, char[]>> hanja = HanjaUtils.newDictionary();
+    
+    Dictionaries(long generation) {
+      this.generation = generation;
+    }
+    
+    LazyDictionary<?>[] all() {
+      return new LazyDictionary<?>[] {dictionary, abbreviations, josas, eomis, prefixs, suffixs, uncompounds, cjwords, syllables, hanja};
+    }
+  }
   
-  private static HashMap<String, String> eomis;
+  /** josa.dic, eomi.dic 처럼 첫 줄을 제외한 각 줄이 단어인 사전 */
+  private static final class WordList extends LazyDictionary<HashMap<String, String>> {
+    private final String dic;
+    
+    WordList(String dic) {
+      this.dic = dic;
+    }
+    
+    @Override
+    protected HashMap<String, String> load() throws MorphException {
+      HashMap<String, String> map = new HashMap<String, String>();
+      readFile(map, dic);
+      return map;
+    }
+  }
   
-  private static HashMap<String, String> prefixs;
+  /**
+   * 사전을 로드한다.
+   * 컴파일된 사전 이미지({@link DictionaryImage})가 있으면 그것을 사용하고, 없으면 텍스트 사전을 읽는다.
+   */
+  public static void loadDictionary() throws MorphException {
+    Dictionaries dics = current;
+    dics.dictionary.get();
+    dics.abbreviations.get();
+  }
   
-  private static HashMap<String, String> suffixs;
+  /**
+   * 사전을 다시 읽어 교체한다 (사용자 사전 갱신 등).
+   * 지금까지 사용된 사전들을 모두 새로 읽은 뒤 한번에 바꾸므로, 분석 중인 쓰레드는 멈추지 않는다.
+   * 읽기에 실패하면 예외를 던지고 기존 사전을 계속 사용한다.
+   */
+  public static synchronized void reloadDictionary() throws MorphException {
+    
+    DictionaryImage.reset();
+    
+    Dictionaries old = current;
+    Dictionaries next = new Dictionaries(old.generation+1);
+    LazyDictionary<?>[] olds = old.all();
+    LazyDictionary<?>[] nexts = next.all();
+    for(int i=0;i<olds.length;i++) {
+      if(olds[i].isLoaded()) nexts[i].get();
+    }
+    next.dictionary.get();
+    
+    // 음절특성과 한자 사전도 같은 묶음에 있으므로, 모든 사전이 한번에 바뀐다
+    current = next;
+  }
   
-  private static HashMap<String,WordEntry> uncompounds;
+  /** 현재 묶음의 음절특성. {@link SyllableUtil} 이 쓴다. */
+  static SyllableUtil.Table getSyllables() throws MorphException {
+    return current.syllables.get();
+  }
   
-  private static HashMap<String, String> cjwords;
+  /** 현재 묶음의 한자-한글 대응표. {@link HanjaUtils} 가 쓴다. */
+  static Map<String, char[]> getHanjaMap() throws MorphException {
+    return current.hanja.get();
+  }
   
-  private static HashMap<String, String> abbreviations;
+  /**
+   * 사전이 교체될 때마다 증가한다. 분석 결과를 캐시하는 곳에서 사전 교체를 알아내는데 쓴다.
+   */
+  public static long getGeneration() {
+    return current.generation;
+  }
   
   /**
-   * 사전을 로드한다.
+   * dictionary.dic, extension.dic 과 compounds.dic 의 내용으로 단어사전을 만든다.
    */
-  public synchronized static void loadDictionary() throws MorphException {
-    
-    dictionary = new Trie<String, WordEntry>(true);
-    List<String> strList = null;
-    List<String> compounds = null;
-    List<String> abbrevs = null;
-    try {
-      strList = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_DICTIONARY),"UTF-8");
-      strList.addAll(FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_EXTENSION),"UTF-8"));
-      compounds = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_COMPOUNDS),"UTF-8"); 
-      abbrevs = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_ABBREV),"UTF-8"); 
-    } catch (IOException e) {      
-      new MorphException(e.getMessage(),e);
-    } catch (Exception e) {
-      new MorphException(e.getMessage(),e);
-    }
-    if(strList==null) throw new MorphException("dictionary is null");;
+  static WordDictionary buildDictionary(List<String> strList, List<String> compounds) throws MorphException {
+    
+    WordDictionary.Builder builder = new WordDictionary.Builder();
     
     for(String str:strList) {
       String[] infos = str.split("[,]+");
@@ -73,7 +210,7 @@ public class DictionaryUtil {
       if(infos[1].length()==6) infos[1] = infos[1].substring(0,5)+"000"+infos[1].substring(5);
       
       WordEntry entry = new WordEntry(infos[0].trim(),infos[1].trim().toCharArray());
-      dictionary.add(entry.getWord(), entry);
+      builder.add(entry);
     }
     
     for(String compound: compounds) 
@@ -88,31 +225,34 @@ public class DictionaryUtil {
         entry = new WordEntry(infos[0].trim(),("200"+infos[2]+"0X").toCharArray());
       
       entry.setCompounds(compoundArrayToList(infos[1], infos[1].split("[,]+")));
-      dictionary.add(entry.getWord(), entry);
+      builder.add(entry);
     }
     
-    abbreviations = new HashMap();
+    return builder.build();
+  }
+  
+  static HashMap<String, String> buildAbbreviations(List<String> abbrevs) {
+    
+    HashMap<String, String> map = new HashMap<String, String>();
     
     for(String abbrev: abbrevs) 
     {    
       String[] infos = abbrev.split("[:]+");
       if(infos.length!=2) continue;      
-      abbreviations.put(infos[0].trim(), infos[1].trim());
+      map.put(infos[0].trim(), infos[1].trim());
     }
-    
+    return map;
   }
 
-  @SuppressWarnings({"rawtypes","unchecked"})
   public static Iterator<WordEntry> findWithPrefix(String prefix) throws MorphException {
-    if(dictionary==null) loadDictionary();
-    return dictionary.getPrefixedBy(prefix);
+    return current.dictionary.get().getPrefixedBy(prefix);
   }
 
   public static WordEntry getWord(String key) throws MorphException {    
-    if(dictionary==null) loadDictionary();
+    WordDictionary dictionary = current.dictionary.get();
     if(key.length()==0) return null;
     
-    return (WordEntry)dictionary.get(key);
+    return dictionary.get(key);
   }
   
   public static WordEntry getWordExceptVerb(String key) throws MorphException {    
@@ -137,6 +277,47 @@ public class DictionaryUtil {
     return null;
   }
   
+  /**
+   * <code>getNoun(key.substring(start,end))!=null</code> 과 같으나 문자열을 만들지 않는다.
+   */
+  public static boolean existNoun(CharSequence key, int start, int end) throws MorphException {
+    if(start>=end) return false;
+    char[] features = current.dictionary.get().getFeatures(key, start, end);
+    return features!=null && feature(features, WordEntry.IDX_NOUN)=='1';
+  }
+  
+  /**
+   * <code>getAllNoun(key.substring(start,end))!=null</code> 과 같으나 문자열을 만들지 않는다.
+   */
+  public static boolean existAllNoun(CharSequence key, int start, int end) throws MorphException {
+    if(start>=end) return false;
+    char[] features = current.dictionary.get().getFeatures(key, start, end);
+    return features!=null && (feature(features, WordEntry.IDX_NOUN)=='1' || feature(features, WordEntry.IDX_NOUN)=='2');
+  }
+  
+  /**
+   * <code>existAllNoun(key,start,start+k)</code> 이 참인 모든 k 를 비트 k 로 표시해 돌려준다.
+   * 사전은 한 번만 탐색하며, 길이는 63 까지만 본다.
+   */
+  public static long allNounLengths(CharSequence key, int start, int end) throws MorphException {
+    end = Math.min(end, start+63);
+    if(start>=end) return 0;
+    char[][] features = new char[end-start+1][];
+    current.dictionary.get().getPrefixFeatures(key, start, end, features);
+    long lengths = 0;
+    for(int k=1;k<features.length;k++) {
+      if(features[k]==null) continue;
+      char noun = feature(features[k], WordEntry.IDX_NOUN);
+      if(noun=='1'||noun=='2') lengths |= 1L<<k;
+    }
+    return lengths;
+  }
+
+  /** same as {@link WordEntry#getFeature(int)} */
+  private static char feature(char[] features, int index) {
+    return features.length<index ? '0' : features[index];
+  }
+  
   /**
    * 
    * return all noun including compound noun
@@ -215,87 +396,31 @@ public class DictionaryUtil {
   }
   
   public static String getAbbrevMorph(String key) throws MorphException {
-    if(abbreviations==null) loadDictionary();    
-    return abbreviations.get(key);
-  }
-  
-  public synchronized static WordEntry getUncompound(String key) throws MorphException {
-    
-    try {
-      if(uncompounds==null) {
-        uncompounds = new HashMap<String,WordEntry>();
-        List<String> lines = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_UNCOMPOUNDS),"UTF-8");  
-        for(String compound: lines) {    
-          String[] infos = compound.split("[:]+");
-          if(infos.length!=2) continue;
-          WordEntry entry = new WordEntry(infos[0].trim(),"90000X".toCharArray());
-          entry.setCompounds(compoundArrayToList(infos[1], infos[1].split("[,]+")));
-          uncompounds.put(entry.getWord(), entry);
-        }      
-      }  
-    }catch(Exception e) {
-      throw new MorphException(e);
-    }
-    return uncompounds.get(key);
-  }
-  
-  public synchronized static String getCJWord(String key) throws MorphException {
-    
-    try {
-      if(cjwords==null) {
-        cjwords = new HashMap<String, String>();
-        List<String> lines = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_CJ),"UTF-8");  
-        for(String cj: lines) {    
-          String[] infos = cj.split("[:]+");
-          if(infos.length!=2) continue;
-          cjwords.put(infos[0], infos[1]);
-        }      
-      }  
-    }catch(Exception e) {
-      throw new MorphException(e);
-    }
-    return cjwords.get(key);
-    
+    return current.abbreviations.get().get(key);
+  }
+  
+  public static WordEntry getUncompound(String key) throws MorphException {
+    return current.uncompounds.get().get(key);
+  }
+  
+  public static String getCJWord(String key) throws MorphException {
+    return current.cjwords.get().get(key);
   }
   
   public static boolean existJosa(String str) throws MorphException {
-    if(josas==null) {
-      josas = new HashMap<String, String>();
-      readFile(josas,KoreanEnv.FILE_JOSA);
-    }  
-    if(josas.get(str)==null) return false;
-    else return true;
+    return current.josas.get().get(str)!=null;
   }
   
   public static boolean existEomi(String str)  throws MorphException {
-    if(eomis==null) {
-      eomis = new HashMap<String, String>();
-      readFile(eomis,KoreanEnv.FILE_EOMI);
-    }
-
-    if(eomis.get(str)==null) return false;
-    else return true;
+    return current.eomis.get().get(str)!=null;
   }
   
   public static boolean existPrefix(String str)  throws MorphException {
-    if(prefixs==null) {
-      prefixs = new HashMap<String, String>();
-      readFile(prefixs,KoreanEnv.FILE_PREFIX);
-    }
-
-    if(prefixs.get(str)==null) return false;
-    else return true;
+    return current.prefixs.get().get(str)!=null;
   }
   
   public static boolean existSuffix(String str)  throws MorphException {
-    if(suffixs==null) {
-      suffixs = new HashMap<String, String>();
-      readFile(suffixs,KoreanEnv.FILE_SUFFIX);
-    }
-
-    if(suffixs.get(str)!=null) return true;
-    
-    return false;
+    return current.suffixs.get().get(str)!=null;
   }
   
   /**
@@ -323,7 +448,7 @@ public class DictionaryUtil {
    * @param dic  1: josa, 2: eomi
    * @throws MorphException excepton
    */
-  private static synchronized void readFile(HashMap<String, String> map, String dic) throws MorphException {    
+  private static void readFile(HashMap<String, String> map, String dic) throws MorphException {    
     
     String path = KoreanEnv.getInstance().getValue(dic);
 
@@ -26,26 +26,47 @@ import org.apache.lucene.analysis.ko.morph.MorphException;
 
 public class HanjaUtils {
 
-  private static Map<String, char[]> mapHanja;
+  /**
+   * 한자-한글 대응표. {@link DictionaryUtil} 의 사전 묶음에 들어 있어서 다른 사전과 함께 교체된다.
+   */
+  static LazyDictionary<Map<String, char[]>> newDictionary() {
+    return new LazyDictionary<Map<String, char[]>>() {
+      @Override
+      protected Map<String, char[]> load() throws MorphException {
+        DictionaryImage image = DictionaryImage.getInstance();
+        if(image!=null) return image.getHanja();
+        
+        try {
+          List<String> strList = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_HANJA),"UTF-8");
+          return buildHanjaMap(strList);
+        } catch (IOException e) {
+          throw new MorphException(e);
+        }
+      }
+    };
+  }
+  
+  public static void loadDictionary() throws MorphException {
+    DictionaryUtil.getHanjaMap();
+  }
   
-  public synchronized static void loadDictionary() throws MorphException {
-    try {
-      List<String> strList = FileUtil.readLines("org/apache/lucene/analysis/ko/dic/mapHanja.dic","UTF-8");
-      mapHanja = new HashMap<String, char[]>();    
+  /**
+   * mapHanja.dic 의 "한자,한글음" 줄로 한자-한글 대응표를 만든다.
+   */
+  static Map<String, char[]> buildHanjaMap(List<String> strList) {
+    Map<String, char[]> map = new HashMap<String, char[]>();    
     
-      for(int i=0;i<strList.size();i++) {
-        
-        if(strList.get(i).length()<1||
-            strList.get(i).indexOf(",")==-1) continue;
+    for(int i=0;i<strList.size();i++) {
+      
+      if(strList.get(i).length()<1||
+          strList.get(i).indexOf(",")==-1) continue;
 
-        String[] hanInfos = strList.get(i).split("[,]+");
+      String[] hanInfos = strList.get(i).split("[,]+");
 
-        if(hanInfos.length!=2) continue;
-        mapHanja.put(hanInfos[0], hanInfos[1].toCharArray());
-      }      
-    } catch (IOException e) {
-      throw new MorphException(e);
+      if(hanInfos.length!=2) continue;
+      map.put(hanInfos[0], hanInfos[1].toCharArray());
     }
+    return map;
   }
   
   /**
@@ -54,11 +75,9 @@ public class HanjaUtils {
    */
   public static char[] convertToHangul(char hanja) throws MorphException {
  
-    if(mapHanja==null)  loadDictionary();
-
 //    if(hanja>0x9FFF||hanja<0x3400) return new char[]{hanja};
     
-    char[] result = mapHanja.get(new String(new char[]{hanja}));
+    char[] result = DictionaryUtil.getHanjaMap().get(new String(new char[]{hanja}));
     if(result==null) return new char[]{hanja};
     
     return result;
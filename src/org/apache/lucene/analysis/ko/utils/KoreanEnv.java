@@ -48,6 +48,11 @@ public class KoreanEnv {
   
   public static final String FILE_CJ = "cj.dic";
   
+  public static final String FILE_HANJA = "hanja.dic";
+  
+  /** compiled dictionary image, see {@link DictionaryImage} */
+  public static final String FILE_IMAGE = "dictionary.image";
+  
   public static final String FILE_KOREAN_PROPERTY = "org/apache/lucene/analysis/ko/korean.properties";
   
   private Properties defaults = null;
@@ -71,7 +76,7 @@ public class KoreanEnv {
     }
   }
   
-  public static KoreanEnv getInstance() throws MorphException {
+  public synchronized static KoreanEnv getInstance() throws MorphException {
     if(instance==null)
       instance = new KoreanEnv();
 
@@ -95,6 +100,8 @@ public class KoreanEnv {
     defaults.setProperty(FILE_UNCOMPOUNDS,"org/apache/lucene/analysis/ko/dic/uncompounds.dic");
     defaults.setProperty(FILE_ABBREV,"org/apache/lucene/analysis/ko/dic/abbreviation.dic");
     defaults.setProperty(FILE_CJ,"org/apache/lucene/analysis/ko/dic/cj.dic");
+    defaults.setProperty(FILE_HANJA,"org/apache/lucene/analysis/ko/dic/mapHanja.dic");
+    defaults.setProperty(FILE_IMAGE,"org/apache/lucene/analysis/ko/dic/dictionary.img");
   }
 
   
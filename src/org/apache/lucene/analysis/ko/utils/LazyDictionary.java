@@ -0,0 +1,53 @@
+package org.apache.lucene.analysis.ko.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.ko.morph.MorphException;
+
+/**
+ * A dictionary that is read on first use.
+ * <p>
+ * Once loaded, {@link #get()} is a single volatile read. The first callers
+ * wait on this holder's monitor while one of them loads; the value is
+ * published only when it is complete, so no thread sees a half-built map.
+ * A failed load is not remembered and is retried by the next caller.
+ */
+abstract class LazyDictionary<T> {
+
+  private volatile T value;
+
+  /** reads the dictionary; called at most once per successful load */
+  protected abstract T load() throws MorphException;
+
+  T get() throws MorphException {
+    T v = value;
+    if (v == null) {
+      synchronized (this) {
+        v = value;
+        if (v == null) {
+          value = v = load();
+        }
+      }
+    }
+    return v;
+  }
+
+  boolean isLoaded() {
+    return value != null;
+  }
+}
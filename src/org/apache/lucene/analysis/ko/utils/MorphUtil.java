@@ -45,31 +45,33 @@ public class MorphUtil {
   
   private static final int JUNG_JONG = JUNGSEONG.length * JONGSEONG.length;
 
+  /** 한글 음절 11,172자를 미리 분해해 둔 표, '가'(0xAC00) 부터 */
+  private static final char[][] DECOMPOSED = new char[CHOSEONG.length * JUNG_JONG][];
+  
+  static {
+    for(int i=0;i<DECOMPOSED.length;i++) {
+      char choseong = CHOSEONG[i/JUNG_JONG];
+      char jungseong = JUNGSEONG[(i%JUNG_JONG)/JONGSEONG.length];
+      char jongseong = JONGSEONG[i%JONGSEONG.length];
+      
+      if(jongseong != 0) {
+        DECOMPOSED[i] = new char[] {choseong, jungseong, jongseong};
+      }else {
+        DECOMPOSED[i] = new char[] {choseong, jungseong};      
+      }
+    }
+  }
   
   /**
    * 한글 한글자를 초성/중성/종성의 배열로 만들어 반환한다.
+   * 한글 음절의 배열은 미리 만들어 공유하는 것이므로 바꾸면 안 된다.
    * @param c the character to be decomposed
    */
   public static char[] decompose(char c) {
-    char[] result = null;
 
     if(c>0xD7A3||c<0xAC00) return new char[]{c};
     
-    c -= 0xAC00;
-
-    char choseong = CHOSEONG[c/JUNG_JONG];
-    c = (char)(c % JUNG_JONG);
-    
-    char jungseong = JUNGSEONG[c/JONGSEONG.length];
-    
-    char jongseong = JONGSEONG[c%JONGSEONG.length];
-    
-    if(jongseong != 0) {
-      result = new char[] {choseong, jungseong, jongseong};
-    }else {
-      result = new char[] {choseong, jungseong};      
-    }
-    return result;
+    return DECOMPOSED[c - 0xAC00];
   }  
   
   public static char compound(int first, int middle, int last) {    
@@ -192,8 +194,8 @@ public class MorphUtil {
   public static boolean hasVerbOnly(String input) throws MorphException {
     
     for(int i=input.length()-1;i>=0;i--) {
-      char[] feature = SyllableUtil.getFeature(input.charAt(i));
-      if(feature[SyllableUtil.IDX_WDSURF]=='1'&&input.length()>i) return true;
+      long feature = SyllableUtil.getFeatureBits(input.charAt(i));
+      if(SyllableUtil.hasFeature(feature, SyllableUtil.IDX_WDSURF)&&input.length()>i) return true;
     }
     return false;
   }
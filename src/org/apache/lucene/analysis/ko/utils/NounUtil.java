@@ -380,11 +380,11 @@ public class NounUtil {
         
       String josa = input.substring(i);
 
-      char[] feature =  SyllableUtil.getFeature(josa.charAt(0));    
+      long feature = SyllableUtil.getFeatureBits(josa.charAt(0));    
       if(josaFlag&&DictionaryUtil.existJosa(josa)) return true;
   
         
-      if(josaFlag&&feature[SyllableUtil.IDX_JOSA2]=='0') josaFlag = false;        
+      if(josaFlag&&!SyllableUtil.hasFeature(feature, SyllableUtil.IDX_JOSA2)) josaFlag = false;        
       if(!josaFlag) break;
     }
       
@@ -23,6 +23,14 @@ import java.util.List;
 
 import org.apache.lucene.analysis.ko.morph.MorphException;
 
+/**
+ * 한글 음절 11,172자의 특성 정보.
+ * <p>
+ * Each syllable has the 40 features <code>IDX_*</code> of syllable.dic.
+ * Besides the character arrays of {@link #getFeature(char)}, the features
+ * are packed into one <code>long</code> per syllable, so that a rule check
+ * like <code>hasFeature(ch, IDX_JOSA1)</code> is an array read and a bit test.
+ */
 public class SyllableUtil {
 
   public static int IDX_JOSA1 = 0; // 조사의 첫음절로 사용되는 음절 49개
@@ -71,8 +79,6 @@ public class SyllableUtil {
   
   public static int IDX_EOGAN = 39; // 어미 또는 어미의 변형으로 존재할 수 있는 음 (즉 IDX_EOMI 이거나 IDX_YNPNA 이후에 1이 있는 음절)
   
-  private static List<char[]> Syllables;  // 음절특성 정보
-  
   /**
    * 인덱스 값에 해당하는 음절의 특성을 반환한다.
    * 영자 또는 숫자일 경우는 모두 해당이 안되므로 가장 마지막 글자인 '힣' 의 음절특성을 반환한다.
@@ -82,13 +88,45 @@ public class SyllableUtil {
    */
   public static char[] getFeature(int idx)  throws MorphException {
     
-    if(Syllables==null) Syllables = getSyllableFeature();
+    char[][] features = DictionaryUtil.getSyllables().features;
   
-    if(idx<0||idx>=Syllables.size()) 
-      return Syllables.get(Syllables.size()-1);
+    if(idx<0||idx>=features.length) 
+      return features[features.length-1];
     else 
-      return Syllables.get(idx);
+      return features[idx];
+    
+  }
+  
+  /**
+   * 음절의 특성을 비트로 반환한다. 비트 <code>IDX_*</code> 는 {@link #getFeature(char)} 의
+   * 같은 자리가 '1' 일 때 켜진다. 한글 음절이 아니면 '힣' 의 특성을 반환한다.
+   * @param syl  음절 하나
+   * @throws MorphException throw exception 
+   */
+  public static long getFeatureBits(char syl) throws MorphException {
+    
+    long[] bits = DictionaryUtil.getSyllables().bits;
     
+    int idx = syl - 0xAC00;
+    if(idx<0||idx>=bits.length) 
+      return bits[bits.length-1];
+    else 
+      return bits[idx];
+  }
+  
+  /**
+   * @param features  {@link #getFeatureBits(char)} 의 값
+   * @param idx  특성 <code>IDX_*</code>
+   */
+  public static boolean hasFeature(long features, int idx) {
+    return (features & (1L<<idx))!=0;
+  }
+  
+  /**
+   * <code>getFeature(syl)[idx]=='1'</code> 과 같다.
+   */
+  public static boolean hasFeature(char syl, int idx) throws MorphException {
+    return hasFeature(getFeatureBits(syl), idx);
   }
   
   /**
@@ -103,29 +141,69 @@ public class SyllableUtil {
     
   }
   
+  /**
+   * 음절특성 정보. {@link DictionaryUtil} 의 사전 묶음에 들어 있어서 다른 사전과 함께 교체된다.
+   */
+  static LazyDictionary<Table> newDictionary() {
+    return new LazyDictionary<Table>() {
+      @Override
+      protected Table load() throws MorphException {
+        return new Table(getSyllableFeature());
+      }
+    };
+  }
+  
   /**
    * 음절정보특성을 파일에서 읽는다.
+   * 컴파일된 사전 이미지({@link DictionaryImage})가 있으면 그것을 사용한다.
    * 
    * @throws MorphException throw exception
    */  
   private static List<char[]> getSyllableFeature() throws MorphException {
   
+    DictionaryImage image = DictionaryImage.getInstance();
+    if(image!=null) return image.getSyllables();
+    
     try{
-      Syllables = new ArrayList<char[]>();
-
       List<String> line = FileUtil.readLines(KoreanEnv.getInstance().getValue(KoreanEnv.FILE_SYLLABLE_FEATURE),"UTF-8");  
-      for(int i=0;i<line.size();i++) {        
-        if(i!=0)
-          Syllables.add(line.get(i).toCharArray());
-      }
+      return buildSyllableFeature(line);
     }catch(IOException e) {
       throw new MorphException(e.getMessage());
     } 
-
-    return Syllables;
   }  
   
+  /**
+   * syllable.dic 의 각 줄을 음절특성으로 바꾼다. 첫 줄은 머릿말이다.
+   */
+  static List<char[]> buildSyllableFeature(List<String> line) {
+    List<char[]> features = new ArrayList<char[]>();
+    for(int i=0;i<line.size();i++) {        
+      if(i!=0)
+        features.add(line.get(i).toCharArray());
+    }
+    return features;
+  }
+  
   public static boolean isAlpanumeric(char ch) {
     return (ch>='0'&&ch<='z');
   }
+  
+  /** 음절특성을 문자 배열과 비트로 담는다. */
+  static final class Table {
+    
+    final char[][] features;
+    
+    final long[] bits;
+    
+    Table(List<char[]> syllables) {
+      features = syllables.toArray(new char[syllables.size()][]);
+      bits = new long[features.length];
+      for(int i=0;i<features.length;i++) {
+        char[] f = features[i];
+        for(int j=0;j<f.length&&j<Long.SIZE;j++) {
+          if(f[j]=='1') bits[i] |= 1L<<j;
+        }
+      }
+    }
+  }
 }
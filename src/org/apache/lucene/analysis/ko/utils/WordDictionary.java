@@ -0,0 +1,471 @@
+package org.apache.lucene.analysis.ko.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.ko.morph.CompoundEntry;
+import org.apache.lucene.analysis.ko.morph.MorphException;
+import org.apache.lucene.analysis.ko.morph.WordEntry;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Read-only replacement for the <code>Trie&lt;String,WordEntry&gt;</code>
+ * word dictionary.
+ * <p>
+ * Words are keys of an {@link FST} over UTF-16 code units whose output is the
+ * word's ordinal. Everything else lives in flat arrays indexed by ordinal:
+ * the feature vector of each word is interned, so a word costs one
+ * <code>char</code> pointing into a small table of distinct feature arrays,
+ * and the few words that have compound parts (or whose spelling differs from
+ * the lower-cased key) are kept in sorted side tables.
+ * <p>
+ * {@link #get(String)} and {@link #getPrefixedBy(String)} behave like the
+ * case-insensitive {@link Trie} they replace, including the lexicographic
+ * order of the prefix iterator. {@link WordEntry} instances are created on
+ * lookup and share the immutable feature and compound data.
+ * <p>
+ * A built dictionary can be {@link #save saved} and {@link #load loaded}
+ * again without the text sources; see {@link DictionaryImage}.
+ */
+public final class WordDictionary {
+
+  private final FST<Long> fst;
+
+  /** distinct feature vectors */
+  private final char[][] featureTable;
+  /** ordinal -&gt; index into featureTable */
+  private final char[] featureIds;
+
+  /** sorted ordinals that have compounds, parallel to compoundLists */
+  private final int[] compoundOrds;
+  private final List<CompoundEntry>[] compoundLists;
+
+  /** sorted ordinals whose word is not the FST key, parallel to words */
+  private final int[] wordOrds;
+  private final String[] words;
+
+  private final int size;
+
+  /**
+   * per-thread arc and reader of the dictionary the thread used last, so that
+   * {@link #get(String)} does not allocate them. It is static, so that a reloaded
+   * dictionary does not leave a thread local behind in every thread.
+   */
+  private static final ThreadLocal<Lookup> LOOKUPS = new ThreadLocal<Lookup>();
+
+  private static final class Lookup {
+    final FST<Long> fst;
+    final FST.Arc<Long> arc = new FST.Arc<Long>();
+    final FST.BytesReader in;
+
+    Lookup(FST<Long> fst) {
+      this.fst = fst;
+      this.in = fst.getBytesReader();
+    }
+  }
+
+  private Lookup lookup() {
+    Lookup lookup = LOOKUPS.get();
+    if (lookup == null || lookup.fst != fst) {
+      lookup = new Lookup(fst);
+      LOOKUPS.set(lookup);
+    }
+    return lookup;
+  }
+
+  private WordDictionary(FST<Long> fst, char[][] featureTable, char[] featureIds,
+      int[] compoundOrds, List<CompoundEntry>[] compoundLists, int[] wordOrds, String[] words) {
+    this.fst = fst;
+    this.featureTable = featureTable;
+    this.featureIds = featureIds;
+    this.compoundOrds = compoundOrds;
+    this.compoundLists = compoundLists;
+    this.wordOrds = wordOrds;
+    this.words = words;
+    this.size = featureIds.length;
+  }
+
+  /**
+   * Same canonicalization as <code>new Trie(true)</code>.
+   */
+  public static String canonicalCase(String s) {
+    return s.toUpperCase(Locale.US).toLowerCase(Locale.US);
+  }
+
+  /** number of words */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the entry of the given word, or null if none.
+   */
+  public WordEntry get(String key) throws MorphException {
+    String k = canonicalCase(key);
+    if (fst == null) return null;
+
+    try {
+      Lookup lookup = lookup();
+      FST.BytesReader in = lookup.in;
+      FST.Arc<Long> arc = fst.getFirstArc(lookup.arc);
+      long ord = 0;
+      for (int i = 0; i < k.length(); i++) {
+        if (fst.findTargetArc(k.charAt(i), arc, arc, in) == null) return null;
+        ord += arc.output.longValue();
+      }
+      if (!arc.isFinal()) return null;
+      ord += arc.nextFinalOutput.longValue();
+      return entry((int) ord, k);
+    } catch (IOException e) {
+      throw new MorphException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the features of the word <code>key[start,end)</code>, or null if
+   * none, without creating a String or a {@link WordEntry}. The returned
+   * array is shared and must not be modified.
+   */
+  public char[] getFeatures(CharSequence key, int start, int end) throws MorphException {
+    if (fst == null) return null;
+
+    try {
+      Lookup lookup = lookup();
+      FST.BytesReader in = lookup.in;
+      FST.Arc<Long> arc = fst.getFirstArc(lookup.arc);
+      long ord = 0;
+      for (int i = start; i < end; i++) {
+        char c = key.charAt(i);
+        if (c >= 'A' && c <= 'Z') {
+          c += 'a' - 'A';
+        } else if (c >= 0x80 && !isCaseless(c)) {
+          // case mapping may change the length; do it the slow way
+          WordEntry entry = get(key.subSequence(start, end).toString());
+          return entry == null ? null : entry.getFeatures();
+        }
+        if (fst.findTargetArc(c, arc, arc, in) == null) return null;
+        ord += arc.output.longValue();
+      }
+      if (!arc.isFinal()) return null;
+      ord += arc.nextFinalOutput.longValue();
+      return featureTable[featureIds[(int) ord]];
+    } catch (IOException e) {
+      throw new MorphException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Looks up every prefix of <code>key[start,end)</code> in a single walk of
+   * the FST: <code>features[k]</code> is set to what
+   * {@link #getFeatures(CharSequence, int, int) getFeatures(key, start, start+k)}
+   * returns, for k = 1..end-start. <code>features</code> must have room for
+   * <code>end-start+1</code> entries.
+   */
+  public void getPrefixFeatures(CharSequence key, int start, int end, char[][] features) throws MorphException {
+    Arrays.fill(features, 0, end - start + 1, null);
+    if (fst == null) return;
+
+    try {
+      Lookup lookup = lookup();
+      FST.BytesReader in = lookup.in;
+      FST.Arc<Long> arc = fst.getFirstArc(lookup.arc);
+      long ord = 0;
+      for (int i = start; i < end; i++) {
+        char c = key.charAt(i);
+        if (c >= 'A' && c <= 'Z') {
+          c += 'a' - 'A';
+        } else if (c >= 0x80 && !isCaseless(c)) {
+          // the longer prefixes take the slow path of getFeatures one by one
+          for (int k = i - start + 1; k <= end - start; k++) {
+            features[k] = getFeatures(key, start, start + k);
+          }
+          return;
+        }
+        if (fst.findTargetArc(c, arc, arc, in) == null) return;
+        ord += arc.output.longValue();
+        if (arc.isFinal()) {
+          features[i - start + 1] = featureTable[featureIds[(int) (ord + arc.nextFinalOutput.longValue())]];
+        }
+      }
+    } catch (IOException e) {
+      throw new MorphException(e.getMessage(), e);
+    }
+  }
+
+  /** Hangul and CJK ideographs have no case mapping */
+  private static boolean isCaseless(char c) {
+    return (c >= 0xAC00 && c <= 0xD7A3) || (c >= 0x1100 && c <= 0x11FF)
+        || (c >= 0x3130 && c <= 0x318F) || (c >= 0x4E00 && c <= 0x9FFF);
+  }
+
+  /**
+   * Returns the entries of all words starting with the given prefix, in
+   * lexicographic order of the (lower-cased) words.
+   */
+  public Iterator<WordEntry> getPrefixedBy(String prefix) throws MorphException {
+    if (fst == null) return Collections.<WordEntry>emptyList().iterator();
+    try {
+      return new PrefixIterator(canonicalCase(prefix));
+    } catch (IOException e) {
+      throw new MorphException(e.getMessage(), e);
+    }
+  }
+
+  private WordEntry entry(int ord, String key) {
+    int w = Arrays.binarySearch(wordOrds, ord);
+    WordEntry entry = new WordEntry(w < 0 ? key : words[w], featureTable[featureIds[ord]]);
+    int c = Arrays.binarySearch(compoundOrds, ord);
+    if (c >= 0) entry.setCompounds(compoundLists[c]);
+    return entry;
+  }
+
+  private final class PrefixIterator implements Iterator<WordEntry> {
+    private final IntsRef prefix;
+    private final IntsRefFSTEnum<Long> fstEnum;
+    private IntsRefFSTEnum.InputOutput<Long> current;
+
+    PrefixIterator(String prefix) throws IOException {
+      this.prefix = Util.toUTF16(prefix, new IntsRef());
+      this.fstEnum = new IntsRefFSTEnum<Long>(fst);
+      current = accept(fstEnum.seekCeil(this.prefix));
+    }
+
+    private IntsRefFSTEnum.InputOutput<Long> accept(IntsRefFSTEnum.InputOutput<Long> io) {
+      if (io == null || io.input.length < prefix.length) return null;
+      for (int i = 0; i < prefix.length; i++) {
+        if (io.input.ints[io.input.offset + i] != prefix.ints[prefix.offset + i]) return null;
+      }
+      return io;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return current != null;
+    }
+
+    @Override
+    public WordEntry next() {
+      if (current == null) throw new NoSuchElementException();
+      IntsRef input = current.input;
+      char[] chars = new char[input.length];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = (char) input.ints[input.offset + i];
+      }
+      WordEntry entry = entry(current.output.intValue(), new String(chars));
+      try {
+        current = accept(fstEnum.next());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Approximate heap used by this dictionary.
+   */
+  public long ramBytesUsed() {
+    long bytes = fst == null ? 0 : fst.sizeInBytes();
+    bytes += RamUsageEstimator.sizeOf(featureIds);
+    for (char[] f : featureTable) bytes += RamUsageEstimator.sizeOf(f);
+    bytes += RamUsageEstimator.sizeOf(compoundOrds) + RamUsageEstimator.sizeOf(wordOrds);
+    for (String w : words) bytes += RamUsageEstimator.sizeOf(w.toCharArray()) + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+    for (List<CompoundEntry> l : compoundLists) bytes += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER * (1 + 2L * l.size());
+    return bytes;
+  }
+
+  /**
+   * Writes this dictionary; {@link #load(DataInput)} reads it back.
+   */
+  public void save(DataOutput out) throws IOException {
+    out.writeByte((byte) (fst == null ? 0 : 1));
+    if (fst != null) fst.save(out);
+
+    out.writeVInt(featureTable.length);
+    for (char[] f : featureTable) writeChars(out, f);
+    writeChars(out, featureIds);
+
+    out.writeVInt(compoundOrds.length);
+    for (int i = 0; i < compoundOrds.length; i++) {
+      out.writeVInt(compoundOrds[i]);
+      out.writeVInt(compoundLists[i].size());
+      for (CompoundEntry ce : compoundLists[i]) {
+        out.writeString(ce.getWord());
+        out.writeVInt(ce.getOffset() + 1);
+        out.writeByte((byte) (ce.isExist() ? 1 : 0));
+        out.writeShort((short) ce.getPos());
+      }
+    }
+
+    out.writeVInt(wordOrds.length);
+    for (int i = 0; i < wordOrds.length; i++) {
+      out.writeVInt(wordOrds[i]);
+      out.writeString(words[i]);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public static WordDictionary load(DataInput in) throws IOException {
+    FST<Long> fst = in.readByte() == 0 ? null : new FST<Long>(in, PositiveIntOutputs.getSingleton());
+
+    char[][] featureTable = new char[in.readVInt()][];
+    for (int i = 0; i < featureTable.length; i++) featureTable[i] = readChars(in);
+    char[] featureIds = readChars(in);
+
+    int[] compoundOrds = new int[in.readVInt()];
+    List<CompoundEntry>[] compoundLists = new List[compoundOrds.length];
+    for (int i = 0; i < compoundOrds.length; i++) {
+      compoundOrds[i] = in.readVInt();
+      CompoundEntry[] list = new CompoundEntry[in.readVInt()];
+      for (int j = 0; j < list.length; j++) {
+        String w = in.readString();
+        int offset = in.readVInt() - 1;
+        boolean exist = in.readByte() != 0;
+        list[j] = new CompoundEntry(w, offset, exist, (char) in.readShort());
+      }
+      compoundLists[i] = Collections.unmodifiableList(Arrays.asList(list));
+    }
+
+    int[] wordOrds = new int[in.readVInt()];
+    String[] words = new String[wordOrds.length];
+    for (int i = 0; i < wordOrds.length; i++) {
+      wordOrds[i] = in.readVInt();
+      words[i] = in.readString();
+    }
+
+    return new WordDictionary(fst, featureTable, featureIds, compoundOrds, compoundLists, wordOrds, words);
+  }
+
+  private static void writeChars(DataOutput out, char[] chars) throws IOException {
+    out.writeVInt(chars.length);
+    for (char c : chars) out.writeShort((short) c);
+  }
+
+  private static char[] readChars(DataInput in) throws IOException {
+    char[] chars = new char[in.readVInt()];
+    for (int i = 0; i < chars.length; i++) chars[i] = (char) in.readShort();
+    return chars;
+  }
+
+  /**
+   * Collects words in any order; a later entry for the same (lower-cased)
+   * word replaces the earlier one, as {@link Trie#add} does.
+   */
+  public static final class Builder {
+    private final TreeMap<String, WordEntry> entries = new TreeMap<String, WordEntry>();
+
+    public Builder add(WordEntry entry) {
+      entries.put(canonicalCase(entry.getWord()), entry);
+      return this;
+    }
+
+    public int size() {
+      return entries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    public WordDictionary build() throws MorphException {
+      int n = entries.size();
+      char[] featureIds = new char[n];
+      Map<String, Character> featureIndex = new HashMap<String, Character>();
+      List<char[]> featureTable = new ArrayList<char[]>();
+      List<Integer> compoundOrds = new ArrayList<Integer>();
+      List<List<CompoundEntry>> compoundLists = new ArrayList<List<CompoundEntry>>();
+      List<Integer> wordOrds = new ArrayList<Integer>();
+      List<String> words = new ArrayList<String>();
+
+      org.apache.lucene.util.fst.Builder<Long> fstBuilder =
+          new org.apache.lucene.util.fst.Builder<Long>(FST.INPUT_TYPE.BYTE2, PositiveIntOutputs.getSingleton());
+      IntsRef scratch = new IntsRef();
+
+      try {
+        int ord = 0;
+        // TreeMap order is String.compareTo order, i.e. UTF-16 code unit order as the FST requires
+        for (Map.Entry<String, WordEntry> e : entries.entrySet()) {
+          WordEntry entry = e.getValue();
+
+          char[] features = entry.getFeatures() == null ? new char[0] : entry.getFeatures();
+          String fkey = new String(features);
+          Character fid = featureIndex.get(fkey);
+          if (fid == null) {
+            if (featureTable.size() > Character.MAX_VALUE) {
+              throw new MorphException("too many distinct word features: " + featureTable.size());
+            }
+            fid = Character.valueOf((char) featureTable.size());
+            featureIndex.put(fkey, fid);
+            featureTable.add(features.clone());
+          }
+          featureIds[ord] = fid.charValue();
+
+          if (entry.getCompounds() != null && !entry.getCompounds().isEmpty()) {
+            compoundOrds.add(ord);
+            compoundLists.add(Collections.unmodifiableList(new ArrayList<CompoundEntry>(entry.getCompounds())));
+          }
+          if (!e.getKey().equals(entry.getWord())) {
+            wordOrds.add(ord);
+            words.add(entry.getWord());
+          }
+
+          fstBuilder.add(Util.toUTF16(e.getKey(), scratch), Long.valueOf(ord));
+          ord++;
+        }
+
+        FST<Long> fst = fstBuilder.finish();
+
+        return new WordDictionary(fst,
+            featureTable.toArray(new char[featureTable.size()][]),
+            featureIds,
+            toIntArray(compoundOrds),
+            compoundLists.toArray(new List[compoundLists.size()]),
+            toIntArray(wordOrds),
+            words.toArray(new String[words.size()]));
+      } catch (IOException e) {
+        throw new MorphException(e.getMessage(), e);
+      }
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+      int[] a = new int[list.size()];
+      for (int i = 0; i < a.length; i++) a[i] = list.get(i);
+      return a;
+    }
+  }
+}
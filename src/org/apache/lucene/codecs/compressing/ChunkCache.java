@@ -0,0 +1,253 @@
+package org.apache.lucene.codecs.compressing;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A size-bounded cache of the decompressed chunks of the stored fields of
+ * {@link CompressingStoredFieldsReader}s.
+ * <p>
+ * Reading a document decompresses the whole chunk it belongs to, so that
+ * reading several documents of the same chunk, like the adjacent hits of a
+ * result page, decompresses it several times. The readers keep the chunks
+ * they decompress in the cache passed to
+ * {@link CompressingStoredFieldsReader#visitDocument(int, org.apache.lucene.index.StoredFieldVisitor, ChunkCache)},
+ * keyed by segment and start pointer of the chunk, and the least recently
+ * used chunks are evicted when the cache holds more than its maximum number
+ * of bytes. The chunks of a segment are removed when its reader is closed.
+ * Chunks that hold a single document larger than twice the chunk size are
+ * not cached.
+ * <p>
+ * The chunks are spread over {@link #STRIPES} LRU maps by key, each with
+ * its own lock and an equal share of the bytes, so that concurrent reads
+ * of different chunks seldom wait for each other.
+ * @lucene.experimental
+ */
+public final class ChunkCache {
+
+  /** approximate heap used by a chunk besides its arrays */
+  static final long CHUNK_OVERHEAD = 128;
+
+  /** the number of independently locked parts of the cache */
+  public static final int STRIPES = 16;
+
+  private final long maxRamBytes;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /** Creates a cache holding at most <code>maxRamBytes</code> of chunks. */
+  public ChunkCache(long maxRamBytes) {
+    this.maxRamBytes = maxRamBytes;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(maxRamBytes / STRIPES);
+    }
+  }
+
+  private Stripe stripe(Key key) {
+    final int h = key.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  Chunk get(Object segment, long startPointer) {
+    final Key key = new Key(segment, startPointer);
+    final Stripe stripe = stripe(key);
+    synchronized (stripe) {
+      final Chunk chunk = stripe.map.get(key);
+      if (chunk == null) {
+        stripe.misses++;
+      } else {
+        stripe.hits++;
+      }
+      return chunk;
+    }
+  }
+
+  void put(Object segment, long startPointer, Chunk chunk) {
+    final Key key = new Key(segment, startPointer);
+    final Stripe stripe = stripe(key);
+    if (chunk.ramBytes > stripe.maxRamBytes) {
+      return;
+    }
+    synchronized (stripe) {
+      final Chunk old = stripe.map.put(key, chunk);
+      stripe.ramBytesUsed += chunk.ramBytes;
+      if (old != null) {
+        stripe.ramBytesUsed -= old.ramBytes;
+      }
+      for (Iterator<Chunk> it = stripe.map.values().iterator(); stripe.ramBytesUsed > stripe.maxRamBytes && it.hasNext(); ) {
+        stripe.ramBytesUsed -= it.next().ramBytes;
+        it.remove();
+        stripe.evictions++;
+      }
+    }
+  }
+
+  /** Removes the chunks of a segment. */
+  void purge(Object segment) {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (Iterator<Map.Entry<Key,Chunk>> it = stripe.map.entrySet().iterator(); it.hasNext(); ) {
+          final Map.Entry<Key,Chunk> entry = it.next();
+          if (entry.getKey().segment == segment) {
+            stripe.ramBytesUsed -= entry.getValue().ramBytes;
+            it.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /** Removes all the chunks. */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.map.clear();
+        stripe.ramBytesUsed = 0;
+      }
+    }
+  }
+
+  /** Returns the maximum number of bytes of the chunks in this cache. */
+  public long getMaxRamBytes() {
+    return maxRamBytes;
+  }
+
+  /** Returns the number of bytes of the chunks in this cache. */
+  public long ramBytesUsed() {
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        sum += stripe.ramBytesUsed;
+      }
+    }
+    return sum;
+  }
+
+  /** Returns the number of chunks in this cache. */
+  public int size() {
+    int sum = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        sum += stripe.map.size();
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the number of chunk lookups that found the chunk in the cache.
+   * A lookup may serve several documents of the chunk.
+   */
+  public long getHits() {
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        sum += stripe.hits;
+      }
+    }
+    return sum;
+  }
+
+  /** Returns the number of chunk lookups that did not find the chunk in the cache. */
+  public long getMisses() {
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        sum += stripe.misses;
+      }
+    }
+    return sum;
+  }
+
+  /** Returns the number of chunks evicted to make room for others. */
+  public long getEvictions() {
+    long sum = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        sum += stripe.evictions;
+      }
+    }
+    return sum;
+  }
+
+  /** A part of the cache; all its fields are guarded by its lock. */
+  private static final class Stripe {
+    final long maxRamBytes;
+    // access ordered, so that the first entry is the least recently used one
+    final LinkedHashMap<Key,Chunk> map = new LinkedHashMap<Key,Chunk>(64, 0.75f, true);
+    long ramBytesUsed;
+    long hits;
+    long misses;
+    long evictions;
+
+    Stripe(long maxRamBytes) {
+      this.maxRamBytes = maxRamBytes;
+    }
+  }
+
+  private static final class Key {
+    final Object segment;
+    final long startPointer;
+
+    Key(Object segment, long startPointer) {
+      this.segment = segment;
+      this.startPointer = startPointer;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(segment) * 31 + (int) (startPointer ^ (startPointer >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return segment == other.segment && startPointer == other.startPointer;
+    }
+  }
+
+  /** A decompressed chunk: the stored fields of its documents, one after the other. */
+  static final class Chunk {
+    final int docBase;
+    final int chunkDocs;
+    final int[] numStoredFields;
+    // offsets[i] is where document docBase + i starts in bytes, offsets[chunkDocs] where the last one ends
+    final int[] offsets;
+    final byte[] bytes;
+    final int bytesOffset;
+    final long ramBytes;
+
+    Chunk(int docBase, int chunkDocs, int[] numStoredFields, int[] offsets, byte[] bytes, int bytesOffset) {
+      this.docBase = docBase;
+      this.chunkDocs = chunkDocs;
+      this.numStoredFields = numStoredFields;
+      this.offsets = offsets;
+      this.bytes = bytes;
+      this.bytesOffset = bytesOffset;
+      this.ramBytes = CHUNK_OVERHEAD + RamUsageEstimator.sizeOf(bytes)
+          + RamUsageEstimator.sizeOf(numStoredFields) + RamUsageEstimator.sizeOf(offsets);
+    }
+  }
+}
@@ -36,6 +36,9 @@ import static org.apache.lucene.codecs.lucene40.Lucene40StoredFieldsWriter.FIELD
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.StoredFieldsReader;
@@ -88,6 +91,10 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
   private final Decompressor decompressor;
   private final BytesRef bytes;
   private final int numDocs;
+  // identifies the segment in the chunk caches, shared with the clones
+  private final Object cacheKey;
+  // the chunk caches holding chunks of the segment, to purge on close, shared with the clones
+  private final Set<ChunkCache> chunkCaches;
   private boolean closed;
 
   // used by clone
@@ -101,6 +108,8 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
     this.compressionMode = reader.compressionMode;
     this.decompressor = reader.decompressor.clone();
     this.numDocs = reader.numDocs;
+    this.cacheKey = reader.cacheKey;
+    this.chunkCaches = reader.chunkCaches;
     this.bytes = new BytesRef(reader.bytes.bytes.length);
     this.closed = false;
   }
@@ -113,6 +122,8 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
     boolean success = false;
     fieldInfos = fn;
     numDocs = si.getDocCount();
+    cacheKey = new Object();
+    chunkCaches = Collections.newSetFromMap(new ConcurrentHashMap<ChunkCache,Boolean>());
     IndexInput indexStream = null;
     try {
       // Load the index into memory
@@ -169,6 +180,9 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
     if (!closed) {
       IOUtils.close(fieldsStream);
       closed = true;
+      for (ChunkCache cache : chunkCaches) {
+        cache.purge(cacheKey);
+      }
     }
   }
 
@@ -226,6 +240,92 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
   @Override
   public void visitDocument(int docID, StoredFieldVisitor visitor)
       throws IOException {
+    visitDocumentUncached(docID, visitor);
+  }
+
+  /**
+   * Visits a document like {@link #visitDocument(int, StoredFieldVisitor)},
+   * reading its chunk from <code>cache</code> and decompressing and caching
+   * the chunk there if it is not cached yet. The chunks of this segment are
+   * removed from the cache when this reader is closed.
+   */
+  public void visitDocument(int docID, StoredFieldVisitor visitor, ChunkCache cache)
+      throws IOException {
+    if (cache != null) {
+      final ChunkCache.Chunk chunk = getChunk(cache, docID);
+      if (chunk != null) {
+        visitDocument(chunk, docID, visitor);
+        return;
+      }
+    }
+    visitDocumentUncached(docID, visitor);
+  }
+
+  /**
+   * Visits several documents of this segment, decompressing each chunk at
+   * most once. <code>visitors[i]</code> visits document
+   * <code>docIDs[i]</code>, for <code>from &lt;= i &lt; to</code>, and the
+   * document IDs must not decrease; a repeated ID is visited by each of its
+   * visitors. The chunks are read from and kept in
+   * <code>cache</code>, unless it is <code>null</code>.
+   */
+  public void visitDocuments(int[] docIDs, StoredFieldVisitor[] visitors, int from, int to, ChunkCache cache) throws IOException {
+    ChunkCache.Chunk chunk = null;
+    for (int i = from; i < to; ++i) {
+      final int docID = docIDs[i];
+      assert i == from || docID >= docIDs[i - 1];
+      if (chunk == null || docID >= chunk.docBase + chunk.chunkDocs) {
+        if (cache != null) {
+          chunk = getChunk(cache, docID);
+        } else {
+          // only decompress the chunk up to the last document needed
+          final long startPointer = indexReader.getStartPointer(docID);
+          int last = i;
+          while (last + 1 < to && indexReader.getStartPointer(docIDs[last + 1]) == startPointer) {
+            ++last;
+          }
+          fieldsStream.seek(startPointer);
+          chunk = readChunk(docID, docIDs[last]);
+        }
+      }
+      if (chunk == null) {
+        visitDocumentUncached(docID, visitors[i]);
+      } else {
+        visitDocument(chunk, docID, visitors[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the decompressed chunk containing <code>docID</code> from the
+   * cache, or <code>null</code> if it is too large.
+   */
+  private ChunkCache.Chunk getChunk(ChunkCache cache, int docID) throws IOException {
+    final long startPointer = indexReader.getStartPointer(docID);
+    ChunkCache.Chunk chunk = cache.get(cacheKey, startPointer);
+    if (chunk == null) {
+      fieldsStream.seek(startPointer);
+      chunk = readChunk(docID, Integer.MAX_VALUE);
+      if (chunk != null) {
+        if (!chunkCaches.contains(cache)) {
+          chunkCaches.add(cache);
+        }
+        cache.put(cacheKey, startPointer, chunk);
+      }
+    }
+    return chunk;
+  }
+
+  private void visitDocument(ChunkCache.Chunk chunk, int docID, StoredFieldVisitor visitor) throws IOException {
+    final int index = docID - chunk.docBase;
+    if (chunk.numStoredFields[index] != 0) {
+      final int start = chunk.bytesOffset + chunk.offsets[index];
+      final int length = chunk.offsets[index + 1] - chunk.offsets[index];
+      visitFields(new ByteArrayDataInput(chunk.bytes, start, length), chunk.numStoredFields[index], visitor);
+    }
+  }
+
+  private void visitDocumentUncached(int docID, StoredFieldVisitor visitor) throws IOException {
     fieldsStream.seek(indexReader.getStartPointer(docID));
 
     final int docBase = fieldsStream.readVInt();
@@ -338,6 +438,10 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
       documentInput = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
     }
 
+    visitFields(documentInput, numStoredFields, visitor);
+  }
+
+  private void visitFields(DataInput documentInput, int numStoredFields, StoredFieldVisitor visitor) throws IOException {
     for (int fieldIDX = 0; fieldIDX < numStoredFields; fieldIDX++) {
       final long infoAndBits = documentInput.readVLong();
       final int fieldNumber = (int) (infoAndBits >>> TYPE_BITS);
@@ -359,6 +463,75 @@ public final class CompressingStoredFieldsReader extends StoredFieldsReader {
     }
   }
 
+  /**
+   * Reads and decompresses the chunk at the current position of the fields
+   * stream, which contains <code>docID</code>, up to the end of
+   * <code>lastDocID</code> or of the chunk if it is beyond, or returns
+   * <code>null</code> if it holds a single document too large to be cached.
+   */
+  private ChunkCache.Chunk readChunk(int docID, int lastDocID) throws IOException {
+    final int docBase = fieldsStream.readVInt();
+    final int chunkDocs = fieldsStream.readVInt();
+    if (docID < docBase
+        || docID >= docBase + chunkDocs
+        || docBase + chunkDocs > numDocs) {
+      throw new CorruptIndexException("Corrupted: docID=" + docID
+          + ", docBase=" + docBase + ", chunkDocs=" + chunkDocs
+          + ", numDocs=" + numDocs + " (resource=" + fieldsStream + ")");
+    }
+
+    final int[] numStoredFields = new int[chunkDocs];
+    final int[] offsets = new int[chunkDocs + 1];
+    if (chunkDocs == 1) {
+      numStoredFields[0] = fieldsStream.readVInt();
+      offsets[1] = fieldsStream.readVInt();
+    } else {
+      final int bitsPerStoredFields = fieldsStream.readVInt();
+      if (bitsPerStoredFields == 0) {
+        Arrays.fill(numStoredFields, fieldsStream.readVInt());
+      } else if (bitsPerStoredFields > 31) {
+        throw new CorruptIndexException("bitsPerStoredFields=" + bitsPerStoredFields + " (resource=" + fieldsStream + ")");
+      } else {
+        final PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(fieldsStream, PackedInts.Format.PACKED, packedIntsVersion, chunkDocs, bitsPerStoredFields, 1);
+        for (int i = 0; i < chunkDocs; ++i) {
+          numStoredFields[i] = (int) it.next();
+        }
+      }
+
+      final int bitsPerLength = fieldsStream.readVInt();
+      if (bitsPerLength == 0) {
+        final int length = fieldsStream.readVInt();
+        for (int i = 0; i < chunkDocs; ++i) {
+          offsets[i + 1] = offsets[i] + length;
+        }
+      } else if (bitsPerLength > 31) {
+        throw new CorruptIndexException("bitsPerLength=" + bitsPerLength + " (resource=" + fieldsStream + ")");
+      } else {
+        final PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(fieldsStream, PackedInts.Format.PACKED, packedIntsVersion, chunkDocs, bitsPerLength, 1);
+        for (int i = 0; i < chunkDocs; ++i) {
+          offsets[i + 1] = offsets[i] + (int) it.next();
+        }
+      }
+    }
+
+    final int index = docID - docBase;
+    if ((offsets[index + 1] == offsets[index]) != (numStoredFields[index] == 0)) {
+      throw new CorruptIndexException("length=" + (offsets[index + 1] - offsets[index]) + ", numStoredFields=" + numStoredFields[index] + " (resource=" + fieldsStream + ")");
+    }
+
+    final int totalLength = offsets[chunkDocs];
+    if (version >= VERSION_BIG_CHUNKS && totalLength >= 2 * chunkSize) {
+      return null;
+    }
+    final int length = offsets[Math.min(lastDocID - docBase, chunkDocs - 1) + 1];
+    final BytesRef bytes = new BytesRef();
+    decompressor.decompress(fieldsStream, totalLength, 0, length, bytes);
+    if (bytes.length != length) {
+      throw new CorruptIndexException("Corrupted: expected length = " + length + ", got " + bytes.length + " (resource=" + fieldsStream + ")");
+    }
+    return new ChunkCache.Chunk(docBase, chunkDocs, numStoredFields, offsets, bytes.bytes, bytes.offset);
+  }
+
   @Override
   public StoredFieldsReader clone() {
     ensureOpen();
@@ -513,7 +513,10 @@ public final class PForDeltaDocIdSet extends DocIdSet {
 
   /** Return the memory usage of this instance. */
   public long ramBytesUsed() {
-    return RamUsageEstimator.alignObjectSize(3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF) + docIDs.ramBytesUsed() + offsets.ramBytesUsed();
+    return RamUsageEstimator.alignObjectSize(3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + 2 * RamUsageEstimator.NUM_BYTES_INT)
+        + RamUsageEstimator.sizeOf(data)
+        + docIDs.ramBytesUsed()
+        + offsets.ramBytesUsed();
   }
 
 }
@@ -190,6 +190,11 @@ public class SolrConfig extends Config {
       conf = new CacheConfig(FastLRUCache.class, args, null);
     }
     fieldValueCacheConfig = conf;
+    segmentFilterCacheMaxRamMB = getInt("query/segmentFilterCache/@maxRamMB", 0);
+    segmentDocumentCacheMaxRamMB = getInt("query/segmentDocumentCache/@maxRamMB", 0);
+    storedFieldsChunkCacheMaxRamMB = getInt("query/storedFieldsChunkCache/@maxRamMB", 0);
+    autowarmThreads = Math.max(1, getInt("query/autowarmThreads", 1));
+    documentFetchThreads = Math.max(1, getInt("query/documentFetchThreads", 1));
     unlockOnStartup = getBool(indexConfigPrefix+"/unlockOnStartup", false);
     useColdSearcher = getBool("query/useColdSearcher",false);
     dataDir = get("dataDir", null);
@@ -311,6 +316,16 @@ public class SolrConfig extends Config {
   public final CacheConfig documentCacheConfig;
   public final CacheConfig fieldValueCacheConfig;
   public final CacheConfig[] userCacheConfigs;
+  /** heap of the per-segment filter cache shared by the searchers, 0 when it is disabled */
+  public final int segmentFilterCacheMaxRamMB;
+  /** heap of the per-segment document cache shared by the searchers, 0 when it is disabled */
+  public final int segmentDocumentCacheMaxRamMB;
+  /** heap of the cache of decompressed stored fields chunks of this core, shared by its searchers, 0 when it is disabled */
+  public final int storedFieldsChunkCacheMaxRamMB;
+  /** number of threads regenerating the entries of a cache at once during autowarming */
+  public final int autowarmThreads;
+  /** number of threads reading the segments of a large result page at once */
+  public final int documentFetchThreads;
   // SolrIndexSearcher - more...
   public final boolean useFilterForSortedQuery;
   public final int queryResultWindowSize;
@@ -19,6 +19,7 @@ package org.apache.solr.core;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.compressing.ChunkCache;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexDeletionPolicy;
@@ -68,6 +69,9 @@ import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.IndexSchemaFactory;
 import org.apache.solr.schema.SimilarityFactory;
 import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SegmentDocumentCache;
+import org.apache.solr.search.SegmentFilterCache;
+import org.apache.solr.search.SolrChunkCacheMBean;
 import org.apache.solr.search.SolrFieldCacheMBean;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.ValueSourceParser;
@@ -159,6 +163,9 @@ public final class SolrCore implements SolrInfoMBean {
   private final Map<String,SearchComponent> searchComponents;
   private final Map<String,UpdateRequestProcessorChain> updateProcessorChains;
   private final Map<String, SolrInfoMBean> infoRegistry;
+  private final SegmentFilterCache segmentFilterCache;
+  private final SegmentDocumentCache segmentDocumentCache;
+  private final ChunkCache chunkCache;
   private IndexDeletionPolicyWrapper solrDelPolicy;
   private DirectoryFactory directoryFactory;
   private IndexReaderFactory indexReaderFactory;
@@ -202,6 +209,46 @@ public final class SolrCore implements SolrInfoMBean {
   public SolrConfig getSolrConfig() {
     return solrConfig;
   }
+
+  /**
+   * Gets the per-segment filter cache shared by the searchers of this core,
+   * or null if it is not enabled.
+   */
+  public SegmentFilterCache getSegmentFilterCache() {
+    return segmentFilterCache;
+  }
+
+  /**
+   * Gets the per-segment document cache shared by the searchers of this core,
+   * or null if it is not enabled.
+   */
+  public SegmentDocumentCache getSegmentDocumentCache() {
+    return segmentDocumentCache;
+  }
+
+  /**
+   * Gets the cache of decompressed stored fields chunks shared by the searchers
+   * of this core, or null if it is not enabled.
+   */
+  public ChunkCache getChunkCache() {
+    return chunkCache;
+  }
+
+  /**
+   * Gets the executor regenerating the entries of the caches of a new searcher,
+   * or null if they are regenerated in the thread warming the searcher.
+   */
+  public ExecutorService getAutowarmExecutor() {
+    return autowarmExecutor;
+  }
+
+  /**
+   * Gets the executor reading the documents of large result pages segment by
+   * segment, or null if they are read in the thread of the request.
+   */
+  public ExecutorService getDocumentFetchExecutor() {
+    return documentFetchExecutor;
+  }
   
   /**
    * Gets the schema resource name used by this core instance.
@@ -645,6 +692,11 @@ public final class SolrCore implements SolrInfoMBean {
     this.searchComponents = null;
     this.updateProcessorChains = null;
     this.infoRegistry = null;
+    this.segmentFilterCache = null;
+    this.segmentDocumentCache = null;
+    this.chunkCache = null;
+    this.autowarmExecutor = null;
+    this.documentFetchExecutor = null;
     this.codec = null;
 
     solrCoreState = null;
@@ -714,6 +766,29 @@ public final class SolrCore implements SolrInfoMBean {
 
     infoRegistry.put("fieldCache", new SolrFieldCacheMBean());
 
+    if (config.segmentFilterCacheMaxRamMB > 0) {
+      segmentFilterCache = new SegmentFilterCache(config.segmentFilterCacheMaxRamMB);
+      infoRegistry.put("segmentFilterCache", segmentFilterCache);
+    } else {
+      segmentFilterCache = null;
+    }
+    if (config.segmentDocumentCacheMaxRamMB > 0) {
+      segmentDocumentCache = new SegmentDocumentCache(config.segmentDocumentCacheMaxRamMB);
+      infoRegistry.put("segmentDocumentCache", segmentDocumentCache);
+    } else {
+      segmentDocumentCache = null;
+    }
+    if (config.storedFieldsChunkCacheMaxRamMB > 0) {
+      chunkCache = new ChunkCache(config.storedFieldsChunkCacheMaxRamMB * 1024L * 1024L);
+      infoRegistry.put("storedFieldsChunkCache", new SolrChunkCacheMBean(chunkCache));
+    } else {
+      chunkCache = null;
+    }
+    autowarmExecutor = config.autowarmThreads > 1 ? Executors.newFixedThreadPool(config.autowarmThreads,
+        new DefaultSolrThreadFactory("autowarmExecutor")) : null;
+    documentFetchExecutor = config.documentFetchThreads > 1 ? Executors.newFixedThreadPool(config.documentFetchThreads,
+        new DefaultSolrThreadFactory("documentFetchExecutor")) : null;
+
     if (schema==null) {
       schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, config);
     }
@@ -1027,6 +1102,22 @@ public final class SolrCore implements SolrInfoMBean {
       SolrException.log(log, e);
     }
 
+    if (autowarmExecutor != null) {
+      try {
+        ExecutorUtil.shutdownAndAwaitTermination(autowarmExecutor);
+      } catch (Throwable e) {
+        SolrException.log(log, e);
+      }
+    }
+
+    if (documentFetchExecutor != null) {
+      try {
+        ExecutorUtil.shutdownAndAwaitTermination(documentFetchExecutor);
+      } catch (Throwable e) {
+        SolrException.log(log, e);
+      }
+    }
+
     try {
       // Since we waited for the searcherExecutor to shut down,
       // there should be no more searchers warming in the background
@@ -1039,6 +1130,16 @@ public final class SolrCore implements SolrInfoMBean {
     } catch (Throwable e) {
       SolrException.log(log,e);
     }
+
+    if (segmentFilterCache != null) {
+      segmentFilterCache.clear();
+    }
+    if (segmentDocumentCache != null) {
+      segmentDocumentCache.clear();
+    }
+    if (chunkCache != null) {
+      chunkCache.clear();
+    }
     
     if (coreStateClosed) {
       
@@ -1260,6 +1361,10 @@ public final class SolrCore implements SolrInfoMBean {
 
   final ExecutorService searcherExecutor = Executors.newSingleThreadExecutor(
       new DefaultSolrThreadFactory("searcherExecutor"));
+  // regenerates cache entries for the searcherExecutor, null if autowarming is serial
+  private final ExecutorService autowarmExecutor;
+  // reads the documents of large result pages in parallel, null if they are read by the request thread
+  private final ExecutorService documentFetchExecutor;
   private int onDeckSearchers;  // number of searchers preparing
   // Lock ordering: one can acquire the openSearcherLock and then the searcherLock, but not vice-versa.
   private Object searcherLock = new Object();  // the sync object for the searcher
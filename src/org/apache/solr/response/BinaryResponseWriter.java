@@ -31,6 +31,7 @@ import org.apache.solr.response.transform.DocTransformer;
 import org.apache.solr.response.transform.TransformContext;
 import org.apache.solr.schema.*;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.PrefetchingDocumentIterator;
 import org.apache.solr.search.ReturnFields;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.slf4j.Logger;
@@ -141,9 +142,11 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
       
       Set<String> fnames = returnFields.getLuceneFieldNames();
       context.iterator = ids.iterator();
+      // the documents are read a window at a time, ahead of the iterator the transformer uses
+      PrefetchingDocumentIterator docs = new PrefetchingDocumentIterator(searcher, ids, fnames, ResultContext.FETCH_WINDOW);
       for (int i = 0; i < sz; i++) {
         int id = context.iterator.nextDoc();
-        Document doc = searcher.doc(id, fnames);
+        Document doc = docs.next();
         SolrDocument sdoc = getDoc(doc);
         if( transformer != null ) {
           transformer.transform(sdoc, id);
@@ -26,6 +26,9 @@ import org.apache.solr.search.DocList;
  *
  */
 public class ResultContext {
+  /** the most documents of the result the response writers read at once */
+  public static final int FETCH_WINDOW = 1000;
+
   public Query query;
   public DocList docs;
 }
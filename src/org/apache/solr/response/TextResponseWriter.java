@@ -36,6 +36,7 @@ import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.DateField;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.PrefetchingDocumentIterator;
 import org.apache.solr.search.ReturnFields;
 
 /** Base class for text-oriented response writers.
@@ -265,9 +266,11 @@ public abstract class TextResponseWriter {
     }
     int sz = ids.size();
     Set<String> fnames = fields.getLuceneFieldNames();
+    // the documents are read a window at a time, ahead of the iterator the transformer uses
+    PrefetchingDocumentIterator docs = new PrefetchingDocumentIterator(context.searcher, ids, fnames, ResultContext.FETCH_WINDOW);
     for (int i=0; i<sz; i++) {
       int id = context.iterator.nextDoc();
-      Document doc = context.searcher.doc(id, fnames);
+      Document doc = docs.next();
       SolrDocument sdoc = toSolrDocument( doc );
       if( transformer != null ) {
         transformer.transform( sdoc, id);
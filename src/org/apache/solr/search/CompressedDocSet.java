@@ -0,0 +1,470 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetIterator;
+import org.apache.lucene.util.PForDeltaDocIdSet;
+import org.apache.lucene.util.WAH8DocIdSet;
+
+/**
+ * <code>CompressedDocSet</code> is a read-only set of documents encoded with
+ * {@link PForDeltaDocIdSet} (frame of reference coding of the gaps, best for
+ * scattered documents) or {@link WAH8DocIdSet} (run-length coding of the bits,
+ * best for clustered documents).
+ * <p>
+ * Together with {@link SortedIntDocSet} for sparse and {@link BitDocSet} for
+ * dense sets, {@link #compress(DocSet)} picks the smallest representation
+ * of a set that is kept around, e.g. in the filterCache. The set has no fast
+ * random access, so set operations walk it in order: against sets with random
+ * access by testing each of its documents, against the others by leap-frogging
+ * both iterators.
+ */
+public class CompressedDocSet extends DocSetBase {
+
+  final DocIdSet set;
+  final int size;
+  final int maxDoc;
+
+  /**
+   * @param set an encoded set; its iterator must support {@link DocIdSetIterator#advance}
+   * @param size the number of documents of the set
+   * @param maxDoc one more than the largest document the set may contain
+   */
+  public CompressedDocSet(DocIdSet set, int size, int maxDoc) {
+    this.set = set;
+    this.size = size;
+    this.maxDoc = maxDoc;
+  }
+
+  /**
+   * Like {@link #compress(DocSet, int)}, taking <code>maxDoc</code> from the
+   * capacity of the bits.
+   */
+  public static DocSet compress(DocSet docs) {
+    if (!(docs instanceof BitDocSet)) return docs;
+    // the bits are sized for maxDoc
+    long capacity = ((BitDocSet)docs).getBits().capacity();
+    return compress(docs, (int)Math.min(capacity, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Returns the smallest of <code>docs</code>, its {@link PForDeltaDocIdSet} and its
+   * {@link WAH8DocIdSet} encoding. A {@link BitDocSet} is only replaced by an encoding
+   * of at most a third of its size: intersecting bits counts 64 documents at once,
+   * while an encoded set is walked document by document. Other sets are already
+   * compact and returned as they are.
+   */
+  public static DocSet compress(DocSet docs, int maxDoc) {
+    if (!(docs instanceof BitDocSet)) return docs;
+    OpenBitSet bits = ((BitDocSet)docs).getBits();
+    try {
+      WAH8DocIdSet wah = new WAH8DocIdSet.Builder().add(new OpenBitSetIterator(bits)).build();
+      DocIdSet best = wah;
+      long bestBytes = wah.ramBytesUsed();
+      // the ramBytesUsed() of an empty PForDeltaDocIdSet fails
+      if (docs.size() > 0) {
+        PForDeltaDocIdSet pfor = new PForDeltaDocIdSet.Builder().add(new OpenBitSetIterator(bits)).build();
+        if (pfor.ramBytesUsed() <= bestBytes) {
+          best = pfor;
+          bestBytes = pfor.ramBytesUsed();
+        }
+      }
+      if (bestBytes * 3 > docs.memSize()) return docs;
+      return new CompressedDocSet(best, docs.size(), maxDoc);
+    } catch (IOException e) {
+      // in-memory iterators don't throw
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** @return the encoding of the set */
+  public DocIdSet getDocIdSet() {
+    return set;
+  }
+
+  DocIdSetIterator disi() {
+    try {
+      DocIdSetIterator iter = set.iterator();
+      // empty sets may have no iterator
+      return iter == null ? DocIdSetIterator.empty() : iter;
+    } catch (IOException e) {
+      // in-memory sets don't throw
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public DocIterator iterator() {
+    return new DocIterator() {
+      private final DocIdSetIterator iter = disi();
+      private int pos = advance();
+
+      private int advance() {
+        try {
+          return iter.nextDoc();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return pos != DocIdSetIterator.NO_MORE_DOCS;
+      }
+
+      @Override
+      public Integer next() {
+        return nextDoc();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("CompressedDocSet is read-only");
+      }
+
+      @Override
+      public int nextDoc() {
+        int old = pos;
+        pos = advance();
+        return old;
+      }
+
+      @Override
+      public float score() {
+        return 0.0f;
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Costs an index lookup and a block decode; use the set operations where possible. */
+  @Override
+  public boolean exists(int doc) {
+    try {
+      return disi().advance(doc) == doc;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public OpenBitSet getBits() {
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    setBitsOn(bits);
+    return bits;
+  }
+
+  @Override
+  public void setBitsOn(OpenBitSet target) {
+    DocIterator iter = iterator();
+    while (iter.hasNext()) target.set(iter.nextDoc());
+  }
+
+  @Override
+  public long memSize() {
+    if (set instanceof WAH8DocIdSet) return ((WAH8DocIdSet)set).ramBytesUsed() + 32;
+    if (set instanceof PForDeltaDocIdSet) return (size == 0 ? 0 : ((PForDeltaDocIdSet)set).ramBytesUsed()) + 32;
+    // unknown encoding, assume an int per document
+    return ((long)size << 2) + 32;
+  }
+
+  /** sets that answer {@link DocSet#exists} in constant time */
+  private static boolean randomAccess(DocSet other) {
+    return other instanceof BitDocSet || other instanceof OffHeapBitDocSet || other instanceof HashDocSet;
+  }
+
+  /** Iterates the documents of any DocSet in increasing order. */
+  static DocIdSetIterator sortedIterator(DocSet other) {
+    if (other instanceof CompressedDocSet) {
+      return ((CompressedDocSet)other).disi();
+    }
+    if (other instanceof SortedIntDocSet) {
+      int[] docs = ((SortedIntDocSet)other).getDocs();
+      return new IntArrayIterator(docs, docs.length);
+    }
+    if (other instanceof BitDocSet) {
+      return new OpenBitSetIterator(((BitDocSet)other).getBits());
+    }
+    int[] docs = new int[other.size()];
+    int n = 0;
+    for (DocIterator iter = other.iterator(); iter.hasNext();) docs[n++] = iter.nextDoc();
+    // e.g. a DocSlice is in score order
+    Arrays.sort(docs, 0, n);
+    return new IntArrayIterator(docs, n);
+  }
+
+  /**
+   * Calls <code>visitor</code> with each document of this set that is (or, if
+   * <code>in</code> is false, is not) in <code>other</code>, in increasing order,
+   * until it returns false.
+   */
+  private void walk(DocSet other, boolean in, Visitor visitor) {
+    try {
+      DocIdSetIterator lead = disi();
+      if (randomAccess(other)) {
+        for (int doc = lead.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = lead.nextDoc()) {
+          if (other.exists(doc) == in && !visitor.visit(doc)) return;
+        }
+        return;
+      }
+      DocIdSetIterator follow = sortedIterator(other);
+      if (in && other.size() < size) {
+        // lead with the smaller set
+        DocIdSetIterator tmp = lead; lead = follow; follow = tmp;
+      }
+      int target = -1;
+      for (int doc = lead.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = lead.nextDoc()) {
+        if (target < doc) target = follow.advance(doc);
+        if ((target == doc) == in && !visitor.visit(doc)) return;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private interface Visitor {
+    boolean visit(int doc);
+  }
+
+  private static final class Counter implements Visitor {
+    int count;
+    @Override
+    public boolean visit(int doc) {
+      count++;
+      return true;
+    }
+  }
+
+  private static final class Collector implements Visitor {
+    final int[] docs;
+    int count;
+    Collector(int max) {
+      docs = new int[max];
+    }
+    @Override
+    public boolean visit(int doc) {
+      docs[count++] = doc;
+      return true;
+    }
+  }
+
+  /** chooses between a sorted array and bits like {@link DocSetCollector} */
+  private DocSet toDocSet(int[] docs, int count) {
+    if (count <= maxDoc >> 6) return new SortedIntDocSet(docs, count);
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    for (int i = 0; i < count; i++) bits.fastSet(docs[i]);
+    return new BitDocSet(bits, count);
+  }
+
+  @Override
+  public int intersectionSize(DocSet other) {
+    Counter counter = new Counter();
+    walk(other, true, counter);
+    return counter.count;
+  }
+
+  @Override
+  public boolean intersects(DocSet other) {
+    final boolean[] found = new boolean[1];
+    walk(other, true, new Visitor() {
+      @Override
+      public boolean visit(int doc) {
+        found[0] = true;
+        return false;
+      }
+    });
+    return found[0];
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    Collector collector = new Collector(Math.min(size, other.size()));
+    walk(other, true, collector);
+    return toDocSet(collector.docs, collector.count);
+  }
+
+  @Override
+  public int andNotSize(DocSet other) {
+    return size - intersectionSize(other);
+  }
+
+  @Override
+  public DocSet andNot(DocSet other) {
+    Collector collector = new Collector(size);
+    walk(other, false, collector);
+    return toDocSet(collector.docs, collector.count);
+  }
+
+  @Override
+  public int unionSize(DocSet other) {
+    return size + other.size() - intersectionSize(other);
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    OpenBitSet bits = getBits();
+    if (other instanceof BitDocSet) {
+      bits.union(((BitDocSet)other).getBits());
+    } else {
+      for (DocIterator iter = other.iterator(); iter.hasNext();) bits.set(iter.nextDoc());
+    }
+    return new BitDocSet(bits);
+  }
+
+  /** Removes the documents of this set from the sorted <code>docs</code>. */
+  DocSet andNotFrom(int[] docs) {
+    try {
+      DocIdSetIterator follow = disi();
+      int[] result = new int[docs.length];
+      int count = 0;
+      int target = -1;
+      for (int doc : docs) {
+        if (target < doc) target = follow.advance(doc);
+        if (target != doc) result[count++] = doc;
+      }
+      return new SortedIntDocSet(result, count);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public Filter getTopFilter() {
+    return new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) {
+        AtomicReader reader = context.reader();
+        // all Solr DocSets that are used as filters only include live docs
+        final Bits acceptDocs2 = acceptDocs == null ? null : (reader.getLiveDocs() == acceptDocs ? null : acceptDocs);
+
+        final int base = context.docBase;
+        final int maxDoc = reader.maxDoc();
+        final int max = base + maxDoc;   // one past the max doc in this segment.
+
+        return BitsFilteredDocIdSet.wrap(new DocIdSet() {
+          @Override
+          public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+              final DocIdSetIterator iter = disi();
+              int adjustedDoc=-1;
+
+              @Override
+              public int docID() {
+                return adjustedDoc;
+              }
+
+              @Override
+              public int nextDoc() throws IOException {
+                int pos = adjustedDoc == -1 ? iter.advance(base) : iter.nextDoc();
+                return adjustedDoc = (pos != NO_MORE_DOCS && pos<max) ? pos-base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public int advance(int target) throws IOException {
+                if (target==NO_MORE_DOCS) return adjustedDoc=NO_MORE_DOCS;
+                int pos = iter.advance(target+base);
+                return adjustedDoc = (pos != NO_MORE_DOCS && pos<max) ? pos-base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public long cost() {
+                return size;
+              }
+            };
+          }
+
+          @Override
+          public boolean isCacheable() {
+            return true;
+          }
+
+          @Override
+          public Bits bits() {
+            // no random access
+            return null;
+          }
+
+        }, acceptDocs2);
+      }
+    };
+  }
+
+  /** A DocIdSetIterator over a sorted array, advancing by exponential search. */
+  static final class IntArrayIterator extends DocIdSetIterator {
+    private final int[] docs;
+    private final int len;
+    private int i = -1;
+    private int doc = -1;
+
+    IntArrayIterator(int[] docs, int len) {
+      this.docs = docs;
+      this.len = len;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() {
+      return doc = ++i < len ? docs[i] : NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) {
+      int lo = i + 1;
+      int step = 1;
+      int hi = lo;
+      while (hi < len && docs[hi] < target) {
+        lo = hi + 1;
+        hi += step;
+        step <<= 1;
+      }
+      if (hi >= len) hi = len - 1;
+      // the first doc >= target is in [lo, hi], if any
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (docs[mid] < target) lo = mid + 1;
+        else hi = mid - 1;
+      }
+      i = lo;
+      return doc = i < len ? docs[i] : NO_MORE_DOCS;
+    }
+
+    @Override
+    public long cost() {
+      return len;
+    }
+  }
+}
@@ -16,7 +16,6 @@ package org.apache.solr.search;
  * limitations under the License.
  */
 
-import org.apache.solr.common.SolrException;
 import org.apache.solr.util.ConcurrentLRUCache;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
@@ -149,20 +148,22 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
     if (isAutowarmingOn()) {
       int sz = autowarm.getWarmCount(other.size());
       Map items = other.cache.getLatestAccessedItems(sz);
-      Map.Entry[] itemsArr = new Map.Entry[items.size()];
+      // from the most recently accessed item to the least
+      Object[] keys = new Object[items.size()];
+      Object[] vals = new Object[items.size()];
       int counter = 0;
       for (Object mapEntry : items.entrySet()) {
-        itemsArr[counter++] = (Map.Entry) mapEntry;
+        keys[counter] = ((Map.Entry) mapEntry).getKey();
+        vals[counter++] = ((Map.Entry) mapEntry).getValue();
       }
-      for (int i = itemsArr.length - 1; i >= 0; i--) {
-        try {
-          boolean continueRegen = regenerator.regenerateItem(searcher,
-                  this, old, itemsArr[i].getKey(), itemsArr[i].getValue());
-          if (!continueRegen) break;
-        }
-        catch (Throwable e) {
-          SolrException.log(log, "Error during auto-warming of key:" + itemsArr[i].getKey(), e);
-        }
+      regenerateItems(searcher, this, old, keys, vals);
+
+      // put the items again from the least recently accessed to the most, so that
+      // the ordering will be correct in the new cache.
+      for (int i = keys.length - 1; i >= 0; i--) {
+        K key = (K) keys[i];
+        V val = cache.get(key);
+        if (val != null) cache.put(key, val);
       }
     }
     warmupTime = System.currentTimeMillis() - warmingStartTime;
@@ -225,6 +226,8 @@ public class FastLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
     lst.add("size", size);
 
     lst.add("warmupTime", warmupTime);
+    lst.add("warmupEntries", warmupEntries);
+    lst.add("warmupSkipped", warmupSkipped);
     lst.add("cumulative_lookups", clookups);
     lst.add("cumulative_hits", chits);
     lst.add("cumulative_hitratio", calcHitRatio(clookups, chits));
@@ -22,7 +22,6 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.solr.common.SolrException;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 
@@ -173,23 +172,22 @@ public class LRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
         int skip = other.map.size() - sz;
         for (int i=0; i<skip; i++) iter.next();
 
-
-        for (int i=0; i<sz; i++) {
+        // store them from the newest to the oldest, so that the most recently
+        // used entries are regenerated first
+        for (int i=sz-1; i>=0; i--) {
           Map.Entry<K,V> entry = iter.next();
           keys[i]=entry.getKey();
           vals[i]=entry.getValue();
         }
       }
 
-      // autowarm from the oldest to the newest entries so that the ordering will be
+      regenerateItems(searcher, this, old, keys, vals);
+
+      // touch the entries from the oldest to the newest so that the ordering will be
       // correct in the new cache.
-      for (int i=0; i<keys.length; i++) {
-        try {
-          boolean continueRegen = regenerator.regenerateItem(searcher, this, old, keys[i], vals[i]);
-          if (!continueRegen) break;
-        }
-        catch (Throwable e) {
-          SolrException.log(log,"Error during auto-warming of key:" + keys[i], e);
+      synchronized (map) {
+        for (int i=keys.length-1; i>=0; i--) {
+          map.get(keys[i]);
         }
       }
     }
@@ -233,6 +231,8 @@ public class LRUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
       lst.add("size", map.size());
     }
     lst.add("warmupTime", warmupTime);
+    lst.add("warmupEntries", warmupEntries);
+    lst.add("warmupSkipped", warmupSkipped);
     
     long clookups = stats.lookups.get();
     long chits = stats.hits.get();
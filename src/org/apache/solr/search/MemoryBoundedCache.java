@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.SolrRequestInfo;
+
+
+/**
+ * A cache bounded by the heap its values use rather than by their number.
+ * <p>
+ * The size of a {@link DocSet} value is its {@link DocSet#memSize()}, and that of a
+ * {@link DocSlice} its {@link DocSlice#memSize()}; every entry is also charged
+ * {@link #ENTRY_OVERHEAD} bytes for its key and bookkeeping. When the sum exceeds
+ * <code>maxRamMB</code>, or the number of entries exceeds <code>size</code>, entries are
+ * evicted by GreedyDual-Size: each entry has a priority of <code>L + cost/bytes</code>,
+ * where the cost to recompute it is the number of documents of the value and
+ * <code>L</code> is the priority of the last evicted entry. The entry of lowest priority
+ * is evicted first, so that large entries which are cheap to recompute go before small
+ * or expensive ones, and entries that are not used age as <code>L</code> grows.
+ * <p>
+ * Parameters: <code>maxRamMB</code> (no limit by default), <code>size</code> (1024 by
+ * default if <code>maxRamMB</code> is not set, otherwise no limit) and
+ * <code>initialSize</code>. The autowarmed entries are those of highest priority.
+ * <p>
+ * With <code>compress="true"</code>, {@link BitDocSet} values are replaced by the
+ * smallest representation {@link CompressedDocSet#compress(DocSet)} finds for them.
+ * With <code>offHeap="true"</code>, the {@link BitDocSet} values that remain are copied into an
+ * {@link OffHeapBitDocSet} when they are put. The cache holds a reference to each of them,
+ * which it gives back when the entry is evicted, replaced or cleared, or the cache is closed.
+ * A request that gets one takes a reference too, given back when the request is done, so that
+ * the set is freed once neither the cache nor any request uses it. Outside of a request,
+ * {@link #get} returns an on-heap copy instead.
+ */
+public class MemoryBoundedCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
+
+  /** approximate heap used by an entry besides its value */
+  public static final long ENTRY_OVERHEAD = 128;
+
+  /* An instance of this class will be shared across multiple instances
+   * of a MemoryBoundedCache at the same time.  Make sure everything is thread safe.
+   */
+  private static class CumulativeStats {
+    AtomicLong lookups = new AtomicLong();
+    AtomicLong hits = new AtomicLong();
+    AtomicLong inserts = new AtomicLong();
+    AtomicLong evictions = new AtomicLong();
+    AtomicLong evictionsRamUsage = new AtomicLong();
+  }
+
+  private CumulativeStats stats;
+
+  // per instance stats.  The synchronization used for the map will also be
+  // used for updating these statistics (and hence they are not AtomicLongs
+  private long lookups;
+  private long hits;
+  private long inserts;
+  private long evictions;
+  private long evictionsRamUsage;
+
+  private long warmupTime = 0;
+
+  private Map<K,Entry<K,V>> map;
+  // all entries of the map, lowest priority first
+  private TreeSet<Entry<K,V>> queue;
+  private int limit;
+  private long maxRamBytes;
+  private boolean compress;
+  private boolean offHeap;
+  private long ramBytesUsed;
+  // the "L" of GreedyDual-Size
+  private double inflation;
+  private long accessCounter;
+  private String description="Memory Bounded Cache";
+
+  private static final class Entry<K,V> implements Comparable<Entry<K,V>> {
+    final K key;
+    final V value;
+    final long bytes;
+    final double costPerByte;
+    double priority;
+    long lastAccessed;
+
+    Entry(K key, V value, long bytes, long cost) {
+      this.key = key;
+      this.value = value;
+      this.bytes = bytes;
+      this.costPerByte = (double) cost / bytes;
+    }
+
+    @Override
+    public int compareTo(Entry<K,V> other) {
+      int c = Double.compare(priority, other.priority);
+      if (c != 0) return c;
+      // least recently used first among equal priorities
+      return lastAccessed < other.lastAccessed ? -1 : (lastAccessed == other.lastAccessed ? 0 : 1);
+    }
+  }
+
+  @Override
+  public Object init(Map args, Object persistence, CacheRegenerator regenerator) {
+    super.init(args, regenerator);
+    String str = (String)args.get("maxRamMB");
+    maxRamBytes = str==null ? Long.MAX_VALUE : (long) (Double.parseDouble(str) * 1024L * 1024L);
+    if (maxRamBytes <= 0) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "maxRamMB must be positive for cache " + name() + ": " + str);
+    }
+    str = (String)args.get("size");
+    limit = str==null ? (maxRamBytes==Long.MAX_VALUE ? 1024 : Integer.MAX_VALUE) : Integer.parseInt(str);
+    str = (String)args.get("compress");
+    compress = str!=null && Boolean.parseBoolean(str);
+    str = (String)args.get("offHeap");
+    offHeap = str!=null && Boolean.parseBoolean(str);
+    str = (String)args.get("initialSize");
+    final int initialSize = Math.min(str==null ? 1024 : Integer.parseInt(str), limit);
+    description = generateDescription(limit, initialSize);
+
+    map = new HashMap<K,Entry<K,V>>(initialSize);
+    queue = new TreeSet<Entry<K,V>>();
+
+    if (persistence==null) {
+      // must be the first time a cache of this type is being created
+      persistence = new CumulativeStats();
+    }
+
+    stats = (CumulativeStats)persistence;
+
+    return persistence;
+  }
+
+  /**
+   *
+   * @return Returns the description of this cache.
+   */
+  private String generateDescription(int limit, int initialSize) {
+    String description = "Memory Bounded Cache(maxRamMB=" + (maxRamBytes==Long.MAX_VALUE ? "unlimited" : String.valueOf(maxRamBytes >> 20))
+        + ", maxSize=" + (limit==Integer.MAX_VALUE ? "unlimited" : String.valueOf(limit))
+        + ", initialSize=" + initialSize;
+    if (compress) {
+      description += ", compress";
+    }
+    if (offHeap) {
+      description += ", offHeap";
+    }
+    if (isAutowarmingOn()) {
+      description += ", " + getAutowarmDescription();
+    }
+    description += ')';
+    return description;
+  }
+
+  /** heap used by a value, as far as it is known */
+  static long sizeOf(Object value) {
+    if (value instanceof DocSet) return ((DocSet)value).memSize();
+    if (value instanceof DocSlice) return ((DocSlice)value).memSize();
+    return 0;
+  }
+
+  /** relative cost to compute a value again: the number of documents it was collected from */
+  static long costOf(Object value) {
+    if (value instanceof DocSet) return Math.max(1, ((DocSet)value).size());
+    if (value instanceof DocList) return Math.max(1, ((DocList)value).matches());
+    return 1;
+  }
+
+  // must be called with the map lock held and the entry out of the queue
+  private void access(Entry<K,V> e) {
+    e.priority = inflation + e.costPerByte;
+    e.lastAccessed = ++accessCounter;
+  }
+
+  private void evict(boolean ramUsage) {
+    Entry<K,V> eldest = queue.pollFirst();
+    map.remove(eldest.key);
+    decRef(eldest.value);
+    ramBytesUsed -= eldest.bytes;
+    inflation = eldest.priority;
+    // increment evictions regardless of state.
+    evictions++;
+    stats.evictions.incrementAndGet();
+    if (ramUsage) {
+      evictionsRamUsage++;
+      stats.evictionsRamUsage.incrementAndGet();
+    }
+  }
+
+  /** gives back a reference to an off-heap value */
+  private static void decRef(Object value) {
+    if (value instanceof OffHeapBitDocSet) {
+      ((OffHeapBitDocSet)value).decRef();
+    }
+  }
+
+  /**
+   * Returns an off-heap value to a user: takes a reference for the current request, given
+   * back when the request is done, or copies the value onto the heap outside of a request.
+   * Must be called while the reference of this cache keeps the value alive.
+   */
+  @SuppressWarnings("unchecked")
+  private V acquire(V value, SolrRequestInfo requestInfo) {
+    if (!(value instanceof OffHeapBitDocSet)) return value;
+    final OffHeapBitDocSet set = (OffHeapBitDocSet)value;
+    if (requestInfo == null) {
+      return (V) new BitDocSet(set.getBits(), set.size());
+    }
+    set.incRef();
+    requestInfo.addCloseHook(new Closeable() {
+      @Override
+      public void close() {
+        set.decRef();
+      }
+    });
+    return value;
+  }
+
+  @Override
+  public int size() {
+    synchronized(map) {
+      return map.size();
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(K key, V value) {
+    if (compress && value instanceof BitDocSet) {
+      value = (V) CompressedDocSet.compress((DocSet)value);
+    }
+    if (offHeap && value instanceof BitDocSet) {
+      value = (V) new OffHeapBitDocSet((BitDocSet)value);
+    } else if (value instanceof OffHeapBitDocSet) {
+      // e.g. autowarmed from another cache: this one holds its own reference
+      ((OffHeapBitDocSet)value).incRef();
+    }
+    // sizing a DocSet may count its bits, so do it outside of the lock
+    Entry<K,V> e = new Entry<K,V>(key, value, sizeOf(value) + ENTRY_OVERHEAD, costOf(value));
+    SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    synchronized (map) {
+      if (getState() == State.LIVE) {
+        stats.inserts.incrementAndGet();
+      }
+
+      // increment local inserts regardless of state???
+      // it does make it more consistent with the current size...
+      inserts++;
+      Entry<K,V> old = map.remove(key);
+      if (old != null) {
+        queue.remove(old);
+        ramBytesUsed -= old.bytes;
+      }
+
+      V oldValue = null;
+      if (old != null) {
+        oldValue = acquire(old.value, requestInfo);
+        decRef(old.value);
+      }
+
+      if (e.bytes > maxRamBytes) {
+        // it would not fit even in an empty cache
+        decRef(e.value);
+        evictions++;
+        evictionsRamUsage++;
+        stats.evictions.incrementAndGet();
+        stats.evictionsRamUsage.incrementAndGet();
+      } else {
+        access(e);
+        map.put(key, e);
+        queue.add(e);
+        ramBytesUsed += e.bytes;
+        while (map.size() > limit || ramBytesUsed > maxRamBytes) {
+          evict(map.size() <= limit);
+        }
+      }
+      return oldValue;
+    }
+  }
+
+  @Override
+  public V get(K key) {
+    SolrRequestInfo requestInfo = offHeap ? SolrRequestInfo.getRequestInfo() : null;
+    synchronized (map) {
+      Entry<K,V> e = map.get(key);
+      if (e != null) {
+        queue.remove(e);
+        access(e);
+        queue.add(e);
+      }
+      if (getState() == State.LIVE) {
+        // only increment lookups and hits if we are live.
+        lookups++;
+        stats.lookups.incrementAndGet();
+        if (e!=null) {
+          hits++;
+          stats.hits.incrementAndGet();
+        }
+      }
+      return e==null ? null : acquire(e.value, requestInfo);
+    }
+  }
+
+  @Override
+  public void clear() {
+    synchronized(map) {
+      for (Entry<K,V> e : map.values()) {
+        decRef(e.value);
+      }
+      map.clear();
+      queue.clear();
+      ramBytesUsed = 0;
+      inflation = 0;
+    }
+  }
+
+  /** @return the heap used by the entries, as accounted for the <code>maxRamMB</code> limit */
+  public long ramBytesUsed() {
+    synchronized(map) {
+      return ramBytesUsed;
+    }
+  }
+
+  @Override
+  public void warm(SolrIndexSearcher searcher, SolrCache<K,V> old) {
+    if (regenerator==null) return;
+    long warmingStartTime = System.currentTimeMillis();
+    MemoryBoundedCache<K,V> other = (MemoryBoundedCache<K,V>)old;
+
+    // warm entries
+    if (isAutowarmingOn()) {
+      Object[] keys,vals = null;
+
+      // Don't do the autowarming in the synchronized block, just pull out the keys and values.
+      synchronized (other.map) {
+
+        int sz = autowarm.getWarmCount(other.map.size());
+
+        keys = new Object[sz];
+        vals = new Object[sz];
+
+        // take the entries of highest priority, the most valuable first
+        Iterator<Entry<K,V>> iter = other.queue.descendingIterator();
+        for (int i=0; i<sz; i++) {
+          Entry<K,V> entry = iter.next();
+          keys[i]=entry.key;
+          vals[i]=entry.value;
+          // the old cache still serves requests and may evict it meanwhile
+          if (vals[i] instanceof OffHeapBitDocSet) {
+            ((OffHeapBitDocSet)vals[i]).incRef();
+          }
+        }
+      }
+
+      try {
+        regenerateItems(searcher, this, old, keys, vals);
+      } finally {
+        for (Object val : vals) {
+          decRef(val);
+        }
+      }
+    }
+
+    warmupTime = System.currentTimeMillis() - warmingStartTime;
+  }
+
+
+  @Override
+  public void close() {
+    // give back the references of the cache, the sets are freed once no request uses them
+    clear();
+  }
+
+
+  //////////////////////// SolrInfoMBeans methods //////////////////////
+
+
+  @Override
+  public String getName() {
+    return MemoryBoundedCache.class.getName();
+  }
+
+  @Override
+  public String getDescription() {
+     return description;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList lst = new SimpleOrderedMap();
+    synchronized (map) {
+      lst.add("lookups", lookups);
+      lst.add("hits", hits);
+      lst.add("hitratio", calcHitRatio(lookups,hits));
+      lst.add("inserts", inserts);
+      lst.add("evictions", evictions);
+      lst.add("evictionsRamUsage", evictionsRamUsage);
+      lst.add("size", map.size());
+      lst.add("ramBytesUsed", ramBytesUsed);
+      lst.add("avgEntryBytes", map.isEmpty() ? 0 : ramBytesUsed / map.size());
+    }
+    lst.add("warmupTime", warmupTime);
+    lst.add("warmupEntries", warmupEntries);
+    lst.add("warmupSkipped", warmupSkipped);
+
+    long clookups = stats.lookups.get();
+    long chits = stats.hits.get();
+    lst.add("cumulative_lookups", clookups);
+    lst.add("cumulative_hits", chits);
+    lst.add("cumulative_hitratio", calcHitRatio(clookups,chits));
+    lst.add("cumulative_inserts", stats.inserts.get());
+    lst.add("cumulative_evictions", stats.evictions.get());
+    lst.add("cumulative_evictionsRamUsage", stats.evictionsRamUsage.get());
+
+    return lst;
+  }
+
+  @Override
+  public String toString() {
+    return name() + getStatistics().toString();
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * <code>OffHeapBitDocSet</code> is a read-only bit set of documents whose words
+ * live in a direct {@link ByteBuffer} instead of the Java heap, so that large
+ * cached filters don't have to be traced and copied by the garbage collector.
+ * <p>
+ * Set operations read the off-heap words directly. Their results are
+ * ordinary on-heap DocSets, as they only live for the request.
+ * <p>
+ * The set is reference counted: it is created with one reference, held by its
+ * creator, every other user takes one with {@link #incRef()}, and each reference
+ * is given back with {@link #decRef()}. The off-heap memory is freed when the
+ * last one is, so that an evicted set is not freed while a request still reads it.
+ */
+public class OffHeapBitDocSet extends DocSetBase {
+
+  private final ByteBuffer buffer;
+  private final LongBuffer words;
+  private final int numWords;
+  private final int size;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+  private volatile boolean released;
+
+  /** Copies the bits of <code>bits</code> off the heap. */
+  public OffHeapBitDocSet(BitDocSet bits) {
+    OpenBitSet obs = bits.getBits();
+    long[] arr = obs.getBits();
+    // trailing zero words don't need to be stored
+    int n = obs.getNumWords();
+    while (n > 0 && arr[n-1] == 0) n--;
+    numWords = n;
+    buffer = ByteBuffer.allocateDirect(Math.max(1, n) << 3).order(ByteOrder.nativeOrder());
+    words = buffer.asLongBuffer();
+    words.put(arr, 0, n);
+    size = bits.size();
+  }
+
+  private long word(int i) {
+    return i < numWords ? words.get(i) : 0L;
+  }
+
+  private static long word(long[] arr, int len, int i) {
+    return i < len ? arr[i] : 0L;
+  }
+
+  /** Returns the index of the first set bit at or after <code>index</code>, or -1. */
+  int nextSetBit(int index) {
+    int i = index >>> 6;
+    if (i >= numWords) return -1;
+    long word = words.get(i) >>> index;  // skip all the bits to the right of index
+    if (word != 0) return index + Long.numberOfTrailingZeros(word);
+    while (++i < numWords) {
+      word = words.get(i);
+      if (word != 0) return (i << 6) + Long.numberOfTrailingZeros(word);
+    }
+    return -1;
+  }
+
+  @Override
+  public DocIterator iterator() {
+    return new DocIterator() {
+      private int pos = nextSetBit(0);
+
+      @Override
+      public boolean hasNext() {
+        return pos >= 0;
+      }
+
+      @Override
+      public Integer next() {
+        return nextDoc();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("OffHeapBitDocSet is read-only");
+      }
+
+      @Override
+      public int nextDoc() {
+        int old = pos;
+        pos = nextSetBit(old + 1);
+        return old;
+      }
+
+      @Override
+      public float score() {
+        return 0.0f;
+      }
+    };
+  }
+
+  /**
+   * Copies the bits back onto the heap. Prefer the set operations, which
+   * don't.
+   */
+  @Override
+  public OpenBitSet getBits() {
+    long[] arr = new long[numWords];
+    for (int i = 0; i < numWords; i++) arr[i] = words.get(i);
+    return new OpenBitSet(arr, numWords);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean exists(int doc) {
+    int i = doc >>> 6;
+    return i < numWords && (words.get(i) & (1L << doc)) != 0;
+  }
+
+  @Override
+  public int intersectionSize(DocSet other) {
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      int n = Math.min(numWords, o.numWords);
+      long count = 0;
+      for (int i = 0; i < n; i++) count += Long.bitCount(words.get(i) & o.words.get(i));
+      return (int)count;
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] arr = obs.getBits();
+      int n = Math.min(numWords, obs.getNumWords());
+      long count = 0;
+      for (int i = 0; i < n; i++) count += Long.bitCount(words.get(i) & arr[i]);
+      return (int)count;
+    } else {
+      int count = 0;
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) {
+        if (exists(iter.nextDoc())) count++;
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public boolean intersects(DocSet other) {
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      int n = Math.min(numWords, o.numWords);
+      for (int i = 0; i < n; i++) {
+        if ((words.get(i) & o.words.get(i)) != 0) return true;
+      }
+      return false;
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] arr = obs.getBits();
+      int n = Math.min(numWords, obs.getNumWords());
+      for (int i = 0; i < n; i++) {
+        if ((words.get(i) & arr[i]) != 0) return true;
+      }
+      return false;
+    } else {
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) {
+        if (exists(iter.nextDoc())) return true;
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public DocSet intersection(DocSet other) {
+    if (other instanceof OffHeapBitDocSet || other instanceof BitDocSet) {
+      int n = numWords;
+      long[] arr = new long[n];
+      if (other instanceof OffHeapBitDocSet) {
+        OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+        for (int i = 0; i < n; i++) arr[i] = words.get(i) & o.word(i);
+      } else {
+        OpenBitSet obs = ((BitDocSet)other).bits;
+        long[] oarr = obs.getBits();
+        int olen = obs.getNumWords();
+        for (int i = 0; i < n; i++) arr[i] = words.get(i) & word(oarr, olen, i);
+      }
+      return new BitDocSet(new OpenBitSet(arr, n));
+    }
+    // the other set is small: keep those of its documents that are in this one
+    int[] docs = new int[other.size()];
+    int count = 0;
+    DocIterator iter = other.iterator();
+    while (iter.hasNext()) {
+      int doc = iter.nextDoc();
+      if (exists(doc)) docs[count++] = doc;
+    }
+    // HashDocSet iterates in hash order
+    Arrays.sort(docs, 0, count);
+    return new SortedIntDocSet(docs, count);
+  }
+
+  @Override
+  public int unionSize(DocSet other) {
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      int n = Math.max(numWords, o.numWords);
+      long count = 0;
+      for (int i = 0; i < n; i++) count += Long.bitCount(word(i) | o.word(i));
+      return (int)count;
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] arr = obs.getBits();
+      int olen = obs.getNumWords();
+      int n = Math.max(numWords, olen);
+      long count = 0;
+      for (int i = 0; i < n; i++) count += Long.bitCount(word(i) | word(arr, olen, i));
+      return (int)count;
+    } else {
+      return size() + other.size() - intersectionSize(other);
+    }
+  }
+
+  @Override
+  public int andNotSize(DocSet other) {
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      long count = 0;
+      for (int i = 0; i < numWords; i++) count += Long.bitCount(words.get(i) & ~o.word(i));
+      return (int)count;
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] arr = obs.getBits();
+      int olen = obs.getNumWords();
+      long count = 0;
+      for (int i = 0; i < numWords; i++) count += Long.bitCount(words.get(i) & ~word(arr, olen, i));
+      return (int)count;
+    } else {
+      return size() - intersectionSize(other);
+    }
+  }
+
+  @Override
+  public DocSet andNot(DocSet other) {
+    long[] arr = new long[numWords];
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      for (int i = 0; i < numWords; i++) arr[i] = words.get(i) & ~o.word(i);
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] oarr = obs.getBits();
+      int olen = obs.getNumWords();
+      for (int i = 0; i < numWords; i++) arr[i] = words.get(i) & ~word(oarr, olen, i);
+    } else {
+      for (int i = 0; i < numWords; i++) arr[i] = words.get(i);
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) {
+        int doc = iter.nextDoc();
+        int i = doc >>> 6;
+        if (i < numWords) arr[i] &= ~(1L << doc);
+      }
+    }
+    return new BitDocSet(new OpenBitSet(arr, numWords));
+  }
+
+  @Override
+  public DocSet union(DocSet other) {
+    OpenBitSet newbits;
+    if (other instanceof OffHeapBitDocSet) {
+      OffHeapBitDocSet o = (OffHeapBitDocSet)other;
+      int n = Math.max(numWords, o.numWords);
+      long[] arr = new long[n];
+      for (int i = 0; i < n; i++) arr[i] = word(i) | o.word(i);
+      newbits = new OpenBitSet(arr, n);
+    } else if (other instanceof BitDocSet) {
+      OpenBitSet obs = ((BitDocSet)other).bits;
+      long[] oarr = obs.getBits();
+      int olen = obs.getNumWords();
+      int n = Math.max(numWords, olen);
+      long[] arr = new long[n];
+      for (int i = 0; i < n; i++) arr[i] = word(i) | word(oarr, olen, i);
+      newbits = new OpenBitSet(arr, n);
+    } else {
+      newbits = getBits();
+      DocIterator iter = other.iterator();
+      while (iter.hasNext()) newbits.set(iter.nextDoc());
+    }
+    return new BitDocSet(newbits);
+  }
+
+  @Override
+  public void setBitsOn(OpenBitSet target) {
+    target.ensureCapacityWords(numWords);
+    long[] arr = target.getBits();
+    for (int i = 0; i < numWords; i++) arr[i] |= words.get(i);
+    if (target.getNumWords() < numWords) target.setNumWords(numWords);
+  }
+
+  /**
+   * @return the heap used by the set plus the direct memory holding its bits,
+   *   so that caches bounded by memory account for both
+   */
+  @Override
+  public long memSize() {
+    return ((long)numWords << 3) + 48;
+  }
+
+  /**
+   * Takes a reference to the set.
+   * @throws IllegalStateException if the last reference was given back already
+   */
+  public void incRef() {
+    for (;;) {
+      int count = refCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("OffHeapBitDocSet is released");
+      }
+      if (refCount.compareAndSet(count, count + 1)) return;
+    }
+  }
+
+  /**
+   * Gives back a reference to the set, and frees its off-heap memory if it was
+   * the last one. The caller must not use the set any more afterwards.
+   */
+  public void decRef() {
+    int count = refCount.decrementAndGet();
+    if (count == 0) {
+      free();
+    } else if (count < 0) {
+      throw new IllegalStateException("too many decRef calls");
+    }
+  }
+
+  /** @return the number of references to the set */
+  public int getRefCount() {
+    return refCount.get();
+  }
+
+  /** @return true once the last reference was given back and the off-heap memory freed */
+  public boolean isReleased() {
+    return released;
+  }
+
+  /**
+   * Frees the off-heap memory right away instead of when the set is garbage
+   * collected. This silently does nothing if the JVM does not allow it.
+   */
+  private void free() {
+    released = true;
+    // not wrapped in AccessController.doPrivileged, which is deprecated for removal
+    // together with the security manager it is meant for
+    try {
+      // Java 9 and later
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (Exception e) {
+      // older JVM, use the cleaner of the buffer below
+    }
+    try {
+      final Method getCleanerMethod = buffer.getClass()
+        .getMethod("cleaner");
+      getCleanerMethod.setAccessible(true);
+      final Object cleaner = getCleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean")
+          .invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // left to the garbage collector
+    }
+  }
+
+  @Override
+  public Filter getTopFilter() {
+    return new Filter() {
+      @Override
+      public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) {
+        AtomicReader reader = context.reader();
+        // all Solr DocSets that are used as filters only include live docs
+        final Bits acceptDocs2 = acceptDocs == null ? null : (reader.getLiveDocs() == acceptDocs ? null : acceptDocs);
+
+        final int base = context.docBase;
+        final int maxDoc = reader.maxDoc();
+        final int max = base + maxDoc;   // one past the max doc in this segment.
+
+        return BitsFilteredDocIdSet.wrap(new DocIdSet() {
+          @Override
+          public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+              int pos=base-1;
+              int adjustedDoc=-1;
+
+              @Override
+              public int docID() {
+                return adjustedDoc;
+              }
+
+              @Override
+              public int nextDoc() {
+                pos = nextSetBit(pos+1);
+                return adjustedDoc = (pos>=0 && pos<max) ? pos-base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public int advance(int target) {
+                if (target==NO_MORE_DOCS) return adjustedDoc=NO_MORE_DOCS;
+                pos = nextSetBit(target+base);
+                return adjustedDoc = (pos>=0 && pos<max) ? pos-base : NO_MORE_DOCS;
+              }
+
+              @Override
+              public long cost() {
+                return size;
+              }
+            };
+          }
+
+          @Override
+          public boolean isCacheable() {
+            return true;
+          }
+
+          @Override
+          public Bits bits() {
+            return new Bits() {
+              @Override
+              public boolean get(int index) {
+                return exists(index + base);
+              }
+
+              @Override
+              public int length() {
+                return maxDoc;
+              }
+            };
+          }
+
+        }, acceptDocs2);
+      }
+    };
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * Iterates over the documents of a {@link DocList} in order, reading them a
+ * window at a time with {@link SolrIndexSearcher#readDocs(Document[], int[], Set)},
+ * so that the documents of a window are read segment by segment and in doc id
+ * order rather than one by one.
+ * <p>
+ * The response writers use it to read the documents ahead of the
+ * {@link DocIterator} that they and the transformers iterate the ids with.
+ */
+public class PrefetchingDocumentIterator {
+  private final SolrIndexSearcher searcher;
+  private final DocIterator ids;
+  private final Set<String> fields;
+  private int remaining;
+  private int[] window;
+  private Document[] docs;
+  private int pos;
+
+  /**
+   * @param fields the fields to load, as for {@link SolrIndexSearcher#doc(int, Set)}
+   * @param windowSize the most documents read at once, at least 1
+   */
+  public PrefetchingDocumentIterator(SolrIndexSearcher searcher, DocList list, Set<String> fields, int windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+    }
+    this.searcher = searcher;
+    this.ids = list.iterator();
+    this.fields = fields;
+    this.remaining = list.size();
+    this.window = new int[Math.min(remaining, windowSize)];
+    this.docs = new Document[window.length];
+    this.pos = window.length;
+  }
+
+  public boolean hasNext() {
+    return remaining > 0 || pos < window.length;
+  }
+
+  /** Returns the next document, reading the next window first when this one is exhausted. */
+  public Document next() throws IOException {
+    if (pos == window.length) {
+      if (remaining < window.length) {
+        window = new int[remaining];
+        docs = new Document[remaining];
+      }
+      for (int j = 0; j < window.length; j++) {
+        window[j] = ids.nextDoc();
+      }
+      remaining -= window.length;
+      searcher.readDocs(docs, window, fields);
+      pos = 0;
+    }
+    Document doc = docs[pos];
+    docs[pos++] = null;
+    return doc;
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+
+
+/**
+ * A document cache shared by all the searchers of a core, which keeps the stored
+ * fields of the documents for each index segment.
+ * <p>
+ * The per-searcher documentCache is keyed by the docid in the whole index, which
+ * changes with every commit, so it starts empty with each new searcher and cannot
+ * be autowarmed. Here the key is the pair (segment core, docid in the segment), which
+ * stays valid for as long as the segment exists since stored fields never change:
+ * the documents of the segments that a commit did not touch are still cached in the
+ * new searcher. The entries of a segment are removed when the segment is closed, and
+ * the least recently used entries are evicted when the cache uses more than
+ * <code>maxRamMB</code>.
+ * <p>
+ * The fields are kept serialized in a byte array, in the order the stored fields
+ * reader visits them, which takes much less heap than a {@link Document} and spares
+ * the decompression of the stored fields on a hit.
+ * <p>
+ * Enabled with <code>&lt;segmentDocumentCache maxRamMB="..."/&gt;</code> in the
+ * <code>&lt;query&gt;</code> section of solrconfig.xml.
+ */
+public class SegmentDocumentCache implements SolrInfoMBean {
+
+  /** approximate heap used by an entry besides its fields */
+  public static final long ENTRY_OVERHEAD = 96;
+
+  // the types of the serialized fields, in the low bits of the header of a field
+  private static final int STRING = 0, BINARY = 1, INT = 2, LONG = 3, FLOAT = 4, DOUBLE = 5;
+  private static final int TYPE_BITS = 3, TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+  private final long maxRamBytes;
+
+  // access ordered, so that the first entry is the least recently used one
+  private final LinkedHashMap<Key,byte[]> map = new LinkedHashMap<Key,byte[]>(1024, 0.75f, true);
+  // the keys of the entries of each segment, by core key, so that a purge only visits those
+  private final Map<Object,Set<Key>> segments = new IdentityHashMap<Object,Set<Key>>();
+  // the core keys of the segments we are listening to; added under listenLock, removed by purge
+  private final Set<Object> listened = Collections.newSetFromMap(new ConcurrentHashMap<Object,Boolean>());
+  private final Object listenLock = new Object();
+  private final SegmentReader.CoreClosedListener purger = new SegmentReader.CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      purge(ownerCoreCacheKey);
+    }
+  };
+
+  // all guarded by the lock of this cache
+  private long ramBytesUsed;
+  private long lookups;
+  private long hits;
+  private long inserts;
+  private long evictions;
+  private long purgedSegments;
+
+  public SegmentDocumentCache(int maxRamMB) {
+    this.maxRamBytes = maxRamMB * 1024L * 1024L;
+  }
+
+  /**
+   * Returns the document of the searcher with all its stored fields, reading it
+   * from the index and caching it if it is not in the cache yet.
+   */
+  public Document doc(SolrIndexSearcher searcher, int docid) throws IOException {
+    AtomicReaderContext leaf = leaf(searcher, docid);
+    return doc(leaf.reader(), docid - leaf.docBase);
+  }
+
+  /**
+   * Returns the document of the segment with all its stored fields, reading it
+   * from the segment and caching it if it is not in the cache yet.
+   */
+  Document doc(AtomicReader reader, int segmentDoc) throws IOException {
+    Key key = new Key(reader.getCoreCacheKey(), segmentDoc);
+    byte[] fields = get(key);
+    if (fields == null) {
+      Serializer serializer = new Serializer();
+      reader.document(segmentDoc, serializer);
+      fields = serializer.toBytes();
+      put(key, reader, fields);
+    }
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+    visit(fields, reader.getFieldInfos(), visitor);
+    return visitor.getDocument();
+  }
+
+  /**
+   * Visits the stored fields of the document of the searcher if it is in the cache,
+   * and returns false without reading the index otherwise.
+   */
+  public boolean visitIfCached(SolrIndexSearcher searcher, int docid, StoredFieldVisitor visitor) throws IOException {
+    AtomicReaderContext leaf = leaf(searcher, docid);
+    byte[] fields = get(new Key(leaf.reader().getCoreCacheKey(), docid - leaf.docBase));
+    if (fields == null) return false;
+    visit(fields, leaf.reader().getFieldInfos(), visitor);
+    return true;
+  }
+
+  private static AtomicReaderContext leaf(SolrIndexSearcher searcher, int docid) {
+    List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    return leaves.get(ReaderUtil.subIndex(docid, leaves));
+  }
+
+  /** Replays serialized fields to a visitor, as the stored fields reader would. */
+  static void visit(byte[] fields, FieldInfos infos, StoredFieldVisitor visitor) throws IOException {
+    ByteArrayDataInput in = new ByteArrayDataInput(fields);
+    while (!in.eof()) {
+      int header = in.readVInt();
+      int type = header & TYPE_MASK;
+      FieldInfo info = infos.fieldInfo(header >>> TYPE_BITS);
+      switch (visitor.needsField(info)) {
+        case YES:
+          switch (type) {
+            case STRING: visitor.stringField(info, in.readString()); break;
+            case BINARY:
+              byte[] value = new byte[in.readVInt()];
+              in.readBytes(value, 0, value.length);
+              visitor.binaryField(info, value);
+              break;
+            case INT: visitor.intField(info, in.readInt()); break;
+            case LONG: visitor.longField(info, in.readLong()); break;
+            case FLOAT: visitor.floatField(info, Float.intBitsToFloat(in.readInt())); break;
+            case DOUBLE: visitor.doubleField(info, Double.longBitsToDouble(in.readLong())); break;
+            default: throw new AssertionError("unknown field type " + type);
+          }
+          break;
+        case NO:
+          switch (type) {
+            case STRING:
+            case BINARY: in.skipBytes(in.readVInt()); break;
+            case INT:
+            case FLOAT: in.skipBytes(4); break;
+            default: in.skipBytes(8); break;
+          }
+          break;
+        case STOP:
+          return;
+      }
+    }
+  }
+
+  /** Serializes all the stored fields of a document. */
+  static final class Serializer extends StoredFieldVisitor {
+    final GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(256);
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+      return Status.YES;
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | STRING);
+      out.writeString(value);
+    }
+
+    @Override
+    public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | BINARY);
+      out.writeVInt(value.length);
+      out.writeBytes(value, 0, value.length);
+    }
+
+    @Override
+    public void intField(FieldInfo fieldInfo, int value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | INT);
+      out.writeInt(value);
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | LONG);
+      out.writeLong(value);
+    }
+
+    @Override
+    public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | FLOAT);
+      out.writeInt(Float.floatToIntBits(value));
+    }
+
+    @Override
+    public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+      out.writeVInt(fieldInfo.number << TYPE_BITS | DOUBLE);
+      out.writeLong(Double.doubleToLongBits(value));
+    }
+
+    byte[] toBytes() {
+      byte[] bytes = new byte[out.length];
+      System.arraycopy(out.bytes, 0, bytes, 0, out.length);
+      return bytes;
+    }
+  }
+
+  private synchronized byte[] get(Key key) {
+    lookups++;
+    byte[] fields = map.get(key);
+    if (fields != null) hits++;
+    return fields;
+  }
+
+  private void put(Key key, AtomicReader reader, byte[] fields) {
+    long bytes = RamUsageEstimator.sizeOf(fields) + ENTRY_OVERHEAD;
+    if (bytes > maxRamBytes) return;
+
+    // listen to the segment before publishing any entry of it, so that none outlives it
+    listen(key.core, reader);
+
+    synchronized (this) {
+      if (!listened.contains(key.core)) {
+        // purged meanwhile: the segment is closed
+        return;
+      }
+      byte[] old = map.put(key, fields);
+      inserts++;
+      ramBytesUsed += bytes;
+      if (old != null) {
+        ramBytesUsed -= RamUsageEstimator.sizeOf(old) + ENTRY_OVERHEAD;
+      } else {
+        Set<Key> keys = segments.get(key.core);
+        if (keys == null) {
+          keys = new HashSet<Key>();
+          segments.put(key.core, keys);
+        }
+        keys.add(key);
+      }
+      Iterator<Map.Entry<Key,byte[]>> it = map.entrySet().iterator();
+      while (ramBytesUsed > maxRamBytes && it.hasNext()) {
+        Map.Entry<Key,byte[]> eldest = it.next();
+        it.remove();
+        removeFromSegment(eldest.getKey());
+        ramBytesUsed -= RamUsageEstimator.sizeOf(eldest.getValue()) + ENTRY_OVERHEAD;
+        evictions++;
+      }
+    }
+  }
+
+  // must be called with the lock of this cache held
+  private void removeFromSegment(Key key) {
+    Set<Key> keys = segments.get(key.core);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) segments.remove(key.core);
+    }
+  }
+
+  /** Registers the listener that purges the entries of a segment once, when it is first seen. */
+  private void listen(Object core, AtomicReader reader) {
+    if (listened.contains(core)) return;
+    // not under the lock of this cache: a closing segment calls purge with the lock of its listeners held
+    synchronized (listenLock) {
+      if (listened.contains(core)) return;
+      if (reader instanceof SegmentReader) {
+        ((SegmentReader)reader).addCoreClosedListener(purger);
+      } else {
+        // a wrapped segment: its core may outlive it, but there is no
+        // reader of it left to use the entries once it is closed
+        reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+          @Override
+          public void onClose(IndexReader closed) {
+            purge(closed.getCoreCacheKey());
+          }
+        });
+      }
+      listened.add(core);
+    }
+  }
+
+  /** Removes all the entries of the segment whose core key is given. */
+  synchronized void purge(Object core) {
+    if (!listened.remove(core)) return;
+    Set<Key> keys = segments.remove(core);
+    if (keys != null) {
+      for (Key key : keys) {
+        byte[] fields = map.remove(key);
+        ramBytesUsed -= RamUsageEstimator.sizeOf(fields) + ENTRY_OVERHEAD;
+      }
+    }
+    purgedSegments++;
+  }
+
+  public synchronized void clear() {
+    // the listeners stay registered, and still purge the new entries of their segments
+    map.clear();
+    segments.clear();
+    ramBytesUsed = 0;
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  @Override
+  public String getName() {
+    return SegmentDocumentCache.class.getName();
+  }
+
+  @Override
+  public String getVersion() {
+    return SolrCore.version;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Per-segment document cache shared by the searchers of a core";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.CACHE;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList lst = new SimpleOrderedMap();
+    synchronized (this) {
+      lst.add("lookups", lookups);
+      lst.add("hits", hits);
+      lst.add("hitratio", SolrCacheBase.calcHitRatio(lookups, hits));
+      lst.add("inserts", inserts);
+      lst.add("evictions", evictions);
+      lst.add("size", map.size());
+      lst.add("segments", segments.size());
+      lst.add("purgedSegments", purgedSegments);
+      lst.add("ramBytesUsed", ramBytesUsed);
+      lst.add("maxRamBytes", maxRamBytes);
+    }
+    return lst;
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentDocumentCache(maxRamMB=" + (maxRamBytes >> 20) + ")";
+  }
+
+  private static final class Key {
+    final Object core;
+    final int doc;
+
+    Key(Object core, int doc) {
+      this.core = core;
+      this.doc = doc;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(core) * 31 + doc;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key)o;
+      return core == other.core && doc == other.doc;
+    }
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopTermsRewrite;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+
+
+/**
+ * A filter cache shared by all the searchers of a core, which keeps the documents
+ * matching a query for each index segment instead of for a whole index.
+ * <p>
+ * The per-searcher filterCache is keyed by the query alone, so every commit that
+ * opens a new searcher throws it away and the autowarming has to run each query
+ * again over all the segments, although most of them did not change. Here the key
+ * is the pair (segment core, query), and the value holds the matching documents of
+ * the segment <em>ignoring</em> its deletions, so an entry stays valid for as long
+ * as the segment exists: a new searcher only computes the query over the segments
+ * it has not seen yet, and applies the current deletions while it assembles the
+ * top-level {@link DocSet}. The entries of a segment are removed when the segment
+ * is closed, after a merge for instance, and the least recently used entries are
+ * evicted when the cache uses more than <code>maxRamMB</code>.
+ * <p>
+ * Only the queries for which {@link #isCacheable(Query)} holds are cached, that is
+ * those whose matches in a segment depend on that segment alone.
+ * <p>
+ * Enabled with <code>&lt;segmentFilterCache maxRamMB="..."/&gt;</code> in the
+ * <code>&lt;query&gt;</code> section of solrconfig.xml.
+ */
+public class SegmentFilterCache implements SolrInfoMBean {
+
+  /** approximate heap used by an entry besides its documents */
+  public static final long ENTRY_OVERHEAD = 128;
+
+  private static final int[] NO_DOCS = new int[0];
+
+  private final long maxRamBytes;
+
+  // access ordered, so that the first entry is the least recently used one
+  private final LinkedHashMap<Key,SegmentDocs> map = new LinkedHashMap<Key,SegmentDocs>(256, 0.75f, true);
+  // the keys of the entries of each segment, by core key, so that a purge only visits those
+  private final Map<Object,Set<Key>> segments = new IdentityHashMap<Object,Set<Key>>();
+  // the core keys of the segments we are listening to; added under listenLock, removed by purge
+  private final Set<Object> listened = Collections.newSetFromMap(new ConcurrentHashMap<Object,Boolean>());
+  private final Object listenLock = new Object();
+  private final SegmentReader.CoreClosedListener purger = new SegmentReader.CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      purge(ownerCoreCacheKey);
+    }
+  };
+
+  // all guarded by the lock of this cache
+  private long ramBytesUsed;
+  private long lookups;
+  private long hits;
+  private long inserts;
+  private long evictions;
+  private long purgedSegments;
+
+  public SegmentFilterCache(int maxRamMB) {
+    this.maxRamBytes = maxRamMB * 1024L * 1024L;
+  }
+
+  /**
+   * Returns true if the documents a query matches in a segment depend only on that
+   * segment, so that they can be cached per segment. This is the case of the term,
+   * phrase, span and multi-term queries (except those rewritten to their top terms
+   * over the whole index, like the fuzzy queries) and of the boolean, disjunction
+   * and constant score queries made of them.
+   */
+  public static boolean isCacheable(Query q) {
+    if (q instanceof TermQuery || q instanceof PhraseQuery || q instanceof MultiPhraseQuery
+        || q instanceof SpanQuery || q instanceof MatchAllDocsQuery) {
+      return true;
+    }
+    if (q instanceof MultiTermQuery) {
+      return !(((MultiTermQuery)q).getRewriteMethod() instanceof TopTermsRewrite);
+    }
+    if (q instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery)q).clauses()) {
+        if (!isCacheable(clause.getQuery())) return false;
+      }
+      return true;
+    }
+    if (q instanceof DisjunctionMaxQuery) {
+      for (Query disjunct : ((DisjunctionMaxQuery)q).getDisjuncts()) {
+        if (!isCacheable(disjunct)) return false;
+      }
+      return true;
+    }
+    if (q instanceof ConstantScoreQuery) {
+      Query inner = ((ConstantScoreQuery)q).getQuery();
+      return inner != null && isCacheable(inner);
+    }
+    if (q instanceof WrappedQuery) {
+      return isCacheable(((WrappedQuery)q).getWrappedQuery());
+    }
+    return false;
+  }
+
+  /**
+   * Returns the set of the live documents of the searcher matching the query, which
+   * must be {@link #isCacheable(Query) cacheable} and positive. Only the segments that
+   * are not in the cache yet are searched.
+   */
+  public DocSet getDocSet(SolrIndexSearcher searcher, Query query) throws IOException {
+    List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    SegmentDocs[] perSegment = getSegmentDocs(searcher, query);
+
+    DocSetCollector collector = new DocSetCollector(searcher.maxDoc()>>6, searcher.maxDoc());
+    for (int i = 0; i < perSegment.length; i++) {
+      AtomicReaderContext leaf = leaves.get(i);
+      collector.setNextReader(leaf);
+      perSegment[i].collectLive(leaf.reader().getLiveDocs(), collector);
+    }
+    return collector.getDocSet();
+  }
+
+  /** The documents of each segment matching the query, from the cache or computed and cached. */
+  SegmentDocs[] getSegmentDocs(IndexSearcher searcher, Query query) throws IOException {
+    List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    SegmentDocs[] perSegment = new SegmentDocs[leaves.size()];
+    Weight weight = null;
+    for (int i = 0; i < perSegment.length; i++) {
+      AtomicReaderContext leaf = leaves.get(i);
+      Key key = new Key(leaf.reader().getCoreCacheKey(), query);
+      SegmentDocs docs = get(key);
+      if (docs == null) {
+        if (weight == null) {
+          weight = searcher.createNormalizedWeight(query);
+        }
+        docs = collect(weight, leaf);
+        put(key, leaf.reader(), docs);
+      }
+      perSegment[i] = docs;
+    }
+    return perSegment;
+  }
+
+  /** The documents of a segment matching the weight, deleted or not. */
+  private static SegmentDocs collect(Weight weight, AtomicReaderContext leaf) throws IOException {
+    Scorer scorer = weight.scorer(leaf, true, false, null);
+    if (scorer == null) return new SegmentDocs(NO_DOCS, 0, null);
+
+    // the same choice between a sorted array and bits as DocSetCollector
+    int maxDoc = leaf.reader().maxDoc();
+    int smallSetSize = maxDoc >> 6;
+    int[] docs = new int[Math.min(smallSetSize, 64)];
+    int count = 0;
+    int doc;
+    while ((doc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      if (count == docs.length) {
+        if (count >= smallSetSize) {
+          OpenBitSet bits = new OpenBitSet(maxDoc);
+          for (int i = 0; i < count; i++) {
+            bits.fastSet(docs[i]);
+          }
+          do {
+            bits.fastSet(doc);
+            count++;
+          } while ((doc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS);
+          return new SegmentDocs(null, count, bits);
+        }
+        docs = Arrays.copyOf(docs, Math.min(smallSetSize, Math.max(count << 1, 16)));
+      }
+      docs[count++] = doc;
+    }
+    return new SegmentDocs(count == docs.length ? docs : Arrays.copyOf(docs, count), count, null);
+  }
+
+  private synchronized SegmentDocs get(Key key) {
+    lookups++;
+    SegmentDocs docs = map.get(key);
+    if (docs != null) hits++;
+    return docs;
+  }
+
+  private void put(Key key, AtomicReader reader, SegmentDocs docs) {
+    long bytes = docs.ramBytes + ENTRY_OVERHEAD;
+    if (bytes > maxRamBytes) return;
+
+    // listen to the segment before publishing any entry of it, so that none outlives it
+    listen(key.core, reader);
+
+    synchronized (this) {
+      if (!listened.contains(key.core)) {
+        // purged meanwhile: the segment is closed
+        return;
+      }
+      SegmentDocs old = map.put(key, docs);
+      inserts++;
+      ramBytesUsed += bytes;
+      if (old != null) {
+        ramBytesUsed -= old.ramBytes + ENTRY_OVERHEAD;
+      } else {
+        Set<Key> keys = segments.get(key.core);
+        if (keys == null) {
+          keys = new HashSet<Key>();
+          segments.put(key.core, keys);
+        }
+        keys.add(key);
+      }
+      Iterator<Map.Entry<Key,SegmentDocs>> it = map.entrySet().iterator();
+      while (ramBytesUsed > maxRamBytes && it.hasNext()) {
+        Map.Entry<Key,SegmentDocs> eldest = it.next();
+        it.remove();
+        removeFromSegment(eldest.getKey());
+        ramBytesUsed -= eldest.getValue().ramBytes + ENTRY_OVERHEAD;
+        evictions++;
+      }
+    }
+  }
+
+  // must be called with the lock of this cache held
+  private void removeFromSegment(Key key) {
+    Set<Key> keys = segments.get(key.core);
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) segments.remove(key.core);
+    }
+  }
+
+  /** Registers the listener that purges the entries of a segment once, when it is first seen. */
+  private void listen(Object core, AtomicReader reader) {
+    if (listened.contains(core)) return;
+    // not under the lock of this cache: a closing segment calls purge with the lock of its listeners held
+    synchronized (listenLock) {
+      if (listened.contains(core)) return;
+      if (reader instanceof SegmentReader) {
+        ((SegmentReader)reader).addCoreClosedListener(purger);
+      } else {
+        // a wrapped segment: its core may outlive it, but there is no
+        // reader of it left to use the entries once it is closed
+        reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+          @Override
+          public void onClose(IndexReader closed) {
+            purge(closed.getCoreCacheKey());
+          }
+        });
+      }
+      listened.add(core);
+    }
+  }
+
+  /** Removes all the entries of the segment whose core key is given. */
+  synchronized void purge(Object core) {
+    if (!listened.remove(core)) return;
+    Set<Key> keys = segments.remove(core);
+    if (keys != null) {
+      for (Key key : keys) {
+        SegmentDocs docs = map.remove(key);
+        ramBytesUsed -= docs.ramBytes + ENTRY_OVERHEAD;
+      }
+    }
+    purgedSegments++;
+  }
+
+  public synchronized void clear() {
+    // the listeners stay registered, and still purge the new entries of their segments
+    map.clear();
+    segments.clear();
+    ramBytesUsed = 0;
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  @Override
+  public String getName() {
+    return SegmentFilterCache.class.getName();
+  }
+
+  @Override
+  public String getVersion() {
+    return SolrCore.version;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Per-segment filter cache shared by the searchers of a core";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.CACHE;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList lst = new SimpleOrderedMap();
+    synchronized (this) {
+      lst.add("lookups", lookups);
+      lst.add("hits", hits);
+      lst.add("hitratio", SolrCacheBase.calcHitRatio(lookups, hits));
+      lst.add("inserts", inserts);
+      lst.add("evictions", evictions);
+      lst.add("size", map.size());
+      lst.add("segments", segments.size());
+      lst.add("purgedSegments", purgedSegments);
+      lst.add("ramBytesUsed", ramBytesUsed);
+      lst.add("maxRamBytes", maxRamBytes);
+    }
+    return lst;
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentFilterCache(maxRamMB=" + (maxRamBytes >> 20) + ")";
+  }
+
+  private static final class Key {
+    final Object core;
+    final Query query;
+    final int hash;
+
+    Key(Object core, Query query) {
+      this.core = core;
+      this.query = query;
+      this.hash = System.identityHashCode(core) * 31 + query.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key)o;
+      return core == other.core && hash == other.hash && query.equals(other.query);
+    }
+  }
+
+  /** The documents of a segment matching a query, as a sorted array or as bits. */
+  static final class SegmentDocs {
+    final int[] docs;
+    final int count;
+    final OpenBitSet bits;
+    final long ramBytes;
+
+    SegmentDocs(int[] docs, int count, OpenBitSet bits) {
+      this.docs = docs;
+      this.count = count;
+      this.bits = bits;
+      this.ramBytes = bits != null ? RamUsageEstimator.sizeOf(bits.getBits()) : RamUsageEstimator.sizeOf(docs);
+    }
+
+    void collectLive(Bits liveDocs, DocSetCollector collector) throws IOException {
+      if (bits != null) {
+        for (int doc = bits.nextSetBit(0); doc >= 0; doc = bits.nextSetBit(doc + 1)) {
+          if (liveDocs == null || liveDocs.get(doc)) collector.collect(doc);
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          int doc = docs[i];
+          if (liveDocs == null || liveDocs.get(doc)) collector.collect(doc);
+        }
+      }
+    }
+  }
+}
@@ -21,11 +21,22 @@ import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
  
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrInfoMBean.Category;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.search.SolrCache.State;
 
 /**
@@ -40,6 +51,14 @@ public abstract class SolrCacheBase {
   private String name;
   
   protected AutoWarmCountRef autowarm;
+
+  // the time an autowarming may take, in ms; 0 for no limit
+  private long autowarmTime;
+
+  /** number of entries regenerated by the last autowarming */
+  protected int warmupEntries;
+  /** number of entries the last autowarming did not try, out of time or stopped by the regenerator */
+  protected int warmupSkipped;
   
   /**
    * Decides how many things to autowarm based on the size of another cache
@@ -116,11 +135,101 @@ public abstract class SolrCacheBase {
     state=State.CREATED;
     name = (String) args.get("name");
     autowarm = new AutoWarmCountRef((String)args.get("autowarmCount"));
-    
+    String str = (String)args.get("autowarmTime");
+    autowarmTime = str == null ? 0 : Long.parseLong(str);
   }
   
   protected String getAutowarmDescription() {
-    return "autowarmCount=" + autowarm + ", regenerator=" + regenerator;
+    return "autowarmCount=" + autowarm + (autowarmTime > 0 ? ", autowarmTime=" + autowarmTime : "")
+        + ", regenerator=" + regenerator;
+  }
+
+  /**
+   * Regenerates entries of an old cache into a new one with the regenerator of this
+   * cache. <code>keys</code> and <code>vals</code> must go from the most valuable entry
+   * to the least, since the regenerations start from the first one and stop once
+   * <code>autowarmTime</code> has elapsed, or when the regenerator asks to; the entries
+   * left are counted in {@link #warmupSkipped}. The regenerations run concurrently on
+   * the autowarm executor of the core if it has one (see <code>autowarmThreads</code>
+   * in solrconfig.xml), and in the calling thread otherwise. It returns once they all are
+   * done, also when the calling thread is interrupted.
+   */
+  protected void regenerateItems(final SolrIndexSearcher searcher, final SolrCache newCache, final SolrCache old,
+                                 final Object[] keys, final Object[] vals) {
+    final long deadline = autowarmTime > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(autowarmTime) : Long.MAX_VALUE;
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger attempted = new AtomicInteger();
+    final AtomicInteger warmed = new AtomicInteger();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+
+    class Regeneration implements Runnable {
+      @Override
+      public void run() {
+        for (int i = next.getAndIncrement(); i < keys.length; i = next.getAndIncrement()) {
+          if (stop.get() || System.nanoTime() > deadline) break;
+          attempted.incrementAndGet();
+          try {
+            boolean continueRegen = regenerator.regenerateItem(searcher, newCache, old, keys[i], vals[i]);
+            warmed.incrementAndGet();
+            if (!continueRegen) stop.set(true);
+          }
+          catch (Throwable e) {
+            SolrException.log(SolrCache.log, "Error during auto-warming of key:" + keys[i], e);
+          }
+        }
+      }
+    }
+
+    SolrCore core = searcher.getCore();
+    ExecutorService executor = core == null ? null : core.getAutowarmExecutor();
+    if (executor == null || keys.length < 2) {
+      new Regeneration().run();
+    } else {
+      int threads = Math.min(core.getSolrConfig().autowarmThreads, keys.length);
+      List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            // regenerators may look at the request, as they do on the searcher thread
+            if (requestInfo != null) {
+              SolrRequestInfo.setRequestInfo(new SolrRequestInfo(requestInfo.getReq(), requestInfo.getRsp()));
+            }
+            try {
+              new Regeneration().run();
+            } finally {
+              SolrRequestInfo.clearRequestInfo();
+            }
+          }
+        }));
+      }
+      // the warm of the caller may free the old values once this returns, so wait for
+      // every regeneration even when interrupted, and only ask them to stop early
+      boolean interrupted = false;
+      for (Future<?> future : futures) {
+        while (true) {
+          try {
+            future.get();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+            stop.set(true);
+          } catch (ExecutionException e) {
+            SolrException.log(SolrCache.log, "Error during auto-warming", e.getCause());
+            break;
+          } catch (CancellationException e) {
+            break;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    warmupEntries = warmed.get();
+    warmupSkipped = keys.length - attempted.get();
   }
   
   protected boolean isAutowarmingOn() {
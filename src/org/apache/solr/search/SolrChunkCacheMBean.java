@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.net.URL;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+
+import org.apache.lucene.codecs.compressing.ChunkCache;
+
+/**
+ * A SolrInfoMBean that provides introspection of the Lucene cache of decompressed
+ * stored fields chunks of a core.
+ *
+ * @see ChunkCache
+ */
+public class SolrChunkCacheMBean implements SolrInfoMBean {
+
+  private final ChunkCache cache;
+
+  public SolrChunkCacheMBean(ChunkCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public String getName() { return this.getClass().getName(); }
+  @Override
+  public String getVersion() { return SolrCore.version; }
+  @Override
+  public String getDescription() {
+    return "Provides introspection of the Lucene cache of decompressed stored fields chunks "
+      +    "of the searchers of this core.";
+  }
+  @Override
+  public Category getCategory() { return Category.CACHE; }
+  @Override
+  public String getSource() {
+    return null;
+  }
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+  @Override
+  public NamedList getStatistics() {
+    NamedList stats = new SimpleOrderedMap();
+    long hits = cache.getHits();
+    long misses = cache.getMisses();
+    stats.add("lookups", hits + misses);
+    stats.add("hits", hits);
+    stats.add("misses", misses);
+    stats.add("hitratio", SolrCacheBase.calcHitRatio(hits + misses, hits));
+    stats.add("evictions", cache.getEvictions());
+    stats.add("size", cache.size());
+    stats.add("ramBytesUsed", cache.ramBytesUsed());
+    stats.add("maxRamBytes", cache.getMaxRamBytes());
+    return stats;
+  }
+
+}
@@ -31,9 +31,18 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.codecs.compressing.ChunkCache;
+import org.apache.lucene.codecs.compressing.CompressingStoredFieldsReader;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
@@ -53,6 +62,8 @@ import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.MultiDocsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
 import org.apache.lucene.index.StoredFieldVisitor;
 import org.apache.lucene.index.Term;
@@ -117,6 +128,9 @@ import org.slf4j.LoggerFactory;
  */
 public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrInfoMBean {
 
+  /** the least number of documents that {@link #readDocs(Document[], int[], Set)} reads in parallel */
+  public static final int PARALLEL_FETCH_MIN_DOCS = 100;
+
   // These should *only* be used for debugging or monitoring purposes
   public static final AtomicLong numOpens = new AtomicLong();
   public static final AtomicLong numCloses = new AtomicLong();
@@ -145,6 +159,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   private final SolrCache<QueryResultKey,DocList> queryResultCache;
   private final SolrCache<Integer,Document> documentCache;
   private final SolrCache<String,UnInvertedField> fieldValueCache;
+  private final SegmentFilterCache segmentFilterCache;
+  private final SegmentDocumentCache segmentDocumentCache;
+  private final ChunkCache chunkCache;
 
   private final LuceneQueryOptimizer optimizer;
   
@@ -247,6 +264,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       }
 
       cacheList = clist.toArray(new SolrCache[clist.size()]);
+      segmentFilterCache = core.getSegmentFilterCache();
+      segmentDocumentCache = core.getSegmentDocumentCache();
+      chunkCache = core.getChunkCache();
     } else {
       filterCache=null;
       queryResultCache=null;
@@ -254,6 +274,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       fieldValueCache=null;
       cacheMap = noGenericCaches;
       cacheList= noCaches;
+      segmentFilterCache = null;
+      segmentDocumentCache = null;
+      chunkCache = null;
     }
     
     // TODO: This option has been dead/noop since 3.1, should we re-enable it?
@@ -586,7 +609,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   }
 
   /** Visit a document's fields using a {@link StoredFieldVisitor}
-   *  This method does not currently add to the Solr document cache.
+   *  This method does not currently add to the Solr document caches.
    * 
    * @see IndexReader#document(int, StoredFieldVisitor) */
   @Override
@@ -598,7 +621,28 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         return;
       }
     }
-    getIndexReader().document(n, visitor);
+    if (segmentDocumentCache != null && segmentDocumentCache.visitIfCached(this, n, visitor)) {
+      return;
+    }
+    visitStoredFields(n, visitor);
+  }
+
+  /**
+   * Visits the stored fields of a document from the index, through the chunk
+   * cache of the core when it is enabled.
+   */
+  private void visitStoredFields(int docid, StoredFieldVisitor visitor) throws IOException {
+    if (chunkCache != null) {
+      List<AtomicReaderContext> leaves = getTopReaderContext().leaves();
+      AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docid, leaves));
+      AtomicReader reader = leaf.reader();
+      StoredFieldsReader fieldsReader = reader instanceof SegmentReader ? ((SegmentReader)reader).getFieldsReader() : null;
+      if (fieldsReader instanceof CompressingStoredFieldsReader) {
+        ((CompressingStoredFieldsReader)fieldsReader).visitDocument(docid - leaf.docBase, visitor, chunkCache);
+        return;
+      }
+    }
+    getIndexReader().document(docid, visitor);
   }
   
   /** Executes a stored field visitor against a hit from the document cache */
@@ -642,7 +686,8 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
    * <p>
    * Note: The document will have all fields accessible, but if a field
    * filter is provided, only the provided fields will be loaded (the 
-   * remainder will be available lazily).
+   * remainder will be available lazily). When the segment document cache
+   * is enabled, all the fields are loaded.
    */
   @Override
   public Document doc(int i, Set<String> fields) throws IOException {
@@ -653,11 +698,15 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       if (d!=null) return d;
     }
 
-    if(!enableLazyFieldLoading || fields == null) {
-      d = getIndexReader().document(i);
+    if (segmentDocumentCache != null) {
+      d = segmentDocumentCache.doc(this, i);
+    } else if(!enableLazyFieldLoading || fields == null) {
+      final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+      visitStoredFields(i, visitor);
+      d = visitor.getDocument();
     } else {
       final SetNonLazyFieldSelector visitor = new SetNonLazyFieldSelector(fields, getIndexReader(), i);
-      getIndexReader().document(i, visitor);
+      visitStoredFields(i, visitor);
       d = visitor.doc;
     }
 
@@ -680,9 +729,184 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
    * and reads them into an array of Documents.
    */
   public void readDocs(Document[] docs, DocList ids, Set<String> fields) throws IOException {
+    int[] docids = new int[docs.length];
     DocIterator iter = ids.iterator();
-    for (int i=0; i<docs.length; i++) {
-      docs[i] = doc(iter.nextDoc(), fields);
+    for (int i=0; i<docids.length; i++) {
+      docids[i] = iter.nextDoc();
+    }
+    readDocs(docs, docids, fields);
+  }
+
+  /**
+   * Takes an array of doc ids and a set of fields to load, and reads them into
+   * an array of Documents in the same order, as {@link #doc(int, Set)} would.
+   * <p>
+   * The documents that are not in the document cache are read in increasing
+   * doc id order and segment by segment, so that the stored fields are read
+   * forward and each of their compressed chunks is decompressed once. When the
+   * core has <code>documentFetchThreads</code> and there are at least
+   * {@link #PARALLEL_FETCH_MIN_DOCS} documents to read, the segments are read
+   * in parallel.
+   */
+  public void readDocs(Document[] docs, int[] ids, Set<String> fields) throws IOException {
+    // the doc id in the upper half and the position in the lower half, to sort by doc id
+    long[] missing = new long[ids.length];
+    int numMissing = 0;
+    for (int i=0; i<ids.length; i++) {
+      Document d = documentCache == null ? null : documentCache.get(ids[i]);
+      if (d != null) {
+        docs[i] = d;
+      } else {
+        missing[numMissing++] = ((long)ids[i] << 32) | i;
+      }
+    }
+    if (numMissing == 0) return;
+    Arrays.sort(missing, 0, numMissing);
+
+    List<AtomicReaderContext> leaves = getTopReaderContext().leaves();
+    List<SegmentFetch> fetches = new ArrayList<SegmentFetch>();
+    for (int start=0; start<numMissing; ) {
+      AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex((int)(missing[start] >>> 32), leaves));
+      int end = start + 1;
+      int maxDoc = leaf.docBase + leaf.reader().maxDoc();
+      while (end < numMissing && (int)(missing[end] >>> 32) < maxDoc) end++;
+      fetches.add(new SegmentFetch(leaf, missing, start, end, docs, fields));
+      start = end;
+    }
+
+    ExecutorService executor = core == null ? null : core.getDocumentFetchExecutor();
+    if (executor == null || fetches.size() < 2 || numMissing < PARALLEL_FETCH_MIN_DOCS) {
+      for (SegmentFetch fetch : fetches) {
+        fetch.call();
+      }
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(fetches.size() - 1);
+    boolean success = false;
+    try {
+      for (int i=1; i<fetches.size(); i++) {
+        futures.add(executor.submit(fetches.get(i)));
+      }
+      fetches.get(0).call();
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SolrException(ErrorCode.SERVER_ERROR, "Interrupted while reading documents", e);
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) throw (IOException)cause;
+          if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+          if (cause instanceof Error) throw (Error)cause;
+          throw new SolrException(ErrorCode.SERVER_ERROR, cause);
+        }
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        // no fetch may still write into docs once this returns
+        for (SegmentFetch fetch : fetches) {
+          fetch.abort();
+        }
+        awaitQuietly(futures);
+      }
+    }
+  }
+
+  /**
+   * Waits for the tasks to complete, whatever their outcome. The tasks are not
+   * interrupted, since an interrupt closes the channels of an NIOFSDirectory.
+   */
+  private static void awaitQuietly(List<Future<Void>> futures) {
+    boolean interrupted = false;
+    for (Future<Void> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;
+        } catch (CancellationException e) {
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Reads the documents of one segment for {@link #readDocs(Document[], int[], Set)}. */
+  private final class SegmentFetch implements Callable<Void> {
+    private final AtomicReaderContext leaf;
+    private final long[] missing;
+    private final int start, end;
+    private final Document[] docs;
+    private final Set<String> fields;
+    private volatile boolean aborted;
+
+    SegmentFetch(AtomicReaderContext leaf, long[] missing, int start, int end, Document[] docs, Set<String> fields) {
+      this.leaf = leaf;
+      this.missing = missing;
+      this.start = start;
+      this.end = end;
+      this.docs = docs;
+      this.fields = fields;
+    }
+
+    /** Stops this fetch before it reads its next document. */
+    void abort() {
+      aborted = true;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      if (aborted) return null;
+      int n = end - start;
+      Document[] fetched = new Document[n];
+      AtomicReader reader = leaf.reader();
+      if (segmentDocumentCache != null) {
+        // straight to the segment cache: the documentCache was looked up already
+        for (int i=0; i<n; i++) {
+          if (aborted) return null;
+          fetched[i] = segmentDocumentCache.doc(reader, (int)(missing[start + i] >>> 32) - leaf.docBase);
+        }
+      } else {
+        int[] segmentIds = new int[n];
+        StoredFieldVisitor[] visitors = new StoredFieldVisitor[n];
+        boolean lazy = enableLazyFieldLoading && fields != null;
+        for (int i=0; i<n; i++) {
+          int id = (int)(missing[start + i] >>> 32);
+          segmentIds[i] = id - leaf.docBase;
+          visitors[i] = lazy ? new SetNonLazyFieldSelector(fields, getIndexReader(), id) : new DocumentStoredFieldVisitor();
+        }
+
+        // the stored fields reader of this thread
+        StoredFieldsReader fieldsReader = reader instanceof SegmentReader ? ((SegmentReader)reader).getFieldsReader() : null;
+        if (fieldsReader instanceof CompressingStoredFieldsReader) {
+          ((CompressingStoredFieldsReader)fieldsReader).visitDocuments(segmentIds, visitors, 0, n, chunkCache);
+        } else {
+          for (int i=0; i<n; i++) {
+            if (aborted) return null;
+            reader.document(segmentIds[i], visitors[i]);
+          }
+        }
+        for (int i=0; i<n; i++) {
+          fetched[i] = lazy ? ((SetNonLazyFieldSelector)visitors[i]).doc : ((DocumentStoredFieldVisitor)visitors[i]).getDocument();
+        }
+      }
+
+      if (aborted) return null;
+      for (int i=0; i<n; i++) {
+        docs[(int)missing[start + i]] = fetched[i];
+        if (documentCache != null) {
+          documentCache.put((int)(missing[start + i] >>> 32), fetched[i]);
+        }
+      }
+      return null;
     }
   }
 
@@ -804,7 +1028,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
           query = ((WrappedQuery)query).getWrappedQuery();
         }
         query = QueryUtils.makeQueryable(query);
-        return getDocSetNC(query, null);
+        return getDocSetUncached(query, null);
       }
     }
 
@@ -1120,6 +1344,14 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
 
   // query must be positive
   protected DocSet getDocSetNC(Query query, DocSet filter) throws IOException {
+    if (filter==null && segmentFilterCache!=null && SegmentFilterCache.isCacheable(query)) {
+      return segmentFilterCache.getDocSet(this, query);
+    }
+    return getDocSetUncached(query, filter);
+  }
+
+  // query must be positive, and is never looked up in the segmentFilterCache
+  private DocSet getDocSetUncached(Query query, DocSet filter) throws IOException {
     DocSetCollector collector = new DocSetCollector(maxDoc()>>6, maxDoc());
 
     if (filter==null) {
@@ -1904,7 +2136,8 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     }
 
     // bit of a hack to tell if a set is sorted - do it better in the future.
-    boolean inOrder = set instanceof BitDocSet || set instanceof SortedIntDocSet;
+    boolean inOrder = set instanceof BitDocSet || set instanceof SortedIntDocSet
+        || set instanceof CompressedDocSet || set instanceof OffHeapBitDocSet;
 
     TopDocsCollector topCollector = TopFieldCollector.create(weightSort(sort), nDocs, false, false, false, inOrder);
 
@@ -223,6 +223,10 @@ public class SortedIntDocSet extends DocSetBase {
 
   @Override
   public int intersectionSize(DocSet other) {
+    if (other instanceof CompressedDocSet) {
+      // walks both sets in order instead of decoding it for every doc
+      return other.intersectionSize(this);
+    }
     if (!(other instanceof SortedIntDocSet)) {
       // assume other implementations are better at random access than we are,
       // true of BitDocSet and HashDocSet.
@@ -273,6 +277,9 @@ public class SortedIntDocSet extends DocSetBase {
 
   @Override
   public boolean intersects(DocSet other) {
+    if (other instanceof CompressedDocSet) {
+      return other.intersects(this);
+    }
     if (!(other instanceof SortedIntDocSet)) {
       // assume other implementations are better at random access than we are,
       // true of BitDocSet and HashDocSet.
@@ -418,6 +425,9 @@ public class SortedIntDocSet extends DocSetBase {
 
   @Override
   public DocSet intersection(DocSet other) {
+    if (other instanceof CompressedDocSet) {
+      return other.intersection(this);
+    }
     if (!(other instanceof SortedIntDocSet)) {
       int icount = 0;
       int arr[] = new int[docs.length];
@@ -546,6 +556,9 @@ public class SortedIntDocSet extends DocSetBase {
   public DocSet andNot(DocSet other) {
     if (other.size()==0) return this;
 
+    if (other instanceof CompressedDocSet) {
+      return ((CompressedDocSet)other).andNotFrom(docs);
+    }
     if (!(other instanceof SortedIntDocSet)) {
       int count = 0;
       int arr[] = new int[docs.length];
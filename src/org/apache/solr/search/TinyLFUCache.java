@@ -0,0 +1,215 @@
+package org.apache.solr.search;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.util.ConcurrentTinyLFUCache;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SolrCache based on the ConcurrentTinyLFUCache implementation.
+ * <p/>
+ * Unlike the LRU caches, which admit every new entry, this cache only keeps a new entry
+ * in place of an old one when its key was requested more often recently, which keeps
+ * one-off queries from pushing the working set out of a queryResultCache or
+ * filterCache. The key frequencies of the old cache carry over to the new one when it
+ * is autowarmed.
+ * <p/>
+ * Parameters: <code>size</code> (1024 by default), <code>initialSize</code>,
+ * <code>autowarmCount</code> and <code>showItems</code>.
+ *
+ * @see org.apache.solr.util.ConcurrentTinyLFUCache
+ * @see org.apache.solr.search.SolrCache
+ */
+public class TinyLFUCache<K,V> extends SolrCacheBase implements SolrCache<K,V> {
+
+  // contains the statistics objects for all open caches of the same type
+  private List<ConcurrentTinyLFUCache.Stats> statsList;
+
+  private long warmupTime = 0;
+
+  private String description = "Concurrent TinyLFU Cache";
+  private ConcurrentTinyLFUCache<K,V> cache;
+  private int showItems = 0;
+
+  @Override
+  public Object init(Map args, Object persistence, CacheRegenerator regenerator) {
+    super.init(args, regenerator);
+    String str = (String) args.get("size");
+    int limit = str == null ? 1024 : Integer.parseInt(str);
+    str = (String) args.get("initialSize");
+    final int initialSize = str == null ? limit : Integer.parseInt(str);
+    str = (String) args.get("showItems");
+    showItems = str == null ? 0 : Integer.parseInt(str);
+
+    description = "Concurrent TinyLFU Cache(maxSize=" + limit + ", initialSize=" + initialSize;
+    if (isAutowarmingOn()) {
+      description += ", " + getAutowarmDescription();
+    }
+    description += ')';
+
+    cache = new ConcurrentTinyLFUCache<K,V>(limit, initialSize);
+    cache.setAlive(false);
+
+    statsList = (List<ConcurrentTinyLFUCache.Stats>) persistence;
+    if (statsList == null) {
+      // must be the first time a cache of this type is being created
+      statsList = new CopyOnWriteArrayList<ConcurrentTinyLFUCache.Stats>();
+
+      // the first entry will be for cumulative stats of caches that have been closed.
+      statsList.add(new ConcurrentTinyLFUCache.Stats());
+    }
+    statsList.add(cache.getStats());
+    return statsList;
+  }
+
+  @Override
+  public int size() {
+    return cache.size();
+  }
+
+  @Override
+  public V put(K key, V value) {
+    return cache.put(key, value);
+  }
+
+  @Override
+  public V get(K key) {
+    return cache.get(key);
+  }
+
+  @Override
+  public void clear() {
+    cache.clear();
+  }
+
+  @Override
+  public void setState(State state) {
+    super.setState(state);
+    cache.setAlive(state == State.LIVE);
+  }
+
+  @Override
+  public void warm(SolrIndexSearcher searcher, SolrCache old) {
+    TinyLFUCache other = (TinyLFUCache) old;
+    // the frequencies are worth keeping even when the entries cannot be regenerated
+    cache.copyFrequencies(other.cache);
+    if (regenerator == null) return;
+    long warmingStartTime = System.currentTimeMillis();
+    // warm entries
+    if (isAutowarmingOn()) {
+      int sz = autowarm.getWarmCount(other.size());
+      Map items = other.cache.getLatestAccessedItems(sz);
+      // the most valuable items first
+      Object[] keys = new Object[items.size()];
+      Object[] vals = new Object[items.size()];
+      int counter = 0;
+      for (Object mapEntry : items.entrySet()) {
+        keys[counter] = ((Map.Entry) mapEntry).getKey();
+        vals[counter++] = ((Map.Entry) mapEntry).getValue();
+      }
+      regenerateItems(searcher, this, old, keys, vals);
+    }
+    warmupTime = System.currentTimeMillis() - warmingStartTime;
+  }
+
+
+  @Override
+  public void close() {
+    // add the stats to the cumulative stats object (the first in the statsList)
+    statsList.get(0).add(cache.getStats());
+    statsList.remove(cache.getStats());
+  }
+
+  //////////////////////// SolrInfoMBeans methods //////////////////////
+  @Override
+  public String getName() {
+    return TinyLFUCache.class.getName();
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Serializable> lst = new SimpleOrderedMap<Serializable>();
+    if (cache == null)  return lst;
+    ConcurrentTinyLFUCache.Stats stats = cache.getStats();
+    long lookups = stats.getCumulativeLookups();
+    long hits = stats.getCumulativeHits();
+    long clookups = 0;
+    long chits = 0;
+    long cinserts = 0;
+    long cevictions = 0;
+    long crejections = 0;
+
+    // NOTE: It is safe to iterate on a CopyOnWriteArrayList
+    for (ConcurrentTinyLFUCache.Stats statistics : statsList) {
+      clookups += statistics.getCumulativeLookups();
+      chits += statistics.getCumulativeHits();
+      cinserts += statistics.getCumulativePuts();
+      cevictions += statistics.getCumulativeEvictions();
+      crejections += statistics.getCumulativeRejections();
+    }
+
+    lst.add("lookups", lookups);
+    lst.add("hits", hits);
+    lst.add("hitratio", calcHitRatio(lookups, hits));
+    lst.add("inserts", stats.getCumulativePuts());
+    lst.add("evictions", stats.getCumulativeEvictions());
+    lst.add("rejections", stats.getCumulativeRejections());
+    lst.add("size", stats.getCurrentSize());
+
+    lst.add("warmupTime", warmupTime);
+    lst.add("warmupEntries", warmupEntries);
+    lst.add("warmupSkipped", warmupSkipped);
+    lst.add("cumulative_lookups", clookups);
+    lst.add("cumulative_hits", chits);
+    lst.add("cumulative_hitratio", calcHitRatio(clookups, chits));
+    lst.add("cumulative_inserts", cinserts);
+    lst.add("cumulative_evictions", cevictions);
+    lst.add("cumulative_rejections", crejections);
+
+    if (showItems != 0) {
+      Map items = cache.getLatestAccessedItems( showItems == -1 ? Integer.MAX_VALUE : showItems );
+      for (Map.Entry e : (Set <Map.Entry>)items.entrySet()) {
+        lst.add("item_" + e.getKey(), e.getValue().toString());
+      }
+    }
+
+    return lst;
+  }
+
+  @Override
+  public String toString() {
+    return name() + getStatistics().toString();
+  }
+}
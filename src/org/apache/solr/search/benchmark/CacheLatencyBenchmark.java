@@ -0,0 +1,205 @@
+package org.apache.solr.search.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.solr.search.SolrCache;
+
+/**
+ * Measures the latency of {@link SolrCache#get} and {@link SolrCache#put} when several
+ * threads use a cache at once.
+ * <p>
+ * Each thread looks up keys drawn from a Zipf distribution and puts the missing ones,
+ * as the searcher does with its caches, for a fixed duration after a warmup of the same
+ * duration. Every call is timed, and the report gives the throughput of all the threads
+ * and the 50th, 99th and 99.9th percentiles and the maximum of the latencies of the
+ * gets and of the puts, in microseconds.
+ * <pre>
+ * java org.apache.solr.search.benchmark.CacheLatencyBenchmark
+ *     [-threads n[,n...]] [-t millis] [-size n] [-keys distinct] [-s zipfExponent]
+ *     [cache class names, LRUCache FastLRUCache LFUCache TinyLFUCache by default]
+ * </pre>
+ */
+public class CacheLatencyBenchmark {
+
+  private int[] threadCounts = {1, 4, 16};
+  private long millis = 3000;
+  private int size = 1024;
+  private int keys = 100000;
+  private double exponent = 0.9;
+
+  public static void main(String[] args) throws Exception {
+    CacheLatencyBenchmark bench = new CacheLatencyBenchmark();
+    String[] impls = {"LRUCache", "FastLRUCache", "LFUCache", "TinyLFUCache"};
+    int first = -1;
+    for (int i = 0; i < args.length; i++) {
+      if ("-t".equals(args[i])) bench.millis = Long.parseLong(args[++i]);
+      else if ("-size".equals(args[i])) bench.size = Integer.parseInt(args[++i]);
+      else if ("-keys".equals(args[i])) bench.keys = Integer.parseInt(args[++i]);
+      else if ("-s".equals(args[i])) bench.exponent = Double.parseDouble(args[++i]);
+      else if ("-threads".equals(args[i])) {
+        String[] parts = args[++i].split(",");
+        bench.threadCounts = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) bench.threadCounts[j] = Integer.parseInt(parts[j]);
+      }
+      else if (first < 0) first = i;
+    }
+    if (first >= 0) impls = Arrays.copyOfRange(args, first, args.length);
+
+    System.out.println(String.format(Locale.ROOT, "%-14s %7s %9s %9s %9s %9s %9s %9s %9s %9s %9s",
+        "cache", "threads", "Mops/s", "get p50", "get p99", "get p99.9", "get max",
+        "put p50", "put p99", "put p99.9", "put max"));
+    for (String impl : impls) {
+      for (int threads : bench.threadCounts) {
+        bench.run(impl, threads);
+      }
+    }
+  }
+
+  void run(String impl, int threads) throws InterruptedException {
+    SolrCache<Object,Object> cache = CacheReplayBenchmark.newCache(impl, size);
+    String[] names = new String[keys];
+    for (int i = 0; i < keys; i++) names[i] = "q:" + i;
+
+    // warmup, then measure
+    Worker[] workers = null;
+    for (int round = 0; round < 2; round++) {
+      workers = new Worker[threads];
+      CountDownLatch start = new CountDownLatch(1);
+      for (int t = 0; t < threads; t++) {
+        workers[t] = new Worker(cache, names, exponent, 31L * t + round, start, millis);
+        workers[t].start();
+      }
+      start.countDown();
+      for (Worker w : workers) w.join();
+    }
+    cache.close();
+
+    Histogram gets = new Histogram(), puts = new Histogram();
+    long ops = 0;
+    for (Worker w : workers) {
+      gets.add(w.gets);
+      puts.add(w.puts);
+      ops += w.gets.count + w.puts.count;
+    }
+    System.out.println(String.format(Locale.ROOT, "%-14s %7d %9.2f %9.2f %9.2f %9.2f %9.1f %9.2f %9.2f %9.2f %9.1f",
+        impl, threads, ops / (millis * 1000.0),
+        gets.percentile(0.5) / 1000.0, gets.percentile(0.99) / 1000.0, gets.percentile(0.999) / 1000.0, gets.max / 1000.0,
+        puts.percentile(0.5) / 1000.0, puts.percentile(0.99) / 1000.0, puts.percentile(0.999) / 1000.0, puts.max / 1000.0));
+  }
+
+  private static final class Worker extends Thread {
+    final SolrCache<Object,Object> cache;
+    final Object[] trace;
+    final CountDownLatch start;
+    final long millis;
+    final Histogram gets = new Histogram(), puts = new Histogram();
+
+    Worker(SolrCache<Object,Object> cache, String[] names, double exponent, long seed, CountDownLatch start, long millis) {
+      this.cache = cache;
+      this.start = start;
+      this.millis = millis;
+      // draw the keys before, so that the measure does not include the random numbers
+      double[] cdf = new double[names.length];
+      double sum = 0;
+      for (int i = 0; i < cdf.length; i++) {
+        sum += 1.0 / Math.pow(i + 1, exponent);
+        cdf[i] = sum;
+      }
+      Random random = new Random(seed);
+      trace = new Object[1 << 20];
+      for (int i = 0; i < trace.length; i++) {
+        int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+        trace[i] = names[Math.min(k < 0 ? -k - 1 : k, names.length - 1)];
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        start.await();
+      } catch (InterruptedException e) {
+        return;
+      }
+      long end = System.nanoTime() + millis * 1000000L;
+      int mask = trace.length - 1;
+      for (int i = 0; ; i++) {
+        Object key = trace[i & mask];
+        long t0 = System.nanoTime();
+        Object val = cache.get(key);
+        long t1 = System.nanoTime();
+        gets.record(t1 - t0);
+        if (val == null) {
+          cache.put(key, key);
+          long t2 = System.nanoTime();
+          puts.record(t2 - t1);
+          t1 = t2;
+        }
+        if ((i & 255) == 0 && t1 > end) break;
+      }
+    }
+  }
+
+  /**
+   * Counts of latencies in nanoseconds, exact below 128 and within 1/64 above, in
+   * buckets of 64 for each power of two.
+   */
+  static final class Histogram {
+    final long[] counts = new long[128 + 57 * 64];
+    long count;
+    long max;
+
+    void record(long nanos) {
+      counts[index(nanos)]++;
+      count++;
+      if (nanos > max) max = nanos;
+    }
+
+    void add(Histogram other) {
+      for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+      count += other.count;
+      max = Math.max(max, other.max);
+    }
+
+    long percentile(double p) {
+      long rank = (long) Math.ceil(p * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) return value(i);
+      }
+      return max;
+    }
+
+    private static int index(long v) {
+      if (v < 128) return (int) Math.max(v, 0);
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      return 128 + (exp - 7) * 64 + (int) ((v >>> (exp - 6)) & 63);
+    }
+
+    private static long value(int index) {
+      if (index < 128) return index;
+      int exp = (index - 128) / 64 + 7;
+      return (64L + (index - 128) % 64) << (exp - 6);
+    }
+  }
+}
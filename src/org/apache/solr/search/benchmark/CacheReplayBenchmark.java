@@ -0,0 +1,208 @@
+package org.apache.solr.search.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.search.FastLRUCache;
+import org.apache.solr.search.LFUCache;
+import org.apache.solr.search.LRUCache;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.TinyLFUCache;
+
+/**
+ * Replays request traces against the SolrCache implementations and reports their
+ * hit ratios.
+ * <p>
+ * Each key of a trace is looked up with {@link SolrCache#get} and put in the cache
+ * when it is missing, as the searcher does with its queryResultCache and filterCache.
+ * Without a trace file, synthetic traces of skewed query logs are generated:
+ * <ul>
+ * <li><code>zipf</code>: keys drawn from a Zipf distribution,</li>
+ * <li><code>zipf+crawl</code>: the same with a share of one-off keys, as a crawler
+ *     paging through results would send,</li>
+ * <li><code>zipf+scan</code>: the same interrupted by bursts of distinct keys,</li>
+ * <li><code>shift</code>: a Zipf distribution whose popular keys change half way.</li>
+ * </ul>
+ * <pre>
+ * java org.apache.solr.search.benchmark.CacheReplayBenchmark
+ *     [-n requests] [-keys distinct] [-s zipfExponent] [-oneoff share]
+ *     [-size n[,n...]] [-seed n] [trace file, one key per line]
+ * </pre>
+ */
+public class CacheReplayBenchmark {
+
+  private int requests = 2000000;
+  private int keys = 100000;
+  private double exponent = 0.9;
+  private double oneOff = 0.3;
+  private int[] sizes = {500, 5000};
+  private long seed = 42;
+
+  public static void main(String[] args) throws Exception {
+    CacheReplayBenchmark bench = new CacheReplayBenchmark();
+    String file = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("-n".equals(args[i])) bench.requests = Integer.parseInt(args[++i]);
+      else if ("-keys".equals(args[i])) bench.keys = Integer.parseInt(args[++i]);
+      else if ("-s".equals(args[i])) bench.exponent = Double.parseDouble(args[++i]);
+      else if ("-oneoff".equals(args[i])) bench.oneOff = Double.parseDouble(args[++i]);
+      else if ("-seed".equals(args[i])) bench.seed = Long.parseLong(args[++i]);
+      else if ("-size".equals(args[i])) {
+        String[] parts = args[++i].split(",");
+        bench.sizes = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) bench.sizes[j] = Integer.parseInt(parts[j]);
+      }
+      else file = args[i];
+    }
+
+    Map<String, Object[]> traces;
+    if (file != null) {
+      traces = new LinkedHashMap<String, Object[]>();
+      traces.put(file, readTrace(file));
+    } else {
+      traces = bench.syntheticTraces();
+    }
+    System.out.println(String.format(Locale.ROOT, "%-14s %-14s %8s %10s %10s", "trace", "cache", "size", "hitratio", "Mops/s"));
+    for (Map.Entry<String, Object[]> trace : traces.entrySet()) {
+      for (int size : bench.sizes) {
+        for (String impl : new String[] {"LRUCache", "FastLRUCache", "LFUCache", "TinyLFUCache"}) {
+          bench.replay(trace.getKey(), trace.getValue(), impl, size);
+        }
+      }
+    }
+  }
+
+  void replay(String name, Object[] trace, String impl, int size) {
+    // replay twice, the first time to warm up the JVM
+    double hitRatio = 0;
+    long nanos = 0;
+    for (int round = 0; round < 2; round++) {
+      SolrCache<Object,Object> cache = newCache(impl, size);
+      long hits = 0;
+      long start = System.nanoTime();
+      for (Object key : trace) {
+        if (cache.get(key) != null) {
+          hits++;
+        } else {
+          cache.put(key, key);
+        }
+      }
+      nanos = System.nanoTime() - start;
+      hitRatio = (double) hits / trace.length;
+      cache.close();
+    }
+    System.out.println(String.format(Locale.ROOT, "%-14s %-14s %8d %10.4f %10.2f",
+        name, impl, size, hitRatio, trace.length * 1000.0 / nanos));
+  }
+
+  static SolrCache<Object,Object> newCache(String impl, int size) {
+    SolrCache<Object,Object> cache;
+    if ("LRUCache".equals(impl)) cache = new LRUCache<Object,Object>();
+    else if ("FastLRUCache".equals(impl)) cache = new FastLRUCache<Object,Object>();
+    else if ("LFUCache".equals(impl)) cache = new LFUCache<Object,Object>();
+    else cache = new TinyLFUCache<Object,Object>();
+    Map<String,String> args = new HashMap<String,String>();
+    args.put("name", impl);
+    args.put("size", Integer.toString(size));
+    cache.init(args, null, null);
+    cache.setState(SolrCache.State.LIVE);
+    return cache;
+  }
+
+  Map<String, Object[]> syntheticTraces() {
+    Map<String, Object[]> traces = new LinkedHashMap<String, Object[]>();
+    Random random = new Random(seed);
+    double[] cdf = zipfCdf(keys, exponent);
+
+    Object[] zipf = new Object[requests];
+    for (int i = 0; i < requests; i++) zipf[i] = key(draw(cdf, random), 0);
+    traces.put("zipf", zipf);
+
+    Object[] crawl = new Object[requests];
+    int unique = 0;
+    for (int i = 0; i < requests; i++) {
+      crawl[i] = random.nextDouble() < oneOff ? "crawl:" + unique++ : key(draw(cdf, random), 0);
+    }
+    traces.put("zipf+crawl", crawl);
+
+    Object[] scan = new Object[requests];
+    for (int i = 0; i < requests; ) {
+      // a burst of distinct keys every 50000 requests
+      if (i % 50000 == 0) {
+        for (int j = 0; j < 10000 && i < requests; j++) scan[i++] = "scan:" + unique++;
+      } else {
+        scan[i++] = key(draw(cdf, random), 0);
+      }
+    }
+    traces.put("zipf+scan", scan);
+
+    Object[] shift = new Object[requests];
+    for (int i = 0; i < requests; i++) {
+      shift[i] = key(draw(cdf, random), i < requests / 2 ? 0 : 1);
+    }
+    traces.put("shift", shift);
+    return traces;
+  }
+
+  private static String key(int rank, int generation) {
+    return "q" + generation + ":" + rank;
+  }
+
+  private static double[] zipfCdf(int n, double s) {
+    double[] cdf = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / Math.pow(i + 1, s);
+      cdf[i] = sum;
+    }
+    for (int i = 0; i < n; i++) cdf[i] /= sum;
+    return cdf;
+  }
+
+  private static int draw(double[] cdf, Random random) {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+    return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+  }
+
+  static Object[] readTrace(String file) throws IOException {
+    List<Object> trace = new ArrayList<Object>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), IOUtils.CHARSET_UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() > 0) trace.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    return trace.toArray();
+  }
+}
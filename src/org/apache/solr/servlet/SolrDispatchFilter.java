@@ -104,6 +104,8 @@ public class SolrDispatchFilter implements Filter
   
   private static final Charset UTF8 = Charset.forName("UTF-8");
 
+  private static final boolean ACL_ENABLED = Boolean.getBoolean("dlab.acl.enabled");
+
   public SolrDispatchFilter() {
     try {
       log = LoggerFactory.getLogger(SolrDispatchFilter.class);
@@ -190,6 +192,7 @@ public class SolrDispatchFilter implements Filter
       cores.shutdown();
       cores = null;
     }    
+    SearchLogPipeline.shutdownInstance();
   }
   
   @Override
@@ -396,13 +399,17 @@ public class SolrDispatchFilter implements Filter
             
             /*
              * 2014.03 Jino. here Client validation check.
-            RequestValidator rv = RequestValidator.getInstance();
-            boolean isValid = rv.isValidforRequest(solrReq, config, path);
-            
-            if ( !isValid) {
-            	throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, path + " no allowed user");
+             * The handler ACL is compiled once per core, so this is a hash lookup; 
+             * enabled with -Ddlab.acl.enabled=true
+             */
+            if ( ACL_ENABLED ) {
+              RequestValidator rv = RequestValidator.getInstance();
+              boolean isValid = rv.isValidforRequest(solrReq, config, path);
+              
+              if ( !isValid) {
+              	throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, path + " no allowed user");
+              }
             }
-            */
             
             HttpCacheHeaderUtil.setCacheControlHeader(config, resp, reqMethod);
             // unless we have been explicitly told not to, do cache validation
@@ -447,12 +454,13 @@ public class SolrDispatchFilter implements Filter
 	               boolean isSearch = false;
 	               
 	               if( ( "/select".equals( path ) || "/select/".equals( path ) ) || 
-	            	   ( "/query".equals("path") || "/query/".equals("path") ) || 
-	            	   ( "/get".equals("path") || "/get/".equals("path") )  ) {
+	            	   ( "/query".equals( path ) || "/query/".equals( path ) ) || 
+	            	   ( "/get".equals( path ) || "/get/".equals( path ) )  ) {
 	            	   isSearch = true;
 	               }
 	               logWriter.setIndexed(!isSearch);
-	               logWriter.start();
+	               // captured here, before solrReq.close(); written by SearchLogPipeline
+	               logWriter.write();
                }
             }
             return; // we are done with a valid handler
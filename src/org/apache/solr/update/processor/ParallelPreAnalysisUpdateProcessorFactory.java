@@ -0,0 +1,426 @@
+package org.apache.solr.update.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.JsonPreAnalyzedParser;
+import org.apache.solr.schema.PreAnalyzedField;
+import org.apache.solr.schema.PreAnalyzedField.PreAnalyzedParser;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.SimplePreAnalyzedParser;
+import org.apache.solr.schema.TextField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
+import org.apache.solr.update.processor.FieldMutatingUpdateProcessor.FieldNameSelector;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.apache.solr.common.SolrException.ErrorCode.SERVER_ERROR;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * <p>An update processor that runs the index analysis of configured text fields
+ * on a pool of threads, so that expensive analysis chains (e.g. the Korean
+ * morphological analysis) of the documents of one update request are computed
+ * in parallel instead of one document after the other inside the
+ * {@link org.apache.lucene.index.IndexWriter}.</p>
+ *
+ * <p>Fields are specified using the same patterns as in {@link FieldMutatingUpdateProcessorFactory}.
+ * Only fields whose schema type is a {@link TextField} are analyzed; other fields, and
+ * fields that are the source of a <code>copyField</code>, are passed on unchanged.</p>
+ *
+ * <h3>Implementation details</h3>
+ * <p>Added documents are buffered until <code>batchSize</code> documents are pending,
+ * or until any other command or the end of the request. The pending documents are then
+ * analyzed concurrently, one task per document, with the index analyzer of each field.
+ * The tokens are serialized with the {@link PreAnalyzedParser} selected by
+ * <code>parser</code> (<code>json</code>, the default, for {@link JsonPreAnalyzedParser},
+ * <code>simple</code> for {@link SimplePreAnalyzedParser}, or a class name), and the
+ * documents are passed to the next processor in their original order.</p>
+ * <p>By default each serialized value is parsed back right away into a {@link Field}
+ * carrying the ready token stream, exactly as {@link PreAnalyzedUpdateProcessorFactory}
+ * does, so the indexer only consumes the tokens. If <code>emitFormatted</code> is true
+ * the serialized string is kept as the field value instead, so that the documents can
+ * be forwarded to other nodes and indexed there by a {@link PreAnalyzedUpdateProcessorFactory}
+ * placed after the <code>DistributedUpdateProcessorFactory</code>.</p>
+ * <p>Only the term, position increment, offsets and payload of each token are kept,
+ * as these are all the indexer consumes.</p>
+ * <p><code>threads</code> defaults to the number of available processors, and
+ * <code>batchSize</code> to {@value #DEFAULT_BATCH_SIZE}. The threads are shared by
+ * all requests using the chain; with one thread documents are analyzed by the
+ * request thread itself.</p>
+ * <h3>Example configuration</h3>
+ *
+ *  <pre class="prettyprint">
+ *   &lt;updateRequestProcessorChain name="korean-parallel"&gt;
+ *    &lt;processor class="solr.ParallelPreAnalysisUpdateProcessorFactory"&gt;
+ *      &lt;str name="typeName"&gt;text_ko&lt;/str&gt;
+ *      &lt;str name="parser"&gt;json&lt;/str&gt;
+ *      &lt;int name="threads"&gt;4&lt;/int&gt;
+ *      &lt;int name="batchSize"&gt;200&lt;/int&gt;
+ *    &lt;/processor&gt;
+ *    &lt;processor class="solr.RunUpdateProcessorFactory" /&gt;
+ *  &lt;/updateRequestProcessorChain&gt;
+ *  </pre>
+ *
+ */
+public class ParallelPreAnalysisUpdateProcessorFactory extends FieldMutatingUpdateProcessorFactory {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private PreAnalyzedField parser;
+  private String parserImpl;
+  private int threads;
+  private int batchSize;
+  private boolean emitFormatted;
+  private ExecutorService executor;
+
+  @Override
+  public void init(final NamedList args) {
+    parserImpl = (String)args.get("parser");
+    args.remove("parser");
+    threads = getPositiveIntArg(args, "threads", Runtime.getRuntime().availableProcessors());
+    batchSize = getPositiveIntArg(args, "batchSize", DEFAULT_BATCH_SIZE);
+    Boolean emit = getBooleanArg(args, "emitFormatted");
+    emitFormatted = emit != null && emit.booleanValue();
+    // initialize inclusion / exclusion patterns
+    super.init(args);
+  }
+
+  private static int getPositiveIntArg(final NamedList args, final String key, final int def) {
+    Object o = args.remove(key);
+    if (null == o) {
+      return def;
+    }
+    int value;
+    try {
+      value = (o instanceof Number) ? ((Number)o).intValue() : Integer.parseInt(o.toString());
+    } catch (NumberFormatException e) {
+      throw new SolrException(SERVER_ERROR, "Init param '" + key + "' must be an integer: " + o, e);
+    }
+    if (value < 1) {
+      throw new SolrException(SERVER_ERROR, "Init param '" + key + "' must be positive: " + o);
+    }
+    return value;
+  }
+
+  @Override
+  public UpdateRequestProcessor getInstance(SolrQueryRequest req,
+      SolrQueryResponse rsp, UpdateRequestProcessor next) {
+    return new ParallelPreAnalysisUpdateProcessor(getSelector(), next, req.getSchema(), parser,
+        executor, batchSize, emitFormatted);
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    super.inform(core);
+    parser = new PreAnalyzedField();
+    Map<String,String> args = new HashMap<String,String>();
+    if (parserImpl != null) {
+      args.put(PreAnalyzedField.PARSER_IMPL, parserImpl);
+    }
+    parser.init(core.getLatestSchema(), args);
+
+    if (threads > 1) {
+      executor = Executors.newFixedThreadPool(threads, new DefaultSolrThreadFactory("preAnalysis"));
+      core.addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {}
+
+        @Override
+        public void postClose(SolrCore core) {
+          executor.shutdownNow();
+        }
+      });
+    }
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+}
+
+class ParallelPreAnalysisUpdateProcessor extends UpdateRequestProcessor {
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelPreAnalysisUpdateProcessor.class);
+
+  private final FieldNameSelector selector;
+  private final IndexSchema schema;
+  private final PreAnalyzedField parser;
+  private final ExecutorService executor; // null: analyze in the request thread
+  private final int batchSize;
+  private final boolean emitFormatted;
+
+  private final List<AddUpdateCommand> pending = new ArrayList<AddUpdateCommand>();
+
+  public ParallelPreAnalysisUpdateProcessor(FieldNameSelector selector, UpdateRequestProcessor next,
+      IndexSchema schema, PreAnalyzedField parser, ExecutorService executor, int batchSize,
+      boolean emitFormatted) {
+    super(next);
+    this.selector = selector;
+    this.schema = schema;
+    this.parser = parser;
+    this.executor = executor;
+    this.batchSize = batchSize;
+    this.emitFormatted = emitFormatted;
+  }
+
+  @Override
+  public void processAdd(AddUpdateCommand cmd) throws IOException {
+    // loaders reuse the command object for the next document
+    pending.add((AddUpdateCommand)cmd.clone());
+    if (pending.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  @Override
+  public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+    flush();
+    super.processDelete(cmd);
+  }
+
+  @Override
+  public void processMergeIndexes(MergeIndexesCommand cmd) throws IOException {
+    flush();
+    super.processMergeIndexes(cmd);
+  }
+
+  @Override
+  public void processCommit(CommitUpdateCommand cmd) throws IOException {
+    flush();
+    super.processCommit(cmd);
+  }
+
+  @Override
+  public void processRollback(RollbackUpdateCommand cmd) throws IOException {
+    flush();
+    super.processRollback(cmd);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    flush();
+    super.finish();
+  }
+
+  /**
+   * Analyzes the pending documents and passes them on in order. A document
+   * that fails analysis fails the request after the documents before it
+   * were passed on, as if they had been analyzed one by one.
+   */
+  private void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<AddUpdateCommand> batch = new ArrayList<AddUpdateCommand>(pending);
+    pending.clear();
+
+    if (executor == null) {
+      for (AddUpdateCommand cmd : batch) {
+        analyze(cmd.solrDoc);
+        super.processAdd(cmd);
+      }
+      return;
+    }
+
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(batch.size());
+    try {
+      for (final AddUpdateCommand cmd : batch) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            analyze(cmd.solrDoc);
+            return null;
+          }
+        }));
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        await(futures.get(i));
+        super.processAdd(batch.get(i));
+      }
+    } finally {
+      // documents after a failure are dropped, don't keep analyzing them
+      for (Future<Void> f : futures) {
+        f.cancel(false);
+      }
+    }
+  }
+
+  private static void await(Future<Void> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SERVER_ERROR, "Interrupted while waiting for pre-analysis", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new SolrException(SERVER_ERROR, cause);
+    }
+  }
+
+  private void analyze(SolrInputDocument doc) throws IOException {
+    // make a copy we can iterate over while replacing fields
+    for (String fname : new ArrayList<String>(doc.getFieldNames())) {
+      if (! selector.shouldMutate(fname)) continue;
+
+      SchemaField sf = schema.getFieldOrNull(fname);
+      if (sf == null || ! sf.indexed() || ! (sf.getType() instanceof TextField)) continue;
+      // a Field value would be copied as is into the copyField destinations
+      if (! schema.getCopyFieldsList(fname).isEmpty()) continue;
+
+      SolrInputField src = doc.get(fname);
+      SolrInputField res = new SolrInputField(fname);
+      res.setBoost(src.getBoost());
+      Analyzer analyzer = sf.getType().getAnalyzer();
+      for (Object o : src) {
+        if (! (o instanceof CharSequence)) {
+          res.addValue(o, 1.0f);
+          continue;
+        }
+        String formatted = format(sf, analyzer, o.toString());
+        if (emitFormatted) {
+          res.addValue(formatted, 1.0f);
+          continue;
+        }
+        Field pre = (Field)parser.createField(sf, formatted, 1.0f);
+        if (pre != null) {
+          res.addValue(pre, 1.0f);
+        } else { // restore the original value
+          log.warn("Could not pre-analyze field {} - using original value as is: {}", fname, o);
+          res.addValue(o, 1.0f);
+        }
+      }
+      doc.put(fname, res);
+    }
+  }
+
+  private String format(SchemaField sf, Analyzer analyzer, String value) throws IOException {
+    FieldType type = PreAnalyzedField.createFieldType(sf);
+    Field f = new Field(sf.getName(), value, type);
+    TokenStream ts = new IndexedTokens(analyzer.tokenStream(sf.getName(), value));
+    try {
+      ts.reset();
+      f.setTokenStream(ts);
+      String formatted = parser.toFormattedString(f);
+      ts.end();
+      return formatted;
+    } finally {
+      ts.close();
+    }
+  }
+
+  /**
+   * Copies only the attributes the indexer consumes, so that attributes of
+   * the analysis chain (e.g. position lengths) are neither serialized nor
+   * reported as unknown when the formatted value is parsed.
+   */
+  private static final class IndexedTokens extends TokenStream {
+    private final TokenStream input;
+    private final CharTermAttribute inTerm;
+    private final PositionIncrementAttribute inPosInc;
+    private final OffsetAttribute inOffset;
+    private final PayloadAttribute inPayload;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PayloadAttribute payloadAtt;
+
+    IndexedTokens(TokenStream input) {
+      this.input = input;
+      this.inTerm = input.addAttribute(CharTermAttribute.class);
+      this.inPosInc = input.addAttribute(PositionIncrementAttribute.class);
+      this.inOffset = input.addAttribute(OffsetAttribute.class);
+      if (input.hasAttribute(PayloadAttribute.class)) {
+        this.inPayload = input.getAttribute(PayloadAttribute.class);
+        this.payloadAtt = addAttribute(PayloadAttribute.class);
+      } else {
+        this.inPayload = null;
+        this.payloadAtt = null;
+      }
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if (!input.incrementToken()) {
+        return false;
+      }
+      clearAttributes();
+      termAtt.copyBuffer(inTerm.buffer(), 0, inTerm.length());
+      posIncAtt.setPositionIncrement(inPosInc.getPositionIncrement());
+      offsetAtt.setOffset(inOffset.startOffset(), inOffset.endOffset());
+      if (inPayload != null) {
+        payloadAtt.setPayload(inPayload.getPayload());
+      }
+      return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      input.reset();
+    }
+
+    @Override
+    public void end() throws IOException {
+      input.end();
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+}
@@ -16,16 +16,15 @@ package org.apache.solr.util;
  * limitations under the License.
  */
 
-import org.apache.lucene.util.PriorityQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -36,9 +35,11 @@ import java.lang.ref.WeakReference;
  * contention and synchronization overhead to utilize multiple CPU cores more effectively.
  * <p/>
  * Note that the implementation does not follow a true LRU (least-recently-used) eviction
- * strategy. Instead it strives to remove least recently used items but when the initial
- * cleanup does not remove enough items to reach the 'acceptableWaterMark' limit, it can
- * remove more items forcefully regardless of access order.
+ * strategy. Instead it approximates it with the CLOCK (second chance) algorithm: the
+ * entries are kept in a lock free queue that a clock hand walks, evicting the entries
+ * that were not accessed since its last pass. Each put over the 'upperWaterMark' moves
+ * the hand a bounded number of steps, so there is no sweep of the whole cache and no
+ * lock on the way of gets and puts. The 'acceptableWaterMark' is no longer used.
  *
  *
  * @since solr 1.4
@@ -48,13 +49,17 @@ public class ConcurrentLRUCache<K,V> {
 
   private final ConcurrentHashMap<Object, CacheEntry<K,V>> map;
   private final int upperWaterMark, lowerWaterMark;
-  private final ReentrantLock markAndSweepLock = new ReentrantLock(true);
-  private boolean isCleaning = false;  // not volatile... piggybacked on other volatile vars
+  // the most steps of the clock hand a put takes
+  private static final int MAX_STEPS = 16;
+
+  private final ConcurrentLinkedQueue<CacheEntry<K,V>> clock = new ConcurrentLinkedQueue<CacheEntry<K,V>>();
+  private final AtomicInteger clockSize = new AtomicInteger();  // the size of the queue is not O(1)
+  private volatile boolean isEvicting = false;  // between going over the upper and under the lower water mark
+  private final AtomicBoolean isCleaning = new AtomicBoolean();  // whether a new cleanup thread is running
+  private final ReentrantLock accessedItemsLock = new ReentrantLock(true);
   private final boolean newThreadForCleanup;
   private volatile boolean islive = true;
   private final Stats stats = new Stats();
-  private final int acceptableWaterMark;
-  private long oldestEntry = 0;  // not volatile, only accessed in the cleaning method
   private final EvictionListener<K,V> evictionListener;
   private CleanupThread cleanupThread ;
 
@@ -68,7 +73,6 @@ public class ConcurrentLRUCache<K,V> {
     newThreadForCleanup = runNewThreadForCleanup;
     this.upperWaterMark = upperWaterMark;
     this.lowerWaterMark = lowerWaterMark;
-    this.acceptableWaterMark = acceptableWatermark;
     this.evictionListener = evictionListener;
     if (runCleanupThread) {
       cleanupThread = new CleanupThread(this);
@@ -108,6 +112,8 @@ public class ConcurrentLRUCache<K,V> {
     if (val == null) return null;
     CacheEntry<K,V> e = new CacheEntry<K,V>(key, val, stats.accessCounter.incrementAndGet());
     CacheEntry<K,V> oldCacheEntry = map.put(key, e);
+    clock.offer(e);
+    int clockSize = this.clockSize.incrementAndGet();
     int currentSize;
     if (oldCacheEntry == null) {
       currentSize = stats.size.incrementAndGet();
@@ -120,280 +126,75 @@ public class ConcurrentLRUCache<K,V> {
       stats.nonLivePutCounter.incrementAndGet();
     }
 
-    // Check if we need to clear out old entries from the cache.
-    // isCleaning variable is checked instead of markAndSweepLock.isLocked()
-    // for performance because every put invokation will check until
-    // the size is back to an acceptable level.
-    //
-    // There is a race between the check and the call to markAndSweep, but
-    // it's unimportant because markAndSweep actually aquires the lock or returns if it can't.
-    //
-    // Thread safety note: isCleaning read is piggybacked (comes after) other volatile reads
-    // in this method.
-    if (currentSize > upperWaterMark && !isCleaning) {
+    // Once the size goes over the upperWaterMark, every put moves the clock hand a
+    // few steps until the size is back to the lowerWaterMark. The hand also has to
+    // move when the clock holds many entries that were replaced or removed.
+    if (currentSize > upperWaterMark) {
+      isEvicting = true;
+    }
+    if (isEvicting || clockSize > 2 * upperWaterMark) {
       if (newThreadForCleanup) {
-        new Thread() {
-          @Override
-          public void run() {
-            markAndSweep();
-          }
-        }.start();
+        if (isCleaning.compareAndSet(false, true)) {
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                sweep(Integer.MAX_VALUE);
+              } finally {
+                isCleaning.set(false);
+              }
+            }
+          }.start();
+        }
       } else if (cleanupThread != null){
         cleanupThread.wakeThread();
       } else {
-        markAndSweep();
+        sweep(MAX_STEPS);
       }
     }
     return oldCacheEntry == null ? null : oldCacheEntry.value;
   }
 
   /**
-   * Removes items from the cache to bring the size down
-   * to an acceptable value ('acceptableWaterMark').
-   * <p/>
-   * It is done in two stages. In the first stage, least recently used items are evicted.
-   * If, after the first stage, the cache size is still greater than 'acceptableSize'
-   * config parameter, the second stage takes over.
+   * Moves the hand of the clock at most <code>maxSteps</code> times, evicting the entries
+   * that were not accessed since the hand last passed them, until the size is down to
+   * the 'lowerWaterMark'.
    * <p/>
-   * The second stage is more intensive and tries to bring down the cache size
-   * to the 'lowerWaterMark' config parameter.
+   * The entries are in a lock free queue, in the order the hand visits them. At each
+   * step the hand takes the entry at the head of the queue: an entry that was replaced
+   * or removed since is dropped; an entry that was accessed since it was queued gets
+   * a second chance and goes back to the tail; other entries are evicted. When the
+   * size is more than 'upperWaterMark - lowerWaterMark' over the 'upperWaterMark', the
+   * accesses are ignored so that the size cannot grow without bound.
    */
-  private void markAndSweep() {
-    // if we want to keep at least 1000 entries, then timestamps of
-    // current through current-1000 are guaranteed not to be the oldest (but that does
-    // not mean there are 1000 entries in that group... it's acutally anywhere between
-    // 1 and 1000).
-    // Also, if we want to remove 500 entries, then
-    // oldestEntry through oldestEntry+500 are guaranteed to be
-    // removed (however many there are there).
-
-    if (!markAndSweepLock.tryLock()) return;
-    try {
-      long oldestEntry = this.oldestEntry;
-      isCleaning = true;
-      this.oldestEntry = oldestEntry;     // volatile write to make isCleaning visible
-
-      long timeCurrent = stats.accessCounter.get();
+  private void sweep(int maxSteps) {
+    for (int step = 0; step < maxSteps; step++) {
       int sz = stats.size.get();
-
-      int numRemoved = 0;
-      int numKept = 0;
-      long newestEntry = timeCurrent;
-      long newNewestEntry = -1;
-      long newOldestEntry = Long.MAX_VALUE;
-
-      int wantToKeep = lowerWaterMark;
-      int wantToRemove = sz - lowerWaterMark;
-
-      @SuppressWarnings("unchecked") // generic array's are anoying
-      CacheEntry<K,V>[] eset = new CacheEntry[sz];
-      int eSize = 0;
-
-      // System.out.println("newestEntry="+newestEntry + " oldestEntry="+oldestEntry);
-      // System.out.println("items removed:" + numRemoved + " numKept=" + numKept + " esetSz="+ eSize + " sz-numRemoved=" + (sz-numRemoved));
-
-      for (CacheEntry<K,V> ce : map.values()) {
-        // set lastAccessedCopy to avoid more volatile reads
-        ce.lastAccessedCopy = ce.lastAccessed;
-        long thisEntry = ce.lastAccessedCopy;
-
-        // since the wantToKeep group is likely to be bigger than wantToRemove, check it first
-        if (thisEntry > newestEntry - wantToKeep) {
-          // this entry is guaranteed not to be in the bottom
-          // group, so do nothing.
-          numKept++;
-          newOldestEntry = Math.min(thisEntry, newOldestEntry);
-        } else if (thisEntry < oldestEntry + wantToRemove) { // entry in bottom group?
-          // this entry is guaranteed to be in the bottom group
-          // so immediately remove it from the map.
-          evictEntry(ce.key);
-          numRemoved++;
-        } else {
-          // This entry *could* be in the bottom group.
-          // Collect these entries to avoid another full pass... this is wasted
-          // effort if enough entries are normally removed in this first pass.
-          // An alternate impl could make a full second pass.
-          if (eSize < eset.length-1) {
-            eset[eSize++] = ce;
-            newNewestEntry = Math.max(thisEntry, newNewestEntry);
-            newOldestEntry = Math.min(thisEntry, newOldestEntry);
-          }
-        }
-      }
-
-      // System.out.println("items removed:" + numRemoved + " numKept=" + numKept + " esetSz="+ eSize + " sz-numRemoved=" + (sz-numRemoved));
-      // TODO: allow this to be customized in the constructor?
-      int numPasses=1; // maximum number of linear passes over the data
-
-      // if we didn't remove enough entries, then make more passes
-      // over the values we collected, with updated min and max values.
-      while (sz - numRemoved > acceptableWaterMark && --numPasses>=0) {
-
-        oldestEntry = newOldestEntry == Long.MAX_VALUE ? oldestEntry : newOldestEntry;
-        newOldestEntry = Long.MAX_VALUE;
-        newestEntry = newNewestEntry;
-        newNewestEntry = -1;
-        wantToKeep = lowerWaterMark - numKept;
-        wantToRemove = sz - lowerWaterMark - numRemoved;
-
-        // iterate backward to make it easy to remove items.
-        for (int i=eSize-1; i>=0; i--) {
-          CacheEntry<K,V> ce = eset[i];
-          long thisEntry = ce.lastAccessedCopy;
-
-          if (thisEntry > newestEntry - wantToKeep) {
-            // this entry is guaranteed not to be in the bottom
-            // group, so do nothing but remove it from the eset.
-            numKept++;
-            // remove the entry by moving the last element to it's position
-            eset[i] = eset[eSize-1];
-            eSize--;
-
-            newOldestEntry = Math.min(thisEntry, newOldestEntry);
-            
-          } else if (thisEntry < oldestEntry + wantToRemove) { // entry in bottom group?
-
-            // this entry is guaranteed to be in the bottom group
-            // so immediately remove it from the map.
-            evictEntry(ce.key);
-            numRemoved++;
-
-            // remove the entry by moving the last element to it's position
-            eset[i] = eset[eSize-1];
-            eSize--;
-          } else {
-            // This entry *could* be in the bottom group, so keep it in the eset,
-            // and update the stats.
-            newNewestEntry = Math.max(thisEntry, newNewestEntry);
-            newOldestEntry = Math.min(thisEntry, newOldestEntry);
-          }
-        }
-        // System.out.println("items removed:" + numRemoved + " numKept=" + numKept + " esetSz="+ eSize + " sz-numRemoved=" + (sz-numRemoved));
-      }
-
-
-
-      // if we still didn't remove enough entries, then make another pass while
-      // inserting into a priority queue
-      if (sz - numRemoved > acceptableWaterMark) {
-
-        oldestEntry = newOldestEntry == Long.MAX_VALUE ? oldestEntry : newOldestEntry;
-        newOldestEntry = Long.MAX_VALUE;
-        newestEntry = newNewestEntry;
-        newNewestEntry = -1;
-        wantToKeep = lowerWaterMark - numKept;
-        wantToRemove = sz - lowerWaterMark - numRemoved;
-
-        PQueue<K,V> queue = new PQueue<K,V>(wantToRemove);
-
-        for (int i=eSize-1; i>=0; i--) {
-          CacheEntry<K,V> ce = eset[i];
-          long thisEntry = ce.lastAccessedCopy;
-
-          if (thisEntry > newestEntry - wantToKeep) {
-            // this entry is guaranteed not to be in the bottom
-            // group, so do nothing but remove it from the eset.
-            numKept++;
-            // removal not necessary on last pass.
-            // eset[i] = eset[eSize-1];
-            // eSize--;
-
-            newOldestEntry = Math.min(thisEntry, newOldestEntry);
-            
-          } else if (thisEntry < oldestEntry + wantToRemove) {  // entry in bottom group?
-            // this entry is guaranteed to be in the bottom group
-            // so immediately remove it.
-            evictEntry(ce.key);
-            numRemoved++;
-
-            // removal not necessary on last pass.
-            // eset[i] = eset[eSize-1];
-            // eSize--;
-          } else {
-            // This entry *could* be in the bottom group.
-            // add it to the priority queue
-
-            // everything in the priority queue will be removed, so keep track of
-            // the lowest value that ever comes back out of the queue.
-
-            // first reduce the size of the priority queue to account for
-            // the number of items we have already removed while executing
-            // this loop so far.
-            queue.myMaxSize = sz - lowerWaterMark - numRemoved;
-            while (queue.size() > queue.myMaxSize && queue.size() > 0) {
-              CacheEntry otherEntry = queue.pop();
-              newOldestEntry = Math.min(otherEntry.lastAccessedCopy, newOldestEntry);
-            }
-            if (queue.myMaxSize <= 0) break;
-
-            Object o = queue.myInsertWithOverflow(ce);
-            if (o != null) {
-              newOldestEntry = Math.min(((CacheEntry)o).lastAccessedCopy, newOldestEntry);
-            }
-          }
-        }
-
-        // Now delete everything in the priority queue.
-        // avoid using pop() since order doesn't matter anymore
-        for (CacheEntry<K,V> ce : queue.getValues()) {
-          if (ce==null) continue;
-          evictEntry(ce.key);
-          numRemoved++;
-        }
-
-        // System.out.println("items removed:" + numRemoved + " numKept=" + numKept + " initialQueueSize="+ wantToRemove + " finalQueueSize=" + queue.size() + " sz-numRemoved=" + (sz-numRemoved));
-      }
-
-      oldestEntry = newOldestEntry == Long.MAX_VALUE ? oldestEntry : newOldestEntry;
-      this.oldestEntry = oldestEntry;
-    } finally {
-      isCleaning = false;  // set before markAndSweep.unlock() for visibility
-      markAndSweepLock.unlock();
-    }
-  }
-
-  private static class PQueue<K,V> extends PriorityQueue<CacheEntry<K,V>> {
-    int myMaxSize;
-    final Object[] heap;
-    
-    PQueue(int maxSz) {
-      super(maxSz);
-      heap = getHeapArray();
-      myMaxSize = maxSz;
-    }
-
-    @SuppressWarnings("unchecked")
-    Iterable<CacheEntry<K,V>> getValues() { 
-      return (Iterable) Collections.unmodifiableCollection(Arrays.asList(heap));
-    }
-
-    @Override
-    protected boolean lessThan(CacheEntry a, CacheEntry b) {
-      // reverse the parameter order so that the queue keeps the oldest items
-      return b.lastAccessedCopy < a.lastAccessedCopy;
-    }
-
-    // necessary because maxSize is private in base class
-    @SuppressWarnings("unchecked")
-    public CacheEntry<K,V> myInsertWithOverflow(CacheEntry<K,V> element) {
-      if (size() < myMaxSize) {
-        add(element);
-        return null;
-      } else if (size() > 0 && !lessThan(element, (CacheEntry<K,V>) heap[1])) {
-        CacheEntry<K,V> ret = (CacheEntry<K,V>) heap[1];
-        heap[1] = element;
-        updateTop();
-        return ret;
+      if (isEvicting && sz <= lowerWaterMark) isEvicting = false;
+      if (!isEvicting && clockSize.get() <= 2 * upperWaterMark) return;
+
+      CacheEntry<K,V> ce = clock.poll();
+      if (ce == null) return;
+      clockSize.decrementAndGet();
+      if (map.get(ce.key) != ce) continue; // replaced or removed
+
+      long lastAccessed = ce.lastAccessed;
+      if (!isEvicting) {
+        // only dropping the replaced and removed entries
+        clock.offer(ce);
+        clockSize.incrementAndGet();
+      } else if (lastAccessed != ce.lastQueued && sz - upperWaterMark <= upperWaterMark - lowerWaterMark) {
+        ce.lastQueued = lastAccessed;
+        clock.offer(ce);
+        clockSize.incrementAndGet();
       } else {
-        return element;
+        evictEntry(ce);
       }
     }
   }
 
-
-  private void evictEntry(K key) {
-    CacheEntry<K,V> o = map.remove(key);
-    if (o == null) return;
+  private void evictEntry(CacheEntry<K,V> o) {
+    if (!map.remove(o.key, o)) return;
     stats.size.decrementAndGet();
     stats.evictionCounter.incrementAndGet();
     if(evictionListener != null) evictionListener.evictedEntry(o.key,o.value);
@@ -412,7 +213,7 @@ public class ConcurrentLRUCache<K,V> {
     if (n <= 0)
       return result;
     TreeSet<CacheEntry<K,V>> tree = new TreeSet<CacheEntry<K,V>>();
-    markAndSweepLock.lock();
+    accessedItemsLock.lock();
     try {
       for (Map.Entry<Object, CacheEntry<K,V>> entry : map.entrySet()) {
         CacheEntry<K,V> ce = entry.getValue();
@@ -427,7 +228,7 @@ public class ConcurrentLRUCache<K,V> {
         }
       }
     } finally {
-      markAndSweepLock.unlock();
+      accessedItemsLock.unlock();
     }
     for (CacheEntry<K,V> e : tree) {
       result.put(e.key, e.value);
@@ -441,7 +242,7 @@ public class ConcurrentLRUCache<K,V> {
       return result;
     TreeSet<CacheEntry<K,V>> tree = new TreeSet<CacheEntry<K,V>>();
     // we need to grab the lock since we are changing lastAccessedCopy
-    markAndSweepLock.lock();
+    accessedItemsLock.lock();
     try {
       for (Map.Entry<Object, CacheEntry<K,V>> entry : map.entrySet()) {
         CacheEntry<K,V> ce = entry.getValue();
@@ -456,7 +257,7 @@ public class ConcurrentLRUCache<K,V> {
         }
       }
     } finally {
-      markAndSweepLock.unlock();
+      accessedItemsLock.unlock();
     }
     for (CacheEntry<K,V> e : tree) {
       result.put(e.key, e.value);
@@ -470,6 +271,11 @@ public class ConcurrentLRUCache<K,V> {
 
   public void clear() {
     map.clear();
+    clock.clear();
+    clockSize.set(0);
+    // the clock relies on the size to know when to evict
+    stats.size.set(0);
+    isEvicting = false;
   }
 
   public Map<Object, CacheEntry<K,V>> getMap() {
@@ -481,12 +287,14 @@ public class ConcurrentLRUCache<K,V> {
     V value;
     volatile long lastAccessed = 0;
     long lastAccessedCopy = 0;
+    long lastQueued;  // lastAccessed when the entry was queued in the clock
 
 
     public CacheEntry(K key, V value, long lastAccessed) {
       this.key = key;
       this.value = value;
       this.lastAccessed = lastAccessed;
+      this.lastQueued = lastAccessed;
     }
 
     public void setLastAccessed(long lastAccessed) {
@@ -602,7 +410,7 @@ public class ConcurrentLRUCache<K,V> {
         if (stop) break;
         ConcurrentLRUCache c = cache.get();
         if(c == null) break;
-        c.markAndSweep();
+        c.sweep(Integer.MAX_VALUE);
       }
     }
 
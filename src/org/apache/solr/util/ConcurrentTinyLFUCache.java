@@ -0,0 +1,444 @@
+package org.apache.solr.util;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache based upon ConcurrentHashMap which decides which entries to keep with the
+ * W-TinyLFU policy: the frequency of the recent requests for each key is estimated by
+ * a count-min sketch, and a new entry only takes the place of an old one if it is
+ * requested more often.
+ * <p/>
+ * New entries first go into a small LRU window (1% of the size), so that bursts of
+ * requests for a new key are not rejected before its frequency builds up. The entries
+ * leaving the window are candidates for the main space, a segmented LRU where entries
+ * hit while on probation are promoted to a protected segment (80% of the main space).
+ * When the cache is full, a candidate is admitted only if the sketch estimates its key
+ * more frequent than the least recently used entry on probation, which is evicted;
+ * otherwise the candidate is dropped. Queries that are requested once, by a crawler
+ * for instance, hence pass through the window without pushing out the working set.
+ * <p/>
+ * The counters of the sketch are halved every <code>10 * size</code> increments, so
+ * that keys which were popular a while ago age out. All moves between the queues are
+ * O(1) list operations done under a lock; there is no sweep of the whole cache. The
+ * lock is only tried by lookups: when it is busy, the access is not recorded, which
+ * trades a little precision of the policy for the absence of contention on reads.
+ *
+ * @see <a href="http://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ */
+public class ConcurrentTinyLFUCache<K,V> {
+
+  private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+  private static final int NEW = 0, LINKED = 1, DEAD = 2;
+
+  private final ConcurrentHashMap<Object, Node<K,V>> map;
+  private final int maxSize, maxWindow, maxProtected;
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private volatile boolean islive = true;
+  private final Stats stats = new Stats();
+
+  // all guarded by evictionLock
+  private final FrequencySketch sketch;
+  private final Node<K,V>[] queues;
+  private final int[] queueSizes = new int[3];
+  private int size;
+
+  public ConcurrentTinyLFUCache(int maxSize, int initialSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("maxSize must be > 0");
+    this.maxSize = maxSize;
+    this.maxWindow = Math.max(1, maxSize / 100);
+    this.maxProtected = (int) ((maxSize - maxWindow) * 0.8);
+    map = new ConcurrentHashMap<Object, Node<K,V>>(initialSize);
+    sketch = new FrequencySketch(maxSize);
+    queues = new Node[3];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new Node<K,V>(null, null);
+      queues[i].prev = queues[i].next = queues[i];
+    }
+  }
+
+  public void setAlive(boolean live) {
+    islive = live;
+  }
+
+  public V get(K key) {
+    Node<K,V> node = map.get(key);
+    if (islive) {
+      stats.lookupCounter.incrementAndGet();
+      if (node != null) stats.hitCounter.incrementAndGet();
+    }
+    if (evictionLock.tryLock()) {
+      try {
+        sketch.increment(spread(key.hashCode()));
+        if (node != null) onAccess(node);
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+    return node == null ? null : node.value;
+  }
+
+  public V put(K key, V val) {
+    if (val == null) return null;
+    Node<K,V> node = new Node<K,V>(key, val);
+    Node<K,V> old = map.put(key, node);
+    if (islive) {
+      stats.putCounter.incrementAndGet();
+    } else {
+      stats.nonLivePutCounter.incrementAndGet();
+    }
+    evictionLock.lock();
+    try {
+      if (old != null) {
+        if (old.state == LINKED) {
+          // take the place of the old entry
+          node.queue = old.queue;
+          unlink(old);
+        }
+        old.state = DEAD;
+      }
+      // unless a later put of the same key replaced it already
+      if (node.state == NEW) {
+        link(node);
+      }
+      evict();
+    } finally {
+      evictionLock.unlock();
+    }
+    return old == null ? null : old.value;
+  }
+
+  public V remove(K key) {
+    Node<K,V> node = map.remove(key);
+    if (node == null) return null;
+    evictionLock.lock();
+    try {
+      if (node.state == LINKED) unlink(node);
+      node.state = DEAD;
+    } finally {
+      evictionLock.unlock();
+    }
+    return node.value;
+  }
+
+  /** Moves an entry that was hit to the most recently used end of its queue. */
+  private void onAccess(Node<K,V> node) {
+    if (node.state != LINKED) return;
+    unlink(node);
+    if (node.queue == PROBATION) {
+      node.queue = PROTECTED;
+      link(node);
+      if (queueSizes[PROTECTED] > maxProtected) {
+        Node<K,V> demoted = queues[PROTECTED].next;
+        unlink(demoted);
+        demoted.queue = PROBATION;
+        link(demoted);
+      }
+    } else {
+      link(node);
+    }
+  }
+
+  private void evict() {
+    // the entries leaving the window become the candidates at the
+    // most recently used end of probation
+    int candidates = 0;
+    while (queueSizes[WINDOW] > maxWindow) {
+      Node<K,V> node = queues[WINDOW].next;
+      unlink(node);
+      node.queue = PROBATION;
+      link(node);
+      candidates++;
+    }
+
+    while (size > maxSize) {
+      Node<K,V> victim = queues[PROBATION].next;
+      if (victim == queues[PROBATION]) {
+        victim = queues[PROTECTED].next;
+        if (victim == queues[PROTECTED]) victim = queues[WINDOW].next;
+        evict(victim);
+        stats.evictionCounter.incrementAndGet();
+        continue;
+      }
+      Node<K,V> candidate = queues[PROBATION].prev;
+      if (candidates == 0 || candidate == victim) {
+        evict(victim);
+        stats.evictionCounter.incrementAndGet();
+        candidates = Math.max(0, candidates - 1);
+        continue;
+      }
+      candidates--;
+      if (sketch.frequency(spread(candidate.key.hashCode())) > sketch.frequency(spread(victim.key.hashCode()))) {
+        evict(victim);
+        stats.evictionCounter.incrementAndGet();
+      } else {
+        evict(candidate);
+        stats.rejectionCounter.incrementAndGet();
+      }
+    }
+  }
+
+  private void evict(Node<K,V> node) {
+    unlink(node);
+    node.state = DEAD;
+    map.remove(node.key, node);
+  }
+
+  private void link(Node<K,V> node) {
+    Node<K,V> head = queues[node.queue];
+    node.prev = head.prev;
+    node.next = head;
+    head.prev.next = node;
+    head.prev = node;
+    node.state = LINKED;
+    queueSizes[node.queue]++;
+    stats.size.set(++size);
+  }
+
+  private void unlink(Node<K,V> node) {
+    node.prev.next = node.next;
+    node.next.prev = node.prev;
+    node.prev = node.next = null;
+    queueSizes[node.queue]--;
+    stats.size.set(--size);
+  }
+
+  /**
+   * Starts from the key frequencies another cache of the same size has seen, so that
+   * a new cache replacing it does not admit entries as if all keys were new.
+   */
+  public void copyFrequencies(ConcurrentTinyLFUCache<K,V> other) {
+    long[] table;
+    int count;
+    other.evictionLock.lock();
+    try {
+      table = other.sketch.table.clone();
+      count = other.sketch.count;
+    } finally {
+      other.evictionLock.unlock();
+    }
+    evictionLock.lock();
+    try {
+      if (table.length == sketch.table.length) {
+        System.arraycopy(table, 0, sketch.table, 0, table.length);
+        sketch.count = count;
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  /**
+   * Returns at most <code>n</code> items, the most valuable first: those of the protected
+   * segment, then the window and then probation, each from the most recently used.
+   */
+  public Map<K,V> getLatestAccessedItems(int n) {
+    Map<K,V> result = new LinkedHashMap<K,V>();
+    evictionLock.lock();
+    try {
+      for (int q : new int[] {PROTECTED, WINDOW, PROBATION}) {
+        Node<K,V> head = queues[q];
+        for (Node<K,V> node = head.prev; node != head && result.size() < n; node = node.prev) {
+          result.put(node.key, node.value);
+        }
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+    return result;
+  }
+
+  public int size() {
+    return stats.size.get();
+  }
+
+  public void clear() {
+    evictionLock.lock();
+    try {
+      for (Node<K,V> node : map.values()) {
+        node.state = DEAD;
+      }
+      map.clear();
+      for (int i = 0; i < queues.length; i++) {
+        queues[i].prev = queues[i].next = queues[i];
+        queueSizes[i] = 0;
+      }
+      size = 0;
+      stats.size.set(0);
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  /** spreads the bits of a hash code, since the sketch uses the low ones */
+  static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+  private static class Node<K,V> {
+    final K key;
+    final V value;
+    Node<K,V> prev, next;
+    int queue;
+    int state = NEW;
+
+    Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public String toString() {
+      return "key: " + key + " value: " + value;
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters, sixteen to a long. Each key has a counter in
+   * four of the longs, chosen by four hash functions, and its frequency is the smallest
+   * of them. Once there were <code>10 * maxSize</code> increments, all counters are
+   * halved.
+   */
+  static final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    int count;
+
+    FrequencySketch(int maxSize) {
+      int length = Integer.highestOneBit(Math.max(16, Math.min(maxSize, 1 << 30)) - 1) << 1;
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = (int) Math.min(10L * maxSize, Integer.MAX_VALUE);
+    }
+
+    int frequency(int hash) {
+      int start = (hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int counter = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, counter);
+      }
+      return frequency;
+    }
+
+    void increment(int hash) {
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(indexOf(hash, i), start + i);
+      }
+      if (added && ++count >= sampleSize) {
+        reset();
+      }
+    }
+
+    private boolean incrementAt(int i, int j) {
+      int offset = j << 2;
+      long mask = 0xfL << offset;
+      if ((table[i] & mask) != mask) {
+        table[i] += 1L << offset;
+        return true;
+      }
+      return false;
+    }
+
+    private int indexOf(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return ((int) h) & tableMask;
+    }
+
+    /** halves all the counters */
+    private void reset() {
+      int odd = 0;
+      for (int i = 0; i < table.length; i++) {
+        odd += Long.bitCount(table[i] & ONE_MASK);
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      count = (count >>> 1) - (odd >>> 2);
+    }
+  }
+
+  public static class Stats {
+    private final AtomicLong lookupCounter = new AtomicLong(),
+            hitCounter = new AtomicLong(),
+            putCounter = new AtomicLong(),
+            nonLivePutCounter = new AtomicLong(),
+            evictionCounter = new AtomicLong(),
+            rejectionCounter = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public long getCumulativeLookups() {
+      return lookupCounter.get();
+    }
+
+    public long getCumulativeHits() {
+      return hitCounter.get();
+    }
+
+    public long getCumulativePuts() {
+      return putCounter.get();
+    }
+
+    public long getCumulativeNonLivePuts() {
+      return nonLivePutCounter.get();
+    }
+
+    /** entries removed to make room for others */
+    public long getCumulativeEvictions() {
+      return evictionCounter.get();
+    }
+
+    /** new entries dropped because their keys were less frequent than the entry they would replace */
+    public long getCumulativeRejections() {
+      return rejectionCounter.get();
+    }
+
+    public int getCurrentSize() {
+      return size.get();
+    }
+
+    public void add(Stats other) {
+      lookupCounter.addAndGet(other.lookupCounter.get());
+      hitCounter.addAndGet(other.hitCounter.get());
+      putCounter.addAndGet(other.putCounter.get());
+      nonLivePutCounter.addAndGet(other.nonLivePutCounter.get());
+      evictionCounter.addAndGet(other.evictionCounter.get());
+      rejectionCounter.addAndGet(other.rejectionCounter.get());
+      size.set(Math.max(size.get(), other.size.get()));
+    }
+  }
+}
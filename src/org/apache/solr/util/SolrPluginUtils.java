@@ -180,10 +180,7 @@ public class SolrPluginUtils {
       }
 
       // get documents
-      DocIterator iter = docs.iterator();
-      for (int i=0; i<docs.size(); i++) {
-        searcher.doc(iter.nextDoc(), fieldFilter);
-      }
+      searcher.readDocs(new Document[docs.size()], docs, fieldFilter);
 
     }
 
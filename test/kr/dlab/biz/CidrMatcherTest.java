@@ -0,0 +1,176 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  CidrMatcherTest.java : tests for the CIDR matcher and the internal request check.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CidrMatcherTest {
+
+	@BeforeClass
+	public static void setInternalRanges() {
+		// read once, when LogWriteWorker first needs them
+		System.setProperty(SearchLogPipeline.PROP_PREFIX + "internalRanges", "10.1.2.0/24, 127.0.0.0/8, ::1");
+	}
+
+	/** parse with the JDK, which only takes literals here, so never resolves */
+	private static long[] jdk(String s) throws Exception {
+		byte[] b = InetAddress.getByName(s).getAddress();
+		long[] a = new long[2];
+		if ( b.length == 4 ) {
+			a[1] = 0xFFFF00000000L;
+		}
+		for ( int i = 0; i < b.length; i++ ) {
+			int k = b.length == 4 ? i + 12 : i;
+			a[k / 8] |= (b[i] & 0xFFL) << (8 * (7 - k % 8));
+		}
+		return a;
+	}
+
+	private static void assertIPv6(String s) throws Exception {
+		long[] expected = jdk(s);
+		long[] actual = new long[2];
+		assertTrue(s, CidrMatcher.parseIPv6(s, 0, s.length(), actual));
+		assertEquals(s, expected[0], actual[0]);
+		assertEquals(s, expected[1], actual[1]);
+	}
+
+	@Test
+	public void testParseIPv6() throws Exception {
+		assertIPv6("::");
+		assertIPv6("::1");
+		assertIPv6("1::");
+		assertIPv6("fe80::1");
+		assertIPv6("2001:db8::ff00:42:8329");
+		assertIPv6("2001:0db8:0000:0000:0000:ff00:0042:8329");
+		assertIPv6("1:2:3:4:5:6:7:8");
+		assertIPv6("1:2:3:4:5:6::8");
+		assertIPv6("1::3:4:5:6:7:8");
+		assertIPv6("::ffff:192.168.1.7");
+		assertIPv6("64:ff9b::10.0.0.1");
+		assertIPv6("1:2:3:4:5:6:10.20.30.40");
+		assertIPv6("FE80::ABCD");
+	}
+
+	@Test
+	public void testParseIPv6Random() throws Exception {
+		Random random = new Random(42);
+		for ( int iter = 0; iter < 10000; iter++ ) {
+			String[] groups = new String[8];
+			for ( int i = 0; i < 8; i++ ) {
+				// plenty of zeros, so that there are runs to compress
+				int g = random.nextInt(3) == 0 ? 0 : random.nextInt(0x10000);
+				groups[i] = String.format(Locale.ROOT, random.nextBoolean() ? "%x" : "%04X", g);
+			}
+			// "::" stands for one group or more, whatever they held
+			int runStart = random.nextInt(8);
+			int runEnd = random.nextInt(4) == 0 ? runStart : runStart + 1 + random.nextInt(8 - runStart);
+			StringBuilder sb = new StringBuilder();
+			for ( int i = 0; i < 8; i++ ) {
+				if ( i >= runStart && i < runEnd ) {
+					if ( i == runStart ) sb.append("::");
+					continue;
+				}
+				if ( sb.length() > 0 && sb.charAt(sb.length() - 1) != ':' ) sb.append(':');
+				sb.append(groups[i]);
+			}
+			assertIPv6(sb.toString());
+		}
+	}
+
+	@Test
+	public void testParseIPv6Invalid() {
+		String[] bad = {
+			":", ":1", "1:", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+			"12345::", "g::", "1:2:3:4:5:6:7::8", "::1.2.3", "::1.2.3.256", "1:::2"
+		};
+		long[] a = new long[2];
+		for ( String s : bad ) {
+			assertFalse(s, CidrMatcher.parseIPv6(s, 0, s.length(), a));
+		}
+	}
+
+	@Test
+	public void testParseIPv4() {
+		assertEquals(0x0A010203L, CidrMatcher.parseIPv4("10.1.2.3", 0, 8));
+		assertEquals(0xFFFFFFFFL, CidrMatcher.parseIPv4("255.255.255.255", 0, 15));
+		assertEquals(0x0A010203L, CidrMatcher.parseIPv4("x10.1.2.3,", 1, 9));
+		String[] bad = { "", "1.2.3", "1.2.3.4.5", "1.2.3.256", "1..2.3", "1.2.3.", "a.b.c.d", "0001.2.3.4" };
+		for ( String s : bad ) {
+			assertEquals(s, -1, CidrMatcher.parseIPv4(s, 0, s.length()));
+		}
+	}
+
+	@Test
+	public void testMatches() {
+		CidrMatcher m = CidrMatcher.compile("10.0.0.0/8, 192.168.1.0/24 172.16.5.4, fd00::/8, 2001:db8:1::/48");
+		assertTrue(m.matches("10.255.0.1"));
+		assertTrue(m.matches("192.168.1.200"));
+		assertFalse(m.matches("192.168.2.1"));
+		assertTrue(m.matches("172.16.5.4"));
+		assertFalse(m.matches("172.16.5.5"));
+		assertTrue(m.matches("fd12:3456::1"));
+		assertTrue(m.matches("[2001:db8:1:ffff::1]"));
+		assertFalse(m.matches("2001:db8:2::1"));
+		// IPv4-mapped addresses are checked against the IPv4 ranges
+		assertTrue(m.matches("::ffff:10.1.1.1"));
+		assertFalse(m.matches("::ffff:11.1.1.1"));
+		// names are not addresses
+		assertFalse(m.matches("localhost"));
+		assertFalse(m.matches(""));
+		assertFalse(m.matches(null));
+		assertTrue(m.matches(" 10.0.0.1, 1.2.3.4", 0, 9));
+
+		assertTrue(CidrMatcher.compile("0.0.0.0/0").matches("8.8.8.8"));
+		assertTrue(CidrMatcher.compile("::/0").matches("2001::1"));
+		assertTrue(CidrMatcher.compile(null).isEmpty());
+
+		String[] bad = { "10.0.0.0/33", "10.0.0/8", "fd00::/129", "1.2.3.4/x", "host.example" };
+		for ( String s : bad ) {
+			try {
+				CidrMatcher.compile(s);
+				fail(s);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void testLoopbackIsNeverInternal() {
+		assertTrue(LogWriteWorker.isInternal("10.1.2.3"));
+		assertTrue(LogWriteWorker.isInternal("10.1.2.3, 192.168.0.1"));
+		assertFalse(LogWriteWorker.isInternal("10.1.3.3"));
+		// in the configured ranges, but requests from this host are logged
+		assertFalse(LogWriteWorker.isInternal("127.0.0.1"));
+		assertFalse(LogWriteWorker.isInternal("::1"));
+		assertFalse(LogWriteWorker.isInternal("localhost"));
+		assertFalse(LogWriteWorker.isInternal("127.0.0.1, 10.1.2.3"));
+		assertFalse(LogWriteWorker.isInternal(null));
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ *  Copyleft (C) 2014 Jinho Lee
+ *  All rights reserved.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY JINHO LEE ''AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ *  NO EVENT SHALL KYLE GORMAN BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ *  TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ *  PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SearchLogSpoolTest.java : tests for the search log spool.
+ *  @author Jinho Lee <jammun@gmail.com>, <jhlee@dlab.kr>
+ *
+ */
+package kr.dlab.biz;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchLogSpoolTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("searchlog-spool", "");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if ( files != null ) {
+			for ( File child : files ) delete(child);
+		}
+		f.delete();
+	}
+
+	private static SearchLogRecord record(int i) {
+		return new SearchLogRecord(1000L + i, "10.0.0." + i, i % 2 == 0 ? null : "user" + i,
+				"q=q" + i + "&rows=10", "q" + i, "", i, i % 3 == 0 ? "Y" : "N");
+	}
+
+	private static class CollectingSink implements SearchLogSpool.Sink {
+		final List<SearchLogRecord> records = new ArrayList<SearchLogRecord>();
+		int failAfter = Integer.MAX_VALUE;
+
+		@Override
+		public void write(List<SearchLogRecord> batch) throws SQLException {
+			if ( records.size() + batch.size() > failAfter ) throw new SQLException("down");
+			records.addAll(batch);
+		}
+	}
+
+	@Test
+	public void testReplayDeletesSegments() throws Exception {
+		SearchLogSpool spool = new SearchLogSpool(dir, 4096);
+		for ( int i = 0; i < 200; i++ ) spool.append(record(i));
+		assertTrue(spool.hasPending());
+
+		CollectingSink sink = new CollectingSink();
+		assertEquals(200, spool.replay(sink, 16));
+		assertEquals(200, sink.records.size());
+		for ( int i = 0; i < 200; i++ ) {
+			assertEquals(record(i).toString(), sink.records.get(i).toString());
+		}
+		spool.close();
+
+		// the replayed segments were unmapped, so they could be deleted
+		for ( String name : dir.list() ) {
+			assertFalse(name, name.endsWith(".spl") && !new File(dir, name).delete());
+		}
+	}
+
+	@Test
+	public void testReplayResumesAfterFailure() throws Exception {
+		SearchLogSpool spool = new SearchLogSpool(dir, 4096);
+		for ( int i = 0; i < 50; i++ ) spool.append(record(i));
+
+		CollectingSink sink = new CollectingSink();
+		sink.failAfter = 20;
+		try {
+			spool.replay(sink, 10);
+		} catch (SQLException expected) {
+		}
+		assertEquals(20, sink.records.size());
+
+		sink.failAfter = Integer.MAX_VALUE;
+		assertEquals(30, spool.replay(sink, 10));
+		assertEquals(50, sink.records.size());
+		assertEquals(record(49).toString(), sink.records.get(49).toString());
+		spool.close();
+	}
+
+	@Test
+	public void testBadSegmentMovedAside() throws Exception {
+		assertTrue(dir.mkdirs());
+		File bad = new File(dir, "searchlog-000000000000.spl");
+		FileOutputStream out = new FileOutputStream(bad);
+		out.write(new byte[4096]);
+		out.close();
+
+		SearchLogSpool spool = new SearchLogSpool(dir, 4096);
+		spool.append(record(1));
+		CollectingSink sink = new CollectingSink();
+		assertEquals(1, spool.replay(sink, 10));
+		assertFalse(bad.exists());
+		assertTrue(new File(dir, bad.getName() + ".bad").exists());
+
+		// not looked at again
+		assertFalse(spool.hasPending());
+		spool.close();
+	}
+
+	@Test
+	public void testFailedRecords() {
+		List<SearchLogRecord> batch = new ArrayList<SearchLogRecord>();
+		for ( int i = 0; i < 5; i++ ) batch.add(record(i));
+
+		List<SearchLogRecord> rest = SearchLogPipeline.failedRecords(batch,
+				new int[] {1, Statement.EXECUTE_FAILED, Statement.SUCCESS_NO_INFO, 1, Statement.EXECUTE_FAILED});
+		assertEquals(2, rest.size());
+		assertSame(batch.get(1), rest.get(0));
+		assertSame(batch.get(4), rest.get(1));
+
+		// the driver stopped at the first failure
+		rest = SearchLogPipeline.failedRecords(batch, new int[] {1, 1});
+		assertEquals(3, rest.size());
+		assertSame(batch.get(2), rest.get(0));
+
+		assertSame(batch, SearchLogPipeline.failedRecords(batch, null));
+	}
+
+	@Test
+	public void testRejectedRecords() {
+		List<SearchLogRecord> batch = new ArrayList<SearchLogRecord>();
+		for ( int i = 0; i < 5; i++ ) batch.add(record(i));
+
+		// the driver went on after the failures
+		int[] counts = new int[] {1, Statement.EXECUTE_FAILED, 1, 1, Statement.EXECUTE_FAILED};
+		List<SearchLogRecord> refused = SearchLogPipeline.rejectedRecords(batch, counts);
+		assertEquals(2, refused.size());
+		assertSame(batch.get(1), refused.get(0));
+		assertSame(batch.get(4), refused.get(1));
+		assertTrue(SearchLogPipeline.untriedRecords(batch, counts).isEmpty());
+
+		// the driver stopped at the third row
+		counts = new int[] {1, 1};
+		refused = SearchLogPipeline.rejectedRecords(batch, counts);
+		assertEquals(1, refused.size());
+		assertSame(batch.get(2), refused.get(0));
+		assertEquals(Arrays.asList(batch.get(3), batch.get(4)), SearchLogPipeline.untriedRecords(batch, counts));
+
+		// no counts at all
+		assertSame(batch, SearchLogPipeline.rejectedRecords(batch, null));
+		assertTrue(SearchLogPipeline.untriedRecords(batch, null).isEmpty());
+	}
+
+	@Test
+	public void testIsConnectionFailure() {
+		assertFalse(SearchLogPipeline.isConnectionFailure(new BatchUpdateException("duplicate", "23000", 1062, new int[0])));
+		assertFalse(SearchLogPipeline.isConnectionFailure(new SQLException("syntax", "42000")));
+		assertTrue(SearchLogPipeline.isConnectionFailure(new BatchUpdateException("link failure", "08S01", 0, new int[0])));
+		assertTrue(SearchLogPipeline.isConnectionFailure(new BatchUpdateException("closed", null, 0, new int[0],
+				new SQLNonTransientConnectionException("closed"))));
+	}
+
+	/**
+	 * Writes the rows it is given, except those whose result count is negative, which it
+	 * refuses like a DB does a constraint violation.
+	 */
+	private static class RefusingPipeline extends SearchLogPipeline {
+		final List<SearchLogRecord> written = Collections.synchronizedList(new ArrayList<SearchLogRecord>());
+		final boolean stopAtFailure;
+
+		RefusingPipeline(SearchLogSpool spool, SearchLogSpool rejects, boolean stopAtFailure) {
+			super(64, 1, 4, 1, Backpressure.BLOCK, spool, rejects, 10);
+			this.stopAtFailure = stopAtFailure;
+		}
+
+		@Override
+		protected void write(List<SearchLogRecord> batch) throws SQLException {
+			List<Integer> counts = new ArrayList<Integer>();
+			boolean failed = false;
+			for ( SearchLogRecord r : batch ) {
+				if ( r.getResultCnt() < 0 ) {
+					failed = true;
+					if ( stopAtFailure ) break;
+					counts.add(Statement.EXECUTE_FAILED);
+				} else {
+					written.add(r);
+					counts.add(1);
+				}
+			}
+			if ( failed ) {
+				int[] updateCounts = new int[counts.size()];
+				for ( int i = 0; i < updateCounts.length; i++ ) updateCounts[i] = counts.get(i);
+				throw new BatchUpdateException("Duplicate entry", "23000", 1062, updateCounts);
+			}
+		}
+	}
+
+	private static SearchLogRecord refused(int i) {
+		return new SearchLogRecord(1000L + i, "10.0.0." + i, null, "q=bad" + i, "bad" + i, "", -1, "N");
+	}
+
+	@Test
+	public void testRefusedRowsNotRetried() throws Exception {
+		for ( boolean stopAtFailure : new boolean[] {false, true} ) {
+			delete(dir);
+			File rejectsDir = new File(dir, "rejected");
+			SearchLogSpool spool = new SearchLogSpool(dir, 4096);
+			SearchLogSpool rejects = new SearchLogSpool(rejectsDir, 4096);
+			RefusingPipeline pipeline = new RefusingPipeline(spool, rejects, stopAtFailure);
+
+			// a batch of refused rows only, then refused rows among good ones
+			for ( int i = 0; i < 4; i++ ) pipeline.offer(refused(i));
+			for ( int i = 0; i < 12; i++ ) pipeline.offer(i % 5 == 2 ? refused(100 + i) : record(i));
+
+			long deadline = System.currentTimeMillis() + 10000L;
+			while ( pipeline.written.size() < 10 && System.currentTimeMillis() < deadline ) {
+				Thread.sleep(10);
+			}
+			pipeline.shutdown();
+
+			assertEquals(10, pipeline.written.size());
+			assertEquals(6, pipeline.getRejectedCount());
+			assertEquals(0, pipeline.getFailedCount());
+			assertEquals(Boolean.FALSE, pipeline.getStatistics().get("dbDown"));
+			// the refused rows were set aside, not left to the replays
+			CollectingSink sink = new CollectingSink();
+			assertEquals(0, new SearchLogSpool(dir, 4096).replay(sink, 16));
+			assertEquals(6, new SearchLogSpool(rejectsDir, 4096).replay(sink, 16));
+			for ( SearchLogRecord r : sink.records ) {
+				assertEquals(-1, r.getResultCnt());
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.apache.lucene.analysis.ko;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ko.morph.CompoundEntry;
+import org.apache.lucene.analysis.ko.morph.MorphException;
+import org.apache.lucene.analysis.ko.utils.DictionaryUtil;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+/** The word spacing of KoreanFilter over unspaced text with compound nouns of the dictionary. */
+public class KoreanFilterTest {
+
+  private static KoreanFilterFactory factory(boolean wordSpace) {
+    Map<String,String> args = new HashMap<String,String>();
+    args.put("wordSpace", String.valueOf(wordSpace));
+    return new KoreanFilterFactory(args);
+  }
+
+  /** The tokens of the text as "term[start,end]". */
+  private static List<String> tokens(KoreanFilterFactory factory, String text) throws IOException {
+    TokenStream stream = factory.create(new KoreanTokenizer(Version.LUCENE_45, new StringReader(text)));
+    CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+    OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+    List<String> tokens = new ArrayList<String>();
+    try {
+      stream.reset();
+      while (stream.incrementToken()) {
+        tokens.add(termAtt + "[" + offsetAtt.startOffset() + "," + offsetAtt.endOffset() + "]");
+      }
+      stream.end();
+    } finally {
+      stream.close();
+    }
+    return tokens;
+  }
+
+  private static List<String> compounds(String noun) throws MorphException {
+    List<String> words = new ArrayList<String>();
+    for (CompoundEntry entry : DictionaryUtil.getCompoundNoun(noun).getCompounds()) {
+      words.add(entry.getWord());
+    }
+    return words;
+  }
+
+  @Test
+  public void testWordSpace() throws Exception {
+    List<String> before = compounds("가계약");
+    assertEquals(Arrays.asList("가", "계약"), before);
+
+    // the spaced words, with the compound noun of the dictionary and its part
+    assertEquals(Arrays.asList("가계약하여주었다[0,8]", "가계약[0,3]", "계약[1,3]", "하여[3,5]", "주었다[5,8]"),
+        tokens(factory(true), "가계약하여주었다"));
+    assertEquals(Arrays.asList("나는가계약하여주었다[0,10]", "나는[0,2]", "가계약[2,5]", "계약[3,5]", "하여[5,7]", "주었다[7,10]"),
+        tokens(factory(true), "나는가계약하여주었다"));
+    assertEquals(before, compounds("가계약"));
+  }
+
+  @Test
+  public void testWordSpaceCached() throws Exception {
+    // the second pass takes the outputs of the analysis cache of the factory
+    KoreanFilterFactory factory = factory(true);
+    List<String> first = tokens(factory, "가정법원에서판결했다");
+    assertTrue(first.toString(), first.contains("법원에서[2,6]"));
+    assertTrue(first.toString(), first.contains("판결했다[6,10]"));
+    assertEquals(first, tokens(factory, "가정법원에서판결했다"));
+    assertEquals(first, tokens(factory, "가정법원에서판결했다"));
+  }
+
+  @Test
+  public void testNoWordSpace() throws Exception {
+    // without word spacing the unspaced text is left to the bigrams
+    List<String> tokens = tokens(factory(false), "가계약하여주었다");
+    assertTrue(tokens.toString(), tokens.contains("가계[0,2]"));
+    assertFalse(tokens.toString(), tokens.contains("가계약[0,3]"));
+  }
+}
@@ -0,0 +1,73 @@
+package org.apache.lucene.analysis.ko.morph;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.ko.utils.DictionaryUtil;
+import org.junit.Test;
+
+/** The compound nouns of the dictionary through the analyses that edit their outputs. */
+public class CompoundNounTest {
+
+  private static List<String> words(List<CompoundEntry> compounds) {
+    List<String> words = new ArrayList<String>();
+    for (CompoundEntry entry : compounds) {
+      words.add(entry.getWord());
+    }
+    return words;
+  }
+
+  @Test
+  public void testWSOutput() throws Exception {
+    WordEntry entry = DictionaryUtil.getCompoundNoun("가정법원");
+    assertNotNull(entry);
+    List<String> compounds = words(entry.getCompounds());
+    assertTrue(compounds.size() > 1);
+
+    List<AnalysisOutput> outputs = new MorphAnalyzer().analyze("가정법원에서");
+    assertFalse(outputs.isEmpty());
+    for (AnalysisOutput o : outputs) {
+      new WSOutput().addPhrase(o);
+    }
+    // the outputs edit their own copy of the compounds, not the dictionary entry
+    assertEquals(compounds, words(DictionaryUtil.getCompoundNoun("가정법원").getCompounds()));
+  }
+
+  @Test
+  public void testWordSpaceAnalyzer() throws Exception {
+    List<String> compounds = words(DictionaryUtil.getCompoundNoun("가계약").getCompounds());
+    assertTrue(compounds.size() > 1);
+    // a compound noun followed by a verb: its compounds go to the outputs of the verb
+    for (String input : new String[] {"가계약하여주었다", "나는가계약하여주었다", "가정법원에서판결했다"}) {
+      List<AnalysisOutput> outputs = new WordSpaceAnalyzer().analyze(input);
+      StringBuilder joined = new StringBuilder();
+      for (AnalysisOutput o : outputs) {
+        joined.append(o.getSource());
+      }
+      assertEquals(input, joined.toString());
+    }
+    assertEquals(compounds, words(DictionaryUtil.getCompoundNoun("가계약").getCompounds()));
+  }
+}
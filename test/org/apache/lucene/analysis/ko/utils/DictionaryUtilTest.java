@@ -0,0 +1,56 @@
+package org.apache.lucene.analysis.ko.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DictionaryUtilTest {
+
+  @Test
+  public void testReloadReplacesAllDictionariesTogether() throws Exception {
+    DictionaryUtil.loadDictionary();
+    HanjaUtils.loadDictionary();
+    long bits = SyllableUtil.getFeatureBits('가');
+    char[] hangul = HanjaUtils.convertToHangul('韓');
+    
+    long generation = DictionaryUtil.getGeneration();
+    SyllableUtil.Table syllables = DictionaryUtil.getSyllables();
+    Map<String, char[]> hanja = DictionaryUtil.getHanjaMap();
+    assertSame(syllables, DictionaryUtil.getSyllables());
+    
+    DictionaryUtil.reloadDictionary();
+    
+    // one swap: the generation and every dictionary change at once
+    assertEquals(generation + 1, DictionaryUtil.getGeneration());
+    assertNotSame(syllables, DictionaryUtil.getSyllables());
+    assertNotSame(hanja, DictionaryUtil.getHanjaMap());
+    
+    // with the same content
+    assertEquals(bits, SyllableUtil.getFeatureBits('가'));
+    assertArrayEquals(hangul, HanjaUtils.convertToHangul('韓'));
+    assertNotNull(DictionaryUtil.getWord("사랑"));
+  }
+}
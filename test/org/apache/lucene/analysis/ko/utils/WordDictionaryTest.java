@@ -0,0 +1,69 @@
+package org.apache.lucene.analysis.ko.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.lucene.analysis.ko.morph.WordEntry;
+import org.junit.Test;
+
+public class WordDictionaryTest {
+
+  private static WordDictionary build(String... wordsAndFeatures) throws Exception {
+    WordDictionary.Builder builder = new WordDictionary.Builder();
+    for (int i = 0; i < wordsAndFeatures.length; i += 2) {
+      builder.add(new WordEntry(wordsAndFeatures[i], wordsAndFeatures[i + 1].toCharArray()));
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testLookups() throws Exception {
+    WordDictionary dic = build("사랑", "100000000X", "사람", "100000000X", "사랑하", "010000000X", "ABC", "100000000X");
+    assertEquals(4, dic.size());
+    assertEquals("사랑", dic.get("사랑").getWord());
+    assertNull(dic.get("사"));
+    assertNull(dic.get("사랑해"));
+    assertArrayEquals("010000000X".toCharArray(), dic.getFeatures("나는사랑하다", 2, 5));
+    assertArrayEquals("100000000X".toCharArray(), dic.getFeatures("abc", 0, 3));
+
+    char[][] prefixes = new char[5][];
+    dic.getPrefixFeatures("사랑하다", 0, 4, prefixes);
+    assertNull(prefixes[1]);
+    assertArrayEquals("100000000X".toCharArray(), prefixes[2]);
+    assertArrayEquals("010000000X".toCharArray(), prefixes[3]);
+    assertNull(prefixes[4]);
+  }
+
+  @Test
+  public void testSeveralDictionariesInOneThread() throws Exception {
+    // like an old and a reloaded dictionary used by the same analysis thread
+    WordDictionary a = build("사랑", "100000000X", "바다", "100000000X");
+    WordDictionary b = build("사랑", "010000000X", "하늘", "100000000X");
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals("100000000X".toCharArray(), a.getFeatures("사랑", 0, 2));
+      assertArrayEquals("010000000X".toCharArray(), b.getFeatures("사랑", 0, 2));
+      assertEquals("바다", a.get("바다").getWord());
+      assertNull(b.get("바다"));
+      assertEquals("하늘", b.get("하늘").getWord());
+      assertNull(a.get("하늘"));
+    }
+  }
+}
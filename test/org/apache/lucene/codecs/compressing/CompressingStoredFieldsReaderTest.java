@@ -0,0 +1,172 @@
+package org.apache.lucene.codecs.compressing;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.lucene.util.IndexTestUtil.assertSameFields;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IndexTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressingStoredFieldsReaderTest {
+
+  private static final int NUM_DOCS = 300;
+  // a document larger than twice the chunk size, never cached
+  private static final int HUGE_DOC = 150;
+
+  private Directory dir;
+  private DirectoryReader reader;
+  private CompressingStoredFieldsReader fieldsReader;
+
+  @Before
+  public void index() throws Exception {
+    List<Document> docs = new ArrayList<Document>();
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_DOCS; i++) {
+      Document doc = new Document();
+      doc.add(new StoredField("id", i));
+      StringBuilder text = new StringBuilder();
+      int words = i == HUGE_DOC ? 20000 : random.nextInt(600);
+      for (int j = 0; j < words; j++) {
+        text.append(Integer.toString(random.nextInt(1 << 20), 36)).append(' ');
+      }
+      doc.add(new StoredField("text", text.toString()));
+      doc.add(new StoredField("data", new byte[] {(byte) i}));
+      docs.add(doc);
+    }
+    dir = IndexTestUtil.index(docs, NUM_DOCS);
+    reader = DirectoryReader.open(dir);
+    assertEquals(1, reader.leaves().size());
+    fieldsReader = (CompressingStoredFieldsReader) ((SegmentReader) reader.leaves().get(0).reader()).getFieldsReader();
+  }
+
+  @After
+  public void close() throws Exception {
+    reader.close();
+    dir.close();
+  }
+
+  private Document document(int docID) throws Exception {
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+    fieldsReader.visitDocument(docID, visitor);
+    return visitor.getDocument();
+  }
+
+  @Test
+  public void testChunkCache() throws Exception {
+    ChunkCache cache = new ChunkCache(16 << 20);
+    long[] misses = new long[2];
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < NUM_DOCS; i++) {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+        fieldsReader.visitDocument(i, visitor, cache);
+        assertSameFields(document(i), visitor.getDocument());
+      }
+      misses[pass] = cache.getMisses();
+    }
+    int chunks = cache.size();
+    assertTrue(chunks > ChunkCache.STRIPES);
+    // each cached chunk is decompressed once, the documents of the chunk of
+    // the huge document on every read
+    long uncached = misses[1] - misses[0];
+    assertTrue(uncached > 0 && uncached < NUM_DOCS / 10);
+    assertEquals(chunks + uncached, misses[0]);
+    assertEquals(2 * NUM_DOCS - misses[1], cache.getHits());
+    assertEquals(0, cache.getEvictions());
+
+    // closing the segment removes its chunks
+    reader.close();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.ramBytesUsed());
+    reader = DirectoryReader.open(dir);
+  }
+
+  @Test
+  public void testChunkCacheSize() throws Exception {
+    // room for one chunk of 16kB to 24kB in each stripe; there are more chunks than stripes
+    ChunkCache cache = new ChunkCache(ChunkCache.STRIPES * 30 << 10);
+    Random random = new Random(1);
+    for (int i = 0; i < 3 * NUM_DOCS; i++) {
+      int docID = random.nextInt(NUM_DOCS);
+      DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+      fieldsReader.visitDocument(docID, visitor, cache);
+      assertSameFields(document(docID), visitor.getDocument());
+      assertTrue(cache.ramBytesUsed() <= cache.getMaxRamBytes());
+    }
+    assertTrue(cache.getEvictions() > 0);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.ramBytesUsed());
+  }
+
+  @Test
+  public void testVisitDocuments() throws Exception {
+    Random random = new Random(7);
+    ChunkCache cache = new ChunkCache(16 << 20);
+    for (int iter = 0; iter < 200; iter++) {
+      // sorted document IDs, often several of a chunk, ending anywhere in a chunk
+      int[] docIDs = new int[NUM_DOCS];
+      int n = 0;
+      int density = 1 + random.nextInt(20);
+      for (int doc = random.nextInt(NUM_DOCS); doc < NUM_DOCS; doc += 1 + random.nextInt(density)) {
+        docIDs[n++] = doc;
+      }
+      int from = n == 0 ? 0 : random.nextInt(n);
+      int to = from + (n == from ? 0 : random.nextInt(n - from + 1));
+      StoredFieldVisitor[] visitors = new StoredFieldVisitor[NUM_DOCS];
+      for (int i = from; i < to; i++) {
+        visitors[i] = new DocumentStoredFieldVisitor();
+      }
+      fieldsReader.visitDocuments(docIDs, visitors, from, to, iter % 2 == 0 ? null : cache);
+      for (int i = from; i < to; i++) {
+        assertSameFields(document(docIDs[i]), ((DocumentStoredFieldVisitor) visitors[i]).getDocument());
+      }
+    }
+  }
+
+  @Test
+  public void testVisitDocumentsUpToChunkEnd() throws Exception {
+    // the last document of the range in each chunk, decoded without the rest of the chunk
+    for (int last = 0; last < NUM_DOCS; last++) {
+      int[] docIDs = {Math.max(0, last - 3), last};
+      if (docIDs[0] == docIDs[1]) docIDs = new int[] {last};
+      StoredFieldVisitor[] visitors = new StoredFieldVisitor[docIDs.length];
+      for (int i = 0; i < docIDs.length; i++) {
+        visitors[i] = new DocumentStoredFieldVisitor();
+      }
+      fieldsReader.visitDocuments(docIDs, visitors, 0, docIDs.length, null);
+      for (int i = 0; i < docIDs.length; i++) {
+        assertSameFields(document(docIDs[i]), ((DocumentStoredFieldVisitor) visitors[i]).getDocument());
+      }
+    }
+  }
+}
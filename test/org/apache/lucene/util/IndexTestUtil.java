@@ -0,0 +1,68 @@
+package org.apache.lucene.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+/** Helpers of the tests that read an index built in memory. */
+public final class IndexTestUtil {
+
+  private IndexTestUtil() {}
+
+  /**
+   * Indexes <code>docs</code> in a new {@link RAMDirectory}, committing a
+   * segment of each <code>segmentDocs</code> documents in turn.
+   */
+  public static Directory index(List<Document> docs, int segmentDocs) throws IOException {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir,
+        new IndexWriterConfig(Version.LUCENE_45, new WhitespaceAnalyzer(Version.LUCENE_45)));
+    try {
+      for (int i = 0; i < docs.size(); i++) {
+        writer.addDocument(docs.get(i));
+        if ((i + 1) % segmentDocs == 0) writer.commit();
+      }
+    } finally {
+      writer.close();
+    }
+    return dir;
+  }
+
+  /** Asserts that both documents have the same stored fields, in the same order. */
+  public static void assertSameFields(Document expected, Document actual) {
+    List<IndexableField> e = expected.getFields(), a = actual.getFields();
+    assertEquals(e.size(), a.size());
+    for (int i = 0; i < e.size(); i++) {
+      assertEquals(e.get(i).name(), a.get(i).name());
+      assertEquals(e.get(i).stringValue(), a.get(i).stringValue());
+      assertEquals(e.get(i).numericValue(), a.get(i).numericValue());
+      assertEquals(e.get(i).binaryValue(), a.get(i).binaryValue());
+    }
+  }
+}
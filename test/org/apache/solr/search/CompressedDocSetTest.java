@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetIterator;
+import org.apache.lucene.util.PForDeltaDocIdSet;
+import org.apache.lucene.util.WAH8DocIdSet;
+import org.junit.Test;
+
+/**
+ * Checks that every operation of a {@link CompressedDocSet} gives the same
+ * result as the same operation on a {@link SortedIntDocSet} of the same documents.
+ */
+public class CompressedDocSetTest {
+
+  private final Random random = new Random(0xC0FFEE);
+
+  /** sorted distinct documents below maxDoc, scattered or in runs */
+  private int[] randomDocs(int maxDoc) {
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    switch (random.nextInt(4)) {
+      case 0: // empty or nearly
+        for (int i = random.nextInt(3); i > 0; i--) bits.set(random.nextInt(maxDoc));
+        break;
+      case 1: // scattered
+        int n = random.nextInt(maxDoc / 4 + 1);
+        for (int i = 0; i < n; i++) bits.set(random.nextInt(maxDoc));
+        break;
+      case 2: // runs
+        for (int doc = 0; doc < maxDoc; ) {
+          int run = 1 + random.nextInt(500);
+          if (random.nextBoolean()) bits.set(doc, Math.min(maxDoc, doc + run));
+          doc += run;
+        }
+        break;
+      default: // dense
+        for (int doc = 0; doc < maxDoc; doc++) if (random.nextInt(10) != 0) bits.set(doc);
+    }
+    int[] docs = new int[(int) bits.cardinality()];
+    OpenBitSetIterator it = new OpenBitSetIterator(bits);
+    for (int i = 0; i < docs.length; i++) docs[i] = it.nextDoc();
+    return docs;
+  }
+
+  private static BitDocSet bitDocSet(int[] docs, int maxDoc) {
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    for (int doc : docs) bits.set(doc);
+    return new BitDocSet(bits, docs.length);
+  }
+
+  private static CompressedDocSet pfor(int[] docs, int maxDoc) throws Exception {
+    PForDeltaDocIdSet.Builder builder = new PForDeltaDocIdSet.Builder();
+    for (int doc : docs) builder.add(doc);
+    return new CompressedDocSet(builder.build(), docs.length, maxDoc);
+  }
+
+  private static CompressedDocSet wah(int[] docs, int maxDoc) throws Exception {
+    WAH8DocIdSet.Builder builder = new WAH8DocIdSet.Builder();
+    for (int doc : docs) builder.add(doc);
+    return new CompressedDocSet(builder.build(), docs.length, maxDoc);
+  }
+
+  /** the same documents in each of the other DocSet implementations */
+  private static DocSet[] all(int[] docs, int maxDoc) throws Exception {
+    return new DocSet[] {
+        new SortedIntDocSet(docs),
+        new HashDocSet(docs, 0, docs.length),
+        bitDocSet(docs, maxDoc),
+        new OffHeapBitDocSet(bitDocSet(docs, maxDoc)),
+        pfor(docs, maxDoc),
+        wah(docs, maxDoc)
+    };
+  }
+
+  private static int[] toArray(DocSet set) {
+    int[] docs = new int[set.size()];
+    int i = 0;
+    for (DocIterator it = set.iterator(); it.hasNext(); ) docs[i++] = it.nextDoc();
+    assertEquals(docs.length, i);
+    // HashDocSet iterates in hash order
+    Arrays.sort(docs);
+    return docs;
+  }
+
+  private static void assertSameDocs(String msg, DocSet expected, DocSet actual) {
+    assertEquals(msg, expected.size(), actual.size());
+    assertArrayEquals(msg, toArray(expected), toArray(actual));
+  }
+
+  private static void assertEquivalent(String msg, SortedIntDocSet expected, CompressedDocSet actual, DocSet other) {
+    String m = msg + " vs " + other.getClass().getSimpleName();
+    assertEquals(m, expected.intersectionSize(other), actual.intersectionSize(other));
+    assertEquals(m, expected.intersects(other), actual.intersects(other));
+    assertSameDocs(m, expected.intersection(other), actual.intersection(other));
+    assertEquals(m, expected.andNotSize(other), actual.andNotSize(other));
+    assertSameDocs(m, expected.andNot(other), actual.andNot(other));
+    assertEquals(m, expected.unionSize(other), actual.unionSize(other));
+    assertSameDocs(m, expected.union(other), actual.union(other));
+  }
+
+  @Test
+  public void testEquivalentToSortedIntDocSet() throws Exception {
+    for (int iter = 0; iter < 200; iter++) {
+      int maxDoc = 1 + random.nextInt(random.nextBoolean() ? 200 : 20000);
+      int[] docs = randomDocs(maxDoc);
+      int[] otherDocs = randomDocs(maxDoc);
+      SortedIntDocSet expected = new SortedIntDocSet(docs);
+
+      for (CompressedDocSet actual : new CompressedDocSet[] {pfor(docs, maxDoc), wah(docs, maxDoc)}) {
+        String msg = "iter=" + iter + " " + actual.getDocIdSet().getClass().getSimpleName();
+        assertSameDocs(msg, expected, actual);
+        for (int i = 0; i < 50; i++) {
+          int doc = random.nextInt(maxDoc);
+          assertEquals(msg, expected.exists(doc), actual.exists(doc));
+        }
+        assertEquals(msg, expected.getBits(), actual.getBits());
+        assertTrue(msg, actual.memSize() > 0);
+
+        OpenBitSet target = new OpenBitSet(maxDoc);
+        actual.setBitsOn(target);
+        assertEquals(msg, expected.getBits(), target);
+
+        for (DocSet other : all(otherDocs, maxDoc)) {
+          assertEquivalent(msg, expected, actual, other);
+        }
+        // and with itself
+        assertEquivalent(msg, expected, actual, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testCompress() throws Exception {
+    for (int iter = 0; iter < 100; iter++) {
+      int maxDoc = 1 + random.nextInt(50000);
+      int[] docs = randomDocs(maxDoc);
+      BitDocSet bits = bitDocSet(docs, maxDoc);
+      DocSet compressed = CompressedDocSet.compress(bits, maxDoc);
+      assertSameDocs("iter=" + iter, new SortedIntDocSet(docs), compressed);
+      if (compressed != bits) {
+        // only replaced when much smaller
+        assertTrue(compressed.memSize() * 3 <= bits.memSize() + 64);
+      }
+    }
+    // an empty set
+    DocSet empty = CompressedDocSet.compress(new BitDocSet(new OpenBitSet(100000), 0), 100000);
+    assertEquals(0, empty.size());
+    assertTrue(empty.memSize() < 1000);
+    // sets that are not bits are left alone
+    SortedIntDocSet sorted = new SortedIntDocSet(new int[] {1, 2, 3});
+    assertSame(sorted, CompressedDocSet.compress(sorted));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.request.SolrRequestInfo;
+import org.junit.After;
+import org.junit.Test;
+
+public class MemoryBoundedCacheTest {
+
+  @After
+  public void tearDown() {
+    SolrRequestInfo.clearRequestInfo();
+  }
+
+  private static MemoryBoundedCache<String,DocSet> newCache(String... args) {
+    Map<String,String> params = new HashMap<String,String>();
+    params.put("name", "test");
+    for (int i = 0; i < args.length; i += 2) params.put(args[i], args[i + 1]);
+    MemoryBoundedCache<String,DocSet> cache = new MemoryBoundedCache<String,DocSet>();
+    cache.init(params, null, null);
+    return cache;
+  }
+
+  private static BitDocSet bits(int... docs) {
+    OpenBitSet bits = new OpenBitSet(1 << 16);
+    for (int doc : docs) bits.set(doc);
+    return new BitDocSet(bits, docs.length);
+  }
+
+  private static void startRequest() {
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(null, null));
+  }
+
+  @Test
+  public void testEvictedSetLivesUntilTheRequestIsDone() {
+    MemoryBoundedCache<String,DocSet> cache = newCache("size", "1", "offHeap", "true");
+    cache.put("a", bits(1, 5, 1000));
+
+    startRequest();
+    OffHeapBitDocSet a = (OffHeapBitDocSet) cache.get("a");
+    assertEquals(2, a.getRefCount());
+
+    // evicted while the request uses it, for a value more expensive per byte
+    int[] dense = new int[64];
+    for (int i = 0; i < dense.length; i++) dense[i] = i;
+    cache.put("b", bits(dense));
+    assertNull(cache.get("a"));
+    assertFalse(a.isReleased());
+    assertTrue(a.exists(1000));
+    assertEquals(3, a.intersectionSize(bits(1, 5, 1000, 2000)));
+
+    SolrRequestInfo.clearRequestInfo();
+    assertTrue(a.isReleased());
+  }
+
+  @Test
+  public void testReplacedSetIsReleased() {
+    MemoryBoundedCache<String,DocSet> cache = newCache("offHeap", "true");
+    cache.put("a", bits(1));
+    startRequest();
+    OffHeapBitDocSet first = (OffHeapBitDocSet) cache.get("a");
+    SolrRequestInfo.clearRequestInfo();
+    assertEquals(1, first.getRefCount());
+
+    // the old value returned by put is the caller's to use, outside of a request as a copy
+    DocSet old = cache.put("a", bits(2));
+    assertTrue(first.isReleased());
+    assertTrue(old instanceof BitDocSet);
+    assertTrue(old.exists(1));
+  }
+
+  @Test
+  public void testOutsideOfARequestGetCopies() {
+    MemoryBoundedCache<String,DocSet> cache = newCache("offHeap", "true");
+    cache.put("a", bits(3, 64, 65));
+    DocSet copy = cache.get("a");
+    assertTrue(copy instanceof BitDocSet);
+    assertEquals(3, copy.size());
+    assertTrue(copy.exists(65));
+  }
+
+  @Test
+  public void testCloseReleasesUnusedSets() {
+    MemoryBoundedCache<String,DocSet> cache = newCache("offHeap", "true");
+    cache.put("a", bits(1));
+    cache.put("b", bits(2));
+    startRequest();
+    OffHeapBitDocSet a = (OffHeapBitDocSet) cache.get("a");
+    SolrRequestInfo.clearRequestInfo();
+    startRequest();
+    OffHeapBitDocSet b = (OffHeapBitDocSet) cache.get("b");
+
+    cache.close();
+    assertTrue(a.isReleased());
+    assertFalse(b.isReleased());
+    SolrRequestInfo.clearRequestInfo();
+    assertTrue(b.isReleased());
+  }
+
+  @Test
+  public void testSetSharedByTwoCaches() {
+    // as autowarming does when a regenerator puts the old value
+    MemoryBoundedCache<String,DocSet> oldCache = newCache("offHeap", "true");
+    MemoryBoundedCache<String,DocSet> newCache = newCache("offHeap", "true");
+    oldCache.put("a", bits(7));
+    startRequest();
+    DocSet a = oldCache.get("a");
+    newCache.put("a", a);
+    SolrRequestInfo.clearRequestInfo();
+
+    oldCache.close();
+    assertFalse(((OffHeapBitDocSet) a).isReleased());
+    startRequest();
+    assertSame(a, newCache.get("a"));
+    assertTrue(a.exists(7));
+    SolrRequestInfo.clearRequestInfo();
+    newCache.close();
+    assertTrue(((OffHeapBitDocSet) a).isReleased());
+  }
+
+  @Test
+  public void testRamBound() {
+    MemoryBoundedCache<String,DocSet> cache = newCache("maxRamMB", "0.01");
+    for (int i = 0; i < 10; i++) {
+      cache.put("k" + i, bits(i));
+      assertTrue(cache.ramBytesUsed() <= 0.01 * 1024 * 1024);
+    }
+    assertTrue(cache.size() < 10);
+    assertTrue(cache.size() > 0);
+  }
+}
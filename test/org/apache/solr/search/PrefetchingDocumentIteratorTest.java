@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.util.RefCounted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefetchingDocumentIteratorTest {
+  private TestCore core;
+  private RefCounted<SolrIndexSearcher> searcher;
+
+  @Before
+  public void setUp() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("documentCacheSize", "0");
+    core = new TestCore(props);
+    for (int i = 0; i < SolrIndexSearcherTest.SEGMENTS; i++) {
+      core.addSegment(SolrIndexSearcherTest.SEGMENT_DOCS);
+    }
+    searcher = core.searcher();
+  }
+
+  @After
+  public void tearDown() {
+    searcher.decref();
+    core.close();
+  }
+
+  private static DocList list(int[] ids) {
+    return new DocSlice(0, ids.length, ids, null, ids.length, 0f);
+  }
+
+  private void assertIterates(int[] ids, int windowSize) throws Exception {
+    PrefetchingDocumentIterator it = new PrefetchingDocumentIterator(searcher.get(), list(ids), null, windowSize);
+    for (int i = 0; i < ids.length; i++) {
+      assertTrue(it.hasNext());
+      SolrIndexSearcherTest.assertDoc(ids[i], it.next());
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void testWindows() throws Exception {
+    int[] ids = SolrIndexSearcherTest.shuffled(SolrIndexSearcherTest.SEGMENTS * SolrIndexSearcherTest.SEGMENT_DOCS, new Random(3));
+    // one document at a time, windows that do or do not divide the list, one window for all, more than the list
+    for (int windowSize : new int[] {1, 7, 150, 449, 450, 451, ResultContext.FETCH_WINDOW}) {
+      assertIterates(ids, windowSize);
+    }
+  }
+
+  @Test
+  public void testDuplicates() throws Exception {
+    int[] ids = {5, 160, 5, 449, 5, 160, 0, 0};
+    for (int windowSize : new int[] {1, 2, 3, 8, 100}) {
+      assertIterates(ids, windowSize);
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertIterates(new int[0], 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoWindow() throws Exception {
+    new PrefetchingDocumentIterator(searcher.get(), list(new int[] {1}), null, 0);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.apache.lucene.util.IndexTestUtil.assertSameFields;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IndexTestUtil;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentDocumentCacheTest {
+
+  private Directory dir;
+
+  @Before
+  public void index() throws Exception {
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 20; i++) {
+      Document doc = new Document();
+      doc.add(new StoredField("title", "title " + i + " 한국어"));
+      doc.add(new StoredField("data", new byte[] {(byte) i, 0, (byte) 0xff}));
+      doc.add(new StoredField("count", i));
+      doc.add(new StoredField("id", 1L << 40 | i));
+      doc.add(new StoredField("score", i / 3f));
+      doc.add(new StoredField("weight", i / 7d));
+      // a multivalued field, and an empty value
+      doc.add(new StoredField("title", ""));
+      docs.add(doc);
+    }
+    // two segments
+    dir = IndexTestUtil.index(docs, 10);
+  }
+
+  @After
+  public void close() throws Exception {
+    dir.close();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    SegmentDocumentCache cache = new SegmentDocumentCache(1);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    assertEquals(2, reader.leaves().size());
+    for (int pass = 0; pass < 2; pass++) {
+      for (int leaf = 0; leaf < 2; leaf++) {
+        AtomicReader segment = reader.leaves().get(leaf).reader();
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+          assertSameFields(segment.document(doc), cache.doc(segment, doc));
+        }
+      }
+    }
+    NamedList stats = cache.getStatistics();
+    assertEquals(40L, stats.get("lookups"));
+    assertEquals(20L, stats.get("hits"));
+    assertEquals(20, stats.get("size"));
+    reader.close();
+  }
+
+  @Test
+  public void testVisitSomeFields() throws Exception {
+    DirectoryReader reader = DirectoryReader.open(dir);
+    AtomicReader segment = reader.leaves().get(0).reader();
+    SegmentDocumentCache.Serializer serializer = new SegmentDocumentCache.Serializer();
+    segment.document(3, serializer);
+    byte[] fields = serializer.toBytes();
+
+    // the skipped fields of each type leave the others readable
+    HashSet<String> names = new HashSet<String>();
+    names.add("weight");
+    names.add("count");
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(names);
+    SegmentDocumentCache.visit(fields, segment.getFieldInfos(), visitor);
+    Document doc = visitor.getDocument();
+    assertEquals(2, doc.getFields().size());
+    assertEquals(3, doc.getField("count").numericValue());
+    assertEquals(3 / 7d, doc.getField("weight").numericValue());
+
+    DocumentStoredFieldVisitor all = new DocumentStoredFieldVisitor();
+    SegmentDocumentCache.visit(fields, segment.getFieldInfos(), all);
+    assertSameFields(segment.document(3), all.getDocument());
+    assertArrayEquals(new byte[] {3, 0, (byte) 0xff}, all.getDocument().getBinaryValue("data").bytes);
+    reader.close();
+  }
+
+  @Test
+  public void testPurgeOnClose() throws Exception {
+    SegmentDocumentCache cache = new SegmentDocumentCache(1);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    for (int leaf = 0; leaf < 2; leaf++) {
+      cache.doc(reader.leaves().get(leaf).reader(), 0);
+      cache.doc(reader.leaves().get(leaf).reader(), 1);
+    }
+    cache.clear();
+    cache.doc(reader.leaves().get(1).reader(), 2);
+    assertEquals(1, cache.getStatistics().get("segments"));
+
+    reader.close();
+    NamedList stats = cache.getStatistics();
+    assertEquals(0, stats.get("size"));
+    assertEquals(0, stats.get("segments"));
+    assertEquals(2L, stats.get("purgedSegments"));
+    assertEquals(0L, cache.ramBytesUsed());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IndexTestUtil;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentFilterCacheTest {
+
+  private Directory dir;
+
+  @Before
+  public void index() throws Exception {
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 30; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("color", i % 2 == 0 ? "red" : "blue", Field.Store.NO));
+      docs.add(doc);
+    }
+    // three segments
+    dir = IndexTestUtil.index(docs, 10);
+  }
+
+  @After
+  public void close() throws Exception {
+    dir.close();
+  }
+
+  @Test
+  public void testPurgeOnClose() throws Exception {
+    SegmentFilterCache cache = new SegmentFilterCache(1);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    cache.getSegmentDocs(searcher, new TermQuery(new Term("color", "red")));
+    cache.getSegmentDocs(searcher, new TermQuery(new Term("color", "blue")));
+    assertEquals(3, reader.leaves().size());
+    NamedList stats = cache.getStatistics();
+    assertEquals(6, stats.get("size"));
+    assertEquals(3, stats.get("segments"));
+
+    cache.getSegmentDocs(searcher, new TermQuery(new Term("color", "red")));
+    assertEquals(3L, cache.getStatistics().get("hits"));
+
+    reader.close();
+    stats = cache.getStatistics();
+    assertEquals(0, stats.get("size"));
+    assertEquals(0, stats.get("segments"));
+    assertEquals(3L, stats.get("purgedSegments"));
+    assertEquals(0L, cache.ramBytesUsed());
+  }
+
+  @Test
+  public void testPurgeAfterClear() throws Exception {
+    SegmentFilterCache cache = new SegmentFilterCache(1);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    cache.getSegmentDocs(searcher, new TermQuery(new Term("color", "red")));
+    cache.clear();
+    // the listeners registered before the clear purge the new entries
+    cache.getSegmentDocs(searcher, new TermQuery(new Term("color", "blue")));
+    assertEquals(3, cache.getStatistics().get("size"));
+
+    reader.close();
+    NamedList stats = cache.getStatistics();
+    assertEquals(0, stats.get("size"));
+    assertEquals(3L, stats.get("purgedSegments"));
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LazyDocument;
+import org.apache.solr.util.RefCounted;
+import org.junit.After;
+import org.junit.Test;
+
+/** Reading the stored fields of several documents at once with {@link SolrIndexSearcher#readDocs}. */
+public class SolrIndexSearcherTest {
+  /** documents per segment */
+  static final int SEGMENT_DOCS = 150;
+  static final int SEGMENTS = 3;
+
+  private TestCore core;
+  private RefCounted<SolrIndexSearcher> searcher;
+
+  /** Opens a core with these <code>name=value</code> properties and three committed segments. */
+  private SolrIndexSearcher open(String... properties) throws IOException {
+    Properties props = new Properties();
+    for (String property : properties) {
+      int eq = property.indexOf('=');
+      props.setProperty(property.substring(0, eq), property.substring(eq + 1));
+    }
+    core = new TestCore(props);
+    for (int i = 0; i < SEGMENTS; i++) {
+      core.addSegment(SEGMENT_DOCS);
+    }
+    searcher = core.searcher();
+    assertEquals(SEGMENTS, searcher.get().getTopReaderContext().leaves().size());
+    return searcher.get();
+  }
+
+  @After
+  public void tearDown() {
+    if (searcher != null) searcher.decref();
+    if (core != null) core.close();
+  }
+
+  /** Asserts that <code>doc</code> is the document <code>docid</code>, which was added as the docid-th one. */
+  static void assertDoc(int docid, Document doc) {
+    assertNotNull("document " + docid, doc);
+    assertEquals("doc" + docid, doc.get("id"));
+    assertEquals(TestCore.body(docid), doc.get("body"));
+  }
+
+  static int[] shuffled(int numDocs, Random random) {
+    int[] ids = new int[numDocs];
+    for (int i = 0; i < numDocs; i++) ids[i] = i;
+    for (int i = numDocs - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int t = ids[i];
+      ids[i] = ids[j];
+      ids[j] = t;
+    }
+    return ids;
+  }
+
+  private static void assertReadDocs(SolrIndexSearcher searcher, int[] ids, Set<String> fields) throws IOException {
+    Document[] docs = new Document[ids.length];
+    searcher.readDocs(docs, ids, fields);
+    for (int i = 0; i < ids.length; i++) {
+      assertDoc(ids[i], docs[i]);
+    }
+  }
+
+  @Test
+  public void testOrderAcrossSegments() throws Exception {
+    SolrIndexSearcher searcher = open();
+    assertNull(core.core.getDocumentFetchExecutor());
+    // the documents come back in the order of the ids, not in the doc id order they are read in
+    assertReadDocs(searcher, new int[] {449, 0, 300, 150, 1, 299, 151}, null);
+    assertReadDocs(searcher, shuffled(SEGMENTS * SEGMENT_DOCS, new Random(42)), null);
+    assertReadDocs(searcher, new int[0], null);
+  }
+
+  @Test
+  public void testDocumentCachePartlyFilled() throws Exception {
+    SolrIndexSearcher searcher = open();
+    Document cached = searcher.doc(160);
+    Document cached2 = searcher.doc(3);
+
+    int[] ids = {3, 10, 160, 400, 161};
+    Document[] docs = new Document[ids.length];
+    searcher.readDocs(docs, ids, null);
+    assertSame(cached2, docs[0]);
+    assertSame(cached, docs[2]);
+    for (int i = 0; i < ids.length; i++) {
+      assertDoc(ids[i], docs[i]);
+      // the documents read were cached too
+      assertSame(docs[i], searcher.doc(ids[i]));
+    }
+
+    // all cached: nothing left to read
+    Document[] again = new Document[ids.length];
+    searcher.readDocs(again, ids, null);
+    for (int i = 0; i < ids.length; i++) {
+      assertSame(docs[i], again[i]);
+    }
+  }
+
+  @Test
+  public void testLazyFields() throws Exception {
+    SolrIndexSearcher searcher = open("documentCacheSize=0");
+    int[] ids = {5, 200, 310};
+    Document[] docs = new Document[ids.length];
+    searcher.readDocs(docs, ids, Collections.singleton("id"));
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals("doc" + ids[i], docs[i].get("id"));
+      // the other fields are only read when asked for
+      assertTrue(docs[i].getField("body") instanceof LazyDocument.LazyField);
+      assertEquals(TestCore.body(ids[i]), docs[i].get("body"));
+    }
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    SolrIndexSearcher searcher = open("fetchThreads=4", "documentCacheSize=0");
+    assertNotNull(core.core.getDocumentFetchExecutor());
+    int[] ids = shuffled(SEGMENTS * SEGMENT_DOCS, new Random(7));
+    assertTrue(ids.length >= SolrIndexSearcher.PARALLEL_FETCH_MIN_DOCS);
+    assertReadDocs(searcher, ids, null);
+    assertReadDocs(searcher, ids, new HashSet<String>(Collections.singleton("id")));
+  }
+
+  @Test
+  public void testParallelChunkCache() throws Exception {
+    SolrIndexSearcher searcher = open("fetchThreads=4", "chunkCacheMB=1", "documentCacheSize=0");
+    int[] ids = shuffled(SEGMENTS * SEGMENT_DOCS, new Random(11));
+    assertReadDocs(searcher, ids, null);
+    assertTrue(core.core.getChunkCache().getMisses() > 0);
+    // read again from the decompressed chunks
+    long hits = core.core.getChunkCache().getHits();
+    assertReadDocs(searcher, ids, null);
+    assertTrue(core.core.getChunkCache().getHits() > hits);
+  }
+
+  @Test
+  public void testDuplicates() throws Exception {
+    SolrIndexSearcher searcher = open("documentCacheSize=0");
+    int[] ids = {5, 160, 5, 5, 300, 160, 449, 449};
+    assertReadDocs(searcher, ids, null);
+    assertReadDocs(searcher, ids, Collections.singleton("id"));
+  }
+
+  @Test
+  public void testDuplicatesChunkCache() throws Exception {
+    SolrIndexSearcher searcher = open("chunkCacheMB=1", "documentCacheSize=0");
+    int[] ids = {5, 160, 5, 5, 300, 160, 449, 449};
+    assertReadDocs(searcher, ids, null);
+    assertReadDocs(searcher, ids, Collections.singleton("id"));
+  }
+
+  @Test
+  public void testSegmentDocumentCache() throws Exception {
+    SolrIndexSearcher searcher = open("segmentDocumentCacheMB=1", "documentCacheSize=0");
+    assertNotNull(core.core.getSegmentDocumentCache());
+    int[] ids = {449, 0, 5, 5, 300, 151};
+    assertReadDocs(searcher, ids, null);
+    assertEquals(5, core.core.getSegmentDocumentCache().getStatistics().get("size"));
+    assertReadDocs(searcher, ids, null);
+    assertEquals(7L, ((Number)core.core.getSegmentDocumentCache().getStatistics().get("hits")).longValue());
+  }
+}
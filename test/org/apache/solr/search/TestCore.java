@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * A core in a temporary solr home, with the config and schema of the
+ * <code>testcore</code> directory next to this class. Its documents have a
+ * string <code>id</code>, an int <code>seq</code> and a stored only
+ * <code>body</code>, and each {@link #addSegment} commits a segment of them.
+ */
+class TestCore {
+  private final File home;
+  private final CoreContainer container;
+  private final Properties properties;
+  final SolrCore core;
+  private int next;
+
+  /**
+   * @param properties the values of the <code>testcore.*</code> properties of
+   *        solrconfig.xml: documentCacheSize, segmentDocumentCacheMB,
+   *        chunkCacheMB and fetchThreads
+   */
+  TestCore(Properties properties) throws IOException {
+    this.properties = properties;
+    home = File.createTempFile("testcore", "");
+    if (!home.delete() || !new File(home, "collection1/conf").mkdirs()) {
+      throw new IOException("Cannot create " + home);
+    }
+    write("<solr/>", new File(home, "solr.xml"));
+    write("name=collection1\n", new File(home, "collection1/core.properties"));
+    copy("testcore/solrconfig.xml", new File(home, "collection1/conf/solrconfig.xml"));
+    copy("testcore/schema.xml", new File(home, "collection1/conf/schema.xml"));
+
+    for (String name : properties.stringPropertyNames()) {
+      System.setProperty("testcore." + name, properties.getProperty(name));
+    }
+    container = new CoreContainer(home.getPath());
+    container.load();
+    core = container.getCore("collection1");
+  }
+
+  private static void write(String text, File to) throws IOException {
+    OutputStream out = new FileOutputStream(to);
+    try {
+      out.write(text.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void copy(String resource, File to) throws IOException {
+    InputStream in = TestCore.class.getResourceAsStream(resource);
+    if (in == null) throw new IOException("No resource " + resource);
+    OutputStream out = new FileOutputStream(to);
+    try {
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  /** The body of the document with this <code>seq</code>, long enough to span several chunks. */
+  static String body(int seq) {
+    StringBuilder body = new StringBuilder();
+    while (body.length() < 200) {
+      body.append(seq).append(' ');
+    }
+    return body.toString();
+  }
+
+  /** Adds the next <code>numDocs</code> documents and commits them as one segment. */
+  void addSegment(int numDocs) throws IOException {
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams());
+    try {
+      for (int i = 0; i < numDocs; i++, next++) {
+        AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.addField("id", "doc" + next);
+        cmd.solrDoc.addField("seq", next);
+        cmd.solrDoc.addField("body", body(next));
+        core.getUpdateHandler().addDoc(cmd);
+      }
+      core.getUpdateHandler().commit(new CommitUpdateCommand(req, false));
+    } finally {
+      req.close();
+    }
+  }
+
+  /** The current searcher, to be released with {@link RefCounted#decref()}. */
+  RefCounted<SolrIndexSearcher> searcher() {
+    return core.getSearcher();
+  }
+
+  void close() {
+    try {
+      core.close();
+      container.shutdown();
+    } finally {
+      for (String name : properties.stringPropertyNames()) {
+        System.clearProperty("testcore." + name);
+      }
+      delete(home);
+    }
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) delete(child);
+    }
+    f.delete();
+  }
+}
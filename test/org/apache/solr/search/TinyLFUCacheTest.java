@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.solr.search;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TinyLFUCacheTest {
+
+  private static final int SIZE = 100;
+
+  private static TinyLFUCache<String,String> newCache(Object persistence) {
+    Map<String,String> args = new HashMap<String,String>();
+    args.put("name", "test");
+    args.put("size", String.valueOf(SIZE));
+    TinyLFUCache<String,String> cache = new TinyLFUCache<String,String>();
+    cache.init(args, persistence, null);
+    return cache;
+  }
+
+  private static void request(TinyLFUCache<String,String> cache, String key) {
+    if (cache.get(key) == null) cache.put(key, key);
+  }
+
+  @Test
+  public void testWarmWithoutRegenerator() {
+    TinyLFUCache<String,String> old = newCache(null);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < SIZE; i++) request(old, "hot" + i);
+    }
+
+    TinyLFUCache<String,String> cache = newCache(null);
+    cache.warm(null, old);
+    old.close();
+    for (int i = 0; i < SIZE; i++) cache.put("hot" + i, "hot" + i);
+    for (int i = 0; i < 2 * SIZE; i++) request(cache, "scan" + i);
+
+    // the frequencies carried over keep the scan from replacing the working set
+    int hot = 0;
+    for (int i = 0; i < SIZE; i++) {
+      if (cache.get("hot" + i) != null) hot++;
+    }
+    assertTrue(hot >= SIZE - 5);
+    cache.close();
+  }
+}
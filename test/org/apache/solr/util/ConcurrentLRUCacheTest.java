@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.solr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentLRUCacheTest {
+
+  @Test
+  public void testEvictionBounds() {
+    ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>(100, 90);
+    int max = 0;
+    for (int i = 0; i < 10000; i++) {
+      cache.put(i, i);
+      max = Math.max(max, cache.size());
+      assertTrue(cache.size() >= Math.min(i + 1, 90));
+    }
+    // a put over the upper water mark evicts down to the lower one before it returns
+    assertEquals(100, max);
+    assertEquals(10000 - cache.size(), cache.getStats().getCumulativeEvictions());
+  }
+
+  @Test
+  public void testConcurrentEvictionBounds() throws Exception {
+    final ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>(100, 90);
+    final AtomicInteger max = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final Random random = new Random(t);
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            // a few hot keys, accessed over and over, and many cold ones
+            Integer key = random.nextBoolean() ? random.nextInt(50) : random.nextInt(100000);
+            if (cache.get(key) == null) cache.put(key, key);
+            int size = cache.size();
+            int seen;
+            while (size > (seen = max.get()) && !max.compareAndSet(seen, size));
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) t.join();
+    // the accesses are ignored once the size is 'upper - lower' over the upper water mark
+    assertTrue("max size " + max.get(), max.get() <= 2 * 100 - 90 + threads.length);
+    assertTrue(cache.size() <= 2 * 100 - 90 + threads.length);
+    assertEquals(cache.getMap().size(), cache.size());
+  }
+
+  @Test
+  public void testSecondChance() {
+    ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>(100, 90);
+    for (int i = 0; i < 100; i++) cache.put(i, i);
+    for (int i = 0; i < 10; i++) cache.get(i);
+    for (int i = 100; i < 150; i++) cache.put(i, i);
+
+    // the entries accessed since they were put are passed over
+    for (int i = 0; i < 10; i++) assertNotNull(cache.getMap().get(i));
+    for (int i = 10; i < 20; i++) assertFalse(cache.getMap().containsKey(i));
+    for (int i = 140; i < 150; i++) assertNotNull(cache.getMap().get(i));
+  }
+
+  @Test
+  public void testAccessedItemsOrder() {
+    ConcurrentLRUCache<Integer,Integer> cache = new ConcurrentLRUCache<Integer,Integer>(100, 90);
+    for (int i = 0; i < 10; i++) cache.put(i, i);
+    cache.get(5);
+    cache.get(2);
+
+    // both most recently accessed first
+    assertEquals(Arrays.asList(2, 5, 9), new ArrayList<Integer>(cache.getLatestAccessedItems(3).keySet()));
+    assertEquals(Arrays.asList(3, 1, 0), new ArrayList<Integer>(cache.getOldestAccessedItems(3).keySet()));
+    assertEquals(10, cache.getLatestAccessedItems(20).size());
+    assertEquals(0, cache.getOldestAccessedItems(0).size());
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.solr.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrentTinyLFUCacheTest {
+
+  private static final int SIZE = 100;
+
+  /** Looks the key up and puts it when missing, as the searcher does. */
+  static void request(ConcurrentTinyLFUCache<String,String> cache, String key) {
+    if (cache.get(key) == null) cache.put(key, key);
+  }
+
+  static ConcurrentTinyLFUCache<String,String> hotCache() {
+    ConcurrentTinyLFUCache<String,String> cache = new ConcurrentTinyLFUCache<String,String>(SIZE, SIZE);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < SIZE; i++) request(cache, "hot" + i);
+    }
+    return cache;
+  }
+
+  static int countHot(ConcurrentTinyLFUCache<String,String> cache) {
+    int hot = 0;
+    for (String key : cache.getLatestAccessedItems(SIZE).keySet()) {
+      if (key.startsWith("hot")) hot++;
+    }
+    return hot;
+  }
+
+  @Test
+  public void testRejectsOneShotKeys() {
+    ConcurrentTinyLFUCache<String,String> cache = hotCache();
+    assertEquals(SIZE, cache.size());
+    for (int i = 0; i < 2 * SIZE; i++) request(cache, "scan" + i);
+
+    assertEquals(SIZE, cache.size());
+    // the working set survives the scan, but for the last hot key, in the window when it began
+    assertTrue(countHot(cache) >= SIZE - 5);
+    assertTrue(cache.getStats().getCumulativeRejections() >= 2 * SIZE - 5);
+  }
+
+  @Test
+  public void testAdmitsFrequentKeys() {
+    ConcurrentTinyLFUCache<String,String> cache = hotCache();
+    for (int i = 0; i < 10; i++) cache.get("popular");
+    cache.put("popular", "popular");
+    // push it out of the window, so that it competes with the entries on probation
+    request(cache, "scan");
+
+    assertNotNull(cache.get("popular"));
+    assertEquals(SIZE, cache.size());
+    assertEquals(1, cache.getStats().getCumulativeEvictions());
+  }
+
+  @Test
+  public void testCopyFrequencies() {
+    ConcurrentTinyLFUCache<String,String> old = hotCache();
+
+    ConcurrentTinyLFUCache<String,String> fresh = new ConcurrentTinyLFUCache<String,String>(SIZE, SIZE);
+    for (int i = 0; i < SIZE; i++) fresh.put("hot" + i, "hot" + i);
+    for (int i = 0; i < 2 * SIZE; i++) request(fresh, "scan" + i);
+    // without the frequencies, the scan replaces the working set
+    assertTrue(countHot(fresh) <= 5);
+
+    ConcurrentTinyLFUCache<String,String> warmed = new ConcurrentTinyLFUCache<String,String>(SIZE, SIZE);
+    warmed.copyFrequencies(old);
+    for (int i = 0; i < SIZE; i++) warmed.put("hot" + i, "hot" + i);
+    for (int i = 0; i < 2 * SIZE; i++) request(warmed, "scan" + i);
+    assertTrue(countHot(warmed) >= SIZE - 5);
+  }
+}